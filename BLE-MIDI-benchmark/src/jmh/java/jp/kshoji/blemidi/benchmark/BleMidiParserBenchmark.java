@@ -0,0 +1,118 @@
+package jp.kshoji.blemidi.benchmark;
+
+import android.support.annotation.NonNull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiDataListener;
+import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.util.BleMidiParser;
+
+/**
+ * Throughput of {@link BleMidiParser#parse(byte[])}, reported per MIDI message.<br />
+ * The packets are copied into the ring buffer and parsed on the parser's thread: the benchmark waits for the buffer space before each packet,
+ * so it measures the parser's sustained throughput, and an iteration dropping any packet fails.<br />
+ * The parser is recreated for each iteration, so the events queued by the previous iteration don't affect the next.
+ *
+ * @author K.Shoji
+ */
+@State(Scope.Thread)
+public class BleMidiParserBenchmark {
+    private byte[][] denseChords;
+    private byte[][] runningStatus;
+    private byte[][] controlChangeSweep;
+    private byte[][] multiPacketSysEx;
+
+    private BenchmarkMidiInputDevice device;
+    private BleMidiParser parser;
+
+    /**
+     * The sender of the parsed events, parsing nothing by itself
+     */
+    private static final class BenchmarkMidiInputDevice extends MidiInputDevice {
+
+        @Override
+        public void setOnMidiInputEventListener(OnMidiInputEventListener midiInputEventListener) {
+            // the events are discarded
+        }
+
+        @Override
+        public void setOnMidiDataListener(OnMidiDataListener listener) {
+            // the packets are fed to the parser directly
+        }
+
+        @NonNull
+        @Override
+        public String getDeviceName() {
+            return "benchmark";
+        }
+
+        @NonNull
+        @Override
+        public String getDeviceAddress() {
+            return "00:00:00:00:00:00";
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUpStreams() {
+        denseChords = PacketStreams.denseChords();
+        runningStatus = PacketStreams.runningStatus();
+        controlChangeSweep = PacketStreams.controlChangeSweep();
+        multiPacketSysEx = PacketStreams.multiPacketSysEx();
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpParser() {
+        device = new BenchmarkMidiInputDevice();
+        parser = new BleMidiParser(device, device.getControllerState(), device.getActiveNotes());
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownParser() {
+        parser.stop();
+
+        long droppedPackets = device.getMetrics().snapshot().getDroppedPackets();
+        if (droppedPackets > 0) {
+            throw new IllegalStateException(droppedPackets + " packets dropped, the result doesn't measure the whole stream");
+        }
+    }
+
+    private void parseAll(byte[][] packets) {
+        for (byte[] packet : packets) {
+            parser.awaitBufferSpace();
+            parser.parse(packet);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketStreams.CHORD_MESSAGES)
+    public void denseChords() {
+        parseAll(denseChords);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketStreams.RUNNING_STATUS_MESSAGES)
+    public void runningStatus() {
+        parseAll(runningStatus);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketStreams.CC_SWEEP_MESSAGES)
+    public void controlChangeSweep() {
+        parseAll(controlChangeSweep);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketStreams.SYSEX_DUMPS)
+    public void multiPacketSysEx() {
+        parseAll(multiPacketSysEx);
+    }
+}
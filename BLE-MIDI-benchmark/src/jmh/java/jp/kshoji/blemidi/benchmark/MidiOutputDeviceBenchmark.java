@@ -0,0 +1,87 @@
+package jp.kshoji.blemidi.benchmark;
+
+import android.support.annotation.NonNull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jp.kshoji.blemidi.device.MidiOutputDevice;
+
+/**
+ * Cost of the {@link MidiOutputDevice} encoders, per call
+ *
+ * @author K.Shoji
+ */
+@State(Scope.Thread)
+public class MidiOutputDeviceBenchmark {
+    private MidiOutputDevice device;
+    private byte[] systemExclusive;
+
+    /**
+     * {@link MidiOutputDevice} which passes the packets to {@link Blackhole}
+     */
+    private static final class BlackholeMidiOutputDevice extends MidiOutputDevice {
+        private final Blackhole blackhole;
+
+        BlackholeMidiOutputDevice(@NonNull Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        protected void transferData(@NonNull byte[] writeBuffer) {
+            blackhole.consume(writeBuffer);
+        }
+
+        @NonNull
+        @Override
+        public String getDeviceName() {
+            return "benchmark";
+        }
+
+        @NonNull
+        @Override
+        public String getDeviceAddress() {
+            return "00:00:00:00:00:00";
+        }
+    }
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        device = new BlackholeMidiOutputDevice(blackhole);
+
+        systemExclusive = new byte[PacketStreams.SYSEX_LENGTH];
+        systemExclusive[0] = (byte) 0xf0;
+        for (int i = 1; i < systemExclusive.length - 1; i++) {
+            systemExclusive[i] = (byte) (i & 0x7f);
+        }
+        systemExclusive[systemExclusive.length - 1] = (byte) 0xf7;
+    }
+
+    @Benchmark
+    public void noteOn() {
+        device.sendMidiNoteOn(0, 60, 100);
+    }
+
+    @Benchmark
+    public void controlChange() {
+        device.sendMidiControlChange(0, 7, 100);
+    }
+
+    @Benchmark
+    public void timingClock() {
+        device.sendMidiTimingClock();
+    }
+
+    @Benchmark
+    public void rpnMessage() {
+        device.sendRPNMessage(0, 0, 0x2000);
+    }
+
+    @Benchmark
+    public void systemExclusive() {
+        device.sendMidiSystemExclusive(systemExclusive);
+    }
+}
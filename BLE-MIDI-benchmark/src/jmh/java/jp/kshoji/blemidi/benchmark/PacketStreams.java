@@ -0,0 +1,151 @@
+package jp.kshoji.blemidi.benchmark;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.kshoji.blemidi.device.MidiOutputDevice;
+
+/**
+ * BLE MIDI packet streams shaped like the captures from pianos and controllers, with 20 bytes payload(default MTU)
+ *
+ * @author K.Shoji
+ */
+final class PacketStreams {
+    static final int PACKETS = 100;
+
+    /**
+     * Note-on chords: 8 notes per packet with running status and one timestamp
+     */
+    static final int CHORD_NOTES_PER_PACKET = 8;
+    static final int CHORD_MESSAGES = PACKETS * CHORD_NOTES_PER_PACKET;
+
+    /**
+     * Note-on / off with running status, each message has its own timestamp
+     */
+    static final int RUNNING_STATUS_NOTES_PER_PACKET = 6;
+    static final int RUNNING_STATUS_MESSAGES = PACKETS * RUNNING_STATUS_NOTES_PER_PACKET;
+
+    /**
+     * Control change sweep, full status for each message
+     */
+    static final int CC_PER_PACKET = 4;
+    static final int CC_SWEEP_MESSAGES = PACKETS * CC_PER_PACKET;
+
+    /**
+     * SysEx patch dumps, split into multiple packets by {@link MidiOutputDevice}
+     */
+    static final int SYSEX_DUMPS = 8;
+    static final int SYSEX_LENGTH = 256;
+
+    private static int timestamp = 0;
+
+    private static byte header() {
+        return (byte) (0x80 | ((timestamp >> 7) & 0x3f));
+    }
+
+    private static byte timestampLow() {
+        return (byte) (0x80 | (timestamp & 0x7f));
+    }
+
+    private static void tick() {
+        timestamp = (timestamp + 1) % MidiOutputDevice.MAX_TIMESTAMP;
+    }
+
+    @NonNull
+    static byte[][] denseChords() {
+        byte[][] packets = new byte[PACKETS][];
+        for (int p = 0; p < PACKETS; p++) {
+            byte[] packet = new byte[3 + CHORD_NOTES_PER_PACKET * 2];
+            int i = 0;
+            packet[i++] = header();
+            packet[i++] = timestampLow();
+            packet[i++] = (byte) 0x90;
+            for (int n = 0; n < CHORD_NOTES_PER_PACKET; n++) {
+                packet[i++] = (byte) (48 + n * 4);
+                packet[i++] = (byte) ((p & 1) == 0 ? 100 : 0);
+            }
+            packets[p] = packet;
+            tick();
+        }
+        return packets;
+    }
+
+    @NonNull
+    static byte[][] runningStatus() {
+        byte[][] packets = new byte[PACKETS][];
+        for (int p = 0; p < PACKETS; p++) {
+            byte[] packet = new byte[2 + RUNNING_STATUS_NOTES_PER_PACKET * 3];
+            int i = 0;
+            packet[i++] = header();
+            packet[i++] = timestampLow();
+            packet[i++] = (byte) 0x90;
+            for (int n = 0; n < RUNNING_STATUS_NOTES_PER_PACKET; n++) {
+                if (n > 0) {
+                    tick();
+                    packet[i++] = timestampLow();
+                }
+                packet[i++] = (byte) (60 + (p + n) % 24);
+                packet[i++] = (byte) (n % 2 == 0 ? 90 : 0);
+            }
+            packets[p] = packet;
+            tick();
+        }
+        return packets;
+    }
+
+    @NonNull
+    static byte[][] controlChangeSweep() {
+        byte[][] packets = new byte[PACKETS][];
+        int value = 0;
+        for (int p = 0; p < PACKETS; p++) {
+            byte[] packet = new byte[1 + CC_PER_PACKET * 4];
+            int i = 0;
+            packet[i++] = header();
+            for (int n = 0; n < CC_PER_PACKET; n++) {
+                packet[i++] = timestampLow();
+                packet[i++] = (byte) 0xb0;
+                packet[i++] = 7;
+                packet[i++] = (byte) (value++ & 0x7f);
+                tick();
+            }
+            packets[p] = packet;
+        }
+        return packets;
+    }
+
+    @NonNull
+    static byte[][] multiPacketSysEx() {
+        final List<byte[]> packets = new ArrayList<>();
+        MidiOutputDevice encoder = new MidiOutputDevice() {
+            @Override
+            protected void transferData(@NonNull byte[] writeBuffer) {
+                packets.add(writeBuffer.clone());
+            }
+
+            @NonNull
+            @Override
+            public String getDeviceName() {
+                return "capture";
+            }
+
+            @NonNull
+            @Override
+            public String getDeviceAddress() {
+                return "00:00:00:00:00:00";
+            }
+        };
+
+        for (int d = 0; d < SYSEX_DUMPS; d++) {
+            byte[] sysEx = new byte[SYSEX_LENGTH];
+            sysEx[0] = (byte) 0xf0;
+            for (int i = 1; i < SYSEX_LENGTH - 1; i++) {
+                sysEx[i] = (byte) ((i + d) & 0x7f);
+            }
+            sysEx[SYSEX_LENGTH - 1] = (byte) 0xf7;
+            encoder.sendMidiSystemExclusive(sysEx);
+        }
+        return packets.toArray(new byte[packets.size()][]);
+    }
+}
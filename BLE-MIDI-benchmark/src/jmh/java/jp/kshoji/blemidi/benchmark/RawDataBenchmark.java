@@ -0,0 +1,43 @@
+package jp.kshoji.blemidi.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jp.kshoji.blemidi.util.BleMidiDataUtils;
+
+/**
+ * Throughput of the raw data path({@link jp.kshoji.blemidi.listener.OnMidiDataListener}), reported per packet
+ *
+ * @author K.Shoji
+ */
+@State(Scope.Thread)
+public class RawDataBenchmark {
+    private byte[][] denseChords;
+    private byte[][] controlChangeSweep;
+
+    @Setup
+    public void setUp() {
+        denseChords = PacketStreams.denseChords();
+        controlChangeSweep = PacketStreams.controlChangeSweep();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketStreams.PACKETS)
+    public void denseChords(Blackhole blackhole) {
+        for (byte[] packet : denseChords) {
+            blackhole.consume(BleMidiDataUtils.removeZeroTimestampBytes(packet));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PacketStreams.PACKETS)
+    public void controlChangeSweep(Blackhole blackhole) {
+        for (byte[] packet : controlChangeSweep) {
+            blackhole.consume(BleMidiDataUtils.removeZeroTimestampBytes(packet));
+        }
+    }
+}
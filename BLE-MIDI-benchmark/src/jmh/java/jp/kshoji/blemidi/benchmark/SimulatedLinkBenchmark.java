@@ -0,0 +1,50 @@
+package jp.kshoji.blemidi.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import jp.kshoji.blemidi.simulator.SimulatedBlePeripheral;
+import jp.kshoji.blemidi.simulator.TrafficProfile;
+
+/**
+ * Cost of a connection event of {@link SimulatedBlePeripheral}: traffic generation, coalescing, and the central's parser, reported per event
+ *
+ * @author K.Shoji
+ */
+@State(Scope.Thread)
+public class SimulatedLinkBenchmark {
+    private static final int EVENTS = 1000;
+
+    @Param({"0.0", "0.01"})
+    public double packetLossRate;
+
+    private SimulatedBlePeripheral peripheral;
+
+    @Setup
+    public void setUp() {
+        peripheral = new SimulatedBlePeripheral("benchmark", "00:00:00:00:00:00", 1);
+        peripheral.setMtu(185);
+        peripheral.setPacketLossRate(packetLossRate);
+        peripheral.setTrafficProfile(TrafficProfile.combine(
+                TrafficProfile.chordBursts(0, 4, 8),
+                TrafficProfile.controlChangeSweep(1, 7, 2),
+                TrafficProfile.timingClock(120, 7.5)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        peripheral.terminate();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public long mixedTraffic() {
+        peripheral.runConnectionEvents(EVENTS);
+        return peripheral.getDroppedNotifications();
+    }
+}
@@ -0,0 +1,180 @@
+package jp.kshoji.blemidi.fuzz;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiEventBatchListener;
+import jp.kshoji.blemidi.listener.OnMidiSystemExclusiveStreamListener;
+import jp.kshoji.blemidi.util.MidiEventBatch;
+
+/**
+ * Collects the events of a fuzzing case: the dispatched messages as hex strings, and the last SysEx completed by the streaming listener.<br />
+ * Called on the parser's thread, read on the fuzzer's thread.
+ *
+ * @author K.Shoji
+ */
+final class EventCollector implements OnMidiEventBatchListener, OnMidiSystemExclusiveStreamListener {
+    private final List<String> messages = new ArrayList<>();
+    private final int systemExclusiveLimit;
+    private final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    private boolean isStreaming;
+    private byte[] lastStreamed;
+    private String violation;
+
+    /**
+     * Constructor
+     *
+     * @param systemExclusiveLimit the SysEx limit of the parser, the dispatched SysEx must not be longer
+     */
+    EventCollector(int systemExclusiveLimit) {
+        this.systemExclusiveLimit = systemExclusiveLimit;
+    }
+
+    @Override
+    public synchronized void onMidiEventBatch(@NonNull MidiInputDevice sender, @NonNull MidiEventBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.isSystemExclusive(i)) {
+                byte[] systemExclusive = batch.copySystemExclusive(i);
+                if (systemExclusive.length > systemExclusiveLimit) {
+                    violation = "SysEx of " + systemExclusive.length + " bytes exceeds the limit " + systemExclusiveLimit;
+                }
+                messages.add(toHex(systemExclusive, systemExclusive.length));
+            } else {
+                int status = batch.getStatus(i);
+                byte[] message = { (byte) status, (byte) batch.getData1(i), (byte) batch.getData2(i) };
+                messages.add(toHex(message, messageLength(status)));
+            }
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onMidiSystemExclusiveBegin(@NonNull MidiInputDevice sender) {
+        if (isStreaming) {
+            violation = "SysEx stream began twice without end or abort";
+        }
+        isStreaming = true;
+        stream.reset();
+    }
+
+    @Override
+    public synchronized void onMidiSystemExclusiveChunk(@NonNull MidiInputDevice sender, @NonNull byte[] buffer, int offset, int length) {
+        if (!isStreaming) {
+            violation = "SysEx chunk without begin";
+        }
+        stream.write(buffer, offset, length);
+    }
+
+    @Override
+    public synchronized void onMidiSystemExclusiveEnd(@NonNull MidiInputDevice sender) {
+        if (!isStreaming) {
+            violation = "SysEx end without begin";
+        }
+        isStreaming = false;
+        lastStreamed = stream.toByteArray();
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onMidiSystemExclusiveAbort(@NonNull MidiInputDevice sender) {
+        if (!isStreaming) {
+            violation = "SysEx abort without begin";
+        }
+        isStreaming = false;
+    }
+
+    /**
+     * Waits until the number of the dispatched messages reaches the count
+     *
+     * @param count the number of the messages
+     * @param timeoutMillis the timeout
+     * @return the dispatched messages, sorted
+     * @throws InterruptedException if interrupted
+     */
+    @NonNull
+    synchronized List<String> awaitMessages(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long now;
+        while (messages.size() < count && (now = System.currentTimeMillis()) < deadline) {
+            wait(deadline - now);
+        }
+        List<String> result = new ArrayList<>(messages);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Waits until the streaming listener completes the SysEx
+     *
+     * @param data the SysEx data, without 0xf0 and 0xf7
+     * @param timeoutMillis the timeout
+     * @return true if completed
+     * @throws InterruptedException if interrupted
+     */
+    synchronized boolean awaitStreamed(@NonNull byte[] data, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long now;
+        while (!Arrays.equals(data, lastStreamed) && (now = System.currentTimeMillis()) < deadline) {
+            wait(deadline - now);
+        }
+        return Arrays.equals(data, lastStreamed);
+    }
+
+    /**
+     * @return the description of the broken contract, null if none
+     */
+    @Nullable
+    synchronized String getViolation() {
+        return violation;
+    }
+
+    /**
+     * Converts the message to a hex string, the key to compare the messages
+     *
+     * @param message the message
+     * @param length the length of the message
+     * @return the hex string
+     */
+    @NonNull
+    static String toHex(@NonNull byte[] message, int length) {
+        StringBuilder builder = new StringBuilder(length * 3);
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(Character.forDigit((message[i] >> 4) & 0xf, 16)).append(Character.forDigit(message[i] & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param status the status byte
+     * @return the length of the message, except SysEx
+     */
+    static int messageLength(int status) {
+        switch (status & 0xf0) {
+            case 0xc0:
+            case 0xd0:
+                return 2;
+            case 0xf0:
+                switch (status) {
+                    case 0xf1:
+                    case 0xf3:
+                        return 2;
+                    case 0xf2:
+                        return 3;
+                    default:
+                        return 1;
+                }
+            default:
+                return 3;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package jp.kshoji.blemidi.fuzz;
+
+import android.support.annotation.NonNull;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.device.ParserBackedMidiInputDevice;
+
+/**
+ * {@link MidiInputDevice} fed directly by the fuzzer, one instance per case
+ *
+ * @author K.Shoji
+ */
+final class FuzzMidiInputDevice extends ParserBackedMidiInputDevice {
+
+    /**
+     * Feeds a packet to the parser
+     *
+     * @param data the packet
+     * @param isLossAllowed false to wait for the space of the parser's buffer, true to let the parser drop the packet as a busy device would
+     */
+    void incomingData(@NonNull byte[] data, boolean isLossAllowed) {
+        parse(data, !isLossAllowed);
+    }
+
+    @NonNull
+    @Override
+    public String getDeviceName() {
+        return "Fuzz";
+    }
+
+    @NonNull
+    @Override
+    public String getDeviceAddress() {
+        return "00:00:00:00:00:00";
+    }
+}
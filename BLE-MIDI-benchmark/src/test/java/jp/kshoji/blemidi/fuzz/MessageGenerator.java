@@ -0,0 +1,116 @@
+package jp.kshoji.blemidi.fuzz;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates random valid MIDI messages, as the complete bytes of each message(status, data, and 0xf0 ... 0xf7 for SysEx)
+ *
+ * @author K.Shoji
+ */
+final class MessageGenerator {
+    private static final int[] SYSTEM_STATUSES = { 0xf1, 0xf2, 0xf3, 0xf6, 0xf8, 0xfa, 0xfb, 0xfc, 0xfe, 0xff };
+
+    private final Random random;
+    private final int maxSystemExclusiveLength;
+
+    /**
+     * Constructor
+     *
+     * @param random the source of randomness
+     * @param maxSystemExclusiveLength the maximum SysEx length, including 0xf0 and 0xf7
+     */
+    MessageGenerator(@NonNull Random random, int maxSystemExclusiveLength) {
+        this.random = random;
+        this.maxSystemExclusiveLength = Math.max(2, maxSystemExclusiveLength);
+    }
+
+    /**
+     * Generates the messages
+     *
+     * @param count the number of the messages
+     * @return the messages
+     */
+    @NonNull
+    List<byte[]> generate(int count) {
+        List<byte[]> messages = new ArrayList<>(count);
+        int channel = random.nextInt(16);
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(4) == 0) {
+                // change the channel sometimes, running status is used for the same status
+                channel = random.nextInt(16);
+            }
+            messages.add(next(channel));
+        }
+        return messages;
+    }
+
+    /**
+     * Generates a SysEx
+     *
+     * @param length the length including 0xf0 and 0xf7
+     * @return the SysEx
+     */
+    @NonNull
+    byte[] systemExclusive(int length) {
+        byte[] message = new byte[Math.max(2, length)];
+        message[0] = (byte) 0xf0;
+        for (int i = 1; i < message.length - 1; i++) {
+            message[i] = (byte) random.nextInt(0x80);
+        }
+        message[message.length - 1] = (byte) 0xf7;
+        return message;
+    }
+
+    @NonNull
+    private byte[] next(int channel) {
+        int kind = random.nextInt(20);
+        if (kind < 12) {
+            // channel messages are the majority, as the real traffic
+            int status = 0x80 + (random.nextInt(7) << 4) | channel;
+            return channelMessage(status);
+        } else if (kind < 18) {
+            return systemMessage(SYSTEM_STATUSES[random.nextInt(SYSTEM_STATUSES.length)]);
+        }
+        return systemExclusive(2 + random.nextInt(maxSystemExclusiveLength - 1));
+    }
+
+    @NonNull
+    private byte[] channelMessage(int status) {
+        switch (status & 0xf0) {
+            case 0xc0:
+            case 0xd0:
+                return new byte[] { (byte) status, dataByte() };
+            default:
+                return new byte[] { (byte) status, dataByte(), dataByte() };
+        }
+    }
+
+    @NonNull
+    private byte[] systemMessage(int status) {
+        switch (status) {
+            case 0xf1:
+            case 0xf3:
+                return new byte[] { (byte) status, dataByte() };
+            case 0xf2:
+                return new byte[] { (byte) status, dataByte(), dataByte() };
+            default:
+                return new byte[] { (byte) status };
+        }
+    }
+
+    private byte dataByte() {
+        // the boundary values are more likely
+        switch (random.nextInt(8)) {
+            case 0:
+                return 0;
+            case 1:
+                return 0x7f;
+            default:
+                return (byte) random.nextInt(0x80);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package jp.kshoji.blemidi.fuzz;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Corrupts BLE MIDI packet streams, as a bad radio environment or a broken firmware would:
+ * bit flips, inserted / removed / truncated bytes, lost / duplicated / reordered packets, broken headers and garbage packets.
+ *
+ * @author K.Shoji
+ */
+final class PacketMutator {
+    private static final int MUTATION_KINDS = 11;
+
+    private final Random random;
+
+    /**
+     * Constructor
+     *
+     * @param random the source of randomness
+     */
+    PacketMutator(@NonNull Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Mutates a copy of the packets
+     *
+     * @param source the valid packets
+     * @param mutations the number of the mutations to apply
+     * @return the mutated packets
+     */
+    @NonNull
+    List<byte[]> mutate(@NonNull List<byte[]> source, int mutations) {
+        List<byte[]> packets = new ArrayList<>(source.size());
+        for (byte[] packet : source) {
+            packets.add(packet.clone());
+        }
+
+        for (int i = 0; i < mutations; i++) {
+            if (packets.isEmpty()) {
+                packets.add(garbage());
+                continue;
+            }
+            int index = random.nextInt(packets.size());
+            byte[] packet = packets.get(index);
+            if (packet.length == 0) {
+                packets.set(index, garbage());
+                continue;
+            }
+            switch (random.nextInt(MUTATION_KINDS)) {
+                case 0:
+                    // bit flip
+                    packet[random.nextInt(packet.length)] ^= 1 << random.nextInt(8);
+                    break;
+                case 1:
+                    // random byte
+                    packet[random.nextInt(packet.length)] = (byte) random.nextInt(256);
+                    break;
+                case 2:
+                    packets.set(index, insert(packet, random.nextInt(packet.length + 1), (byte) random.nextInt(256)));
+                    break;
+                case 3:
+                    packets.set(index, remove(packet, random.nextInt(packet.length)));
+                    break;
+                case 4:
+                    // truncated
+                    packets.set(index, Arrays.copyOf(packet, random.nextInt(packet.length + 1)));
+                    break;
+                case 5:
+                    // lost
+                    packets.remove(index);
+                    break;
+                case 6:
+                    // duplicated
+                    packets.add(index, packet.clone());
+                    break;
+                case 7:
+                    // reordered
+                    if (index + 1 < packets.size()) {
+                        packets.set(index, packets.get(index + 1));
+                        packets.set(index + 1, packet);
+                    }
+                    break;
+                case 8:
+                    // broken header
+                    packet[0] = (byte) (random.nextBoolean() ? packet[0] & 0x7f : packet[0] | 0x40);
+                    break;
+                case 9:
+                    packets.add(index, garbage());
+                    break;
+                default:
+                    // status byte in place of data, or the reverse
+                    int position = random.nextInt(packet.length);
+                    packet[position] ^= 0x80;
+                    break;
+            }
+        }
+        return packets;
+    }
+
+    @NonNull
+    private byte[] garbage() {
+        byte[] packet = new byte[random.nextInt(24)];
+        random.nextBytes(packet);
+        return packet;
+    }
+
+    @NonNull
+    private static byte[] insert(@NonNull byte[] packet, int position, byte value) {
+        byte[] result = new byte[packet.length + 1];
+        System.arraycopy(packet, 0, result, 0, position);
+        result[position] = value;
+        System.arraycopy(packet, position, result, position + 1, packet.length - position);
+        return result;
+    }
+
+    @NonNull
+    private static byte[] remove(@NonNull byte[] packet, int position) {
+        byte[] result = new byte[packet.length - 1];
+        System.arraycopy(packet, 0, result, 0, position);
+        System.arraycopy(packet, position + 1, result, position, packet.length - position - 1);
+        return result;
+    }
+}
@@ -0,0 +1,185 @@
+package jp.kshoji.blemidi.fuzz;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import jp.kshoji.blemidi.device.MidiOutputDevice;
+
+/**
+ * Packs MIDI messages into valid BLE MIDI packets, with the variations the specification allows:
+ * several messages per packet, running status with and without timestamp, SysEx across packets(also between its timestamp and 0xf7),
+ * System Realtime messages interleaved in SysEx and in the other messages, and the timestamp rolling over inside of a packet.<br />
+ * 0xf7 is not used as the timestamp inside of SysEx: the parser takes it as the end of SysEx, as the protocol is ambiguous there.
+ *
+ * @author K.Shoji
+ */
+final class PacketPacker {
+    private final Random random;
+    private final byte[] packet;
+    private final List<byte[]> packets = new ArrayList<>();
+    private final List<byte[]> messages = new ArrayList<>();
+    private int length;
+    private long timestamp;
+    private int runningStatus = -1;
+
+    /**
+     * Constructor
+     *
+     * @param random the source of randomness
+     * @param mtu the ATT MTU, the payload is 3 bytes shorter
+     * @param timestamp the timestamp of the first message, in milliseconds
+     */
+    PacketPacker(@NonNull Random random, int mtu, long timestamp) {
+        this.random = random;
+        this.timestamp = timestamp;
+        packet = new byte[mtu - 3];
+    }
+
+    /**
+     * Packs the messages
+     *
+     * @param source the messages from {@link MessageGenerator}
+     * @return this packer
+     */
+    @NonNull
+    PacketPacker pack(@NonNull List<byte[]> source) {
+        for (byte[] message : source) {
+            if ((message[0] & 0xff) == 0xf0) {
+                packSystemExclusive(message);
+            } else {
+                packMessage(message);
+            }
+            if (random.nextInt(16) == 0) {
+                flush();
+            }
+        }
+        flush();
+        return this;
+    }
+
+    /**
+     * @return the packets
+     */
+    @NonNull
+    List<byte[]> getPackets() {
+        return packets;
+    }
+
+    /**
+     * @return the packed messages, including the interleaved System Realtime messages
+     */
+    @NonNull
+    List<byte[]> getMessages() {
+        return messages;
+    }
+
+    private void packMessage(@NonNull byte[] message) {
+        int status = message[0] & 0xff;
+        boolean isRunning = status == runningStatus && length > 0 && random.nextBoolean();
+        boolean withTimestamp = !isRunning || random.nextBoolean();
+        int needed = message.length + 1;
+        if (length == 0 || length + needed > packet.length) {
+            flush();
+            isRunning = false;
+            withTimestamp = true;
+        }
+        if (length == 0) {
+            startPacket();
+        }
+
+        if (withTimestamp) {
+            writeTimestamp();
+        }
+        if (!isRunning) {
+            packet[length++] = message[0];
+        }
+        for (int i = 1; i < message.length; i++) {
+            // a timestamp of running status must be followed by the data
+            if (random.nextInt(32) == 0 && !(i == 1 && isRunning && withTimestamp)) {
+                interleaveRealtime(false, message.length - i);
+            }
+            packet[length++] = message[i];
+        }
+        messages.add(message);
+
+        if (status < 0xf0) {
+            runningStatus = status;
+        } else if (status < 0xf8) {
+            // System Common cancels the running status
+            runningStatus = -1;
+        }
+    }
+
+    private void packSystemExclusive(@NonNull byte[] message) {
+        if (length == 0 || length + 2 > packet.length) {
+            flush();
+            startPacket();
+        }
+        writeTimestamp();
+        packet[length++] = (byte) 0xf0;
+        runningStatus = -1;
+
+        for (int i = 1; i < message.length - 1; i++) {
+            if (random.nextInt(64) == 0) {
+                interleaveRealtime(true, 0);
+            }
+            if (length == packet.length) {
+                // continuation packet: the data follows the header
+                flush();
+                startPacket();
+            }
+            packet[length++] = message[i];
+        }
+
+        if (length == packet.length) {
+            flush();
+            startPacket();
+        }
+        writeTimestamp(true);
+        if (length == packet.length) {
+            // split between the timestamp and 0xf7
+            flush();
+            startPacket();
+        }
+        packet[length++] = (byte) 0xf7;
+        messages.add(message);
+    }
+
+    private void interleaveRealtime(boolean isInSystemExclusive, int reserved) {
+        if (length + 2 + reserved > packet.length) {
+            return;
+        }
+        writeTimestamp(isInSystemExclusive);
+        packet[length++] = (byte) 0xf8;
+        messages.add(new byte[] { (byte) 0xf8 });
+    }
+
+    private void startPacket() {
+        length = 0;
+        packet[length++] = (byte) (0x80 | ((timestamp >> 7) & 0x3f));
+    }
+
+    private void writeTimestamp() {
+        writeTimestamp(false);
+    }
+
+    private void writeTimestamp(boolean isInSystemExclusive) {
+        timestamp = (timestamp + random.nextInt(3)) % MidiOutputDevice.MAX_TIMESTAMP;
+        if (isInSystemExclusive && (timestamp & 0x7f) == 0x77) {
+            timestamp++;
+        }
+        packet[length++] = (byte) (0x80 | (timestamp & 0x7f));
+    }
+
+    private void flush() {
+        if (length > 1) {
+            packets.add(Arrays.copyOf(packet, length));
+        }
+        length = 0;
+        runningStatus = -1;
+    }
+}
@@ -0,0 +1,439 @@
+package jp.kshoji.blemidi.fuzz;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import jp.kshoji.blemidi.device.MidiOutputDevice;
+
+/**
+ * Property-based fuzzer of {@link jp.kshoji.blemidi.util.BleMidiParser}, runs the random cases until the time is up or a property fails.<br />
+ * Each case runs on a new parser, and is reproducible from its seed:
+ * <ul>
+ * <li>encoder round trip: the messages sent through {@link MidiOutputDevice} are dispatched unchanged</li>
+ * <li>packed round trip: the messages packed by {@link PacketPacker}(running status, SysEx across packets, interleaved realtime) are dispatched unchanged</li>
+ * <li>malformed stream: after the packets corrupted by {@link PacketMutator}, the parser doesn't throw, dispatches no SysEx over its limit,
+ * parses within the time bound, and streams the next valid SysEx exactly</li>
+ * </ul>
+ * The heap and the number of threads are sampled between the cases, and must stay bounded.
+ * {@link ParserFuzzerTest} runs a bounded number of cases of fixed seeds in the build's test task.
+ *
+ * Usage: {@code ParserFuzzer [--seconds N] [--seed S] [--replay CASE_SEED] [--max-micros-per-byte N] [--max-heap-growth-mb N] [--sample-interval CASES]}
+ *
+ * @author K.Shoji
+ */
+public final class ParserFuzzer {
+    private static final int KIND_ENCODER_ROUND_TRIP = 0;
+    private static final int KIND_PACKED_ROUND_TRIP = 1;
+    private static final int KIND_MALFORMED = 2;
+    private static final String[] KIND_NAMES = { "encoder round trip", "packed round trip", "malformed stream" };
+
+    private static final long DISPATCH_TIMEOUT_MILLIS = 5000;
+    private static final long SETTLE_MILLIS = 100;
+    private static final long CASE_OVERHEAD_MILLIS = 200;
+    private static final int MAX_THREAD_GROWTH = 16;
+    private static final int MAX_SYSTEM_EXCLUSIVE_LENGTH = 600;
+    static final long DEFAULT_MAX_MICROS_PER_BYTE = 50;
+    static final long DEFAULT_MAX_HEAP_GROWTH_MB = 64;
+    static final int DEFAULT_SAMPLE_INTERVAL_CASES = 500;
+
+    private static volatile Throwable uncaught;
+
+    /**
+     * Records the exceptions thrown on the parser's threads, set as the default handler while fuzzing
+     */
+    static final Thread.UncaughtExceptionHandler UNCAUGHT_EXCEPTION_HANDLER = new Thread.UncaughtExceptionHandler() {
+        @Override
+        public void uncaughtException(Thread thread, Throwable throwable) {
+            uncaught = throwable;
+            System.err.println("uncaught exception in " + thread.getName());
+            throwable.printStackTrace();
+        }
+    };
+
+    private final long maxNanosPerByte;
+    private final long maxHeapGrowthBytes;
+    private final int sampleIntervalCases;
+
+    // the last case, for the failure report
+    private List<byte[]> casePackets = Collections.emptyList();
+    private int caseKind;
+
+    private final long[] casesByKind = new long[KIND_NAMES.length];
+    private long malformedBytes;
+    private long malformedNanos;
+
+    /**
+     * Constructor
+     *
+     * @param maxMicrosPerByte the time bound of parsing a corrupted stream
+     * @param maxHeapGrowthMb the bound of the heap growth after the first sample
+     * @param sampleIntervalCases the number of cases between the samples of the heap and the threads
+     */
+    ParserFuzzer(long maxMicrosPerByte, long maxHeapGrowthMb, int sampleIntervalCases) {
+        maxNanosPerByte = maxMicrosPerByte * 1000;
+        maxHeapGrowthBytes = maxHeapGrowthMb * 1024 * 1024;
+        this.sampleIntervalCases = sampleIntervalCases;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long seconds = 60;
+        long seed = System.nanoTime();
+        Long replaySeed = null;
+        long maxMicrosPerByte = DEFAULT_MAX_MICROS_PER_BYTE;
+        long maxHeapGrowthMb = DEFAULT_MAX_HEAP_GROWTH_MB;
+        int sampleIntervalCases = DEFAULT_SAMPLE_INTERVAL_CASES;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--seconds":
+                    seconds = Long.parseLong(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "--replay":
+                    replaySeed = Long.parseLong(value);
+                    break;
+                case "--max-micros-per-byte":
+                    maxMicrosPerByte = Long.parseLong(value);
+                    break;
+                case "--max-heap-growth-mb":
+                    maxHeapGrowthMb = Long.parseLong(value);
+                    break;
+                case "--sample-interval":
+                    sampleIntervalCases = Integer.parseInt(value);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        Thread.setDefaultUncaughtExceptionHandler(UNCAUGHT_EXCEPTION_HANDLER);
+
+        ParserFuzzer fuzzer = new ParserFuzzer(maxMicrosPerByte, maxHeapGrowthMb, sampleIntervalCases);
+        boolean isPassed = replaySeed != null ? fuzzer.replay(replaySeed) : fuzzer.run(seed, seconds * 1000, Long.MAX_VALUE);
+        System.exit(isPassed ? 0 : 1);
+    }
+
+    private boolean replay(long caseSeed) throws InterruptedException {
+        String failure = runCase(caseSeed);
+        if (failure != null) {
+            report(caseSeed, failure);
+            return false;
+        }
+        System.out.println("case " + caseSeed + " (" + KIND_NAMES[caseKind] + ") passed");
+        return true;
+    }
+
+    /**
+     * Runs the random cases of the seed until the time is up, the number of cases is reached, or a property fails
+     *
+     * @param seed the seed of the cases
+     * @param durationMillis the time limit
+     * @param maxCases the number of cases
+     * @return true if passed, the failure is printed otherwise
+     * @throws InterruptedException if interrupted
+     */
+    boolean run(long seed, long durationMillis, long maxCases) throws InterruptedException {
+        if (maxCases == Long.MAX_VALUE) {
+            System.out.println("fuzzing BleMidiParser for " + durationMillis / 1000 + "s, seed " + seed);
+        } else {
+            System.out.println("fuzzing BleMidiParser with " + maxCases + " cases, seed " + seed);
+        }
+        Random seeds = new Random(seed);
+        long start = System.currentTimeMillis();
+        long deadline = start + durationMillis;
+        long nextReport = start + 10000;
+        long baselineHeap = -1;
+        int baselineThreads = -1;
+        long cases = 0;
+
+        while (System.currentTimeMillis() < deadline && cases < maxCases) {
+            long caseSeed = seeds.nextLong();
+            String failure = runCase(caseSeed);
+            if (failure != null) {
+                report(caseSeed, failure);
+                return false;
+            }
+            cases++;
+
+            if (cases % sampleIntervalCases == 0) {
+                long heap = usedHeap();
+                int threads = Thread.activeCount();
+                if (baselineHeap < 0) {
+                    // after the warm up
+                    baselineHeap = heap;
+                    baselineThreads = threads;
+                } else if (heap > baselineHeap + maxHeapGrowthBytes) {
+                    report(caseSeed, "heap grew from " + baselineHeap / 1024 + "KB to " + heap / 1024 + "KB");
+                    return false;
+                } else if (threads > baselineThreads + MAX_THREAD_GROWTH) {
+                    report(caseSeed, "threads grew from " + baselineThreads + " to " + threads);
+                    return false;
+                }
+            }
+
+            if (System.currentTimeMillis() >= nextReport) {
+                nextReport += 10000;
+                printProgress(cases, start);
+            }
+        }
+        printProgress(cases, start);
+        System.out.println("passed");
+        return true;
+    }
+
+    /**
+     * Runs a case
+     *
+     * @param caseSeed the seed of the case
+     * @return the description of the failure, null if passed
+     * @throws InterruptedException if interrupted
+     */
+    @Nullable
+    private String runCase(long caseSeed) throws InterruptedException {
+        Random random = new Random(caseSeed);
+        caseKind = random.nextInt(4);
+        if (caseKind > KIND_MALFORMED) {
+            // the malformed streams are the half
+            caseKind = KIND_MALFORMED;
+        }
+        casePackets = Collections.emptyList();
+        casesByKind[caseKind]++;
+        uncaught = null;
+
+        String failure;
+        switch (caseKind) {
+            case KIND_ENCODER_ROUND_TRIP:
+                failure = runRoundTrip(random, true);
+                break;
+            case KIND_PACKED_ROUND_TRIP:
+                failure = runRoundTrip(random, false);
+                break;
+            default:
+                failure = runMalformed(random);
+                break;
+        }
+
+        Throwable throwable = uncaught;
+        if (failure == null && throwable != null) {
+            StringBuilder builder = new StringBuilder("uncaught exception: ").append(throwable);
+            for (StackTraceElement element : throwable.getStackTrace()) {
+                builder.append("\n    at ").append(element);
+            }
+            failure = builder.toString();
+        }
+        return failure;
+    }
+
+    @Nullable
+    private String runRoundTrip(@NonNull Random random, boolean isEncoded) throws InterruptedException {
+        List<byte[]> messages = new MessageGenerator(random, MAX_SYSTEM_EXCLUSIVE_LENGTH).generate(1 + random.nextInt(200));
+        if (isEncoded) {
+            casePackets = encode(messages);
+        } else {
+            PacketPacker packer = new PacketPacker(random, 23 + random.nextInt(225), randomTimestamp(random)).pack(messages);
+            casePackets = packer.getPackets();
+            messages = packer.getMessages();
+        }
+
+        List<String> expected = new ArrayList<>(messages.size());
+        for (byte[] message : messages) {
+            expected.add(EventCollector.toHex(message, message.length));
+        }
+        Collections.sort(expected);
+
+        FuzzMidiInputDevice device = new FuzzMidiInputDevice();
+        EventCollector collector = new EventCollector(Integer.MAX_VALUE);
+        device.setOnMidiEventBatchListener(collector);
+        try {
+            for (byte[] packet : casePackets) {
+                device.incomingData(packet, false);
+            }
+            collector.awaitMessages(expected.size(), DISPATCH_TIMEOUT_MILLIS);
+            List<String> actual = collector.awaitMessages(expected.size() + 1, SETTLE_MILLIS);
+            if (!expected.equals(actual)) {
+                return "dispatched messages differ\n" + difference(expected, actual);
+            }
+            return collector.getViolation();
+        } finally {
+            device.stop();
+        }
+    }
+
+    @Nullable
+    private String runMalformed(@NonNull Random random) throws InterruptedException {
+        MessageGenerator generator = new MessageGenerator(random, MAX_SYSTEM_EXCLUSIVE_LENGTH);
+        List<byte[]> valid = new PacketPacker(random, 23 + random.nextInt(225), randomTimestamp(random)).pack(generator.generate(1 + random.nextInt(64))).getPackets();
+        List<byte[]> packets = new PacketMutator(random).mutate(valid, 1 + random.nextInt(8));
+        boolean isLossAllowed = random.nextInt(8) == 0;
+
+        // terminates a SysEx left open by the corrupted stream, and never leaves the parser in SysEx
+        long timestamp = randomTimestamp(random);
+        timestamp = (timestamp & ~0x7fL) | Math.min(timestamp & 0x7f, 0x6f);
+        byte[] terminator = { (byte) (0x80 | ((timestamp >> 7) & 0x3f)), (byte) (0x80 | (timestamp & 0x7f)), (byte) 0xf7 };
+        byte[] probe = generator.systemExclusive(2 + random.nextInt(MAX_SYSTEM_EXCLUSIVE_LENGTH));
+        List<byte[]> probePackets = new PacketPacker(random, 23 + random.nextInt(225), timestamp).pack(Collections.singletonList(probe)).getPackets();
+
+        casePackets = new ArrayList<>(packets);
+        casePackets.add(terminator);
+        casePackets.addAll(probePackets);
+
+        int limit = Integer.MAX_VALUE;
+        FuzzMidiInputDevice device = new FuzzMidiInputDevice();
+        if (random.nextBoolean()) {
+            limit = 3 + random.nextInt(MAX_SYSTEM_EXCLUSIVE_LENGTH);
+            device.setSystemExclusiveLimit(limit, random.nextInt(3));
+        }
+        device.setRealtimeFastLaneEnabled(random.nextBoolean());
+        EventCollector collector = new EventCollector(limit);
+        device.setOnMidiEventBatchListener(collector);
+        device.setOnMidiSystemExclusiveStreamListener(collector);
+
+        try {
+            long bytes = 0;
+            long startNanos = System.nanoTime();
+            for (byte[] packet : packets) {
+                device.incomingData(packet, isLossAllowed);
+                bytes += packet.length;
+            }
+            for (byte[] packet : casePackets.subList(packets.size(), casePackets.size())) {
+                device.incomingData(packet, false);
+                bytes += packet.length;
+            }
+
+            byte[] probeData = new byte[probe.length - 2];
+            System.arraycopy(probe, 1, probeData, 0, probeData.length);
+            if (!collector.awaitStreamed(probeData, DISPATCH_TIMEOUT_MILLIS)) {
+                return "the parser didn't recover: the SysEx after the corrupted stream was not streamed";
+            }
+            long elapsedNanos = System.nanoTime() - startNanos;
+            malformedBytes += bytes;
+            malformedNanos += elapsedNanos;
+            if (elapsedNanos > CASE_OVERHEAD_MILLIS * 1000000L + bytes * maxNanosPerByte) {
+                return "parsing " + bytes + " bytes took " + elapsedNanos / 1000 + "us";
+            }
+            return collector.getViolation();
+        } finally {
+            device.stop();
+        }
+    }
+
+    @NonNull
+    private static List<byte[]> encode(@NonNull List<byte[]> messages) {
+        final List<byte[]> packets = new ArrayList<>();
+        MidiOutputDevice encoder = new MidiOutputDevice() {
+            @Override
+            protected void transferData(@NonNull byte[] writeBuffer) {
+                packets.add(writeBuffer.clone());
+            }
+
+            @NonNull
+            @Override
+            public String getDeviceName() {
+                return "Fuzz";
+            }
+
+            @NonNull
+            @Override
+            public String getDeviceAddress() {
+                return "00:00:00:00:00:00";
+            }
+        };
+
+        for (byte[] message : messages) {
+            int status = message[0] & 0xff;
+            int channel = status & 0xf;
+            switch (status & 0xf0) {
+                case 0x80:
+                    encoder.sendMidiNoteOff(channel, message[1], message[2]);
+                    break;
+                case 0x90:
+                    encoder.sendMidiNoteOn(channel, message[1], message[2]);
+                    break;
+                case 0xa0:
+                    encoder.sendMidiPolyphonicAftertouch(channel, message[1], message[2]);
+                    break;
+                case 0xb0:
+                    encoder.sendMidiControlChange(channel, message[1], message[2]);
+                    break;
+                case 0xc0:
+                    encoder.sendMidiProgramChange(channel, message[1]);
+                    break;
+                case 0xd0:
+                    encoder.sendMidiChannelAftertouch(channel, message[1]);
+                    break;
+                case 0xe0:
+                    encoder.sendMidiPitchWheel(channel, message[1] | (message[2] << 7));
+                    break;
+                default:
+                    if (status == 0xf0) {
+                        encoder.sendMidiSystemExclusive(message);
+                    } else {
+                        encoder.sendMidiSystemCommonMessage(message);
+                    }
+                    break;
+            }
+        }
+        return packets;
+    }
+
+    @NonNull
+    private static String difference(@NonNull List<String> expected, @NonNull List<String> actual) {
+        List<String> missing = new ArrayList<>(expected);
+        List<String> extra = new ArrayList<>();
+        for (String message : actual) {
+            if (!missing.remove(message)) {
+                extra.add(message);
+            }
+        }
+        return "  missing " + missing.size() + ": " + head(missing) + "\n  unexpected " + extra.size() + ": " + head(extra);
+    }
+
+    @NonNull
+    private static String head(@NonNull List<String> messages) {
+        return messages.size() <= 4 ? messages.toString() : messages.subList(0, 4) + "...";
+    }
+
+    /**
+     * The parser reads only the differences of the timestamps, so the cases may start anywhere and stay reproducible
+     *
+     * @param random the source of randomness
+     * @return the timestamp of the first message
+     */
+    private static long randomTimestamp(@NonNull Random random) {
+        return random.nextInt(MidiOutputDevice.MAX_TIMESTAMP);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void report(long caseSeed, @NonNull String failure) {
+        System.out.println("FAILED: " + KIND_NAMES[caseKind] + ", case seed " + caseSeed);
+        System.out.println(failure);
+        System.out.println("packets:");
+        for (int i = 0; i < casePackets.size() && i < 200; i++) {
+            byte[] packet = casePackets.get(i);
+            System.out.println("  " + EventCollector.toHex(packet, packet.length));
+        }
+        System.out.println("reproduce with: ./gradlew :BLE-MIDI-benchmark:fuzz -Pfuzz.replay=" + caseSeed);
+    }
+
+    private void printProgress(long cases, long start) {
+        long elapsedSeconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
+        System.out.println(cases + " cases in " + elapsedSeconds + "s (" + casesByKind[KIND_ENCODER_ROUND_TRIP] + " encoder, " + casesByKind[KIND_PACKED_ROUND_TRIP] + " packed, " + casesByKind[KIND_MALFORMED] + " malformed), " +
+                (malformedBytes == 0 ? 0 : malformedNanos / malformedBytes) + "ns per malformed byte");
+    }
+}
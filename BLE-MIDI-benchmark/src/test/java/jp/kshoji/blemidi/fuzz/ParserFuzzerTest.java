@@ -0,0 +1,30 @@
+package jp.kshoji.blemidi.fuzz;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class ParserFuzzerTest {
+    // a short run of each seed, keeps the build fast: the long runs are done by the fuzz task
+    private static final long[] SEEDS = { 1, 2, 3 };
+    private static final long CASES_PER_SEED = 40;
+    // the heap and the threads are sampled 4 times per seed: the first sample is the baseline
+    private static final int SAMPLE_INTERVAL_CASES = 10;
+    // loose on the shared build machines: a parser stuck on a corrupted stream still fails by its recovery timeout
+    private static final long MAX_MICROS_PER_BYTE = 1000;
+    private static final long MAX_MILLIS_PER_SEED = 60000;
+
+    @Test
+    public void fixedSeeds_keepProperties() throws Exception {
+        Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(ParserFuzzer.UNCAUGHT_EXCEPTION_HANDLER);
+        try {
+            for (long seed : SEEDS) {
+                ParserFuzzer fuzzer = new ParserFuzzer(MAX_MICROS_PER_BYTE, ParserFuzzer.DEFAULT_MAX_HEAP_GROWTH_MB, SAMPLE_INTERVAL_CASES);
+                assertTrue("seed " + seed + " failed, see the output", fuzzer.run(seed, MAX_MILLIS_PER_SEED, CASES_PER_SEED));
+            }
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(previous);
+        }
+    }
+}
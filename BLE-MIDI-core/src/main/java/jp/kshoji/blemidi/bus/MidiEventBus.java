@@ -0,0 +1,446 @@
+package jp.kshoji.blemidi.bus;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.dispatch.DispatchPolicy;
+import jp.kshoji.blemidi.dispatch.DispatchingMidiDataListener;
+import jp.kshoji.blemidi.dispatch.DispatchingMidiInputEventListener;
+import jp.kshoji.blemidi.listener.OnMidiDataListener;
+import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.util.MidiMessageType;
+
+/**
+ * Fans out the MIDI events to the subscribers, each with its own {@link MidiEventFilter} and {@link DispatchPolicy}.<br />
+ * Attach the bus as the {@link OnMidiInputEventListener} (and {@link OnMidiDataListener}) of the devices.
+ * The subscribers are indexed by the message kind when subscribing, so an event nobody wants costs one array lookup,
+ * and the channel and device filters are a bit test and a set lookup.
+ * The kinds subscribed are notified to {@link OnTypeMaskChangedListener}, so the devices can discard the others while parsing.
+ *
+ * @author K.Shoji
+ */
+public final class MidiEventBus implements OnMidiInputEventListener, OnMidiDataListener {
+    private static final int SYSTEM_EXCLUSIVE = Integer.numberOfTrailingZeros(MidiMessageType.SYSTEM_EXCLUSIVE);
+    private static final int NOTE_OFF = Integer.numberOfTrailingZeros(MidiMessageType.NOTE_OFF);
+    private static final int NOTE_ON = Integer.numberOfTrailingZeros(MidiMessageType.NOTE_ON);
+    private static final int POLYPHONIC_AFTERTOUCH = Integer.numberOfTrailingZeros(MidiMessageType.POLYPHONIC_AFTERTOUCH);
+    private static final int CONTROL_CHANGE = Integer.numberOfTrailingZeros(MidiMessageType.CONTROL_CHANGE);
+    private static final int PROGRAM_CHANGE = Integer.numberOfTrailingZeros(MidiMessageType.PROGRAM_CHANGE);
+    private static final int CHANNEL_AFTERTOUCH = Integer.numberOfTrailingZeros(MidiMessageType.CHANNEL_AFTERTOUCH);
+    private static final int PITCH_WHEEL = Integer.numberOfTrailingZeros(MidiMessageType.PITCH_WHEEL);
+    private static final int TIME_CODE_QUARTER_FRAME = Integer.numberOfTrailingZeros(MidiMessageType.TIME_CODE_QUARTER_FRAME);
+    private static final int SONG_SELECT = Integer.numberOfTrailingZeros(MidiMessageType.SONG_SELECT);
+    private static final int SONG_POSITION_POINTER = Integer.numberOfTrailingZeros(MidiMessageType.SONG_POSITION_POINTER);
+    private static final int TUNE_REQUEST = Integer.numberOfTrailingZeros(MidiMessageType.TUNE_REQUEST);
+    private static final int TIMING_CLOCK = Integer.numberOfTrailingZeros(MidiMessageType.TIMING_CLOCK);
+    private static final int START = Integer.numberOfTrailingZeros(MidiMessageType.START);
+    private static final int CONTINUE = Integer.numberOfTrailingZeros(MidiMessageType.CONTINUE);
+    private static final int STOP = Integer.numberOfTrailingZeros(MidiMessageType.STOP);
+    private static final int ACTIVE_SENSING = Integer.numberOfTrailingZeros(MidiMessageType.ACTIVE_SENSING);
+    private static final int RESET = Integer.numberOfTrailingZeros(MidiMessageType.RESET);
+    private static final int RPN = Integer.numberOfTrailingZeros(MidiMessageType.RPN);
+    private static final int NRPN = Integer.numberOfTrailingZeros(MidiMessageType.NRPN);
+
+    private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private final List<Subscriber> dataSubscribers = new ArrayList<>();
+    private final List<OnTypeMaskChangedListener> typeMaskListeners = new ArrayList<>();
+
+    // copy-on-write, rebuilt under the lock of subscribers
+    private volatile Subscriber[][] subscribersByType;
+    private volatile Subscriber[] dataSubscriberArray = NO_SUBSCRIBERS;
+    private volatile int typeMask = 0;
+
+    /**
+     * Listener for the change of the message kinds subscribed
+     */
+    public interface OnTypeMaskChangedListener {
+        /**
+         * Called on the thread subscribing or unsubscribing, with the lock of the bus held
+         *
+         * @param bus the bus
+         * @param typeMask the kinds subscribed, combination of {@link MidiMessageType}
+         */
+        void onTypeMaskChanged(@NonNull MidiEventBus bus, int typeMask);
+    }
+
+    /**
+     * Constructor
+     */
+    public MidiEventBus() {
+        Subscriber[][] emptyTable = new Subscriber[MidiMessageType.COUNT][];
+        for (int i = 0; i < emptyTable.length; i++) {
+            emptyTable[i] = NO_SUBSCRIBERS;
+        }
+        subscribersByType = emptyTable;
+    }
+
+    /**
+     * Subscribes the MIDI events, the listener is called on the thread delivering the events
+     *
+     * @param listener the listener
+     * @param filter the filter
+     */
+    public void subscribe(@NonNull OnMidiInputEventListener listener, @NonNull MidiEventFilter filter) {
+        subscribe(listener, filter, DispatchPolicy.inline());
+    }
+
+    /**
+     * Subscribes the MIDI events
+     *
+     * @param listener the listener
+     * @param filter the filter
+     * @param policy the thread which calls the listener
+     */
+    public void subscribe(@NonNull OnMidiInputEventListener listener, @NonNull MidiEventFilter filter, @NonNull DispatchPolicy policy) {
+        OnMidiInputEventListener dispatchingListener = DispatchingMidiInputEventListener.wrap(listener, policy);
+        synchronized (subscribers) {
+            subscribers.add(new Subscriber(listener, dispatchingListener, null, filter));
+            rebuild();
+        }
+    }
+
+    /**
+     * Unsubscribes all the subscriptions of the listener
+     *
+     * @param listener the listener
+     */
+    public void unsubscribe(@NonNull OnMidiInputEventListener listener) {
+        synchronized (subscribers) {
+            for (int i = subscribers.size() - 1; i >= 0; i--) {
+                if (subscribers.get(i).subscribed == listener) {
+                    subscribers.remove(i);
+                }
+            }
+            rebuild();
+        }
+    }
+
+    /**
+     * Subscribes the raw packets, the listener is called on the thread delivering the packets
+     *
+     * @param listener the listener
+     * @param filter the filter, only the devices are applied
+     */
+    public void subscribeData(@NonNull OnMidiDataListener listener, @NonNull MidiEventFilter filter) {
+        subscribeData(listener, filter, DispatchPolicy.inline());
+    }
+
+    /**
+     * Subscribes the raw packets
+     *
+     * @param listener the listener
+     * @param filter the filter, only the devices are applied
+     * @param policy the thread which calls the listener
+     */
+    public void subscribeData(@NonNull OnMidiDataListener listener, @NonNull MidiEventFilter filter, @NonNull DispatchPolicy policy) {
+        OnMidiDataListener dispatchingListener = DispatchingMidiDataListener.wrap(listener, policy);
+        synchronized (subscribers) {
+            dataSubscribers.add(new Subscriber(listener, null, dispatchingListener, filter));
+            rebuild();
+        }
+    }
+
+    /**
+     * Unsubscribes all the raw packet subscriptions of the listener
+     *
+     * @param listener the listener
+     */
+    public void unsubscribeData(@NonNull OnMidiDataListener listener) {
+        synchronized (subscribers) {
+            for (int i = dataSubscribers.size() - 1; i >= 0; i--) {
+                if (dataSubscribers.get(i).subscribed == listener) {
+                    dataSubscribers.remove(i);
+                }
+            }
+            rebuild();
+        }
+    }
+
+    /**
+     * Adds the listener for the change of the message kinds subscribed
+     *
+     * @param listener the listener
+     */
+    public void addOnTypeMaskChangedListener(@NonNull OnTypeMaskChangedListener listener) {
+        synchronized (subscribers) {
+            typeMaskListeners.add(listener);
+        }
+    }
+
+    /**
+     * Removes the listener for the change of the message kinds subscribed
+     *
+     * @param listener the listener
+     */
+    public void removeOnTypeMaskChangedListener(@NonNull OnTypeMaskChangedListener listener) {
+        synchronized (subscribers) {
+            typeMaskListeners.remove(listener);
+        }
+    }
+
+    /**
+     * @return the kinds of the messages subscribed by {@link #subscribe(OnMidiInputEventListener, MidiEventFilter)}, combination of {@link MidiMessageType}
+     */
+    public int getTypeMask() {
+        return typeMask;
+    }
+
+    /**
+     * @return true if no subscribers
+     */
+    public boolean isEmpty() {
+        synchronized (subscribers) {
+            return subscribers.isEmpty() && dataSubscribers.isEmpty();
+        }
+    }
+
+    /**
+     * Rebuilds the arrays indexed by the message kind, called with the lock of subscribers
+     */
+    private void rebuild() {
+        Subscriber[][] table = new Subscriber[MidiMessageType.COUNT][];
+        List<Subscriber> matched = new ArrayList<>();
+        int newTypeMask = 0;
+        for (Subscriber subscriber : subscribers) {
+            newTypeMask |= subscriber.filter.getTypeMask();
+        }
+        for (int type = 0; type < MidiMessageType.COUNT; type++) {
+            matched.clear();
+            for (Subscriber subscriber : subscribers) {
+                if ((subscriber.filter.getTypeMask() & (1 << type)) != 0) {
+                    matched.add(subscriber);
+                }
+            }
+            table[type] = matched.isEmpty() ? NO_SUBSCRIBERS : matched.toArray(new Subscriber[matched.size()]);
+        }
+        subscribersByType = table;
+        dataSubscriberArray = dataSubscribers.isEmpty() ? NO_SUBSCRIBERS : dataSubscribers.toArray(new Subscriber[dataSubscribers.size()]);
+
+        if (newTypeMask != typeMask) {
+            typeMask = newTypeMask;
+            for (OnTypeMaskChangedListener listener : typeMaskListeners) {
+                listener.onTypeMaskChanged(this, newTypeMask);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiData(MidiInputDevice device, byte[] data) {
+        for (Subscriber subscriber : dataSubscriberArray) {
+            if (subscriber.accepts(device)) {
+                subscriber.dataListener.onMidiData(device, data);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiSystemExclusive(@NonNull MidiInputDevice sender, @NonNull byte[] systemExclusive) {
+        for (Subscriber subscriber : subscribersByType[SYSTEM_EXCLUSIVE]) {
+            if (subscriber.accepts(sender)) {
+                subscriber.listener.onMidiSystemExclusive(sender, systemExclusive);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiNoteOff(@NonNull MidiInputDevice sender, int channel, int note, int velocity) {
+        for (Subscriber subscriber : subscribersByType[NOTE_OFF]) {
+            if (subscriber.accepts(sender, channel)) {
+                subscriber.listener.onMidiNoteOff(sender, channel, note, velocity);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiNoteOn(@NonNull MidiInputDevice sender, int channel, int note, int velocity) {
+        for (Subscriber subscriber : subscribersByType[NOTE_ON]) {
+            if (subscriber.accepts(sender, channel)) {
+                subscriber.listener.onMidiNoteOn(sender, channel, note, velocity);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiPolyphonicAftertouch(@NonNull MidiInputDevice sender, int channel, int note, int pressure) {
+        for (Subscriber subscriber : subscribersByType[POLYPHONIC_AFTERTOUCH]) {
+            if (subscriber.accepts(sender, channel)) {
+                subscriber.listener.onMidiPolyphonicAftertouch(sender, channel, note, pressure);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiControlChange(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        for (Subscriber subscriber : subscribersByType[CONTROL_CHANGE]) {
+            if (subscriber.accepts(sender, channel)) {
+                subscriber.listener.onMidiControlChange(sender, channel, function, value);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiProgramChange(@NonNull MidiInputDevice sender, int channel, int program) {
+        for (Subscriber subscriber : subscribersByType[PROGRAM_CHANGE]) {
+            if (subscriber.accepts(sender, channel)) {
+                subscriber.listener.onMidiProgramChange(sender, channel, program);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiChannelAftertouch(@NonNull MidiInputDevice sender, int channel, int pressure) {
+        for (Subscriber subscriber : subscribersByType[CHANNEL_AFTERTOUCH]) {
+            if (subscriber.accepts(sender, channel)) {
+                subscriber.listener.onMidiChannelAftertouch(sender, channel, pressure);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiPitchWheel(@NonNull MidiInputDevice sender, int channel, int amount) {
+        for (Subscriber subscriber : subscribersByType[PITCH_WHEEL]) {
+            if (subscriber.accepts(sender, channel)) {
+                subscriber.listener.onMidiPitchWheel(sender, channel, amount);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiTimeCodeQuarterFrame(@NonNull MidiInputDevice sender, int timing) {
+        for (Subscriber subscriber : subscribersByType[TIME_CODE_QUARTER_FRAME]) {
+            if (subscriber.accepts(sender)) {
+                subscriber.listener.onMidiTimeCodeQuarterFrame(sender, timing);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiSongSelect(@NonNull MidiInputDevice sender, int song) {
+        for (Subscriber subscriber : subscribersByType[SONG_SELECT]) {
+            if (subscriber.accepts(sender)) {
+                subscriber.listener.onMidiSongSelect(sender, song);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiSongPositionPointer(@NonNull MidiInputDevice sender, int position) {
+        for (Subscriber subscriber : subscribersByType[SONG_POSITION_POINTER]) {
+            if (subscriber.accepts(sender)) {
+                subscriber.listener.onMidiSongPositionPointer(sender, position);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiTuneRequest(@NonNull MidiInputDevice sender) {
+        for (Subscriber subscriber : subscribersByType[TUNE_REQUEST]) {
+            if (subscriber.accepts(sender)) {
+                subscriber.listener.onMidiTuneRequest(sender);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiTimingClock(@NonNull MidiInputDevice sender) {
+        for (Subscriber subscriber : subscribersByType[TIMING_CLOCK]) {
+            if (subscriber.accepts(sender)) {
+                subscriber.listener.onMidiTimingClock(sender);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiStart(@NonNull MidiInputDevice sender) {
+        for (Subscriber subscriber : subscribersByType[START]) {
+            if (subscriber.accepts(sender)) {
+                subscriber.listener.onMidiStart(sender);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiContinue(@NonNull MidiInputDevice sender) {
+        for (Subscriber subscriber : subscribersByType[CONTINUE]) {
+            if (subscriber.accepts(sender)) {
+                subscriber.listener.onMidiContinue(sender);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiStop(@NonNull MidiInputDevice sender) {
+        for (Subscriber subscriber : subscribersByType[STOP]) {
+            if (subscriber.accepts(sender)) {
+                subscriber.listener.onMidiStop(sender);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiActiveSensing(@NonNull MidiInputDevice sender) {
+        for (Subscriber subscriber : subscribersByType[ACTIVE_SENSING]) {
+            if (subscriber.accepts(sender)) {
+                subscriber.listener.onMidiActiveSensing(sender);
+            }
+        }
+    }
+
+    @Override
+    public void onMidiReset(@NonNull MidiInputDevice sender) {
+        for (Subscriber subscriber : subscribersByType[RESET]) {
+            if (subscriber.accepts(sender)) {
+                subscriber.listener.onMidiReset(sender);
+            }
+        }
+    }
+
+    @Override
+    public void onRPNMessage(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        for (Subscriber subscriber : subscribersByType[RPN]) {
+            if (subscriber.accepts(sender, channel)) {
+                subscriber.listener.onRPNMessage(sender, channel, function, value);
+            }
+        }
+    }
+
+    @Override
+    public void onNRPNMessage(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        for (Subscriber subscriber : subscribersByType[NRPN]) {
+            if (subscriber.accepts(sender, channel)) {
+                subscriber.listener.onNRPNMessage(sender, channel, function, value);
+            }
+        }
+    }
+
+    /**
+     * A subscription
+     */
+    private static final class Subscriber {
+        final Object subscribed;
+        final OnMidiInputEventListener listener;
+        final OnMidiDataListener dataListener;
+        final MidiEventFilter filter;
+
+        Subscriber(@NonNull Object subscribed, @Nullable OnMidiInputEventListener listener, @Nullable OnMidiDataListener dataListener, @NonNull MidiEventFilter filter) {
+            this.subscribed = subscribed;
+            this.listener = listener;
+            this.dataListener = dataListener;
+            this.filter = filter;
+        }
+
+        boolean accepts(@NonNull MidiInputDevice sender) {
+            return filter.acceptsDevice(sender);
+        }
+
+        boolean accepts(@NonNull MidiInputDevice sender, int channel) {
+            return filter.acceptsChannel(channel) && filter.acceptsDevice(sender);
+        }
+    }
+}
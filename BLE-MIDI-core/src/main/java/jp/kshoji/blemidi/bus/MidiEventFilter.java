@@ -0,0 +1,126 @@
+package jp.kshoji.blemidi.bus;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.util.MidiMessageType;
+
+/**
+ * Immutable filter of the {@link MidiEventBus} subscription: message kinds, channels and devices
+ *
+ * @author K.Shoji
+ */
+public final class MidiEventFilter {
+    /**
+     * Channel mask for all the 16 channels
+     */
+    public static final int ALL_CHANNELS = 0xffff;
+
+    private static final MidiEventFilter ALL = new MidiEventFilter(MidiMessageType.ALL, ALL_CHANNELS, null);
+
+    private final int typeMask;
+    private final int channelMask;
+    private final Set<String> deviceAddresses;
+
+    /**
+     * Constructor
+     *
+     * @param typeMask the kinds of the messages, combination of {@link MidiMessageType}
+     * @param channelMask bit n for channel n, applied to the channel messages only
+     * @param deviceAddresses the addresses of the devices, null for all devices
+     */
+    public MidiEventFilter(int typeMask, int channelMask, @Nullable Set<String> deviceAddresses) {
+        this.typeMask = typeMask & MidiMessageType.ALL;
+        this.channelMask = channelMask & ALL_CHANNELS;
+        this.deviceAddresses = deviceAddresses == null ? null : Collections.unmodifiableSet(new HashSet<>(deviceAddresses));
+    }
+
+    /**
+     * @return the filter accepts everything
+     */
+    @NonNull
+    public static MidiEventFilter all() {
+        return ALL;
+    }
+
+    /**
+     * Creates the filter accepts the kinds of the messages, on all the channels and devices
+     *
+     * @param typeMask the kinds of the messages, combination of {@link MidiMessageType}
+     * @return the filter
+     */
+    @NonNull
+    public static MidiEventFilter types(int typeMask) {
+        return new MidiEventFilter(typeMask, ALL_CHANNELS, null);
+    }
+
+    /**
+     * Creates the copy accepts only the channels
+     *
+     * @param channels the channels 0-15
+     * @return the filter
+     */
+    @NonNull
+    public MidiEventFilter withChannels(@NonNull int... channels) {
+        int mask = 0;
+        for (int channel : channels) {
+            mask |= 1 << (channel & 0xf);
+        }
+        return new MidiEventFilter(typeMask, mask, deviceAddresses);
+    }
+
+    /**
+     * Creates the copy accepts only the devices
+     *
+     * @param deviceAddresses the addresses of the devices
+     * @return the filter
+     */
+    @NonNull
+    public MidiEventFilter withDevices(@NonNull String... deviceAddresses) {
+        return new MidiEventFilter(typeMask, channelMask, new HashSet<>(Arrays.asList(deviceAddresses)));
+    }
+
+    /**
+     * @return the kinds of the messages, combination of {@link MidiMessageType}
+     */
+    public int getTypeMask() {
+        return typeMask;
+    }
+
+    /**
+     * @return bit n for channel n
+     */
+    public int getChannelMask() {
+        return channelMask;
+    }
+
+    /**
+     * @return the addresses of the devices, null for all devices
+     */
+    @Nullable
+    public Set<String> getDeviceAddresses() {
+        return deviceAddresses;
+    }
+
+    /**
+     * @param channel the channel 0-15
+     * @return true if the channel is accepted
+     */
+    boolean acceptsChannel(int channel) {
+        return ((channelMask >>> channel) & 1) != 0;
+    }
+
+    /**
+     * @param device the device
+     * @return true if the device is accepted
+     */
+    boolean acceptsDevice(@NonNull MidiInputDevice device) {
+        return deviceAddresses == null || deviceAddresses.contains(device.getDeviceAddress());
+    }
+}
@@ -0,0 +1,186 @@
+package jp.kshoji.blemidi.capture;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the packet log written by {@link PacketRecorder}, one packet at a time
+ *
+ * @author K.Shoji
+ */
+public final class PacketLogReader implements Closeable {
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final long startNanos;
+    private final long startMillis;
+    private final List<String> deviceAddresses = new ArrayList<>();
+
+    private int direction;
+    private String deviceAddress;
+    private long timestampNanos;
+    private byte[] data;
+
+    /**
+     * Constructor
+     *
+     * @param logFile the file written by {@link PacketRecorder}
+     * @throws IOException if the file can't be read, or it's not a packet log
+     */
+    public PacketLogReader(@NonNull File logFile) throws IOException {
+        file = new RandomAccessFile(logFile, "r");
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+
+            byte[] magic = new byte[PacketRecorder.MAGIC.length];
+            if (buffer.remaining() < PacketRecorder.FILE_HEADER_LENGTH) {
+                throw new IOException("Not a packet log: too short");
+            }
+            buffer.get(magic);
+            for (int i = 0; i < magic.length; i++) {
+                if (magic[i] != PacketRecorder.MAGIC[i]) {
+                    throw new IOException("Not a packet log: bad magic");
+                }
+            }
+            int version = buffer.get() & 0xff;
+            if (version != PacketRecorder.VERSION) {
+                throw new IOException("Unsupported packet log version: " + version);
+            }
+            buffer.position(buffer.position() + 3);
+            startNanos = buffer.getLong();
+            startMillis = buffer.getLong();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        timestampNanos = startNanos;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the recording started
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * @return {@link System#currentTimeMillis()} when the recording started
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * Moves to the next packet
+     *
+     * @return false if no more packets
+     * @throws IOException if the log is broken
+     */
+    public boolean next() throws IOException {
+        try {
+            while (buffer.hasRemaining()) {
+                int type = buffer.get() & 0xff;
+                switch (type) {
+                    case PacketRecorder.RECORD_END:
+                        return false;
+
+                    case PacketRecorder.RECORD_DEVICE: {
+                        int index = (int) getVarint();
+                        byte[] address = new byte[buffer.get() & 0xff];
+                        buffer.get(address);
+                        while (deviceAddresses.size() <= index) {
+                            deviceAddresses.add(null);
+                        }
+                        deviceAddresses.set(index, new String(address, "US-ASCII"));
+                        break;
+                    }
+
+                    case PacketRecorder.RECORD_PACKET_RECEIVED:
+                    case PacketRecorder.RECORD_PACKET_SENT: {
+                        int index = (int) getVarint();
+                        long zigzag = getVarint();
+                        int length = (int) getVarint();
+                        if (index >= deviceAddresses.size() || deviceAddresses.get(index) == null || length > PacketRecorder.MAX_PACKET_LENGTH) {
+                            throw new IOException("Broken packet log at " + buffer.position());
+                        }
+
+                        direction = type == PacketRecorder.RECORD_PACKET_SENT ? PacketRecorder.DIRECTION_SENT : PacketRecorder.DIRECTION_RECEIVED;
+                        deviceAddress = deviceAddresses.get(index);
+                        timestampNanos += (zigzag >>> 1) ^ -(zigzag & 1);
+                        data = new byte[length];
+                        buffer.get(data);
+                        return true;
+                    }
+
+                    default:
+                        throw new IOException("Unknown record type " + type + " at " + (buffer.position() - 1));
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            // the recorder has been killed while writing, the log is truncated
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * @return {@link PacketRecorder#DIRECTION_RECEIVED} or {@link PacketRecorder#DIRECTION_SENT}
+     */
+    public int getDirection() {
+        return direction;
+    }
+
+    /**
+     * @return the device address of current packet
+     */
+    @NonNull
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} of current packet, at the recording
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * @return BLE MIDI packet
+     */
+    @NonNull
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Reads unsigned LEB128
+     *
+     * @return the value
+     * @throws IOException if the value is too long
+     */
+    private long getVarint() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Broken varint at " + buffer.position());
+    }
+}
@@ -0,0 +1,405 @@
+package jp.kshoji.blemidi.capture;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import jp.kshoji.blemidi.util.PacketRingBuffer;
+
+/**
+ * Records raw BLE MIDI packets with {@link System#nanoTime()} timestamps and device addresses, into a compact binary log.<br />
+ * {@link #record(int, String, byte[], long)} is lock-free: the packet is copied into a ring buffer, and written to a memory-mapped file by a background thread.
+ * When the ring buffer is full, the packet is dropped and counted instead of blocking the Bluetooth thread.<br />
+ * Read the log with {@link PacketLogReader}, replay it with {@link PacketReplayer}.
+ *
+ * <pre>
+ * file   : "BMPC" version(1 byte) reserved(3 bytes) startNanos(8 bytes) startMillis(8 bytes) record*
+ * record : {@link #RECORD_DEVICE} index(varint) length(1 byte) address(ASCII)
+ *        | {@link #RECORD_PACKET_RECEIVED} or {@link #RECORD_PACKET_SENT} index(varint) nanosDelta(zigzag varint) length(varint) data
+ *        | {@link #RECORD_END}
+ * </pre>
+ *
+ * @author K.Shoji
+ */
+public final class PacketRecorder implements Closeable {
+    /**
+     * Packet received from the device(notification)
+     */
+    public static final int DIRECTION_RECEIVED = 0;
+
+    /**
+     * Packet written to the device
+     */
+    public static final int DIRECTION_SENT = 1;
+
+    static final byte[] MAGIC = { 'B', 'M', 'P', 'C' };
+    static final int VERSION = 1;
+    static final int FILE_HEADER_LENGTH = 24;
+
+    static final int RECORD_END = 0;
+    static final int RECORD_DEVICE = 1;
+    static final int RECORD_PACKET_RECEIVED = 2;
+    static final int RECORD_PACKET_SENT = 3;
+
+    /**
+     * The longest notification, same as the parser's ring buffer
+     */
+    static final int MAX_PACKET_LENGTH = PacketRingBuffer.MAX_PACKET_LENGTH;
+
+    private static final int MAX_DEVICES = 65536;
+    private static final int MAX_RECORD_LENGTH = 1 + 5 + 10 + 5 + MAX_PACKET_LENGTH;
+    private static final int MAP_CHUNK_LENGTH = 1024 * 1024;
+    private static final long WRITER_PARK_NANOS = 1000000;
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer mappedBuffer;
+    private long mappedPosition;
+
+    // ring buffer, multi-producer / single consumer
+    private final int mask;
+    private final byte[] slotData;
+    private final int[] slotLength;
+    private final int[] slotDevice;
+    private final long[] slotNanos;
+    private final byte[] slotDirection;
+    private final AtomicLongArray slotPublished;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final ConcurrentHashMap<String, Integer> deviceIndices = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<String> deviceAddresses = new AtomicReferenceArray<>(MAX_DEVICES);
+    private final AtomicInteger deviceCount = new AtomicInteger();
+
+    private final AtomicLong recordedPackets = new AtomicLong();
+    private final AtomicLong droppedPackets = new AtomicLong();
+
+    private final Thread writerThread;
+    // accepting records
+    private volatile boolean isRunning = true;
+    // the records in progress, close() waits for them before the last drain
+    private final AtomicInteger activeRecorders = new AtomicInteger();
+    private volatile boolean isWriterRunning = true;
+    private volatile IOException writerException;
+
+    // writer thread only
+    private boolean[] deviceWritten = new boolean[16];
+    private long lastNanos;
+
+    /**
+     * Constructor with the default ring buffer capacity(4096 packets)
+     *
+     * @param logFile the file to write, overwritten if exists
+     * @throws IOException if the file can't be opened
+     */
+    public PacketRecorder(@NonNull File logFile) throws IOException {
+        this(logFile, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param logFile the file to write, overwritten if exists
+     * @param capacity the number of packets buffered, rounded up to a power of 2
+     * @throws IOException if the file can't be opened
+     */
+    public PacketRecorder(@NonNull File logFile, int capacity) throws IOException {
+        int ringCapacity = 2;
+        while (ringCapacity < capacity) {
+            ringCapacity <<= 1;
+        }
+        mask = ringCapacity - 1;
+        slotData = new byte[ringCapacity * MAX_PACKET_LENGTH];
+        slotLength = new int[ringCapacity];
+        slotDevice = new int[ringCapacity];
+        slotNanos = new long[ringCapacity];
+        slotDirection = new byte[ringCapacity];
+        slotPublished = new AtomicLongArray(ringCapacity);
+
+        file = new RandomAccessFile(logFile, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        mappedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, MAP_CHUNK_LENGTH);
+
+        lastNanos = System.nanoTime();
+        mappedBuffer.put(MAGIC);
+        mappedBuffer.put((byte) VERSION);
+        mappedBuffer.put(new byte[3]);
+        mappedBuffer.putLong(lastNanos);
+        mappedBuffer.putLong(System.currentTimeMillis());
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "PacketRecorder");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Records the packet. Lock-free, can be called from any thread.
+     *
+     * @param direction {@link #DIRECTION_RECEIVED} or {@link #DIRECTION_SENT}
+     * @param deviceAddress the device address
+     * @param data BLE MIDI packet, truncated to {@link PacketRingBuffer#MAX_PACKET_LENGTH} bytes
+     * @param nanos {@link System#nanoTime()} of the packet
+     * @return false if the packet has been dropped: the ring buffer is full, or the recorder is closed
+     */
+    public boolean record(int direction, @NonNull String deviceAddress, @NonNull byte[] data, long nanos) {
+        // announce before checking, so close() either rejects this record or waits for it
+        activeRecorders.incrementAndGet();
+        try {
+            if (!isRunning) {
+                return false;
+            }
+            return recordPacket(direction, deviceAddress, data, nanos);
+        } finally {
+            activeRecorders.decrementAndGet();
+        }
+    }
+
+    /**
+     * Copies the packet into the ring buffer, called while the recorder is accepting records
+     *
+     * @param direction {@link #DIRECTION_RECEIVED} or {@link #DIRECTION_SENT}
+     * @param deviceAddress the device address
+     * @param data BLE MIDI packet
+     * @param nanos {@link System#nanoTime()} of the packet
+     * @return false if the packet has been dropped
+     */
+    private boolean recordPacket(int direction, @NonNull String deviceAddress, @NonNull byte[] data, long nanos) {
+        int deviceIndex = obtainDeviceIndex(deviceAddress);
+        if (deviceIndex < 0) {
+            droppedPackets.incrementAndGet();
+            return false;
+        }
+
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail.get() > mask) {
+                droppedPackets.incrementAndGet();
+                return false;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & mask);
+        int length = Math.min(data.length, MAX_PACKET_LENGTH);
+        System.arraycopy(data, 0, slotData, slot * MAX_PACKET_LENGTH, length);
+        slotLength[slot] = length;
+        slotDevice[slot] = deviceIndex;
+        slotNanos[slot] = nanos;
+        slotDirection[slot] = (byte) direction;
+        // publishes the slot contents to the writer
+        slotPublished.lazySet(slot, sequence + 1);
+
+        recordedPackets.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return the number of packets accepted by {@link #record(int, String, byte[], long)}
+     */
+    public long getRecordedPackets() {
+        return recordedPackets.get();
+    }
+
+    /**
+     * @return the number of packets dropped because of the ring buffer overflow
+     */
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+
+    /**
+     * Stops recording, writes the buffered packets, and truncates the file to the written length
+     *
+     * @throws IOException if writing the file failed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+
+        // the records already past the check publish their slots, the writer drains them before exiting
+        while (activeRecorders.get() != 0) {
+            Thread.yield();
+        }
+        isWriterRunning = false;
+
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            if (writerException == null) {
+                ensureMapped(1);
+                mappedBuffer.put((byte) RECORD_END);
+                mappedBuffer.force();
+                channel.truncate(mappedPosition + mappedBuffer.position());
+            }
+        } finally {
+            mappedBuffer = null;
+            file.close();
+        }
+
+        if (writerException != null) {
+            throw writerException;
+        }
+    }
+
+    /**
+     * Obtains the index of the device, assigning a new one for a new address
+     *
+     * @param deviceAddress the device address
+     * @return the index, -1 if too many devices
+     */
+    private int obtainDeviceIndex(@NonNull String deviceAddress) {
+        Integer index = deviceIndices.get(deviceAddress);
+        if (index != null) {
+            return index;
+        }
+
+        synchronized (deviceIndices) {
+            index = deviceIndices.get(deviceAddress);
+            if (index != null) {
+                return index;
+            }
+
+            int newIndex = deviceCount.get();
+            if (newIndex >= MAX_DEVICES) {
+                return -1;
+            }
+            deviceAddresses.set(newIndex, deviceAddress);
+            deviceCount.set(newIndex + 1);
+            deviceIndices.put(deviceAddress, newIndex);
+            return newIndex;
+        }
+    }
+
+    /**
+     * The writer thread's loop: drains the ring buffer into the mapped file
+     */
+    private void writeLoop() {
+        try {
+            while (true) {
+                boolean running = isWriterRunning;
+                if (drain() == 0) {
+                    if (!running) {
+                        return;
+                    }
+                    LockSupport.parkNanos(this, WRITER_PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            writerException = e;
+        }
+    }
+
+    /**
+     * Writes the published packets
+     *
+     * @return the number of packets written
+     * @throws IOException if mapping the file failed
+     */
+    private int drain() throws IOException {
+        int written = 0;
+        long sequence = tail.get();
+        while (true) {
+            int slot = (int) (sequence & mask);
+            if (slotPublished.get(slot) != sequence + 1) {
+                break;
+            }
+
+            writePacket(slot);
+            sequence++;
+            written++;
+            // releases the slot to the producers
+            tail.lazySet(sequence);
+        }
+        return written;
+    }
+
+    /**
+     * Writes the packet in the slot, with the device definition if not written yet
+     *
+     * @param slot the slot index
+     * @throws IOException if mapping the file failed
+     */
+    private void writePacket(int slot) throws IOException {
+        int deviceIndex = slotDevice[slot];
+        if (deviceIndex >= deviceWritten.length) {
+            boolean[] grown = new boolean[Math.max(deviceWritten.length * 2, deviceIndex + 1)];
+            System.arraycopy(deviceWritten, 0, grown, 0, deviceWritten.length);
+            deviceWritten = grown;
+        }
+        if (!deviceWritten[deviceIndex]) {
+            byte[] address = deviceAddresses.get(deviceIndex).getBytes("US-ASCII");
+            int addressLength = Math.min(address.length, 255);
+            ensureMapped(1 + 5 + 1 + addressLength);
+            mappedBuffer.put((byte) RECORD_DEVICE);
+            putVarint(deviceIndex);
+            mappedBuffer.put((byte) addressLength);
+            mappedBuffer.put(address, 0, addressLength);
+            deviceWritten[deviceIndex] = true;
+        }
+
+        int length = slotLength[slot];
+        long nanos = slotNanos[slot];
+        long delta = nanos - lastNanos;
+        lastNanos = nanos;
+
+        ensureMapped(MAX_RECORD_LENGTH);
+        mappedBuffer.put((byte) (slotDirection[slot] == DIRECTION_SENT ? RECORD_PACKET_SENT : RECORD_PACKET_RECEIVED));
+        putVarint(deviceIndex);
+        putVarint((delta << 1) ^ (delta >> 63));
+        putVarint(length);
+        mappedBuffer.put(slotData, slot * MAX_PACKET_LENGTH, length);
+    }
+
+    /**
+     * Maps the next region of the file if the current one can't hold the specified length
+     *
+     * @param length the length to write
+     * @throws IOException if mapping the file failed
+     */
+    private void ensureMapped(int length) throws IOException {
+        if (mappedBuffer.remaining() >= length) {
+            return;
+        }
+        mappedPosition += mappedBuffer.position();
+        mappedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, mappedPosition, MAP_CHUNK_LENGTH);
+    }
+
+    /**
+     * Writes unsigned LEB128
+     *
+     * @param value the value
+     */
+    private void putVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            mappedBuffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        mappedBuffer.put((byte) value);
+    }
+}
@@ -0,0 +1,317 @@
+package jp.kshoji.blemidi.capture;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import jp.kshoji.blemidi.clock.MidiClockTracker;
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.device.VirtualMidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiDataListener;
+import jp.kshoji.blemidi.listener.OnMidiEventBatchListener;
+import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.listener.OnMidiSystemExclusiveStreamListener;
+import jp.kshoji.blemidi.listener.OnMidiTimestampedMessageListener;
+import jp.kshoji.blemidi.metrics.LatencyProbe;
+import jp.kshoji.blemidi.metrics.MidiDeviceMetrics;
+import jp.kshoji.blemidi.util.BleMidiParser;
+import jp.kshoji.blemidi.util.SystemExclusiveAssembler;
+
+/**
+ * Feeds the received packets of a {@link PacketRecorder} log into {@link BleMidiParser}, at the original or an accelerated speed.<br />
+ * Each recorded device address gets its own {@link MidiInputDevice} and parser, so the listeners see the same devices as the recording.
+ *
+ * @author K.Shoji
+ */
+public final class PacketReplayer {
+    private final File logFile;
+    private final Map<String, VirtualMidiInputDevice> devices = new HashMap<>();
+
+    private volatile double speed = 1.0;
+    private volatile boolean isStopped = false;
+
+    // applied to every device, guarded by devices
+    private OnMidiInputEventListener midiInputEventListener;
+    private OnMidiDataListener midiDataListener;
+    private OnMidiEventBatchListener midiEventBatchListener;
+    private OnMidiTimestampedMessageListener timestampedMessageListener;
+    private OnMidiSystemExclusiveStreamListener systemExclusiveStreamListener;
+    private LatencyProbe latencyProbe;
+    private MidiClockTracker midiClockTracker;
+    private int dropMask = 0;
+    private boolean isRealtimeFastLaneEnabled = false;
+    private int systemExclusiveMaxLength = Integer.MAX_VALUE;
+    private int systemExclusiveOverflowPolicy = SystemExclusiveAssembler.OVERFLOW_TRUNCATE;
+
+    /**
+     * Constructor
+     *
+     * @param logFile the file written by {@link PacketRecorder}
+     */
+    public PacketReplayer(@NonNull File logFile) {
+        this.logFile = logFile;
+    }
+
+    /**
+     * Sets the replay speed
+     *
+     * @param speed 1.0: original speed, 2.0: twice as fast, 0: as fast as possible
+     */
+    public void setSpeed(double speed) {
+        this.speed = speed;
+    }
+
+    /**
+     * Sets the listener for the parsed MIDI events, of every device
+     *
+     * @param midiInputEventListener the listener
+     * @see MidiInputDevice#setOnMidiInputEventListener(OnMidiInputEventListener)
+     */
+    public void setOnMidiInputEventListener(@Nullable OnMidiInputEventListener midiInputEventListener) {
+        synchronized (devices) {
+            this.midiInputEventListener = midiInputEventListener;
+            for (VirtualMidiInputDevice device : devices.values()) {
+                device.setOnMidiInputEventListener(midiInputEventListener);
+            }
+        }
+    }
+
+    /**
+     * Sets the listener for the raw packets, of every device
+     *
+     * @param midiDataListener the listener
+     * @see MidiInputDevice#setOnMidiDataListener(OnMidiDataListener)
+     */
+    public void setOnMidiDataListener(@Nullable OnMidiDataListener midiDataListener) {
+        synchronized (devices) {
+            this.midiDataListener = midiDataListener;
+            for (VirtualMidiInputDevice device : devices.values()) {
+                device.setOnMidiDataListener(midiDataListener);
+            }
+        }
+    }
+
+    /**
+     * Sets the listener for the events fired together, of every device
+     *
+     * @param midiEventBatchListener the listener
+     * @see MidiInputDevice#setOnMidiEventBatchListener(OnMidiEventBatchListener)
+     */
+    public void setOnMidiEventBatchListener(@Nullable OnMidiEventBatchListener midiEventBatchListener) {
+        synchronized (devices) {
+            this.midiEventBatchListener = midiEventBatchListener;
+            for (VirtualMidiInputDevice device : devices.values()) {
+                device.setOnMidiEventBatchListener(midiEventBatchListener);
+            }
+        }
+    }
+
+    /**
+     * Sets the listener for the timestamped raw messages, of every device
+     *
+     * @param timestampedMessageListener the listener
+     * @see MidiInputDevice#setOnMidiTimestampedMessageListener(OnMidiTimestampedMessageListener)
+     */
+    public void setOnMidiTimestampedMessageListener(@Nullable OnMidiTimestampedMessageListener timestampedMessageListener) {
+        synchronized (devices) {
+            this.timestampedMessageListener = timestampedMessageListener;
+            for (VirtualMidiInputDevice device : devices.values()) {
+                device.setOnMidiTimestampedMessageListener(timestampedMessageListener);
+            }
+        }
+    }
+
+    /**
+     * Sets the listener for the SysEx chunks, of every device
+     *
+     * @param systemExclusiveStreamListener the listener
+     * @see MidiInputDevice#setOnMidiSystemExclusiveStreamListener(OnMidiSystemExclusiveStreamListener)
+     */
+    public void setOnMidiSystemExclusiveStreamListener(@Nullable OnMidiSystemExclusiveStreamListener systemExclusiveStreamListener) {
+        synchronized (devices) {
+            this.systemExclusiveStreamListener = systemExclusiveStreamListener;
+            for (VirtualMidiInputDevice device : devices.values()) {
+                device.setOnMidiSystemExclusiveStreamListener(systemExclusiveStreamListener);
+            }
+        }
+    }
+
+    /**
+     * Attaches the latency probe to every device
+     *
+     * @param latencyProbe the probe
+     * @see MidiInputDevice#setLatencyProbe(LatencyProbe)
+     */
+    public void setLatencyProbe(@Nullable LatencyProbe latencyProbe) {
+        synchronized (devices) {
+            this.latencyProbe = latencyProbe;
+            for (VirtualMidiInputDevice device : devices.values()) {
+                device.setLatencyProbe(latencyProbe);
+            }
+        }
+    }
+
+    /**
+     * Attaches the clock tracker to every device
+     *
+     * @param midiClockTracker the tracker
+     * @see MidiInputDevice#setMidiClockTracker(MidiClockTracker)
+     */
+    public void setMidiClockTracker(@Nullable MidiClockTracker midiClockTracker) {
+        synchronized (devices) {
+            this.midiClockTracker = midiClockTracker;
+            for (VirtualMidiInputDevice device : devices.values()) {
+                device.setMidiClockTracker(midiClockTracker);
+            }
+        }
+    }
+
+    /**
+     * Sets the kinds of the messages to discard, of every device
+     *
+     * @param dropMask combination of {@link jp.kshoji.blemidi.util.MidiMessageType}, 0 to receive everything
+     * @see MidiInputDevice#setMessageDropMask(int)
+     */
+    public void setMessageDropMask(int dropMask) {
+        synchronized (devices) {
+            this.dropMask = dropMask;
+            for (VirtualMidiInputDevice device : devices.values()) {
+                device.setMessageDropMask(dropMask);
+            }
+        }
+    }
+
+    /**
+     * Enables the System Realtime fast lane, of every device
+     *
+     * @param enabled true to enable
+     * @see MidiInputDevice#setRealtimeFastLaneEnabled(boolean)
+     */
+    public void setRealtimeFastLaneEnabled(boolean enabled) {
+        synchronized (devices) {
+            isRealtimeFastLaneEnabled = enabled;
+            for (VirtualMidiInputDevice device : devices.values()) {
+                device.setRealtimeFastLaneEnabled(enabled);
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum length of the received SysEx, of every device
+     *
+     * @param maxLength the maximum length including 0xf0 and 0xf7
+     * @param overflowPolicy the overflow policy of {@link SystemExclusiveAssembler}
+     * @throws IllegalArgumentException if the arguments are out of range
+     * @see MidiInputDevice#setSystemExclusiveLimit(int, int)
+     */
+    public void setSystemExclusiveLimit(int maxLength, int overflowPolicy) throws IllegalArgumentException {
+        SystemExclusiveAssembler.checkLimit(maxLength, overflowPolicy);
+        synchronized (devices) {
+            systemExclusiveMaxLength = maxLength;
+            systemExclusiveOverflowPolicy = overflowPolicy;
+            for (VirtualMidiInputDevice device : devices.values()) {
+                device.setSystemExclusiveLimit(maxLength, overflowPolicy);
+            }
+        }
+    }
+
+    /**
+     * Replays the log in the caller's thread, blocks until the end of log or {@link #stop()}
+     *
+     * @return the number of packets replayed
+     * @throws IOException if the log can't be read
+     */
+    public long replay() throws IOException {
+        isStopped = false;
+        long replayed = 0;
+
+        PacketLogReader reader = new PacketLogReader(logFile);
+        try {
+            long firstPacketNanos = 0;
+            long replayStartNanos = 0;
+
+            while (!isStopped && reader.next()) {
+                if (reader.getDirection() != PacketRecorder.DIRECTION_RECEIVED) {
+                    continue;
+                }
+
+                double currentSpeed = speed;
+                if (replayed == 0) {
+                    firstPacketNanos = reader.getTimestampNanos();
+                    replayStartNanos = System.nanoTime();
+                } else if (currentSpeed > 0) {
+                    long dueNanos = replayStartNanos + (long) ((reader.getTimestampNanos() - firstPacketNanos) / currentSpeed);
+                    long waitNanos = dueNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        try {
+                            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+
+                // replaying faster than recorded, don't drop
+                obtainDevice(reader.getDeviceAddress()).receive(reader.getData(), System.nanoTime(), true);
+                replayed++;
+            }
+        } finally {
+            reader.close();
+        }
+        return replayed;
+    }
+
+    /**
+     * Stops the running {@link #replay()}
+     */
+    public void stop() {
+        isStopped = true;
+    }
+
+    /**
+     * Stops the parsers' threads, call after the last events have been dispatched
+     */
+    public void terminate() {
+        stop();
+        synchronized (devices) {
+            for (VirtualMidiInputDevice device : devices.values()) {
+                device.stop();
+            }
+            devices.clear();
+        }
+    }
+
+    /**
+     * Obtains the device for the address, creates if not exists
+     *
+     * @param deviceAddress the device address
+     * @return the device
+     */
+    @NonNull
+    private VirtualMidiInputDevice obtainDevice(@NonNull String deviceAddress) {
+        synchronized (devices) {
+            VirtualMidiInputDevice device = devices.get(deviceAddress);
+            if (device == null) {
+                device = new VirtualMidiInputDevice("Replay " + deviceAddress, deviceAddress, new MidiDeviceMetrics());
+                // configured before the listeners, so the parser is created with the settings
+                device.setMessageDropMask(dropMask);
+                device.setRealtimeFastLaneEnabled(isRealtimeFastLaneEnabled);
+                device.setSystemExclusiveLimit(systemExclusiveMaxLength, systemExclusiveOverflowPolicy);
+                device.setOnMidiInputEventListener(midiInputEventListener);
+                device.setOnMidiDataListener(midiDataListener);
+                device.setOnMidiEventBatchListener(midiEventBatchListener);
+                device.setOnMidiTimestampedMessageListener(timestampedMessageListener);
+                device.setOnMidiSystemExclusiveStreamListener(systemExclusiveStreamListener);
+                device.setLatencyProbe(latencyProbe);
+                device.setMidiClockTracker(midiClockTracker);
+                devices.put(deviceAddress, device);
+            }
+            return device;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package jp.kshoji.blemidi.clock;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiEventBatchListener;
+import jp.kshoji.blemidi.util.MidiEventBatch;
+
+/**
+ * Follows the tempo and the song position of the incoming MIDI clock(24 ticks per quarter note).<br />
+ * The tick times are smoothed by a second order phase-locked loop: the phase and the period are corrected by the error of each tick against its prediction.
+ * Until the loop locks, the period is estimated by the least squares fit over a fixed-size ring of the recent tick times. No allocation per tick.<br />
+ * Attach to one device with {@link MidiInputDevice#setMidiClockTracker(MidiClockTracker)} to be fed by the parser with the reconstructed timestamps,
+ * as soon as parsed and regardless of the listeners and the drop mask. Or feed the ticks with {@link #onTimingClock(long)}, or as the {@link OnMidiEventBatchListener} of a source forwarding the batches.
+ *
+ * @author K.Shoji
+ */
+public final class MidiClockTracker implements OnMidiEventBatchListener {
+
+    /**
+     * Listener for the beats(quarter notes) while the clock is running
+     */
+    public interface OnBeatListener {
+
+        /**
+         * Called on the thread feeding the ticks
+         *
+         * @param tracker the tracker
+         * @param beat the beat index from the song start
+         * @param timeMillis the smoothed time of the beat, in {@link System#currentTimeMillis()}
+         */
+        void onBeat(@NonNull MidiClockTracker tracker, long beat, long timeMillis);
+    }
+
+    /**
+     * MIDI clock resolution
+     */
+    public static final int TICKS_PER_BEAT = 24;
+
+    private static final int RING_SIZE = 32;
+    private static final int LOCK_TICKS = 12;
+    private static final double LOST_TICK_THRESHOLD = 0.75;
+    private static final int MAX_OUT_OF_LOCK_TICKS = 3;
+    private static final double DEFAULT_PHASE_GAIN = 0.1;
+    private static final double DEFAULT_FREQUENCY_GAIN = 0.005;
+    // 300 bpm - 20 bpm
+    private static final double MIN_PERIOD_MILLIS = 60000.0 / 300 / TICKS_PER_BEAT;
+    private static final double MAX_PERIOD_MILLIS = 60000.0 / 20 / TICKS_PER_BEAT;
+
+    // recent tick times, for the acquisition
+    private final long[] tickTimes = new long[RING_SIZE];
+    private int tickCount;
+
+    // recent phase errors, for the jitter
+    private final double[] phaseErrors = new double[RING_SIZE];
+    private int phaseErrorCount;
+
+    private double phaseGain = DEFAULT_PHASE_GAIN;
+    private double frequencyGain = DEFAULT_FREQUENCY_GAIN;
+
+    private boolean isLocked;
+    private int outOfLockTicks;
+    private double tickTimeMillis;
+    private double periodMillis;
+
+    private boolean isRunning;
+    private long tickPosition = -1;
+
+    private OnBeatListener beatListener;
+
+    /**
+     * Sets the loop gains, smaller values smooth more and follow tempo changes slower
+     *
+     * @param phaseGain the phase correction per tick, 0-1, 0.1 by default
+     * @param frequencyGain the period correction per tick, 0-1, 0.005 by default
+     */
+    public synchronized void setLoopGains(double phaseGain, double frequencyGain) {
+        this.phaseGain = phaseGain;
+        this.frequencyGain = frequencyGain;
+    }
+
+    /**
+     * Sets the listener for the beats
+     *
+     * @param beatListener the listener, null to detach
+     */
+    public synchronized void setOnBeatListener(@Nullable OnBeatListener beatListener) {
+        this.beatListener = beatListener;
+    }
+
+    @Override
+    public void onMidiEventBatch(@NonNull MidiInputDevice sender, @NonNull MidiEventBatch batch) {
+        for (int i = 0, size = batch.size(); i < size; i++) {
+            switch (batch.getStatus(i)) {
+                case 0xf8:
+                    onTimingClock(batch.getTiming(i));
+                    break;
+                case 0xfa:
+                    onStart();
+                    break;
+                case 0xfb:
+                    onContinue();
+                    break;
+                case 0xfc:
+                    onStop();
+                    break;
+                case 0xf2:
+                    onSongPositionPointer((batch.getData1(i) & 0x7f) | ((batch.getData2(i) & 0x7f) << 7));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Feeds a Timing Clock(0xf8)
+     *
+     * @param timeMillis the time of the tick, in {@link System#currentTimeMillis()}
+     */
+    public void onTimingClock(long timeMillis) {
+        OnBeatListener listener;
+        long beat;
+        long beatTimeMillis;
+        synchronized (this) {
+            tickTimes[tickCount % RING_SIZE] = timeMillis;
+            tickCount++;
+
+            long ticks = 1;
+            if (!isLocked) {
+                acquire(timeMillis);
+            } else {
+                double predicted = tickTimeMillis + periodMillis;
+                double error = timeMillis - predicted;
+                if (error > periodMillis * LOST_TICK_THRESHOLD) {
+                    // the ticks have been lost
+                    ticks = Math.round(error / periodMillis) + 1;
+                    predicted += (ticks - 1) * periodMillis;
+                    error = timeMillis - predicted;
+                }
+                if (Math.abs(error) > periodMillis * LOST_TICK_THRESHOLD) {
+                    outOfLockTicks++;
+                    if (outOfLockTicks >= MAX_OUT_OF_LOCK_TICKS) {
+                        // the tempo jumped: acquire again
+                        isLocked = false;
+                        tickCount = 0;
+                        tickTimes[tickCount++] = timeMillis;
+                        tickTimeMillis = timeMillis;
+                        outOfLockTicks = 0;
+                    }
+                } else {
+                    outOfLockTicks = 0;
+                }
+                // limits the correction by a glitch
+                error = Math.max(-periodMillis / 2, Math.min(periodMillis / 2, error));
+                if (isLocked) {
+                    tickTimeMillis = predicted + phaseGain * error;
+                    periodMillis = clampPeriod(periodMillis + frequencyGain * error);
+                }
+                phaseErrors[phaseErrorCount % RING_SIZE] = error;
+                phaseErrorCount++;
+            }
+
+            if (!isRunning) {
+                return;
+            }
+            // the position is -1 or more, shift it to divide
+            long previousBeat = (tickPosition + TICKS_PER_BEAT) / TICKS_PER_BEAT;
+            tickPosition += ticks;
+            beat = (tickPosition + TICKS_PER_BEAT) / TICKS_PER_BEAT - 1;
+            if (beat < previousBeat || beatListener == null) {
+                return;
+            }
+            listener = beatListener;
+            long ticksFromBeat = tickPosition % TICKS_PER_BEAT;
+            beatTimeMillis = isLocked ? Math.round(tickTimeMillis - ticksFromBeat * periodMillis) : timeMillis;
+        }
+        listener.onBeat(this, beat, beatTimeMillis);
+    }
+
+    /**
+     * Feeds a Start(0xfa): the next tick is the song start
+     */
+    public synchronized void onStart() {
+        isRunning = true;
+        tickPosition = -1;
+    }
+
+    /**
+     * Feeds a Continue(0xfb): the next tick advances the song position
+     */
+    public synchronized void onContinue() {
+        isRunning = true;
+    }
+
+    /**
+     * Feeds a Stop(0xfc): the song position stays, the tempo is still tracked
+     */
+    public synchronized void onStop() {
+        isRunning = false;
+    }
+
+    /**
+     * Feeds a Song Position Pointer(0xf2)
+     *
+     * @param position the position in 16th notes
+     */
+    public synchronized void onSongPositionPointer(int position) {
+        tickPosition = position * (TICKS_PER_BEAT / 4) - 1;
+    }
+
+    /**
+     * Forgets the tempo and the position
+     */
+    public synchronized void reset() {
+        isLocked = false;
+        isRunning = false;
+        tickCount = 0;
+        phaseErrorCount = 0;
+        outOfLockTicks = 0;
+        tickPosition = -1;
+    }
+
+    /**
+     * @return true if the tempo is known
+     */
+    public synchronized boolean isLocked() {
+        return isLocked;
+    }
+
+    /**
+     * @return true between Start / Continue and Stop
+     */
+    public synchronized boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * @return the smoothed tempo, 0 if not locked
+     */
+    public synchronized double getBpm() {
+        return isLocked ? 60000.0 / (periodMillis * TICKS_PER_BEAT) : 0;
+    }
+
+    /**
+     * @return the song position of the last tick, in ticks(1/24 quarter note), -1 before the first tick
+     */
+    public synchronized long getTickPosition() {
+        return tickPosition;
+    }
+
+    /**
+     * Obtains the position inside the current beat
+     *
+     * @param nowMillis the time, in {@link System#currentTimeMillis()}
+     * @return 0(on the beat) - 1(just before the next beat), 0 if not locked
+     */
+    public synchronized double getBeatPhase(long nowMillis) {
+        if (!isLocked || tickPosition < 0) {
+            return 0;
+        }
+        double ticks = (tickPosition % TICKS_PER_BEAT) + (nowMillis - tickTimeMillis) / periodMillis;
+        double phase = (ticks / TICKS_PER_BEAT) % 1.0;
+        return phase < 0 ? phase + 1.0 : phase;
+    }
+
+    /**
+     * Predicts the time of the next beat
+     *
+     * @param nowMillis the time, in {@link System#currentTimeMillis()}
+     * @return the time of the next beat, in {@link System#currentTimeMillis()}, -1 if not locked
+     */
+    public synchronized long getNextBeatTimeMillis(long nowMillis) {
+        if (!isLocked || tickPosition < 0) {
+            return -1;
+        }
+        long ticksToBeat = TICKS_PER_BEAT - (tickPosition % TICKS_PER_BEAT);
+        double beatTime = tickTimeMillis + ticksToBeat * periodMillis;
+        double beatPeriod = periodMillis * TICKS_PER_BEAT;
+        while (beatTime < nowMillis) {
+            beatTime += beatPeriod;
+        }
+        return Math.round(beatTime);
+    }
+
+    /**
+     * @return RMS of the recent tick errors against the prediction, in milliseconds
+     */
+    public synchronized double getJitterMillis() {
+        int count = Math.min(phaseErrorCount, RING_SIZE);
+        if (count == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += phaseErrors[i] * phaseErrors[i];
+        }
+        return Math.sqrt(sum / count);
+    }
+
+    /**
+     * Estimates the period by the least squares fit of the recent ticks, and locks if enough ticks
+     *
+     * @param timeMillis the time of the last tick
+     */
+    private void acquire(long timeMillis) {
+        int count = Math.min(tickCount, RING_SIZE);
+        if (count < 2) {
+            return;
+        }
+
+        // x: tick index, y: time relative to the oldest tick
+        long origin = tickTimes[(tickCount - count) % RING_SIZE];
+        double sumX = 0;
+        double sumY = 0;
+        double sumXX = 0;
+        double sumXY = 0;
+        for (int i = 0; i < count; i++) {
+            double y = tickTimes[(tickCount - count + i) % RING_SIZE] - origin;
+            sumX += i;
+            sumY += y;
+            sumXX += (double) i * i;
+            sumXY += i * y;
+        }
+        double slope = (count * sumXY - sumX * sumY) / (count * sumXX - sumX * sumX);
+        double intercept = (sumY - slope * sumX) / count;
+
+        periodMillis = clampPeriod(slope);
+        tickTimeMillis = origin + intercept + slope * (count - 1);
+        if (count >= LOCK_TICKS && slope >= MIN_PERIOD_MILLIS && slope <= MAX_PERIOD_MILLIS) {
+            isLocked = true;
+            phaseErrorCount = 0;
+        } else {
+            tickTimeMillis = timeMillis;
+        }
+    }
+
+    private static double clampPeriod(double period) {
+        return Math.max(MIN_PERIOD_MILLIS, Math.min(MAX_PERIOD_MILLIS, period));
+    }
+}
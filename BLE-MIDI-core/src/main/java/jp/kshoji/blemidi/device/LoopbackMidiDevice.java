@@ -0,0 +1,149 @@
+package jp.kshoji.blemidi.device;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jp.kshoji.blemidi.metrics.LatencyProbe;
+import jp.kshoji.blemidi.metrics.MidiDeviceMetrics;
+
+/**
+ * Fake BLE MIDI peripheral which echoes every BLE MIDI packet written to its output back to its input.<br />
+ * Needs no Bluetooth, so the encoder, the parser and {@link LatencyProbe} can be exercised without a device.
+ *
+ * @author K.Shoji
+ */
+public final class LoopbackMidiDevice {
+    private final String deviceName;
+    private final String deviceAddress;
+    private final MidiDeviceMetrics metrics = new MidiDeviceMetrics();
+    private final VirtualMidiInputDevice midiInputDevice;
+    private final LoopbackMidiOutputDevice midiOutputDevice;
+
+    private volatile long echoDelayMillis = 0;
+    private ScheduledExecutorService echoExecutor;
+
+    /**
+     * Constructor
+     *
+     * @param deviceName the name of fake device
+     * @param deviceAddress the address of fake device
+     */
+    public LoopbackMidiDevice(@NonNull String deviceName, @NonNull String deviceAddress) {
+        this.deviceName = deviceName;
+        this.deviceAddress = deviceAddress;
+        midiInputDevice = new VirtualMidiInputDevice(deviceName, deviceAddress, metrics);
+        midiOutputDevice = new LoopbackMidiOutputDevice();
+    }
+
+    /**
+     * Obtains the input side, receives the echoed messages
+     *
+     * @return the input device
+     */
+    @NonNull
+    public MidiInputDevice getMidiInputDevice() {
+        return midiInputDevice;
+    }
+
+    /**
+     * Obtains the output side, the messages sent to it are echoed
+     *
+     * @return the output device
+     */
+    @NonNull
+    public MidiOutputDevice getMidiOutputDevice() {
+        return midiOutputDevice;
+    }
+
+    /**
+     * Sets the delay of echo, to simulate the radio latency
+     *
+     * @param echoDelayMillis 0: echo synchronously in the sender's thread
+     */
+    public synchronized void setEchoDelayMillis(long echoDelayMillis) {
+        this.echoDelayMillis = echoDelayMillis;
+        if (echoDelayMillis > 0 && echoExecutor == null) {
+            echoExecutor = Executors.newSingleThreadScheduledExecutor();
+        }
+    }
+
+    /**
+     * Stops the parser's thread, and the echo thread
+     */
+    public synchronized void terminate() {
+        midiInputDevice.stop();
+        if (echoExecutor != null) {
+            echoExecutor.shutdownNow();
+            echoExecutor = null;
+        }
+    }
+
+    /**
+     * Echoes the packet
+     *
+     * @param packet BLE MIDI packet
+     */
+    private void echo(@NonNull final byte[] packet) {
+        final long delay = echoDelayMillis;
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = echoExecutor;
+        }
+
+        if (delay <= 0 || executor == null) {
+            receive(packet);
+            return;
+        }
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                receive(packet);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Passes the echoed packet to the input side
+     *
+     * @param packet BLE MIDI packet
+     */
+    private void receive(@NonNull byte[] packet) {
+        // the echo may come from several sender threads, but the parser accepts one producer at a time
+        synchronized (midiInputDevice) {
+            midiInputDevice.receive(packet, System.nanoTime(), false);
+        }
+    }
+
+    /**
+     * {@link MidiOutputDevice} for loopback
+     */
+    private final class LoopbackMidiOutputDevice extends MidiOutputDevice {
+
+        LoopbackMidiOutputDevice() {
+            super(metrics);
+        }
+
+        @Override
+        protected void transferData(@NonNull byte[] writeBuffer) {
+            getMetrics().onPacketSent(writeBuffer.length);
+            // the encoder may reuse the buffer
+            echo(writeBuffer.clone());
+        }
+
+        @NonNull
+        @Override
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        @NonNull
+        @Override
+        public String getDeviceAddress() {
+            return deviceAddress;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package jp.kshoji.blemidi.device;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import jp.kshoji.blemidi.clock.MidiClockTracker;
+import jp.kshoji.blemidi.listener.OnMidiDataListener;
+import jp.kshoji.blemidi.listener.OnMidiEventBatchListener;
+import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.listener.OnMidiSystemExclusiveStreamListener;
+import jp.kshoji.blemidi.listener.OnMidiTimestampedMessageListener;
+import jp.kshoji.blemidi.metrics.LatencyProbe;
+import jp.kshoji.blemidi.metrics.MidiDeviceMetrics;
+import jp.kshoji.blemidi.state.ActiveNoteTracker;
+import jp.kshoji.blemidi.state.ControllerStateMirror;
+
+/**
+ * Represents BLE MIDI Input Device<br />
+ * Only the listener for the MIDI events, the raw data listener and the device's name and address must be implemented.
+ * The other features do nothing by default, {@link ParserBackedMidiInputDevice} implements all of them with {@link jp.kshoji.blemidi.util.BleMidiParser}.
+ *
+ * @author K.Shoji
+ */
+public abstract class MidiInputDevice {
+
+    private final MidiDeviceMetrics metrics;
+    private final ControllerStateMirror controllerState = new ControllerStateMirror();
+    private final ActiveNoteTracker activeNotes = new ActiveNoteTracker();
+
+    /**
+     * Constructor with its own {@link jp.kshoji.blemidi.metrics.MidiDeviceMetrics}
+     */
+    protected MidiInputDevice() {
+        this(new MidiDeviceMetrics());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param metrics the metrics, shared with the other side of the same device
+     */
+    protected MidiInputDevice(@NonNull MidiDeviceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Obtains the metrics of this device
+     *
+     * @return the metrics
+     */
+    @NonNull
+    public final MidiDeviceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Obtains the controller state received from this device.<br />
+     * Updated by the parser as soon as a message is parsed, including the messages discarded by {@link #setMessageDropMask(int)}:
+     * the state may be ahead of the events dispatched to the listeners by the timestamp buffering(tens of milliseconds).
+     * Tracked while the parser of {@link ParserBackedMidiInputDevice} runs: from the connection with {@link ParserBackedMidiInputDevice#startStateTracking()}, otherwise from the first listener needing the parser.
+     * Implementations without a parser never update it.
+     *
+     * @return the state mirror, take {@link ControllerStateMirror#snapshot()} to read it
+     */
+    @NonNull
+    public final ControllerStateMirror getControllerState() {
+        return controllerState;
+    }
+
+    /**
+     * Obtains the notes held down on this device.<br />
+     * Updated as {@link #getControllerState()}: as soon as parsed, regardless of the drop mask, while the parser runs.
+     * The timeout of {@link ActiveNoteTracker} counts from the parse time, not the event's timestamp.
+     *
+     * @return the tracker, also configures how the notes are released
+     */
+    @NonNull
+    public final ActiveNoteTracker getActiveNotes() {
+        return activeNotes;
+    }
+
+    /**
+     * Synthesises the release of the notes held down(note-offs, or All Notes Off by {@link ActiveNoteTracker#setReleaseMode(int)}), to the listeners on the thread dispatching the events, after the events already received.<br />
+     * Called when the device is disconnected, or to recover the stuck notes. Does nothing by default.
+     */
+    public void releaseActiveNotes() {
+        // no notes tracked
+    }
+
+    /**
+     * Attaches {@link jp.kshoji.blemidi.listener.OnMidiInputEventListener}
+     *
+     * @param midiInputEventListener the listener
+     */
+    public abstract void setOnMidiInputEventListener(@Nullable OnMidiInputEventListener midiInputEventListener);
+
+    /**
+     * Attaches {@link jp.kshoji.blemidi.listener.OnMidiEventBatchListener}, to receive the events fired together in one call
+     *
+     * @param midiEventBatchListener the listener, null to detach
+     */
+    public void setOnMidiEventBatchListener(@Nullable OnMidiEventBatchListener midiEventBatchListener) {
+        // not supported
+    }
+
+    /**
+     * Attaches {@link jp.kshoji.blemidi.listener.OnMidiSystemExclusiveStreamListener}, to receive the SysEx in chunks while it arrives
+     *
+     * @param systemExclusiveStreamListener the listener, null to detach
+     */
+    public void setOnMidiSystemExclusiveStreamListener(@Nullable OnMidiSystemExclusiveStreamListener systemExclusiveStreamListener) {
+        // not supported
+    }
+
+    /**
+     * Attaches {@link jp.kshoji.blemidi.listener.OnMidiTimestampedMessageListener}, to receive the raw messages with the sender's timestamp and the reconstructed performance time, without the timestamp buffering
+     *
+     * @param timestampedMessageListener the listener, null to detach
+     */
+    public void setOnMidiTimestampedMessageListener(@Nullable OnMidiTimestampedMessageListener timestampedMessageListener) {
+        // not supported
+    }
+
+    /**
+     * Sets the kinds of the messages to discard in the parser, before they are queued
+     *
+     * @param dropMask combination of {@link jp.kshoji.blemidi.util.MidiMessageType}, 0 to receive everything
+     */
+    public void setMessageDropMask(int dropMask) {
+        // not supported
+    }
+
+    /**
+     * Dispatches the System Realtime messages(0xf8-0xff) as soon as received, bypassing the timestamp buffering
+     *
+     * @param enabled true to enable, false by default
+     */
+    public void setRealtimeFastLaneEnabled(boolean enabled) {
+        // not supported
+    }
+
+    /**
+     * Sets the maximum length of the received SysEx, applied from the next SysEx
+     *
+     * @param maxLength the maximum length including 0xf0 and 0xf7, 3 or more. {@link Integer#MAX_VALUE} by default
+     * @param overflowPolicy {@link jp.kshoji.blemidi.util.SystemExclusiveAssembler#OVERFLOW_TRUNCATE}(default), {@link jp.kshoji.blemidi.util.SystemExclusiveAssembler#OVERFLOW_DROP} or {@link jp.kshoji.blemidi.util.SystemExclusiveAssembler#OVERFLOW_STREAM_THROUGH}
+     * @throws IllegalArgumentException if the arguments are out of range
+     */
+    public void setSystemExclusiveLimit(int maxLength, int overflowPolicy) throws IllegalArgumentException {
+        // not supported
+    }
+
+    /**
+     * Obtains the device name
+     *
+     * @return device name
+     */
+    @NonNull
+    public abstract String getDeviceName();
+
+    /**
+     * Obtains the device address
+     *
+     * @return device address
+     */
+    @NonNull
+    public abstract String getDeviceAddress();
+
+    @NonNull
+    @Override
+    public final String toString() {
+        return getDeviceName();
+    }
+
+    /**
+     * Listener when midi data is received
+     *
+     * @param listener
+     */
+    public abstract void setOnMidiDataListener(OnMidiDataListener listener);
+
+    /**
+     * Attaches {@link jp.kshoji.blemidi.metrics.LatencyProbe} to receive echoed probe messages
+     *
+     * @param latencyProbe the probe, null to detach
+     */
+    public void setLatencyProbe(@Nullable LatencyProbe latencyProbe) {
+        // not supported
+    }
+
+    /**
+     * Attaches {@link MidiClockTracker} to follow the incoming MIDI clock, with the reconstructed timestamps.<br />
+     * The tracker is fed independently of the listeners: {@link OnMidiEventBatchListener} stays free for the application.
+     *
+     * @param midiClockTracker the tracker, null to detach
+     */
+    public void setMidiClockTracker(@Nullable MidiClockTracker midiClockTracker) {
+        // not supported
+    }
+}
@@ -1,9 +1,12 @@
 package jp.kshoji.blemidi.device;
 
 import android.support.annotation.NonNull;
-import android.util.Log;
+import android.support.annotation.Nullable;
 
-import static jp.kshoji.blemidi.util.Constants.TAG;
+import java.util.Arrays;
+
+import jp.kshoji.blemidi.metrics.MidiDeviceMetrics;
+import jp.kshoji.blemidi.state.OutputStateCache;
 
 /**
  * Represents BLE MIDI Output Device
@@ -14,6 +17,114 @@ public abstract class MidiOutputDevice {
 
     public static final int MAX_TIMESTAMP = 8192;
 
+    // header, timestamp and 3 bytes message
+    private static final int MIN_PACKET_LENGTH = 5;
+
+    private final MidiDeviceMetrics metrics;
+    private volatile OutputStateCache stateCache = null;
+
+    /**
+     * Constructor with its own {@link jp.kshoji.blemidi.metrics.MidiDeviceMetrics}
+     */
+    protected MidiOutputDevice() {
+        this(new MidiDeviceMetrics());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param metrics the metrics, shared with the other side of the same device
+     */
+    protected MidiOutputDevice(@NonNull MidiDeviceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Obtains the metrics of this device
+     *
+     * @return the metrics
+     */
+    @NonNull
+    public final MidiDeviceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Attaches the cache of the sent state: the sends of the unchanged controllers are skipped, and {@link #resync()} replays the state
+     *
+     * @param stateCache the cache, null to send everything(default)
+     */
+    public final void setStateCache(@Nullable OutputStateCache stateCache) {
+        this.stateCache = stateCache;
+    }
+
+    /**
+     * Obtains the cache of the sent state
+     *
+     * @return the cache, null if not attached
+     */
+    @Nullable
+    public final OutputStateCache getStateCache() {
+        return stateCache;
+    }
+
+    /**
+     * Sends the whole state in {@link OutputStateCache} again, packing as many messages as the MTU allows into each packet.<br />
+     * Call after a reconnection, to restore the device's state with the minimum writes.
+     *
+     * @return the number of the packets written, 0 if no cache is attached
+     */
+    public final int resync() {
+        OutputStateCache cache = stateCache;
+        if (cache == null) {
+            return 0;
+        }
+
+        // the maximum length of characteristic value is (ATT MTU - 3)
+        PacketPacker packer = new PacketPacker(Math.max(MIN_PACKET_LENGTH, metrics.getMtu() - 3));
+        cache.replay(packer);
+        packer.flush();
+        return packer.packetCount;
+    }
+
+    /**
+     * Packs the messages into the packets with the same timestamp, and writes the full packets
+     */
+    private final class PacketPacker implements OutputStateCache.MessageHandler {
+        private final byte[] packet;
+        private final long timestamp = System.currentTimeMillis() % MAX_TIMESTAMP;
+        private int length = 0;
+        private int packetCount = 0;
+
+        PacketPacker(int maxPacketLength) {
+            packet = new byte[maxPacketLength];
+        }
+
+        @Override
+        public void onMessage(int status, int data1, int data2, int messageLength) {
+            if (length + 1 + messageLength > packet.length) {
+                flush();
+            }
+            if (length == 0) {
+                packet[length++] = (byte) (0x80 | ((timestamp >> 7) & 0x3f));
+            }
+            packet[length++] = (byte) (0x80 | (timestamp & 0x7f));
+            packet[length++] = (byte) status;
+            packet[length++] = (byte) data1;
+            if (messageLength == 3) {
+                packet[length++] = (byte) data2;
+            }
+        }
+
+        void flush() {
+            if (length > 0) {
+                transferData(Arrays.copyOf(packet, length));
+                length = 0;
+                packetCount++;
+            }
+        }
+    }
+
     /**
      * Transfer data
      *
@@ -95,17 +206,13 @@ public abstract class MidiOutputDevice {
 
     public void sendMidiSystemCommonMessage(byte[] data) {
         if (data.length == 1) {
-            Log.w(TAG, "sendMidiSystemCommonMessage!!!!!!1???===");
             sendMidiMessage(data[0]);
         } else if (data.length == 2) {
-            Log.w(TAG, "sendMidiSystemCommonMessage!!!!!!2???===");
             sendMidiMessage(data[0], data[1]);
         } else if (data.length == 3) {
-            Log.w(TAG, "sendMidiSystemCommonMessage!!!!!!3===");
             sendMidiMessage(data[0], data[1], data[2]);
-        } else {
-            Log.w(TAG, "sendMidiSystemCommonMessage!!!!!! more than 3!!!!!!!");
         }
+        // longer messages are not system common messages, ignored
     }
 
     /**
@@ -189,6 +296,10 @@ public abstract class MidiOutputDevice {
      * @param value 0-127
      */
     public final void sendMidiControlChange(int channel, int function, int value) {
+        OutputStateCache cache = stateCache;
+        if (cache != null && !cache.updateControlChange(channel, function, value)) {
+            return;
+        }
         sendMidiMessage(0xb0 | (channel & 0xf), function, value);
     }
 
@@ -199,6 +310,10 @@ public abstract class MidiOutputDevice {
      * @param program 0-127
      */
     public final void sendMidiProgramChange(int channel, int program) {
+        OutputStateCache cache = stateCache;
+        if (cache != null && !cache.updateProgramChange(channel, program)) {
+            return;
+        }
         sendMidiMessage(0xc0 | (channel & 0xf), program);
     }
 
@@ -209,6 +324,10 @@ public abstract class MidiOutputDevice {
      * @param pressure 0-127
      */
     public final void sendMidiChannelAftertouch(int channel, int pressure) {
+        OutputStateCache cache = stateCache;
+        if (cache != null && !cache.updateChannelAftertouch(channel, pressure)) {
+            return;
+        }
         sendMidiMessage(0xd0 | (channel & 0xf), pressure);
     }
 
@@ -219,6 +338,10 @@ public abstract class MidiOutputDevice {
      * @param amount 0(low)-8192(center)-16383(high)
      */
     public final void sendMidiPitchWheel(int channel, int amount) {
+        OutputStateCache cache = stateCache;
+        if (cache != null && !cache.updatePitchWheel(channel, amount)) {
+            return;
+        }
         sendMidiMessage(0xe0 | (channel & 0xf), amount & 0x7f, (amount >> 7) & 0x7f);
     }
 
@@ -295,6 +418,10 @@ public abstract class MidiOutputDevice {
      * Reset Device
      */
     public final void sendMidiReset() {
+        OutputStateCache cache = stateCache;
+        if (cache != null) {
+            cache.clear();
+        }
         sendMidiMessage(0xff);
     }
 
@@ -318,6 +445,11 @@ public abstract class MidiOutputDevice {
      * @param value 7bits or 14bits
      */
     public final void sendRPNMessage(int channel, int functionMSB, int functionLSB, int value) {
+        OutputStateCache cache = stateCache;
+        if (cache != null && !cache.updateParameter(OutputStateCache.KIND_RPN, channel, ((functionMSB & 0x7f) << 7) | (functionLSB & 0x7f), value)) {
+            return;
+        }
+
         // send the function
         sendMidiControlChange(channel, 101, functionMSB & 0x7f);
         sendMidiControlChange(channel, 100, functionLSB & 0x7f);
@@ -355,6 +487,11 @@ public abstract class MidiOutputDevice {
      * @param value 7bits or 14bits
      */
     public final void sendNRPNMessage(int channel, int functionMSB, int functionLSB, int value) {
+        OutputStateCache cache = stateCache;
+        if (cache != null && !cache.updateParameter(OutputStateCache.KIND_NRPN, channel, ((functionMSB & 0x7f) << 7) | (functionLSB & 0x7f), value)) {
+            return;
+        }
+
         // send the function
         sendMidiControlChange(channel, 99, functionMSB & 0x7f);
         sendMidiControlChange(channel, 98, functionLSB & 0x7f);
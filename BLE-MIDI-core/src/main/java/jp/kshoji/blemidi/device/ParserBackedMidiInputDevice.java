@@ -0,0 +1,224 @@
+package jp.kshoji.blemidi.device;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import jp.kshoji.blemidi.clock.MidiClockTracker;
+import jp.kshoji.blemidi.listener.OnMidiDataListener;
+import jp.kshoji.blemidi.listener.OnMidiEventBatchListener;
+import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.listener.OnMidiSystemExclusiveStreamListener;
+import jp.kshoji.blemidi.listener.OnMidiTimestampedMessageListener;
+import jp.kshoji.blemidi.metrics.LatencyProbe;
+import jp.kshoji.blemidi.metrics.MidiDeviceMetrics;
+import jp.kshoji.blemidi.util.BleMidiParser;
+import jp.kshoji.blemidi.util.SystemExclusiveAssembler;
+
+/**
+ * {@link MidiInputDevice} whose received BLE MIDI packets are parsed by its own {@link BleMidiParser}.<br />
+ * Holds the listeners and the parser's configuration once for all the implementations: subclasses only pass the received packets to {@link #incomingData(byte[], long, boolean)}.<br />
+ * The parser(and its thread) is created by {@link #startStateTracking()}, or when a listener needing it is attached,
+ * so a device used for the raw data only doesn't run it.
+ *
+ * @author K.Shoji
+ */
+public abstract class ParserBackedMidiInputDevice extends MidiInputDevice {
+    private volatile BleMidiParser midiParser;
+    private volatile OnMidiDataListener midiDataListener;
+
+    // applied to the parser when created, guarded by this
+    private int dropMask = 0;
+    private boolean isRealtimeFastLaneEnabled = false;
+    private int systemExclusiveMaxLength = Integer.MAX_VALUE;
+    private int systemExclusiveOverflowPolicy = SystemExclusiveAssembler.OVERFLOW_TRUNCATE;
+    private boolean isStopped = false;
+
+    /**
+     * Constructor with its own {@link MidiDeviceMetrics}
+     */
+    protected ParserBackedMidiInputDevice() {
+        super();
+    }
+
+    /**
+     * Constructor
+     *
+     * @param metrics the metrics, shared with the other side of the same device
+     */
+    protected ParserBackedMidiInputDevice(@NonNull MidiDeviceMetrics metrics) {
+        super(metrics);
+    }
+
+    /**
+     * Obtains the parser, creates it if needed
+     *
+     * @return the parser, null if already stopped
+     */
+    @Nullable
+    private synchronized BleMidiParser obtainParser() {
+        if (midiParser == null && !isStopped) {
+            BleMidiParser parser = new BleMidiParser(this, getControllerState(), getActiveNotes());
+            parser.setDropMask(dropMask);
+            parser.setRealtimeFastLaneEnabled(isRealtimeFastLaneEnabled);
+            parser.setSystemExclusiveLimit(systemExclusiveMaxLength, systemExclusiveOverflowPolicy);
+            midiParser = parser;
+        }
+        return midiParser;
+    }
+
+    /**
+     * Obtains the parser to attach a listener
+     *
+     * @param listener the listener, null to detach
+     * @return the parser, null if the listener is null and the parser has not been created
+     */
+    @Nullable
+    private BleMidiParser obtainParserFor(@Nullable Object listener) {
+        return listener == null ? midiParser : obtainParser();
+    }
+
+    /**
+     * Passes a received packet to {@link OnMidiDataListener} and to the parser
+     *
+     * @param data BLE MIDI packet
+     * @param arrivalNanos {@link System#nanoTime()} of the arrival, or the virtual time of a simulation
+     * @param waitsForBufferSpace true to wait for the space of the parser's buffer instead of dropping the packet: for the replay or the simulation feeding packets faster than real time
+     */
+    protected final void incomingData(@NonNull byte[] data, long arrivalNanos, boolean waitsForBufferSpace) {
+        getMetrics().onPacketReceived(data.length, arrivalNanos);
+
+        OnMidiDataListener listener = midiDataListener;
+        if (listener != null) {
+            listener.onMidiData(this, data);
+        }
+        parse(data, waitsForBufferSpace);
+    }
+
+    /**
+     * Passes a received packet to the parser only, if created
+     *
+     * @param data BLE MIDI packet
+     * @param waitsForBufferSpace true to wait for the space of the parser's buffer instead of dropping the packet
+     */
+    protected final void parse(@NonNull byte[] data, boolean waitsForBufferSpace) {
+        BleMidiParser parser = midiParser;
+        if (parser != null) {
+            if (waitsForBufferSpace) {
+                parser.awaitBufferSpace();
+            }
+            parser.parse(data);
+        }
+    }
+
+    /**
+     * Stops parsing, called when the device is disconnected.<br />
+     * The parser's thread dispatches the events already received, releases the notes held down(as {@link #releaseActiveNotes()}) to the listeners still attached, then exits.<br />
+     * The packets received after this are passed to {@link OnMidiDataListener} only.
+     */
+    public void stop() {
+        BleMidiParser parser;
+        synchronized (this) {
+            isStopped = true;
+            parser = midiParser;
+            midiParser = null;
+        }
+        if (parser != null) {
+            parser.stop();
+        }
+    }
+
+    /**
+     * Starts the parser now, so {@link #getControllerState()} and {@link #getActiveNotes()} follow every packet received after this.<br />
+     * Call this when the device is connected: without it, the state is tracked only from the first listener needing the parser, and the consumers attaching later read the state from that time.
+     */
+    public void startStateTracking() {
+        obtainParser();
+    }
+
+    @Override
+    public void setOnMidiInputEventListener(@Nullable OnMidiInputEventListener midiInputEventListener) {
+        BleMidiParser parser = obtainParserFor(midiInputEventListener);
+        if (parser != null) {
+            parser.setMidiInputEventListener(midiInputEventListener);
+        }
+    }
+
+    @Override
+    public void setOnMidiEventBatchListener(@Nullable OnMidiEventBatchListener midiEventBatchListener) {
+        BleMidiParser parser = obtainParserFor(midiEventBatchListener);
+        if (parser != null) {
+            parser.setMidiEventBatchListener(midiEventBatchListener);
+        }
+    }
+
+    @Override
+    public void setOnMidiSystemExclusiveStreamListener(@Nullable OnMidiSystemExclusiveStreamListener systemExclusiveStreamListener) {
+        BleMidiParser parser = obtainParserFor(systemExclusiveStreamListener);
+        if (parser != null) {
+            parser.setSystemExclusiveStreamListener(systemExclusiveStreamListener);
+        }
+    }
+
+    @Override
+    public void setOnMidiTimestampedMessageListener(@Nullable OnMidiTimestampedMessageListener timestampedMessageListener) {
+        BleMidiParser parser = obtainParserFor(timestampedMessageListener);
+        if (parser != null) {
+            parser.setTimestampedMessageListener(timestampedMessageListener);
+        }
+    }
+
+    @Override
+    public void setLatencyProbe(@Nullable LatencyProbe latencyProbe) {
+        BleMidiParser parser = obtainParserFor(latencyProbe);
+        if (parser != null) {
+            parser.setLatencyProbe(latencyProbe);
+        }
+    }
+
+    @Override
+    public void setMidiClockTracker(@Nullable MidiClockTracker midiClockTracker) {
+        BleMidiParser parser = obtainParserFor(midiClockTracker);
+        if (parser != null) {
+            parser.setMidiClockTracker(midiClockTracker);
+        }
+    }
+
+    @Override
+    public void setOnMidiDataListener(@Nullable OnMidiDataListener listener) {
+        midiDataListener = listener;
+    }
+
+    @Override
+    public synchronized void setMessageDropMask(int dropMask) {
+        this.dropMask = dropMask;
+        if (midiParser != null) {
+            midiParser.setDropMask(dropMask);
+        }
+    }
+
+    @Override
+    public synchronized void setRealtimeFastLaneEnabled(boolean enabled) {
+        isRealtimeFastLaneEnabled = enabled;
+        if (midiParser != null) {
+            midiParser.setRealtimeFastLaneEnabled(enabled);
+        }
+    }
+
+    @Override
+    public synchronized void setSystemExclusiveLimit(int maxLength, int overflowPolicy) throws IllegalArgumentException {
+        SystemExclusiveAssembler.checkLimit(maxLength, overflowPolicy);
+        systemExclusiveMaxLength = maxLength;
+        systemExclusiveOverflowPolicy = overflowPolicy;
+        if (midiParser != null) {
+            midiParser.setSystemExclusiveLimit(maxLength, overflowPolicy);
+        }
+    }
+
+    @Override
+    public void releaseActiveNotes() {
+        BleMidiParser parser = midiParser;
+        if (parser != null) {
+            parser.releaseActiveNotes();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package jp.kshoji.blemidi.device;
+
+import android.support.annotation.NonNull;
+
+import jp.kshoji.blemidi.metrics.MidiDeviceMetrics;
+
+/**
+ * {@link MidiInputDevice} without Bluetooth: the BLE MIDI packets are passed by the owner with {@link #receive(byte[], long, boolean)}.<br />
+ * The input side of {@link LoopbackMidiDevice}, {@link jp.kshoji.blemidi.simulator.SimulatedBlePeripheral} and {@link jp.kshoji.blemidi.capture.PacketReplayer}.
+ *
+ * @author K.Shoji
+ */
+public final class VirtualMidiInputDevice extends ParserBackedMidiInputDevice {
+    private final String deviceName;
+    private final String deviceAddress;
+
+    /**
+     * Constructor
+     *
+     * @param deviceName the name of device
+     * @param deviceAddress the address of device
+     * @param metrics the metrics, shared with the output side of the same device
+     */
+    public VirtualMidiInputDevice(@NonNull String deviceName, @NonNull String deviceAddress, @NonNull MidiDeviceMetrics metrics) {
+        super(metrics);
+        this.deviceName = deviceName;
+        this.deviceAddress = deviceAddress;
+    }
+
+    /**
+     * Passes a packet as received. Must be called from one thread at a time.
+     *
+     * @param data BLE MIDI packet
+     * @param arrivalNanos {@link System#nanoTime()} of the arrival, or the virtual time of a simulation
+     * @param waitsForBufferSpace true to wait for the space of the parser's buffer instead of dropping the packet
+     */
+    public void receive(@NonNull byte[] data, long arrivalNanos, boolean waitsForBufferSpace) {
+        incomingData(data, arrivalNanos, waitsForBufferSpace);
+    }
+
+    @NonNull
+    @Override
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    @NonNull
+    @Override
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+}
@@ -0,0 +1,69 @@
+package jp.kshoji.blemidi.dispatch;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Decides the thread which calls the listeners.<br />
+ * Except {@link #inline()}, the events are queued in a {@link DispatchQueue}, and one drain task is submitted for all the events queued until it runs.
+ * So no {@link Runnable} is allocated per event.
+ *
+ * @author K.Shoji
+ */
+public abstract class DispatchPolicy {
+
+    /**
+     * Checks if the listener is called on the thread which produced the event
+     *
+     * @return true if inline
+     */
+    public boolean isInline() {
+        return false;
+    }
+
+    /**
+     * Submits the drain task of {@link DispatchQueue}
+     *
+     * @param drainTask the task, submitted at most once until it runs
+     */
+    protected abstract void submit(@NonNull Runnable drainTask);
+
+    private static final DispatchPolicy INLINE = new DispatchPolicy() {
+        @Override
+        public boolean isInline() {
+            return true;
+        }
+
+        @Override
+        protected void submit(@NonNull Runnable drainTask) {
+            drainTask.run();
+        }
+    };
+
+    /**
+     * Calls the listener on the thread which produced the event(the parser's thread, or the Bluetooth callback thread): lowest latency
+     *
+     * @return the policy
+     */
+    @NonNull
+    public static DispatchPolicy inline() {
+        return INLINE;
+    }
+
+    /**
+     * Calls the listener with the specified {@link Executor}
+     *
+     * @param executor the executor
+     * @return the policy
+     */
+    @NonNull
+    public static DispatchPolicy executor(@NonNull final Executor executor) {
+        return new DispatchPolicy() {
+            @Override
+            protected void submit(@NonNull Runnable drainTask) {
+                executor.execute(drainTask);
+            }
+        };
+    }
+}
@@ -0,0 +1,135 @@
+package jp.kshoji.blemidi.dispatch;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Queue of listener calls, drained on the thread of {@link DispatchPolicy}.<br />
+ * The queued records are pooled and reused, and one drain task handles all the records queued since the last drain.
+ *
+ * @author K.Shoji
+ */
+public final class DispatchQueue {
+
+    /**
+     * Calls the listener for a dequeued record
+     */
+    public interface Handler {
+
+        /**
+         * Called on the thread of {@link DispatchPolicy}, in the queued order
+         *
+         * @param kind the kind of call, defined by the handler
+         * @param object the object argument(sender, device)
+         * @param array the array argument
+         * @param arg1 the first int argument
+         * @param arg2 the second int argument
+         * @param arg3 the third int argument
+         */
+        void onDispatch(int kind, @Nullable Object object, @Nullable byte[] array, int arg1, int arg2, int arg3);
+    }
+
+    private static final class Record {
+        int kind;
+        Object object;
+        byte[] array;
+        int arg1;
+        int arg2;
+        int arg3;
+    }
+
+    private final DispatchPolicy policy;
+    private final Handler handler;
+    private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+    private final Object queueLock = new Object();
+    private final Object drainLock = new Object();
+
+    // guarded by queueLock
+    private ArrayList<Record> pending = new ArrayList<>();
+    private final ArrayList<Record> pool = new ArrayList<>();
+
+    // guarded by drainLock
+    private ArrayList<Record> draining = new ArrayList<>();
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param policy the dispatch policy
+     * @param handler the handler
+     */
+    public DispatchQueue(@NonNull DispatchPolicy policy, @NonNull Handler handler) {
+        this.policy = policy;
+        this.handler = handler;
+    }
+
+    /**
+     * Queues the call, or calls the handler at once if the policy is {@link DispatchPolicy#inline()}
+     *
+     * @param kind the kind of call
+     * @param object the object argument
+     * @param array the array argument, must not be modified after this call
+     * @param arg1 the first int argument
+     * @param arg2 the second int argument
+     * @param arg3 the third int argument
+     */
+    public void post(int kind, @Nullable Object object, @Nullable byte[] array, int arg1, int arg2, int arg3) {
+        if (policy.isInline()) {
+            handler.onDispatch(kind, object, array, arg1, arg2, arg3);
+            return;
+        }
+
+        synchronized (queueLock) {
+            Record record = pool.isEmpty() ? new Record() : pool.remove(pool.size() - 1);
+            record.kind = kind;
+            record.object = object;
+            record.array = array;
+            record.arg1 = arg1;
+            record.arg2 = arg2;
+            record.arg3 = arg3;
+            pending.add(record);
+        }
+
+        if (isScheduled.compareAndSet(false, true)) {
+            policy.submit(drainTask);
+        }
+    }
+
+    /**
+     * Calls the handler for all the queued records
+     */
+    private void drain() {
+        synchronized (drainLock) {
+            // the records queued after here need another drain
+            isScheduled.set(false);
+
+            ArrayList<Record> records;
+            synchronized (queueLock) {
+                records = pending;
+                pending = draining;
+            }
+            draining = records;
+
+            for (int i = 0, size = records.size(); i < size; i++) {
+                Record record = records.get(i);
+                handler.onDispatch(record.kind, record.object, record.array, record.arg1, record.arg2, record.arg3);
+                record.object = null;
+                record.array = null;
+            }
+
+            synchronized (queueLock) {
+                pool.addAll(records);
+            }
+            records.clear();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package jp.kshoji.blemidi.dispatch;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiDataListener;
+
+/**
+ * {@link OnMidiDataListener} which calls the wrapped listener with the {@link DispatchPolicy}
+ *
+ * @author K.Shoji
+ */
+public final class DispatchingMidiDataListener implements OnMidiDataListener, DispatchQueue.Handler {
+    private final OnMidiDataListener listener;
+    private final DispatchQueue queue;
+
+    /**
+     * Constructor
+     *
+     * @param listener the listener to be called
+     * @param policy the dispatch policy
+     */
+    public DispatchingMidiDataListener(@NonNull OnMidiDataListener listener, @NonNull DispatchPolicy policy) {
+        this.listener = listener;
+        queue = new DispatchQueue(policy, this);
+    }
+
+    /**
+     * Wraps the listener, if needed
+     *
+     * @param listener the listener
+     * @param policy the dispatch policy
+     * @return the listener itself for {@link DispatchPolicy#inline()} or null, otherwise the wrapped listener
+     */
+    @Nullable
+    public static OnMidiDataListener wrap(@Nullable OnMidiDataListener listener, @NonNull DispatchPolicy policy) {
+        if (listener == null || policy.isInline()) {
+            return listener;
+        }
+        return new DispatchingMidiDataListener(listener, policy);
+    }
+
+    @Override
+    public void onMidiData(MidiInputDevice device, byte[] data) {
+        // the caller may reuse the array(BluetoothGattCharacteristic's value) before the dispatch
+        queue.post(0, device, data.clone(), 0, 0, 0);
+    }
+
+    @Override
+    public void onDispatch(int kind, @Nullable Object object, @Nullable byte[] array, int arg1, int arg2, int arg3) {
+        listener.onMidiData((MidiInputDevice) object, array);
+    }
+}
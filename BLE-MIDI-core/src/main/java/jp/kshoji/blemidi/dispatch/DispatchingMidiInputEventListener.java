@@ -0,0 +1,233 @@
+package jp.kshoji.blemidi.dispatch;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+
+/**
+ * {@link OnMidiInputEventListener} which calls the wrapped listener with the {@link DispatchPolicy}
+ *
+ * @author K.Shoji
+ */
+public final class DispatchingMidiInputEventListener implements OnMidiInputEventListener, DispatchQueue.Handler {
+    private static final int SYSTEM_EXCLUSIVE = 0;
+    private static final int NOTE_OFF = 1;
+    private static final int NOTE_ON = 2;
+    private static final int POLYPHONIC_AFTERTOUCH = 3;
+    private static final int CONTROL_CHANGE = 4;
+    private static final int PROGRAM_CHANGE = 5;
+    private static final int CHANNEL_AFTERTOUCH = 6;
+    private static final int PITCH_WHEEL = 7;
+    private static final int TIME_CODE_QUARTER_FRAME = 8;
+    private static final int SONG_SELECT = 9;
+    private static final int SONG_POSITION_POINTER = 10;
+    private static final int TUNE_REQUEST = 11;
+    private static final int TIMING_CLOCK = 12;
+    private static final int START = 13;
+    private static final int CONTINUE = 14;
+    private static final int STOP = 15;
+    private static final int ACTIVE_SENSING = 16;
+    private static final int RESET = 17;
+    private static final int RPN = 18;
+    private static final int NRPN = 19;
+
+    private final OnMidiInputEventListener listener;
+    private final DispatchQueue queue;
+
+    /**
+     * Constructor
+     *
+     * @param listener the listener to be called
+     * @param policy the dispatch policy
+     */
+    public DispatchingMidiInputEventListener(@NonNull OnMidiInputEventListener listener, @NonNull DispatchPolicy policy) {
+        this.listener = listener;
+        queue = new DispatchQueue(policy, this);
+    }
+
+    /**
+     * Wraps the listener, if needed
+     *
+     * @param listener the listener
+     * @param policy the dispatch policy
+     * @return the listener itself for {@link DispatchPolicy#inline()} or null, otherwise the wrapped listener
+     */
+    @Nullable
+    public static OnMidiInputEventListener wrap(@Nullable OnMidiInputEventListener listener, @NonNull DispatchPolicy policy) {
+        if (listener == null || policy.isInline()) {
+            return listener;
+        }
+        return new DispatchingMidiInputEventListener(listener, policy);
+    }
+
+    @Override
+    public void onMidiSystemExclusive(@NonNull MidiInputDevice sender, @NonNull byte[] systemExclusive) {
+        queue.post(SYSTEM_EXCLUSIVE, sender, systemExclusive, 0, 0, 0);
+    }
+
+    @Override
+    public void onMidiNoteOff(@NonNull MidiInputDevice sender, int channel, int note, int velocity) {
+        queue.post(NOTE_OFF, sender, null, channel, note, velocity);
+    }
+
+    @Override
+    public void onMidiNoteOn(@NonNull MidiInputDevice sender, int channel, int note, int velocity) {
+        queue.post(NOTE_ON, sender, null, channel, note, velocity);
+    }
+
+    @Override
+    public void onMidiPolyphonicAftertouch(@NonNull MidiInputDevice sender, int channel, int note, int pressure) {
+        queue.post(POLYPHONIC_AFTERTOUCH, sender, null, channel, note, pressure);
+    }
+
+    @Override
+    public void onMidiControlChange(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        queue.post(CONTROL_CHANGE, sender, null, channel, function, value);
+    }
+
+    @Override
+    public void onMidiProgramChange(@NonNull MidiInputDevice sender, int channel, int program) {
+        queue.post(PROGRAM_CHANGE, sender, null, channel, program, 0);
+    }
+
+    @Override
+    public void onMidiChannelAftertouch(@NonNull MidiInputDevice sender, int channel, int pressure) {
+        queue.post(CHANNEL_AFTERTOUCH, sender, null, channel, pressure, 0);
+    }
+
+    @Override
+    public void onMidiPitchWheel(@NonNull MidiInputDevice sender, int channel, int amount) {
+        queue.post(PITCH_WHEEL, sender, null, channel, amount, 0);
+    }
+
+    @Override
+    public void onMidiTimeCodeQuarterFrame(@NonNull MidiInputDevice sender, int timing) {
+        queue.post(TIME_CODE_QUARTER_FRAME, sender, null, timing, 0, 0);
+    }
+
+    @Override
+    public void onMidiSongSelect(@NonNull MidiInputDevice sender, int song) {
+        queue.post(SONG_SELECT, sender, null, song, 0, 0);
+    }
+
+    @Override
+    public void onMidiSongPositionPointer(@NonNull MidiInputDevice sender, int position) {
+        queue.post(SONG_POSITION_POINTER, sender, null, position, 0, 0);
+    }
+
+    @Override
+    public void onMidiTuneRequest(@NonNull MidiInputDevice sender) {
+        queue.post(TUNE_REQUEST, sender, null, 0, 0, 0);
+    }
+
+    @Override
+    public void onMidiTimingClock(@NonNull MidiInputDevice sender) {
+        queue.post(TIMING_CLOCK, sender, null, 0, 0, 0);
+    }
+
+    @Override
+    public void onMidiStart(@NonNull MidiInputDevice sender) {
+        queue.post(START, sender, null, 0, 0, 0);
+    }
+
+    @Override
+    public void onMidiContinue(@NonNull MidiInputDevice sender) {
+        queue.post(CONTINUE, sender, null, 0, 0, 0);
+    }
+
+    @Override
+    public void onMidiStop(@NonNull MidiInputDevice sender) {
+        queue.post(STOP, sender, null, 0, 0, 0);
+    }
+
+    @Override
+    public void onMidiActiveSensing(@NonNull MidiInputDevice sender) {
+        queue.post(ACTIVE_SENSING, sender, null, 0, 0, 0);
+    }
+
+    @Override
+    public void onMidiReset(@NonNull MidiInputDevice sender) {
+        queue.post(RESET, sender, null, 0, 0, 0);
+    }
+
+    @Override
+    public void onRPNMessage(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        queue.post(RPN, sender, null, channel, function, value);
+    }
+
+    @Override
+    public void onNRPNMessage(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        queue.post(NRPN, sender, null, channel, function, value);
+    }
+
+    @Override
+    public void onDispatch(int kind, @Nullable Object object, @Nullable byte[] array, int arg1, int arg2, int arg3) {
+        MidiInputDevice sender = (MidiInputDevice) object;
+        switch (kind) {
+            case SYSTEM_EXCLUSIVE:
+                listener.onMidiSystemExclusive(sender, array);
+                break;
+            case NOTE_OFF:
+                listener.onMidiNoteOff(sender, arg1, arg2, arg3);
+                break;
+            case NOTE_ON:
+                listener.onMidiNoteOn(sender, arg1, arg2, arg3);
+                break;
+            case POLYPHONIC_AFTERTOUCH:
+                listener.onMidiPolyphonicAftertouch(sender, arg1, arg2, arg3);
+                break;
+            case CONTROL_CHANGE:
+                listener.onMidiControlChange(sender, arg1, arg2, arg3);
+                break;
+            case PROGRAM_CHANGE:
+                listener.onMidiProgramChange(sender, arg1, arg2);
+                break;
+            case CHANNEL_AFTERTOUCH:
+                listener.onMidiChannelAftertouch(sender, arg1, arg2);
+                break;
+            case PITCH_WHEEL:
+                listener.onMidiPitchWheel(sender, arg1, arg2);
+                break;
+            case TIME_CODE_QUARTER_FRAME:
+                listener.onMidiTimeCodeQuarterFrame(sender, arg1);
+                break;
+            case SONG_SELECT:
+                listener.onMidiSongSelect(sender, arg1);
+                break;
+            case SONG_POSITION_POINTER:
+                listener.onMidiSongPositionPointer(sender, arg1);
+                break;
+            case TUNE_REQUEST:
+                listener.onMidiTuneRequest(sender);
+                break;
+            case TIMING_CLOCK:
+                listener.onMidiTimingClock(sender);
+                break;
+            case START:
+                listener.onMidiStart(sender);
+                break;
+            case CONTINUE:
+                listener.onMidiContinue(sender);
+                break;
+            case STOP:
+                listener.onMidiStop(sender);
+                break;
+            case ACTIVE_SENSING:
+                listener.onMidiActiveSensing(sender);
+                break;
+            case RESET:
+                listener.onMidiReset(sender);
+                break;
+            case RPN:
+                listener.onRPNMessage(sender, arg1, arg2, arg3);
+                break;
+            case NRPN:
+                listener.onNRPNMessage(sender, arg1, arg2, arg3);
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package jp.kshoji.blemidi.listener;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+
+/**
+ * Created by jim on 2017/7/26.
+ *
+ * Listener for the BLE MIDI packets as received, before parsing: the header byte and the timestamp bytes are included, for every kind of {@link MidiInputDevice}.
+ */
+
+public interface OnMidiDataListener {
+    /**
+     * Called on the thread receiving the packet(the Bluetooth callback thread), unless wrapped with a {@link jp.kshoji.blemidi.dispatch.DispatchPolicy}
+     *
+     * @param device the device received the packet
+     * @param data the BLE MIDI packet, not copied for the listener: must not be modified
+     */
+    void onMidiData(MidiInputDevice device, final byte[] data);
+}
@@ -0,0 +1,23 @@
+package jp.kshoji.blemidi.listener;
+
+import android.support.annotation.NonNull;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.util.MidiEventBatch;
+
+/**
+ * Listener for the MIDI events, receives all the events fired at the same time in one call
+ *
+ * @author K.Shoji
+ */
+public interface OnMidiEventBatchListener {
+
+    /**
+     * Called on the parser's thread with the events due, sorted in firing order.<br />
+     * The batch is reused for the next call: use {@link MidiEventBatch#copy()} to pass the events to another thread.
+     *
+     * @param sender the device sent these messages
+     * @param batch the events, read only and valid only while this method
+     */
+    void onMidiEventBatch(@NonNull MidiInputDevice sender, @NonNull MidiEventBatch batch);
+}
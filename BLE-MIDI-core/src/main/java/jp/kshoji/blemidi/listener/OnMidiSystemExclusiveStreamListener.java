@@ -0,0 +1,47 @@
+package jp.kshoji.blemidi.listener;
+
+import android.support.annotation.NonNull;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+
+/**
+ * Listener for the SysEx, receives the message in chunks while it arrives.<br />
+ * Called on the parser's thread as soon as the packets are parsed, without the timestamp buffering.
+ * The calls for one message are: {@link #onMidiSystemExclusiveBegin(MidiInputDevice)}, zero or more {@link #onMidiSystemExclusiveChunk(MidiInputDevice, byte[], int, int)},
+ * and then {@link #onMidiSystemExclusiveEnd(MidiInputDevice)} or {@link #onMidiSystemExclusiveAbort(MidiInputDevice)}.
+ *
+ * @author K.Shoji
+ */
+public interface OnMidiSystemExclusiveStreamListener {
+
+    /**
+     * SysEx has started(0xf0 received)
+     *
+     * @param sender the device sending the message
+     */
+    void onMidiSystemExclusiveBegin(@NonNull MidiInputDevice sender);
+
+    /**
+     * SysEx data has been received, without 0xf0 and 0xf7
+     *
+     * @param sender the device sending the message
+     * @param buffer the buffer, reused for the next chunk: valid only while this method
+     * @param offset the offset of the data in the buffer
+     * @param length the length of the data
+     */
+    void onMidiSystemExclusiveChunk(@NonNull MidiInputDevice sender, @NonNull byte[] buffer, int offset, int length);
+
+    /**
+     * SysEx has completed(0xf7 received)
+     *
+     * @param sender the device sent the message
+     */
+    void onMidiSystemExclusiveEnd(@NonNull MidiInputDevice sender);
+
+    /**
+     * SysEx has been aborted: the packets were lost, or the device has been stopped. The received chunks should be discarded.
+     *
+     * @param sender the device sent the message
+     */
+    void onMidiSystemExclusiveAbort(@NonNull MidiInputDevice sender);
+}
@@ -0,0 +1,26 @@
+package jp.kshoji.blemidi.listener;
+
+import android.support.annotation.NonNull;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+
+/**
+ * Listener for the raw MIDI messages with their performance time, for recording and scoring.<br />
+ * Called on the parser's thread as soon as each message is parsed, in the order received, without the timestamp buffering.
+ *
+ * @author K.Shoji
+ */
+public interface OnMidiTimestampedMessageListener {
+
+    /**
+     * A MIDI message has been received
+     *
+     * @param sender the device sent the message
+     * @param message the buffer containing the message with its status byte, reused for the next message: valid only while this method
+     * @param offset the offset of the message in the buffer
+     * @param length the length of the message
+     * @param bleTimestamp the sender's 13-bit BLE MIDI timestamp in milliseconds(0-8191), for SysEx the timestamp of 0xf7
+     * @param eventTimeNanos the time the sender played the message, reconstructed on the {@link System#nanoTime()} timeline
+     */
+    void onMidiMessage(@NonNull MidiInputDevice sender, @NonNull byte[] message, int offset, int length, int bleTimestamp, long eventTimeNanos);
+}
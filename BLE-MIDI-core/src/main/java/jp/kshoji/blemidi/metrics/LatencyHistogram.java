@@ -0,0 +1,176 @@
+package jp.kshoji.blemidi.metrics;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, fixed size latency histogram with HDR-style log-linear buckets.<br />
+ * Values are recorded in microseconds. 0-15 are recorded exactly, larger values are recorded with 8 sub-buckets per power of two,
+ * so the relative error of the reported percentiles is at most 12.5%.<br />
+ * Recording never allocates, so it can be called from the MIDI hot path.
+ *
+ * @author K.Shoji
+ */
+public final class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MSB = 36; // about 19 hours in microseconds
+    static final int BUCKET_COUNT = LINEAR_BUCKETS + (MAX_MSB - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final long MAX_VALUE = (1L << (MAX_MSB + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalSum = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Records the value
+     *
+     * @param valueMicros the value in microseconds, negative values are recorded as 0
+     */
+    public void record(long valueMicros) {
+        long value = valueMicros < 0 ? 0 : Math.min(valueMicros, MAX_VALUE);
+
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.incrementAndGet();
+        totalSum.addAndGet(value);
+
+        long currentMax = maxValue.get();
+        while (value > currentMax && !maxValue.compareAndSet(currentMax, value)) {
+            currentMax = maxValue.get();
+        }
+    }
+
+    /**
+     * Clears all the recorded values
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalSum.set(0);
+        maxValue.set(0);
+    }
+
+    /**
+     * Copies the current state
+     *
+     * @return the snapshot
+     */
+    @NonNull
+    public Snapshot snapshot() {
+        long[] copied = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copied[i] = counts.get(i);
+        }
+        return new Snapshot(copied, totalCount.get(), totalSum.get(), maxValue.get());
+    }
+
+    /**
+     * Obtains the bucket index for the value
+     *
+     * @param value 0 to {@link #MAX_VALUE}
+     * @return the bucket index
+     */
+    static int bucketIndex(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS;
+        return LINEAR_BUCKETS + (msb - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + (int) ((value >> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Obtains the highest value which is recorded to the bucket
+     *
+     * @param index the bucket index
+     * @return the highest value of the bucket
+     */
+    static long bucketUpperBound(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int octave = (index - LINEAR_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        int shift = octave + 1;
+        return ((long) (SUB_BUCKETS + subBucket) << shift) + (1L << shift) - 1;
+    }
+
+    /**
+     * Immutable copy of {@link LatencyHistogram}
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(@NonNull long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return the number of recorded values
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the largest recorded value in microseconds
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return the mean of the recorded values in microseconds, 0 if empty
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Obtains the value at the percentile
+         *
+         * @param percentile 0.0-100.0
+         * @return the value in microseconds, 0 if empty
+         */
+        public long getValueAtPercentile(double percentile) {
+            long total = 0;
+            for (long bucketCount : counts) {
+                total += bucketCount;
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long threshold = (long) Math.ceil(Math.max(0.0, Math.min(100.0, percentile)) / 100.0 * total);
+            if (threshold < 1) {
+                threshold = 1;
+            }
+
+            long accumulated = 0;
+            for (int i = 0; i < counts.length; i++) {
+                accumulated += counts[i];
+                if (accumulated >= threshold) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + (long) getMean() + "us p50=" + getValueAtPercentile(50) + "us p99=" + getValueAtPercentile(99) + "us max=" + max + "us";
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package jp.kshoji.blemidi.metrics;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.kshoji.blemidi.device.MidiOutputDevice;
+
+/**
+ * Round-trip latency probe between this central and a BLE MIDI peripheral which echoes SysEx messages back.<br />
+ * Sends tagged SysEx messages(F0 7D 4C 50 ... F7, 7D: non-commercial ID) through {@link MidiOutputDevice},
+ * and times the echoes when {@link jp.kshoji.blemidi.util.BleMidiParser} assembles them, before the playback buffering.<br />
+ * Attach to the input device with {@link jp.kshoji.blemidi.device.MidiInputDevice#setLatencyProbe(LatencyProbe)}.
+ * Echoed probe messages are consumed, and never delivered to the {@link jp.kshoji.blemidi.listener.OnMidiInputEventListener}.
+ *
+ * @author K.Shoji
+ */
+public final class LatencyProbe {
+    private static final int MANUFACTURER_ID_NON_COMMERCIAL = 0x7d;
+    private static final int PROBE_TAG_1 = 0x4c; // 'L'
+    private static final int PROBE_TAG_2 = 0x50; // 'P'
+    private static final int PROBE_MESSAGE_LENGTH = 12;
+    private static final int TIME_BYTES = 5;
+    private static final long TIME_MASK = (1L << (7 * TIME_BYTES)) - 1;
+    private static final int MAX_TIMESTAMP = 8192;
+    private static final int CLOCK_OFFSET_SAMPLES = 64;
+
+    private final MidiOutputDevice midiOutputDevice;
+    private final LatencyHistogram roundTripTime = new LatencyHistogram();
+    private final AtomicLong probesSent = new AtomicLong();
+    private final AtomicLong probesReceived = new AtomicLong();
+
+    private final Object clockOffsetLock = new Object();
+    private final int[] clockOffsetSamples = new int[CLOCK_OFFSET_SAMPLES];
+    private int clockOffsetSampleCount = 0;
+    private int clockOffsetSampleIndex = 0;
+
+    private int sequence = 0;
+    private volatile Thread probeThread;
+
+    /**
+     * Constructor
+     *
+     * @param midiOutputDevice the device to send the probe messages
+     */
+    public LatencyProbe(@NonNull MidiOutputDevice midiOutputDevice) {
+        this.midiOutputDevice = midiOutputDevice;
+    }
+
+    /**
+     * Sends one probe message
+     */
+    public void sendProbe() {
+        final long sentMicros = (System.nanoTime() / 1000) & TIME_MASK;
+        final int currentSequence;
+        synchronized (this) {
+            currentSequence = sequence;
+            sequence = (sequence + 1) & 0x3fff;
+        }
+
+        byte[] message = new byte[PROBE_MESSAGE_LENGTH];
+        message[0] = (byte) 0xf0;
+        message[1] = MANUFACTURER_ID_NON_COMMERCIAL;
+        message[2] = PROBE_TAG_1;
+        message[3] = PROBE_TAG_2;
+        message[4] = (byte) ((currentSequence >> 7) & 0x7f);
+        message[5] = (byte) (currentSequence & 0x7f);
+        for (int i = 0; i < TIME_BYTES; i++) {
+            message[6 + i] = (byte) ((sentMicros >> (7 * (TIME_BYTES - 1 - i))) & 0x7f);
+        }
+        message[PROBE_MESSAGE_LENGTH - 1] = (byte) 0xf7;
+
+        probesSent.incrementAndGet();
+        midiOutputDevice.sendMidiSystemExclusive(message);
+    }
+
+    /**
+     * Starts sending probe messages periodically
+     *
+     * @param intervalMillis the interval
+     */
+    public synchronized void start(final long intervalMillis) {
+        stop();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (probeThread == Thread.currentThread()) {
+                    sendProbe();
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException ignored) {
+                        return;
+                    }
+                }
+            }
+        }, "LatencyProbeThread");
+        thread.setDaemon(true);
+        probeThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops sending probe messages
+     */
+    public synchronized void stop() {
+        Thread thread = probeThread;
+        probeThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Checks the assembled SysEx, called by {@link jp.kshoji.blemidi.util.BleMidiParser}
+     *
+     * @param systemExclusive the SysEx, starts with F0 and ends with F7
+     * @param senderTimestamp the BLE MIDI timestamp of the peripheral, 0-8191
+     * @param arrivalNanos {@link System#nanoTime()} when the packet arrived
+     * @return true if the message is an echoed probe, and has been consumed
+     */
+    public boolean onSystemExclusive(@NonNull byte[] systemExclusive, int senderTimestamp, long arrivalNanos) {
+        return onSystemExclusive(systemExclusive, systemExclusive.length, senderTimestamp, arrivalNanos);
+    }
+
+    /**
+     * Checks the assembled SysEx in the parser's buffer without copying, called by {@link jp.kshoji.blemidi.util.BleMidiParser}
+     *
+     * @param systemExclusive the buffer, starts with F0, not kept after returning
+     * @param length the length of the SysEx in the buffer, including F7
+     * @param senderTimestamp the BLE MIDI timestamp of the peripheral, 0-8191
+     * @param arrivalNanos {@link System#nanoTime()} when the packet arrived
+     * @return true if the message is an echoed probe, and has been consumed
+     */
+    public boolean onSystemExclusive(@NonNull byte[] systemExclusive, int length, int senderTimestamp, long arrivalNanos) {
+        if (length != PROBE_MESSAGE_LENGTH ||
+                (systemExclusive[1] & 0xff) != MANUFACTURER_ID_NON_COMMERCIAL ||
+                (systemExclusive[2] & 0xff) != PROBE_TAG_1 ||
+                (systemExclusive[3] & 0xff) != PROBE_TAG_2) {
+            return false;
+        }
+
+        long sentMicros = 0;
+        for (int i = 0; i < TIME_BYTES; i++) {
+            sentMicros = (sentMicros << 7) | (systemExclusive[6 + i] & 0x7f);
+        }
+        long receivedMicros = (arrivalNanos / 1000) & TIME_MASK;
+        long roundTripMicros = (receivedMicros - sentMicros) & TIME_MASK;
+
+        roundTripTime.record(roundTripMicros);
+
+        // NTP style offset: peripheral clock minus the midpoint of our send / receive time, in BLE MIDI timestamp units(msec)
+        // the receive time is the packet's arrival, not the time of parsing which is late by the parser's backlog
+        long midpointMillis = (arrivalNanos / 1000000 - roundTripMicros / 2000) % MAX_TIMESTAMP;
+        int offset = (int) ((senderTimestamp - midpointMillis) % MAX_TIMESTAMP);
+        if (offset >= MAX_TIMESTAMP / 2) {
+            offset -= MAX_TIMESTAMP;
+        } else if (offset < -MAX_TIMESTAMP / 2) {
+            offset += MAX_TIMESTAMP;
+        }
+        synchronized (clockOffsetLock) {
+            clockOffsetSamples[clockOffsetSampleIndex] = offset;
+            clockOffsetSampleIndex = (clockOffsetSampleIndex + 1) % CLOCK_OFFSET_SAMPLES;
+            if (clockOffsetSampleCount < CLOCK_OFFSET_SAMPLES) {
+                clockOffsetSampleCount++;
+            }
+        }
+        // counted last, the result having this count contains the sample
+        probesReceived.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Clears the results
+     */
+    public void reset() {
+        roundTripTime.reset();
+        probesSent.set(0);
+        probesReceived.set(0);
+        synchronized (clockOffsetLock) {
+            clockOffsetSampleCount = 0;
+            clockOffsetSampleIndex = 0;
+        }
+    }
+
+    /**
+     * Obtains the current results
+     *
+     * @return the result
+     */
+    @NonNull
+    public Result getResult() {
+        int[] offsets;
+        synchronized (clockOffsetLock) {
+            offsets = Arrays.copyOf(clockOffsetSamples, clockOffsetSampleCount);
+        }
+        Arrays.sort(offsets);
+
+        return new Result(probesSent.get(), probesReceived.get(), roundTripTime.snapshot(), offsets);
+    }
+
+    /**
+     * Results of {@link LatencyProbe}
+     */
+    public static final class Result {
+        private final long probesSent;
+        private final long probesReceived;
+        private final LatencyHistogram.Snapshot roundTripTime;
+        private final int[] sortedClockOffsets;
+
+        Result(long probesSent, long probesReceived, @NonNull LatencyHistogram.Snapshot roundTripTime, @NonNull int[] sortedClockOffsets) {
+            this.probesSent = probesSent;
+            this.probesReceived = probesReceived;
+            this.roundTripTime = roundTripTime;
+            this.sortedClockOffsets = sortedClockOffsets;
+        }
+
+        public long getProbesSent() {
+            return probesSent;
+        }
+
+        public long getProbesReceived() {
+            return probesReceived;
+        }
+
+        /**
+         * @return the number of probes not echoed yet, including lost ones
+         */
+        public long getProbesMissing() {
+            return Math.max(0, probesSent - probesReceived);
+        }
+
+        /**
+         * @return histogram of the round-trip times, in microseconds
+         */
+        @NonNull
+        public LatencyHistogram.Snapshot getRoundTripTime() {
+            return roundTripTime;
+        }
+
+        /**
+         * Estimates the one-way latency as the half of the median round-trip time
+         *
+         * @return the one-way latency in microseconds
+         */
+        public long getOneWayLatencyEstimateMicros() {
+            return roundTripTime.getValueAtPercentile(50) / 2;
+        }
+
+        /**
+         * Obtains the median offset between the peripheral's BLE MIDI timestamp and this central's clock({@link System#nanoTime()} in milliseconds)
+         *
+         * @return the offset in milliseconds(-4096 to 4095), 0 if no sample
+         */
+        public int getClockOffsetMillis() {
+            if (sortedClockOffsets.length == 0) {
+                return 0;
+            }
+            return sortedClockOffsets[sortedClockOffsets.length / 2];
+        }
+
+        /**
+         * Obtains the spread of the clock offsets, which shows the timestamp jitter of the peripheral
+         *
+         * @return the difference between the largest and the smallest offset in milliseconds
+         */
+        public int getClockOffsetSpreadMillis() {
+            if (sortedClockOffsets.length == 0) {
+                return 0;
+            }
+            return sortedClockOffsets[sortedClockOffsets.length - 1] - sortedClockOffsets[0];
+        }
+
+        @Override
+        public String toString() {
+            return "sent=" + probesSent + " received=" + probesReceived + " rtt[" + roundTripTime + "] oneWay=" +
+                    getOneWayLatencyEstimateMicros() + "us clockOffset=" + getClockOffsetMillis() + "ms spread=" + getClockOffsetSpreadMillis() + "ms";
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package jp.kshoji.blemidi.metrics;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jp.kshoji.blemidi.util.MidiMessageType;
+
+/**
+ * Counters and latency histograms of one BLE MIDI device.<br />
+ * One instance is shared by the input and the output device of the same peripheral, and survives reconnections.<br />
+ * All the update methods are lock-free and never allocate. Poll {@link #snapshot()} (about once a second) to read them.
+ *
+ * @author K.Shoji
+ */
+public final class MidiDeviceMetrics {
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong writeFailures = new AtomicLong();
+    private final AtomicLong droppedPackets = new AtomicLong();
+    private final AtomicLong parseErrors = new AtomicLong();
+    private final AtomicLong invalidHeaders = new AtomicLong();
+    private final AtomicLong invalidTimestamps = new AtomicLong();
+    private final AtomicLong truncatedMessages = new AtomicLong();
+    private final AtomicLong sysExRecoveries = new AtomicLong();
+    private final AtomicLong sysExOverflows = new AtomicLong();
+    private final AtomicLong filteredEvents = new AtomicLong();
+    private final AtomicLongArray filteredEventsByType = new AtomicLongArray(MidiMessageType.COUNT);
+    private final AtomicLong lateEvents = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong disconnections = new AtomicLong();
+    private final AtomicBoolean isConnected = new AtomicBoolean();
+
+    private volatile int queueDepth;
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private volatile int mtu = DEFAULT_MTU;
+    private volatile long lastPacketReceivedNanos;
+
+    private final LatencyHistogram notificationInterval = new LatencyHistogram();
+    private final LatencyHistogram dispatchLateness = new LatencyHistogram();
+
+    /**
+     * ATT MTU before negotiation: 20 bytes payload
+     */
+    public static final int DEFAULT_MTU = 23;
+
+    /**
+     * Events dispatched later than this are counted as late
+     */
+    public static final long LATE_EVENT_THRESHOLD_MICROS = 10000;
+
+    /**
+     * A notification packet has been received
+     *
+     * @param length the packet length
+     * @param nowNanos {@link System#nanoTime()} of the arrival
+     */
+    public void onPacketReceived(int length, long nowNanos) {
+        packetsReceived.incrementAndGet();
+        bytesReceived.addAndGet(length);
+
+        long last = lastPacketReceivedNanos;
+        lastPacketReceivedNanos = nowNanos;
+        if (last != 0) {
+            notificationInterval.record((nowNanos - last) / 1000);
+        }
+    }
+
+    /**
+     * A packet has been written to the device
+     *
+     * @param length the packet length
+     */
+    public void onPacketSent(int length) {
+        packetsSent.incrementAndGet();
+        bytesSent.addAndGet(length);
+    }
+
+    /**
+     * Writing a packet to the device has been failed
+     */
+    public void onWriteFailed() {
+        writeFailures.incrementAndGet();
+    }
+
+    /**
+     * A received packet has been dropped before parsing, because the parser's input buffer was full
+     */
+    public void onPacketDropped() {
+        droppedPackets.incrementAndGet();
+    }
+
+    /**
+     * The parser found an unexpected byte(a data byte without status, or an unknown status), and the message has been discarded
+     */
+    public void onParseError() {
+        parseErrors.incrementAndGet();
+    }
+
+    /**
+     * The parser discarded a packet, whose header byte is not 10xxxxxx
+     */
+    public void onInvalidHeader() {
+        invalidHeaders.incrementAndGet();
+    }
+
+    /**
+     * The parser found a packet starting without a timestamp byte, and skipped the data until the next timestamp
+     */
+    public void onInvalidTimestamp() {
+        invalidTimestamps.incrementAndGet();
+    }
+
+    /**
+     * The parser discarded an incomplete message, cut by the end of packet or by the next message
+     */
+    public void onTruncatedMessage() {
+        truncatedMessages.incrementAndGet();
+    }
+
+    /**
+     * The parser recovered a SysEx which was terminated by 0xF7 timestamp
+     */
+    public void onSysExRecovered() {
+        sysExRecoveries.incrementAndGet();
+    }
+
+    /**
+     * The parser received a SysEx longer than its limit
+     */
+    public void onSysExOverflow() {
+        sysExOverflows.incrementAndGet();
+    }
+
+    /**
+     * The parser discarded an event by its drop mask
+     *
+     * @param type the kind of the event, one of {@link MidiMessageType}
+     */
+    public void onEventFiltered(int type) {
+        filteredEvents.incrementAndGet();
+        filteredEventsByType.incrementAndGet(Integer.numberOfTrailingZeros(type));
+    }
+
+    /**
+     * An event has been dispatched to the listener
+     *
+     * @param latenessMicros the delay from the scheduled time
+     */
+    public void onEventDispatched(long latenessMicros) {
+        dispatchLateness.record(latenessMicros);
+        if (latenessMicros > LATE_EVENT_THRESHOLD_MICROS) {
+            lateEvents.incrementAndGet();
+        }
+    }
+
+    /**
+     * Updates the number of events waiting for dispatch
+     *
+     * @param depth the queue depth
+     */
+    public void setQueueDepth(int depth) {
+        queueDepth = depth;
+        // the parser's thread and resetHistograms race: don't lose a larger maximum
+        int max;
+        do {
+            max = maxQueueDepth.get();
+        } while (depth > max && !maxQueueDepth.compareAndSet(max, depth));
+    }
+
+    /**
+     * Updates the negotiated ATT MTU
+     *
+     * @param mtu the MTU
+     */
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    /**
+     * @return the negotiated ATT MTU
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * The device has been connected
+     */
+    public void onConnected() {
+        connections.incrementAndGet();
+        isConnected.set(true);
+        lastPacketReceivedNanos = 0;
+    }
+
+    /**
+     * The device has been disconnected, counted once for each connection even if called from the several disconnect paths
+     */
+    public void onDisconnected() {
+        if (!isConnected.compareAndSet(true, false)) {
+            return;
+        }
+        disconnections.incrementAndGet();
+        queueDepth = 0;
+    }
+
+    /**
+     * Clears the histograms, and the max queue depth. Counters are kept.
+     */
+    public void resetHistograms() {
+        notificationInterval.reset();
+        dispatchLateness.reset();
+        maxQueueDepth.set(queueDepth);
+    }
+
+    /**
+     * Copies the current values
+     *
+     * @return the snapshot
+     */
+    @NonNull
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Immutable copy of {@link MidiDeviceMetrics}
+     */
+    public static final class Snapshot {
+        private final long timestampNanos;
+        private final long packetsReceived;
+        private final long bytesReceived;
+        private final long packetsSent;
+        private final long bytesSent;
+        private final long writeFailures;
+        private final long droppedPackets;
+        private final long parseErrors;
+        private final long invalidHeaders;
+        private final long invalidTimestamps;
+        private final long truncatedMessages;
+        private final long sysExRecoveries;
+        private final long sysExOverflows;
+        private final long filteredEvents;
+        private final long[] filteredEventsByType;
+        private final long lateEvents;
+        private final long connections;
+        private final long disconnections;
+        private final int queueDepth;
+        private final int maxQueueDepth;
+        private final int mtu;
+        private final LatencyHistogram.Snapshot notificationInterval;
+        private final LatencyHistogram.Snapshot dispatchLateness;
+
+        Snapshot(@NonNull MidiDeviceMetrics metrics) {
+            timestampNanos = System.nanoTime();
+            packetsReceived = metrics.packetsReceived.get();
+            bytesReceived = metrics.bytesReceived.get();
+            packetsSent = metrics.packetsSent.get();
+            bytesSent = metrics.bytesSent.get();
+            writeFailures = metrics.writeFailures.get();
+            droppedPackets = metrics.droppedPackets.get();
+            parseErrors = metrics.parseErrors.get();
+            invalidHeaders = metrics.invalidHeaders.get();
+            invalidTimestamps = metrics.invalidTimestamps.get();
+            truncatedMessages = metrics.truncatedMessages.get();
+            sysExRecoveries = metrics.sysExRecoveries.get();
+            sysExOverflows = metrics.sysExOverflows.get();
+            filteredEvents = metrics.filteredEvents.get();
+            filteredEventsByType = new long[MidiMessageType.COUNT];
+            for (int i = 0; i < filteredEventsByType.length; i++) {
+                filteredEventsByType[i] = metrics.filteredEventsByType.get(i);
+            }
+            lateEvents = metrics.lateEvents.get();
+            connections = metrics.connections.get();
+            disconnections = metrics.disconnections.get();
+            queueDepth = metrics.queueDepth;
+            maxQueueDepth = metrics.maxQueueDepth.get();
+            mtu = metrics.mtu;
+            notificationInterval = metrics.notificationInterval.snapshot();
+            dispatchLateness = metrics.dispatchLateness.snapshot();
+        }
+
+        /**
+         * @return {@link System#nanoTime()} when the snapshot was taken
+         */
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+
+        public long getPacketsReceived() {
+            return packetsReceived;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        public long getPacketsSent() {
+            return packetsSent;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getWriteFailures() {
+            return writeFailures;
+        }
+
+        /**
+         * @return the number of received packets dropped before parsing
+         */
+        public long getDroppedPackets() {
+            return droppedPackets;
+        }
+
+        public long getParseErrors() {
+            return parseErrors;
+        }
+
+        /**
+         * @return the number of packets discarded by the invalid header byte
+         */
+        public long getInvalidHeaders() {
+            return invalidHeaders;
+        }
+
+        /**
+         * @return the number of packets starting without a timestamp byte
+         */
+        public long getInvalidTimestamps() {
+            return invalidTimestamps;
+        }
+
+        /**
+         * @return the number of incomplete messages discarded, including SysEx without 0xF7
+         */
+        public long getTruncatedMessages() {
+            return truncatedMessages;
+        }
+
+        public long getSysExRecoveries() {
+            return sysExRecoveries;
+        }
+
+        /**
+         * @return the number of SysEx truncated, dropped or streamed through by the parser's limit
+         */
+        public long getSysExOverflows() {
+            return sysExOverflows;
+        }
+
+        /**
+         * @return the number of events discarded by the parser's drop mask
+         */
+        public long getFilteredEvents() {
+            return filteredEvents;
+        }
+
+        /**
+         * @param typeMask the kinds of the events, combination of {@link MidiMessageType}
+         * @return the number of events of the kinds discarded by the parser's drop mask
+         */
+        public long getFilteredEvents(int typeMask) {
+            long result = 0;
+            for (int i = 0; i < filteredEventsByType.length; i++) {
+                if ((typeMask & (1 << i)) != 0) {
+                    result += filteredEventsByType[i];
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return the number of events dispatched more than {@link #LATE_EVENT_THRESHOLD_MICROS} after their scheduled time
+         */
+        public long getLateEvents() {
+            return lateEvents;
+        }
+
+        /**
+         * @return the number of reconnections, the first connection is not counted
+         */
+        public long getReconnects() {
+            return Math.max(0, connections - 1);
+        }
+
+        public long getDisconnections() {
+            return disconnections;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        public int getMtu() {
+            return mtu;
+        }
+
+        /**
+         * @return histogram of the intervals between notifications, in microseconds
+         */
+        @NonNull
+        public LatencyHistogram.Snapshot getNotificationInterval() {
+            return notificationInterval;
+        }
+
+        /**
+         * @return histogram of the delays between the scheduled time and the actual dispatch, in microseconds
+         */
+        @NonNull
+        public LatencyHistogram.Snapshot getDispatchLateness() {
+            return dispatchLateness;
+        }
+
+        /**
+         * Android doesn't expose the connection interval, so it's estimated from the shortest notification intervals.
+         *
+         * @return the estimated connection interval in microseconds, 0 if unknown
+         */
+        public long getEstimatedConnectionIntervalMicros() {
+            return notificationInterval.getValueAtPercentile(5);
+        }
+
+        /**
+         * Calculates the notification rate since the previous snapshot
+         *
+         * @param previous the previous snapshot, null to calculate nothing
+         * @return notifications per second
+         */
+        public double getNotificationRate(@Nullable Snapshot previous) {
+            if (previous == null || timestampNanos <= previous.timestampNanos) {
+                return 0;
+            }
+            return (packetsReceived - previous.packetsReceived) * 1000000000.0 / (timestampNanos - previous.timestampNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "packetsReceived=" + packetsReceived + " bytesReceived=" + bytesReceived +
+                    " packetsSent=" + packetsSent + " bytesSent=" + bytesSent + " writeFailures=" + writeFailures +
+                    " droppedPackets=" + droppedPackets + " parseErrors=" + parseErrors + " invalidHeaders=" + invalidHeaders + " invalidTimestamps=" + invalidTimestamps + " truncatedMessages=" + truncatedMessages + " sysExRecoveries=" + sysExRecoveries + " sysExOverflows=" + sysExOverflows + " filteredEvents=" + filteredEvents + " lateEvents=" + lateEvents +
+                    " reconnects=" + getReconnects() + " queueDepth=" + queueDepth + "/" + maxQueueDepth + " mtu=" + mtu +
+                    " notificationInterval[" + notificationInterval + "] dispatchLateness[" + dispatchLateness + "]";
+        }
+    }
+}
@@ -0,0 +1,541 @@
+package jp.kshoji.blemidi.simulator;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.device.MidiOutputDevice;
+import jp.kshoji.blemidi.device.VirtualMidiInputDevice;
+import jp.kshoji.blemidi.metrics.MidiDeviceMetrics;
+
+/**
+ * In-process stand-in of a BLE MIDI peripheral and its GATT link, for deterministic load and latency testing on a plain JVM.<br />
+ * The link is modelled per connection event:
+ * <ul>
+ *     <li>the peripheral's messages are queued, and coalesced into notifications of at most MTU - 3 bytes</li>
+ *     <li>up to {@link #setPacketsPerConnectionEvent(int)} notifications, and as many write-without-response credits for the central, per event</li>
+ *     <li>notifications overflowing {@link #setNotificationQueueCapacity(int)}, or lost with {@link #setPacketLossRate(double)}, are dropped</li>
+ *     <li>the link is dropped with {@link #setDisconnectRate(double)} or {@link #disconnect()}, and recovers after {@link #setReconnectDelayEvents(int)} events</li>
+ * </ul>
+ * Drive the link with {@link #runConnectionEvents(int)}(virtual time, reproducible with the seed), or with {@link #start()}(real time).
+ *
+ * @author K.Shoji
+ */
+public final class SimulatedBlePeripheral {
+
+    /**
+     * Listener for the connection state of simulated link
+     */
+    public interface OnConnectionStateListener {
+
+        /**
+         * The link has been (re)connected
+         *
+         * @param peripheral the peripheral
+         */
+        void onConnected(@NonNull SimulatedBlePeripheral peripheral);
+
+        /**
+         * The link has been lost
+         *
+         * @param peripheral the peripheral
+         */
+        void onDisconnected(@NonNull SimulatedBlePeripheral peripheral);
+    }
+
+    private static final int ATT_HEADER_LENGTH = 3;
+
+    private final String deviceName;
+    private final String deviceAddress;
+    private final MidiDeviceMetrics metrics = new MidiDeviceMetrics();
+    private final VirtualMidiInputDevice centralInputDevice;
+    private final CentralMidiOutputDevice centralOutputDevice;
+    private final VirtualMidiInputDevice peripheralInputDevice;
+    private final PeripheralMidiOutputDevice peripheralOutputDevice;
+    private final Random random;
+
+    // guarded by this
+    private final ArrayDeque<byte[]> notificationQueue = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> writeQueue = new ArrayDeque<>();
+    private TrafficProfile trafficProfile = TrafficProfile.silence();
+    private OnConnectionStateListener connectionStateListener;
+    private long connectionIntervalMicros = 7500;
+    private int mtu = MidiDeviceMetrics.DEFAULT_MTU;
+    private int packetsPerConnectionEvent = 4;
+    private int notificationQueueCapacity = 64;
+    private double packetLossRate = 0;
+    private double disconnectRate = 0;
+    private int reconnectDelayEvents = 100;
+    private boolean connected = true;
+    private long reconnectAtEvent;
+    private int writeCredits;
+    private long connectionEvent = 0;
+    private long virtualNanos = 0;
+    private long droppedNotifications = 0;
+    private long rejectedWrites = 0;
+    private Thread clockThread;
+
+    /**
+     * Constructor
+     *
+     * @param deviceName the name of simulated device
+     * @param deviceAddress the address of simulated device
+     * @param seed the random seed of packet loss and disconnection
+     */
+    public SimulatedBlePeripheral(@NonNull String deviceName, @NonNull String deviceAddress, long seed) {
+        this.deviceName = deviceName;
+        this.deviceAddress = deviceAddress;
+        random = new Random(seed);
+        centralInputDevice = new VirtualMidiInputDevice(deviceName, deviceAddress, metrics);
+        centralOutputDevice = new CentralMidiOutputDevice();
+        peripheralInputDevice = new VirtualMidiInputDevice(deviceName, deviceAddress, new MidiDeviceMetrics());
+        peripheralOutputDevice = new PeripheralMidiOutputDevice();
+        writeCredits = packetsPerConnectionEvent;
+        metrics.onConnected();
+    }
+
+    /**
+     * Obtains the central side input device, receives the peripheral's notifications
+     *
+     * @return the input device
+     */
+    @NonNull
+    public MidiInputDevice getMidiInputDevice() {
+        return centralInputDevice;
+    }
+
+    /**
+     * Obtains the central side output device, writes to the peripheral
+     *
+     * @return the output device
+     */
+    @NonNull
+    public MidiOutputDevice getMidiOutputDevice() {
+        return centralOutputDevice;
+    }
+
+    /**
+     * Obtains the peripheral side input device, receives the central's writes
+     *
+     * @return the input device
+     */
+    @NonNull
+    public MidiInputDevice getPeripheralMidiInputDevice() {
+        return peripheralInputDevice;
+    }
+
+    /**
+     * Obtains the peripheral side output device, the messages sent to it are notified to the central
+     *
+     * @return the output device
+     */
+    @NonNull
+    public MidiOutputDevice getPeripheralMidiOutputDevice() {
+        return peripheralOutputDevice;
+    }
+
+    /**
+     * Sets the traffic generated by the peripheral on every connection event
+     *
+     * @param trafficProfile the profile
+     */
+    public synchronized void setTrafficProfile(@NonNull TrafficProfile trafficProfile) {
+        this.trafficProfile = trafficProfile;
+    }
+
+    /**
+     * Sets the listener for the connection state
+     *
+     * @param connectionStateListener the listener
+     */
+    public synchronized void setOnConnectionStateListener(@Nullable OnConnectionStateListener connectionStateListener) {
+        this.connectionStateListener = connectionStateListener;
+    }
+
+    /**
+     * Sets the connection interval
+     *
+     * @param connectionIntervalMicros 7500(7.5 ms) - 4000000(4 s) on the real link
+     */
+    public synchronized void setConnectionIntervalMicros(long connectionIntervalMicros) {
+        this.connectionIntervalMicros = Math.max(1, connectionIntervalMicros);
+    }
+
+    /**
+     * Sets the ATT MTU, as if negotiated
+     *
+     * @param mtu 23 - 517
+     */
+    public synchronized void setMtu(int mtu) {
+        this.mtu = Math.max(MidiDeviceMetrics.DEFAULT_MTU, mtu);
+        metrics.setMtu(this.mtu);
+    }
+
+    /**
+     * Sets the number of packets per connection event, for each direction
+     *
+     * @param packetsPerConnectionEvent 1 or more
+     */
+    public synchronized void setPacketsPerConnectionEvent(int packetsPerConnectionEvent) {
+        this.packetsPerConnectionEvent = Math.max(1, packetsPerConnectionEvent);
+    }
+
+    /**
+     * Sets the capacity of the peripheral's notification queue, overflowing notifications are dropped
+     *
+     * @param notificationQueueCapacity 1 or more
+     */
+    public synchronized void setNotificationQueueCapacity(int notificationQueueCapacity) {
+        this.notificationQueueCapacity = Math.max(1, notificationQueueCapacity);
+    }
+
+    /**
+     * Sets the probability to lose a notification
+     *
+     * @param packetLossRate 0.0 - 1.0
+     */
+    public synchronized void setPacketLossRate(double packetLossRate) {
+        this.packetLossRate = packetLossRate;
+    }
+
+    /**
+     * Sets the probability to lose the link, per connection event
+     *
+     * @param disconnectRate 0.0 - 1.0
+     */
+    public synchronized void setDisconnectRate(double disconnectRate) {
+        this.disconnectRate = disconnectRate;
+    }
+
+    /**
+     * Sets the number of connection events until the lost link recovers
+     *
+     * @param reconnectDelayEvents 0: reconnect on the next event, negative: never
+     */
+    public synchronized void setReconnectDelayEvents(int reconnectDelayEvents) {
+        this.reconnectDelayEvents = reconnectDelayEvents;
+    }
+
+    /**
+     * Drops the link now
+     */
+    public void disconnect() {
+        OnConnectionStateListener listener;
+        synchronized (this) {
+            if (!connected) {
+                return;
+            }
+            listener = dropLink();
+        }
+        if (listener != null) {
+            listener.onDisconnected(this);
+        }
+    }
+
+    /**
+     * @return true if the link is connected
+     */
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return the number of connection events run
+     */
+    public synchronized long getConnectionEventCount() {
+        return connectionEvent;
+    }
+
+    /**
+     * @return the number of notifications dropped by the queue overflow, the packet loss or the disconnection
+     */
+    public synchronized long getDroppedNotifications() {
+        return droppedNotifications;
+    }
+
+    /**
+     * @return the number of the central's writes rejected(no credit, too long, or disconnected)
+     */
+    public synchronized long getRejectedWrites() {
+        return rejectedWrites;
+    }
+
+    /**
+     * Runs the connection events in the caller's thread, as fast as possible.<br />
+     * The central's packet arrival times are the virtual time of the events, so the notification interval metrics are reproducible.
+     *
+     * @param count the number of connection events
+     */
+    public void runConnectionEvents(int count) {
+        for (int i = 0; i < count; i++) {
+            long nowNanos;
+            synchronized (this) {
+                virtualNanos += connectionIntervalMicros * 1000;
+                nowNanos = virtualNanos;
+            }
+            runConnectionEvent(nowNanos);
+        }
+    }
+
+    /**
+     * Starts running the connection events in real time, on a daemon thread
+     */
+    public synchronized void start() {
+        if (clockThread != null) {
+            return;
+        }
+
+        clockThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long nextEventNanos = System.nanoTime();
+                while (!Thread.currentThread().isInterrupted()) {
+                    long intervalNanos;
+                    synchronized (SimulatedBlePeripheral.this) {
+                        intervalNanos = connectionIntervalMicros * 1000;
+                    }
+                    nextEventNanos += intervalNanos;
+
+                    long waitNanos = nextEventNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        try {
+                            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                        } catch (InterruptedException ignored) {
+                            return;
+                        }
+                    }
+
+                    runConnectionEvent(System.nanoTime());
+                }
+            }
+        }, "SimulatedBlePeripheral-" + deviceAddress);
+        clockThread.setDaemon(true);
+        clockThread.start();
+    }
+
+    /**
+     * Stops running the connection events started with {@link #start()}
+     */
+    public synchronized void stop() {
+        if (clockThread != null) {
+            clockThread.interrupt();
+            clockThread = null;
+        }
+    }
+
+    /**
+     * Stops the clock, and the parsers' threads
+     */
+    public void terminate() {
+        stop();
+        centralInputDevice.stop();
+        peripheralInputDevice.stop();
+    }
+
+    /**
+     * Runs one connection event: generates the traffic, and exchanges the queued packets
+     *
+     * @param nowNanos the time of this event
+     */
+    private void runConnectionEvent(long nowNanos) {
+        byte[][] notifications;
+        byte[][] writes;
+        OnConnectionStateListener connectedListener = null;
+        OnConnectionStateListener disconnectedListener = null;
+
+        synchronized (this) {
+            long event = connectionEvent++;
+
+            if (!connected) {
+                if (reconnectDelayEvents < 0 || event < reconnectAtEvent) {
+                    return;
+                }
+                connected = true;
+                metrics.onConnected();
+                connectedListener = connectionStateListener;
+            }
+
+            if (disconnectRate > 0 && random.nextDouble() < disconnectRate) {
+                disconnectedListener = dropLink();
+            } else {
+                trafficProfile.onConnectionEvent(event, peripheralOutputDevice);
+            }
+
+            notifications = pollNotifications();
+            writes = writeQueue.toArray(new byte[writeQueue.size()][]);
+            writeQueue.clear();
+            writeCredits = packetsPerConnectionEvent;
+        }
+
+        if (connectedListener != null) {
+            connectedListener.onConnected(this);
+        }
+
+        // the virtual time runs faster than the parsers, don't drop
+        for (byte[] notification : notifications) {
+            centralInputDevice.receive(notification, nowNanos, true);
+        }
+        for (byte[] write : writes) {
+            peripheralInputDevice.receive(write, nowNanos, true);
+        }
+
+        if (disconnectedListener != null) {
+            disconnectedListener.onDisconnected(this);
+        }
+    }
+
+    /**
+     * Takes the notifications sent on this event, must be called with the lock
+     *
+     * @return the notifications
+     */
+    private byte[][] pollNotifications() {
+        int count = Math.min(packetsPerConnectionEvent, notificationQueue.size());
+        byte[][] result = new byte[count][];
+        int delivered = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] notification = notificationQueue.poll();
+            if (packetLossRate > 0 && random.nextDouble() < packetLossRate) {
+                droppedNotifications++;
+                continue;
+            }
+            result[delivered++] = notification;
+        }
+
+        if (delivered < count) {
+            byte[][] trimmed = new byte[delivered][];
+            System.arraycopy(result, 0, trimmed, 0, delivered);
+            return trimmed;
+        }
+        return result;
+    }
+
+    /**
+     * Drops the link, must be called with the lock
+     *
+     * @return the listener to notify outside of the lock
+     */
+    private OnConnectionStateListener dropLink() {
+        connected = false;
+        reconnectAtEvent = connectionEvent + reconnectDelayEvents;
+        droppedNotifications += notificationQueue.size();
+        notificationQueue.clear();
+        writeQueue.clear();
+        metrics.onDisconnected();
+        return connectionStateListener;
+    }
+
+    /**
+     * Queues the peripheral's packet, coalescing it with the last notification if possible, must be called with the lock
+     *
+     * @param packet BLE MIDI packet, copied: the encoder may reuse the buffer
+     */
+    private void queueNotification(@NonNull byte[] packet) {
+        if (!connected) {
+            droppedNotifications++;
+            return;
+        }
+
+        byte[] last = notificationQueue.peekLast();
+        if (last != null && isCoalescable(last) && isCoalescable(packet) && last[0] == packet[0]
+                && last.length + packet.length - 1 <= mtu - ATT_HEADER_LENGTH) {
+            // append the timestamp byte and the message, the header byte is shared
+            byte[] merged = new byte[last.length + packet.length - 1];
+            System.arraycopy(last, 0, merged, 0, last.length);
+            System.arraycopy(packet, 1, merged, last.length, packet.length - 1);
+            notificationQueue.pollLast();
+            notificationQueue.add(merged);
+            return;
+        }
+
+        if (notificationQueue.size() >= notificationQueueCapacity) {
+            droppedNotifications++;
+            return;
+        }
+        notificationQueue.add(packet.clone());
+    }
+
+    /**
+     * Checks if the packet consists of complete messages with status bytes, other than SysEx
+     *
+     * @param packet BLE MIDI packet
+     * @return true if another packet can be appended
+     */
+    private static boolean isCoalescable(@NonNull byte[] packet) {
+        if (packet.length < 3 || (packet[1] & 0x80) == 0) {
+            return false;
+        }
+        int status = packet[2] & 0xff;
+        return status >= 0x80 && status != 0xf0 && status != 0xf7;
+    }
+
+    /**
+     * Central's {@link MidiOutputDevice}, writes without response
+     */
+    private final class CentralMidiOutputDevice extends MidiOutputDevice {
+
+        CentralMidiOutputDevice() {
+            super(metrics);
+        }
+
+        @Override
+        protected void transferData(@NonNull byte[] writeBuffer) {
+            synchronized (SimulatedBlePeripheral.this) {
+                if (!connected || writeCredits <= 0 || writeBuffer.length > mtu - ATT_HEADER_LENGTH) {
+                    rejectedWrites++;
+                    getMetrics().onWriteFailed();
+                    return;
+                }
+                writeCredits--;
+                // the encoder may reuse the buffer
+                writeQueue.add(writeBuffer.clone());
+            }
+            getMetrics().onPacketSent(writeBuffer.length);
+        }
+
+        @NonNull
+        @Override
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        @NonNull
+        @Override
+        public String getDeviceAddress() {
+            return deviceAddress;
+        }
+    }
+
+    /**
+     * Peripheral's {@link MidiOutputDevice}, queues notifications
+     */
+    private final class PeripheralMidiOutputDevice extends MidiOutputDevice {
+
+        PeripheralMidiOutputDevice() {
+            super(peripheralInputDevice.getMetrics());
+        }
+
+        @Override
+        protected void transferData(@NonNull byte[] writeBuffer) {
+            synchronized (SimulatedBlePeripheral.this) {
+                queueNotification(writeBuffer);
+            }
+            getMetrics().onPacketSent(writeBuffer.length);
+        }
+
+        @NonNull
+        @Override
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        @NonNull
+        @Override
+        public String getDeviceAddress() {
+            return deviceAddress;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package jp.kshoji.blemidi.simulator;
+
+import android.support.annotation.NonNull;
+
+import java.util.Random;
+
+import jp.kshoji.blemidi.device.MidiOutputDevice;
+
+/**
+ * MIDI traffic sent by {@link SimulatedBlePeripheral}, generated once per connection event
+ *
+ * @author K.Shoji
+ */
+public abstract class TrafficProfile {
+
+    /**
+     * Called on every connection event, sends the messages of this event to the peripheral's output
+     *
+     * @param connectionEvent the connection event counter, starts with 0
+     * @param output the peripheral side output device
+     */
+    public abstract void onConnectionEvent(long connectionEvent, @NonNull MidiOutputDevice output);
+
+    /**
+     * No traffic
+     *
+     * @return the profile
+     */
+    @NonNull
+    public static TrafficProfile silence() {
+        return new TrafficProfile() {
+            @Override
+            public void onConnectionEvent(long connectionEvent, @NonNull MidiOutputDevice output) {
+                // do nothing
+            }
+        };
+    }
+
+    /**
+     * Chords of Note On, followed by their Note Off on the next burst: a pianist hitting chords
+     *
+     * @param channel 0-15
+     * @param chordSize the number of notes per chord
+     * @param eventsBetweenBursts the number of connection events between chords, 1 or more
+     * @return the profile
+     */
+    @NonNull
+    public static TrafficProfile chordBursts(final int channel, final int chordSize, final int eventsBetweenBursts) {
+        return new TrafficProfile() {
+            private int rootNote = 48;
+
+            @Override
+            public void onConnectionEvent(long connectionEvent, @NonNull MidiOutputDevice output) {
+                if (connectionEvent % eventsBetweenBursts != 0) {
+                    return;
+                }
+
+                for (int i = 0; i < chordSize; i++) {
+                    output.sendMidiNoteOff(channel, rootNote + i * 4, 0);
+                }
+                rootNote = 48 + (rootNote - 47) % 24;
+                for (int i = 0; i < chordSize; i++) {
+                    output.sendMidiNoteOn(channel, rootNote + i * 4, 100);
+                }
+            }
+        };
+    }
+
+    /**
+     * Control Change sweep: a knob turned continuously
+     *
+     * @param channel 0-15
+     * @param function 0-127
+     * @param messagesPerEvent the number of messages per connection event
+     * @return the profile
+     */
+    @NonNull
+    public static TrafficProfile controlChangeSweep(final int channel, final int function, final int messagesPerEvent) {
+        return new TrafficProfile() {
+            private int value = 0;
+
+            @Override
+            public void onConnectionEvent(long connectionEvent, @NonNull MidiOutputDevice output) {
+                for (int i = 0; i < messagesPerEvent; i++) {
+                    output.sendMidiControlChange(channel, function, value);
+                    value = (value + 1) & 0x7f;
+                }
+            }
+        };
+    }
+
+    /**
+     * Timing Clock at the specified tempo
+     *
+     * @param beatsPerMinute the tempo
+     * @param connectionIntervalMillis the connection interval of the simulated link
+     * @return the profile
+     */
+    @NonNull
+    public static TrafficProfile timingClock(final double beatsPerMinute, final double connectionIntervalMillis) {
+        return new TrafficProfile() {
+            private final double clocksPerEvent = beatsPerMinute * 24.0 / 60000.0 * connectionIntervalMillis;
+            private double pendingClocks = 0;
+
+            @Override
+            public void onConnectionEvent(long connectionEvent, @NonNull MidiOutputDevice output) {
+                pendingClocks += clocksPerEvent;
+                while (pendingClocks >= 1.0) {
+                    output.sendMidiTimingClock();
+                    pendingClocks -= 1.0;
+                }
+            }
+        };
+    }
+
+    /**
+     * SysEx dumps of the specified length
+     *
+     * @param length the SysEx length, including F0 and F7
+     * @param eventsBetweenDumps the number of connection events between dumps, 1 or more
+     * @return the profile
+     */
+    @NonNull
+    public static TrafficProfile sysExDumps(final int length, final int eventsBetweenDumps) {
+        final byte[] systemExclusive = new byte[Math.max(length, 2)];
+        systemExclusive[0] = (byte) 0xf0;
+        for (int i = 1; i < systemExclusive.length - 1; i++) {
+            systemExclusive[i] = (byte) (i & 0x7f);
+        }
+        systemExclusive[systemExclusive.length - 1] = (byte) 0xf7;
+
+        return new TrafficProfile() {
+            @Override
+            public void onConnectionEvent(long connectionEvent, @NonNull MidiOutputDevice output) {
+                if (connectionEvent % eventsBetweenDumps == 0) {
+                    output.sendMidiSystemExclusive(systemExclusive);
+                }
+            }
+        };
+    }
+
+    /**
+     * Random mix of Note On / Note Off / Control Change / Pitch Wheel, reproducible with the seed
+     *
+     * @param seed the random seed
+     * @param maxMessagesPerEvent the maximum number of messages per connection event
+     * @return the profile
+     */
+    @NonNull
+    public static TrafficProfile randomMix(final long seed, final int maxMessagesPerEvent) {
+        return new TrafficProfile() {
+            private final Random random = new Random(seed);
+
+            @Override
+            public void onConnectionEvent(long connectionEvent, @NonNull MidiOutputDevice output) {
+                int count = random.nextInt(maxMessagesPerEvent + 1);
+                for (int i = 0; i < count; i++) {
+                    int channel = random.nextInt(16);
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            output.sendMidiNoteOn(channel, random.nextInt(128), 1 + random.nextInt(127));
+                            break;
+                        case 1:
+                            output.sendMidiNoteOff(channel, random.nextInt(128), 0);
+                            break;
+                        case 2:
+                            output.sendMidiControlChange(channel, random.nextInt(120), random.nextInt(128));
+                            break;
+                        default:
+                            output.sendMidiPitchWheel(channel, random.nextInt(16384));
+                            break;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Plays the profiles together
+     *
+     * @param profiles the profiles
+     * @return the profile
+     */
+    @NonNull
+    public static TrafficProfile combine(@NonNull final TrafficProfile... profiles) {
+        return new TrafficProfile() {
+            @Override
+            public void onConnectionEvent(long connectionEvent, @NonNull MidiOutputDevice output) {
+                for (TrafficProfile profile : profiles) {
+                    profile.onConnectionEvent(connectionEvent, output);
+                }
+            }
+        };
+    }
+}
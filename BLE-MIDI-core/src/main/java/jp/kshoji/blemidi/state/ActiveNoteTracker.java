@@ -0,0 +1,266 @@
+package jp.kshoji.blemidi.state;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks the notes held down on the 16 channels received from one device, as a bitmap of 16 x 128 bits.<br />
+ * Updated by one thread(the parser's thread), queried from any thread in O(1).
+ * The held notes are claimed atomically for the release, so a note-off is synthesised at most once even if claimed from several threads.
+ *
+ * @author K.Shoji
+ */
+public final class ActiveNoteTracker {
+    /**
+     * Release mode: a note-off for each held note
+     */
+    public static final int RELEASE_NOTE_OFF = 0;
+
+    /**
+     * Release mode: All Notes Off(CC 123) for each channel with held notes
+     */
+    public static final int RELEASE_ALL_NOTES_OFF = 1;
+
+    /**
+     * The maximum number of the held notes, the minimum length of the arrays passed to claim methods
+     */
+    public static final int MAX_ACTIVE_NOTES = 16 * 128;
+
+    private static final int WORDS_PER_CHANNEL = 2;
+
+    private final AtomicLongArray bits = new AtomicLongArray(16 * WORDS_PER_CHANNEL);
+
+    // the note-on times, accessed on the writer's thread only
+    private final long[] noteOnTimes = new long[MAX_ACTIVE_NOTES];
+    private long earliestNoteOnTime = Long.MAX_VALUE;
+
+    private volatile int releaseMode = RELEASE_NOTE_OFF;
+    private volatile long timeoutMillis = 0;
+    private volatile boolean isReleasedOnPacketLoss = false;
+
+    /**
+     * Sets how the held notes are released
+     *
+     * @param releaseMode {@link #RELEASE_NOTE_OFF}(default) or {@link #RELEASE_ALL_NOTES_OFF}
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    public void setReleaseMode(int releaseMode) throws IllegalArgumentException {
+        if (releaseMode != RELEASE_NOTE_OFF && releaseMode != RELEASE_ALL_NOTES_OFF) {
+            throw new IllegalArgumentException("Unknown release mode: " + releaseMode);
+        }
+        this.releaseMode = releaseMode;
+    }
+
+    /**
+     * @return {@link #RELEASE_NOTE_OFF} or {@link #RELEASE_ALL_NOTES_OFF}
+     */
+    public int getReleaseMode() {
+        return releaseMode;
+    }
+
+    /**
+     * Sets the time to release a stuck note, held without note-off
+     *
+     * @param timeoutMillis the timeout in milliseconds, 0 to disable(default)
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = Math.max(0, timeoutMillis);
+    }
+
+    /**
+     * Sets whether the held notes are released when the parser lost packets(receive buffer overflow, or corrupted packet header), because their note-offs may have been lost
+     *
+     * @param isReleased true to release, false to keep them(default)
+     */
+    public void setReleasedOnPacketLoss(boolean isReleased) {
+        isReleasedOnPacketLoss = isReleased;
+    }
+
+    /**
+     * @return true if the held notes are released when the parser lost packets
+     */
+    public boolean isReleasedOnPacketLoss() {
+        return isReleasedOnPacketLoss;
+    }
+
+    /**
+     * Applies a received channel message, called on the writer's thread
+     *
+     * @param status the status byte
+     * @param data1 the first data byte
+     * @param data2 the second data byte
+     * @param timeMillis the time of the message
+     */
+    public void apply(int status, int data1, int data2, long timeMillis) {
+        int channel = status & 0xf;
+        switch (status & 0xf0) {
+            case 0x90:
+                if ((data2 & 0x7f) != 0) {
+                    int note = data1 & 0x7f;
+                    setBit(channel, note);
+                    noteOnTimes[(channel << 7) | note] = timeMillis;
+                    earliestNoteOnTime = Math.min(earliestNoteOnTime, timeMillis);
+                    break;
+                }
+                // note on with velocity 0: note off
+                clearBit(channel, data1 & 0x7f);
+                break;
+            case 0x80:
+                clearBit(channel, data1 & 0x7f);
+                break;
+            case 0xb0:
+                if ((data1 & 0x7f) == 120 || (data1 & 0x7f) == 123) {
+                    // All Sound Off, All Notes Off
+                    bits.set(channel * WORDS_PER_CHANNEL, 0);
+                    bits.set(channel * WORDS_PER_CHANNEL + 1, 0);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @param channel 0-15
+     * @param note 0-127
+     * @return true if the note is held
+     */
+    public boolean isNoteOn(int channel, int note) {
+        return (bits.get((channel & 0xf) * WORDS_PER_CHANNEL + ((note & 0x7f) >>> 6)) & (1L << (note & 0x3f))) != 0;
+    }
+
+    /**
+     * @param channel 0-15
+     * @return the number of the held notes on the channel
+     */
+    public int getActiveNoteCount(int channel) {
+        int index = (channel & 0xf) * WORDS_PER_CHANNEL;
+        return Long.bitCount(bits.get(index)) + Long.bitCount(bits.get(index + 1));
+    }
+
+    /**
+     * @return the number of the held notes on all channels
+     */
+    public int getActiveNoteCount() {
+        int count = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            count += Long.bitCount(bits.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * Lists the held notes on the channel, in ascending order
+     *
+     * @param channel 0-15
+     * @param notes the array to store the note numbers, 128 or longer
+     * @return the number of the stored notes
+     */
+    public int getActiveNotes(int channel, @NonNull int[] notes) {
+        int count = 0;
+        int index = (channel & 0xf) * WORDS_PER_CHANNEL;
+        for (int word = 0; word < WORDS_PER_CHANNEL; word++) {
+            count = appendNotes(bits.get(index + word), word << 6, 0, notes, count);
+        }
+        return count;
+    }
+
+    /**
+     * Clears all the held notes, and lists them for the release
+     *
+     * @param notes the array to store the claimed notes as (channel << 7 | note), {@link #MAX_ACTIVE_NOTES} or longer
+     * @return the number of the claimed notes
+     */
+    public int claimAll(@NonNull int[] notes) {
+        int count = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            long word = bits.getAndSet(i, 0);
+            if (word != 0) {
+                count = appendNotes(word, (i % WORDS_PER_CHANNEL) << 6, (i / WORDS_PER_CHANNEL) << 7, notes, count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Clears the notes held longer than the timeout, and lists them for the release, called on the writer's thread
+     *
+     * @param nowMillis the current time
+     * @param notes the array to store the claimed notes as (channel << 7 | note), {@link #MAX_ACTIVE_NOTES} or longer
+     * @return the number of the claimed notes
+     */
+    public int claimExpired(long nowMillis, @NonNull int[] notes) {
+        long timeout = timeoutMillis;
+        int count = 0;
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < bits.length(); i++) {
+            long word = bits.get(i);
+            while (word != 0) {
+                int bit = Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                int packed = ((i / WORDS_PER_CHANNEL) << 7) | ((i % WORDS_PER_CHANNEL) << 6) | bit;
+                long noteOnTime = noteOnTimes[packed];
+                if (timeout > 0 && nowMillis - noteOnTime >= timeout) {
+                    if (clearBit(packed >>> 7, packed & 0x7f)) {
+                        notes[count++] = packed;
+                    }
+                } else {
+                    earliest = Math.min(earliest, noteOnTime);
+                }
+            }
+        }
+        earliestNoteOnTime = earliest;
+        return count;
+    }
+
+    /**
+     * Obtains when {@link #claimExpired(long, int[])} should be called next, called on the writer's thread
+     *
+     * @return the time in milliseconds, {@link Long#MAX_VALUE} if no timeout is expected
+     */
+    public long getNextExpiryMillis() {
+        long timeout = timeoutMillis;
+        if (timeout == 0 || earliestNoteOnTime == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return earliestNoteOnTime + timeout;
+    }
+
+    private void setBit(int channel, int note) {
+        int index = channel * WORDS_PER_CHANNEL + (note >>> 6);
+        long mask = 1L << (note & 0x3f);
+        while (true) {
+            long word = bits.get(index);
+            if ((word & mask) != 0 || bits.compareAndSet(index, word, word | mask)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if the bit has been cleared by this call
+     */
+    private boolean clearBit(int channel, int note) {
+        int index = channel * WORDS_PER_CHANNEL + (note >>> 6);
+        long mask = 1L << (note & 0x3f);
+        while (true) {
+            long word = bits.get(index);
+            if ((word & mask) == 0) {
+                return false;
+            }
+            if (bits.compareAndSet(index, word, word & ~mask)) {
+                return true;
+            }
+        }
+    }
+
+    private static int appendNotes(long word, int noteOffset, int channelBits, @NonNull int[] notes, int count) {
+        while (word != 0) {
+            int bit = Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+            notes[count++] = channelBits | noteOffset | bit;
+        }
+        return count;
+    }
+}
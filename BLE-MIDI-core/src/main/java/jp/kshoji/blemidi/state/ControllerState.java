@@ -0,0 +1,213 @@
+package jp.kshoji.blemidi.state;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import static jp.kshoji.blemidi.state.ControllerStateMirror.CHANNELS;
+import static jp.kshoji.blemidi.state.ControllerStateMirror.CONTROLS;
+import static jp.kshoji.blemidi.state.ControllerStateMirror.OFFSET_CHANNEL_PRESSURE;
+import static jp.kshoji.blemidi.state.ControllerStateMirror.OFFSET_PITCH_BEND;
+import static jp.kshoji.blemidi.state.ControllerStateMirror.OFFSET_PROGRAM;
+import static jp.kshoji.blemidi.state.ControllerStateMirror.OFFSET_REGISTERED_PARAMETER;
+import static jp.kshoji.blemidi.state.ControllerStateMirror.REGISTERED_PARAMETERS;
+import static jp.kshoji.blemidi.state.ControllerStateMirror.STRIDE;
+import static jp.kshoji.blemidi.state.ControllerStateMirror.UNKNOWN;
+
+/**
+ * Immutable snapshot of {@link ControllerStateMirror}. The values not received yet are {@link ControllerStateMirror#UNKNOWN}.
+ *
+ * @author K.Shoji
+ */
+public final class ControllerState {
+
+    /**
+     * Receives the differences found by {@link #diff(ControllerState, DiffHandler)}, in the order to replay them: per channel, control changes(bank select before program), program, RPN, channel pressure, pitch bend.
+     */
+    public interface DiffHandler {
+
+        /**
+         * Control change has been changed
+         *
+         * @param channel 0-15
+         * @param function 0-119, except RPN/NRPN and Data Entry related ones
+         * @param value 0-127
+         */
+        void onControlChange(int channel, int function, int value);
+
+        /**
+         * Program has been changed
+         *
+         * @param channel 0-15
+         * @param program 0-127
+         */
+        void onProgramChange(int channel, int program);
+
+        /**
+         * RPN value has been changed
+         *
+         * @param channel 0-15
+         * @param function 0-5
+         * @param value 0-16383
+         */
+        void onRPNMessage(int channel, int function, int value);
+
+        /**
+         * Channel pressure has been changed
+         *
+         * @param channel 0-15
+         * @param pressure 0-127
+         */
+        void onChannelAftertouch(int channel, int pressure);
+
+        /**
+         * Pitch bend has been changed
+         *
+         * @param channel 0-15
+         * @param amount 0(low)-8192(center)-16383(high)
+         */
+        void onPitchWheel(int channel, int amount);
+    }
+
+    private final int[] values;
+    private final int version;
+
+    /**
+     * Constructor
+     *
+     * @param values the copied values, owned by this instance
+     * @param version the version of the values
+     */
+    ControllerState(@NonNull int[] values, int version) {
+        this.values = values;
+        this.version = version;
+    }
+
+    /**
+     * @return the version of {@link ControllerStateMirror} at this snapshot
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @param channel 0-15
+     * @param function 0-127
+     * @return the last value, or {@link ControllerStateMirror#UNKNOWN}
+     */
+    public int getControlChange(int channel, int function) {
+        return values[(channel & 0xf) * STRIDE + (function & 0x7f)];
+    }
+
+    /**
+     * @param channel 0-15
+     * @return the program, or {@link ControllerStateMirror#UNKNOWN}
+     */
+    public int getProgram(int channel) {
+        return values[(channel & 0xf) * STRIDE + OFFSET_PROGRAM];
+    }
+
+    /**
+     * @param channel 0-15
+     * @return the 14-bit bank(MSB: CC 0, LSB: CC 32, 0 if not received), or {@link ControllerStateMirror#UNKNOWN} if CC 0 is not received
+     */
+    public int getBank(int channel) {
+        int msb = getControlChange(channel, 0);
+        if (msb == UNKNOWN) {
+            return UNKNOWN;
+        }
+        int lsb = getControlChange(channel, 32);
+        return (msb << 7) | (lsb == UNKNOWN ? 0 : lsb);
+    }
+
+    /**
+     * @param channel 0-15
+     * @return the channel pressure, or {@link ControllerStateMirror#UNKNOWN}
+     */
+    public int getChannelPressure(int channel) {
+        return values[(channel & 0xf) * STRIDE + OFFSET_CHANNEL_PRESSURE];
+    }
+
+    /**
+     * @param channel 0-15
+     * @return the pitch bend 0(low)-8192(center)-16383(high), or {@link ControllerStateMirror#UNKNOWN}
+     */
+    public int getPitchBend(int channel) {
+        return values[(channel & 0xf) * STRIDE + OFFSET_PITCH_BEND];
+    }
+
+    /**
+     * @param channel 0-15
+     * @param function RPN 0-5: pitch bend sensitivity, fine tuning, coarse tuning, tuning program, tuning bank, modulation depth range
+     * @return the 14-bit value, or {@link ControllerStateMirror#UNKNOWN}
+     */
+    public int getRegisteredParameter(int channel, int function) {
+        if (function < 0 || function >= REGISTERED_PARAMETERS) {
+            return UNKNOWN;
+        }
+        return values[(channel & 0xf) * STRIDE + OFFSET_REGISTERED_PARAMETER + function];
+    }
+
+    /**
+     * @param channel 0-15
+     * @return true if the sustain pedal(CC 64) is down
+     */
+    public boolean isSustainOn(int channel) {
+        return getControlChange(channel, 64) >= 64;
+    }
+
+    /**
+     * Finds the values different from the older snapshot. The values not received yet are skipped.
+     *
+     * @param older the older snapshot, null to find all the received values(for the late joining consumers)
+     * @param handler the handler, called on this thread
+     */
+    public void diff(@Nullable ControllerState older, @NonNull DiffHandler handler) {
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            int base = channel * STRIDE;
+            for (int function = 0; function < CONTROLS; function++) {
+                if (isReplayableControl(function) && isChanged(older, base + function)) {
+                    handler.onControlChange(channel, function, values[base + function]);
+                }
+            }
+            if (isChanged(older, base + OFFSET_PROGRAM)) {
+                handler.onProgramChange(channel, values[base + OFFSET_PROGRAM]);
+            }
+            for (int function = 0; function < REGISTERED_PARAMETERS; function++) {
+                if (isChanged(older, base + OFFSET_REGISTERED_PARAMETER + function)) {
+                    handler.onRPNMessage(channel, function, values[base + OFFSET_REGISTERED_PARAMETER + function]);
+                }
+            }
+            if (isChanged(older, base + OFFSET_CHANNEL_PRESSURE)) {
+                handler.onChannelAftertouch(channel, values[base + OFFSET_CHANNEL_PRESSURE]);
+            }
+            if (isChanged(older, base + OFFSET_PITCH_BEND)) {
+                handler.onPitchWheel(channel, values[base + OFFSET_PITCH_BEND]);
+            }
+        }
+    }
+
+    private boolean isChanged(@Nullable ControllerState older, int index) {
+        int value = values[index];
+        return value != UNKNOWN && (older == null || older.values[index] != value);
+    }
+
+    /**
+     * @param function the control number
+     * @return false for Data Entry, RPN/NRPN selection and the channel mode messages, which are not a state
+     */
+    private static boolean isReplayableControl(int function) {
+        switch (function) {
+            case 6:
+            case 38:
+            case 96:
+            case 97:
+            case 98:
+            case 99:
+            case 100:
+            case 101:
+                return false;
+            default:
+                return function < 120;
+        }
+    }
+}
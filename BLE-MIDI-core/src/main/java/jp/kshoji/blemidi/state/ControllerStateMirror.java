@@ -0,0 +1,147 @@
+package jp.kshoji.blemidi.state;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import jp.kshoji.blemidi.util.ParameterNumberState;
+
+/**
+ * Mirrors the controller state of the 16 channels received from one device: control changes, program, channel pressure, pitch bend and RPN 0-5.<br />
+ * Written by one thread(the parser's thread) without allocation, and read from any thread with {@link #snapshot()}.
+ * The snapshot is consistent: the readers retry while a message is being applied, and never block the writer.
+ *
+ * @author K.Shoji
+ */
+public final class ControllerStateMirror {
+    static final int CHANNELS = 16;
+    static final int CONTROLS = 128;
+    static final int REGISTERED_PARAMETERS = 6;
+
+    // per channel layout
+    static final int OFFSET_PROGRAM = CONTROLS;
+    static final int OFFSET_CHANNEL_PRESSURE = OFFSET_PROGRAM + 1;
+    static final int OFFSET_PITCH_BEND = OFFSET_CHANNEL_PRESSURE + 1;
+    static final int OFFSET_REGISTERED_PARAMETER = OFFSET_PITCH_BEND + 1;
+    static final int STRIDE = OFFSET_REGISTERED_PARAMETER + REGISTERED_PARAMETERS;
+
+    /**
+     * The value not received yet
+     */
+    public static final int UNKNOWN = -1;
+
+    private final AtomicIntegerArray values = new AtomicIntegerArray(CHANNELS * STRIDE);
+    // odd while the writer is updating the values
+    private final AtomicInteger version = new AtomicInteger();
+    private final ParameterNumberState parameterNumberState = new ParameterNumberState();
+
+    /**
+     * Construct instance, all the values are {@link #UNKNOWN}
+     */
+    public ControllerStateMirror() {
+        for (int i = 0; i < values.length(); i++) {
+            values.set(i, UNKNOWN);
+        }
+    }
+
+    /**
+     * Applies a received channel message, called on the writer's thread
+     *
+     * @param status the status byte
+     * @param data1 the first data byte
+     * @param data2 the second data byte
+     */
+    public void apply(int status, int data1, int data2) {
+        int base = (status & 0xf) * STRIDE;
+        switch (status & 0xf0) {
+            case 0xb0:
+                version.incrementAndGet();
+                values.set(base + (data1 & 0x7f), data2 & 0x7f);
+                if ((data1 & 0x7f) == 121) {
+                    resetAllControllers(base);
+                }
+                if (parameterNumberState.process(status & 0xf, data1, data2) == ParameterNumberState.KIND_RPN && parameterNumberState.getFunction() < REGISTERED_PARAMETERS) {
+                    values.set(base + OFFSET_REGISTERED_PARAMETER + parameterNumberState.getFunction(), parameterNumberState.getValue());
+                }
+                version.incrementAndGet();
+                break;
+            case 0xc0:
+                set(base + OFFSET_PROGRAM, data1 & 0x7f);
+                break;
+            case 0xd0:
+                set(base + OFFSET_CHANNEL_PRESSURE, data1 & 0x7f);
+                break;
+            case 0xe0:
+                set(base + OFFSET_PITCH_BEND, (data1 & 0x7f) | ((data2 & 0x7f) << 7));
+                break;
+            default:
+                // not a controller
+                break;
+        }
+    }
+
+    /**
+     * Forgets all the values, called on the writer's thread
+     */
+    public void reset() {
+        version.incrementAndGet();
+        for (int i = 0; i < values.length(); i++) {
+            values.set(i, UNKNOWN);
+        }
+        parameterNumberState.reset();
+        version.incrementAndGet();
+    }
+
+    /**
+     * Obtains the count of the applied changes, cheaper than {@link #snapshot()} to find out the state has been changed
+     *
+     * @return the version
+     */
+    public int getVersion() {
+        return version.get() >>> 1;
+    }
+
+    /**
+     * Takes a consistent copy of the current state, callable from any thread
+     *
+     * @return the snapshot
+     */
+    @NonNull
+    public ControllerState snapshot() {
+        int[] copy = new int[values.length()];
+        while (true) {
+            int before = version.get();
+            if ((before & 1) == 0) {
+                for (int i = 0; i < copy.length; i++) {
+                    copy[i] = values.get(i);
+                }
+                if (version.get() == before) {
+                    return new ControllerState(copy, before >>> 1);
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    private void set(int index, int value) {
+        version.incrementAndGet();
+        values.set(index, value);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Reset All Controllers(CC 121), as RP-015: pitch bend, channel pressure, modulation, expression and the pedals
+     *
+     * @param base the channel's offset
+     */
+    private void resetAllControllers(int base) {
+        values.set(base + OFFSET_PITCH_BEND, 8192);
+        values.set(base + OFFSET_CHANNEL_PRESSURE, 0);
+        values.set(base + 1, 0);
+        values.set(base + 11, 127);
+        for (int control = 64; control <= 67; control++) {
+            values.set(base + control, 0);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package jp.kshoji.blemidi.state;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+import jp.kshoji.blemidi.util.IntIntHashMap;
+
+/**
+ * Remembers the last controller state sent to a device, per channel: control changes, program, channel pressure, pitch bend, RPN and NRPN.<br />
+ * Attached to {@link jp.kshoji.blemidi.device.MidiOutputDevice}, the sends of the unchanged values are skipped,
+ * and {@link jp.kshoji.blemidi.device.MidiOutputDevice#resync()} replays the whole state after a reconnection.
+ * The cache can be moved to the new {@link jp.kshoji.blemidi.device.MidiOutputDevice} of the same device. Thread safe.
+ *
+ * @author K.Shoji
+ */
+public final class OutputStateCache {
+
+    /**
+     * Receives the messages replayed by {@link #replay(MessageHandler)}
+     */
+    public interface MessageHandler {
+
+        /**
+         * Called for each message
+         *
+         * @param status the status byte
+         * @param data1 the first data byte
+         * @param data2 the second data byte, unused if the length is 2
+         * @param length the length of the message, 2 or 3
+         */
+        void onMessage(int status, int data1, int data2, int length);
+    }
+
+    /**
+     * Parameter kind: Registered Parameter Number
+     */
+    public static final int KIND_RPN = 0;
+
+    /**
+     * Parameter kind: Non-Registered Parameter Number
+     */
+    public static final int KIND_NRPN = 1;
+
+    private static final int CHANNELS = 16;
+    private static final int CONTROLS = 128;
+    private static final int UNKNOWN = -1;
+
+    private final int[] controls = new int[CHANNELS * CONTROLS];
+    private final int[] programs = new int[CHANNELS];
+    private final int[] channelPressures = new int[CHANNELS];
+    private final int[] pitchBends = new int[CHANNELS];
+    private final IntIntHashMap rpnValues = new IntIntHashMap();
+    private final IntIntHashMap nrpnValues = new IntIntHashMap();
+
+    /**
+     * Construct instance, nothing has been sent
+     */
+    public OutputStateCache() {
+        clear();
+    }
+
+    /**
+     * Records a control change to send
+     *
+     * @param channel 0-15
+     * @param function 0-127
+     * @param value 0-127
+     * @return true if the message should be sent, false if the value is unchanged
+     */
+    public synchronized boolean updateControlChange(int channel, int function, int value) {
+        channel &= 0xf;
+        function &= 0x7f;
+        if (!isCachedControl(function)) {
+            if (function == 121) {
+                // Reset All Controllers: the device's controllers are not known any more
+                Arrays.fill(controls, channel * CONTROLS, (channel + 1) * CONTROLS, UNKNOWN);
+                channelPressures[channel] = UNKNOWN;
+                pitchBends[channel] = UNKNOWN;
+            }
+            return true;
+        }
+        if (!update(controls, channel * CONTROLS + function, value & 0x7f)) {
+            return false;
+        }
+        if (function == 0 || function == 32) {
+            // Bank Select takes effect on the next program change: the same program selects another sound
+            programs[channel] = UNKNOWN;
+        }
+        return true;
+    }
+
+    /**
+     * Records a program change to send
+     *
+     * @param channel 0-15
+     * @param program 0-127
+     * @return true if the message should be sent, false if the value is unchanged
+     */
+    public synchronized boolean updateProgramChange(int channel, int program) {
+        return update(programs, channel & 0xf, program & 0x7f);
+    }
+
+    /**
+     * Records a channel pressure to send
+     *
+     * @param channel 0-15
+     * @param pressure 0-127
+     * @return true if the message should be sent, false if the value is unchanged
+     */
+    public synchronized boolean updateChannelAftertouch(int channel, int pressure) {
+        return update(channelPressures, channel & 0xf, pressure & 0x7f);
+    }
+
+    /**
+     * Records a pitch bend to send
+     *
+     * @param channel 0-15
+     * @param amount 0-16383
+     * @return true if the message should be sent, false if the value is unchanged
+     */
+    public synchronized boolean updatePitchWheel(int channel, int amount) {
+        return update(pitchBends, channel & 0xf, amount & 0x3fff);
+    }
+
+    /**
+     * Records a RPN/NRPN to send
+     *
+     * @param kind {@link #KIND_RPN} or {@link #KIND_NRPN}
+     * @param channel 0-15
+     * @param function 14bits
+     * @param value 7bits or 14bits
+     * @return true if the message should be sent, false if the value is unchanged
+     */
+    public synchronized boolean updateParameter(int kind, int channel, int function, int value) {
+        IntIntHashMap values = kind == KIND_NRPN ? nrpnValues : rpnValues;
+        int key = ((channel & 0xf) << 14) | (function & 0x3fff);
+        value &= 0x3fff;
+        if (values.get(key, UNKNOWN) == value) {
+            return false;
+        }
+        values.put(key, value);
+        return true;
+    }
+
+    /**
+     * Forgets all the values, the next sends are not skipped. Call when the device has been reset.
+     */
+    public synchronized void clear() {
+        Arrays.fill(controls, UNKNOWN);
+        Arrays.fill(programs, UNKNOWN);
+        Arrays.fill(channelPressures, UNKNOWN);
+        Arrays.fill(pitchBends, UNKNOWN);
+        rpnValues.clear();
+        nrpnValues.clear();
+    }
+
+    /**
+     * Replays the minimal messages to restore the state: the last value of each controller, in the order of per channel bank select, program, control changes, RPN, NRPN, channel pressure and pitch bend.
+     *
+     * @param handler the handler, called on this thread while the cache is locked
+     */
+    public synchronized void replay(@NonNull final MessageHandler handler) {
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            final int base = channel * CONTROLS;
+            final int controlStatus = 0xb0 | channel;
+
+            // bank select before program change
+            if (controls[base] != UNKNOWN) {
+                handler.onMessage(controlStatus, 0, controls[base], 3);
+            }
+            if (controls[base + 32] != UNKNOWN) {
+                handler.onMessage(controlStatus, 32, controls[base + 32], 3);
+            }
+            if (programs[channel] != UNKNOWN) {
+                handler.onMessage(0xc0 | channel, programs[channel], 0, 2);
+            }
+            for (int function = 1; function < CONTROLS; function++) {
+                if (function != 32 && controls[base + function] != UNKNOWN) {
+                    handler.onMessage(controlStatus, function, controls[base + function], 3);
+                }
+            }
+        }
+
+        rpnValues.forEach(new IntIntHashMap.Visitor() {
+            @Override
+            public void visit(int key, int value) {
+                replayParameter(handler, 101, 100, key >>> 14, key & 0x3fff, value);
+            }
+        });
+        nrpnValues.forEach(new IntIntHashMap.Visitor() {
+            @Override
+            public void visit(int key, int value) {
+                replayParameter(handler, 99, 98, key >>> 14, key & 0x3fff, value);
+            }
+        });
+
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (channelPressures[channel] != UNKNOWN) {
+                handler.onMessage(0xd0 | channel, channelPressures[channel], 0, 2);
+            }
+            if (pitchBends[channel] != UNKNOWN) {
+                handler.onMessage(0xe0 | channel, pitchBends[channel] & 0x7f, (pitchBends[channel] >> 7) & 0x7f, 3);
+            }
+        }
+    }
+
+    /**
+     * Replays a RPN/NRPN, as {@link jp.kshoji.blemidi.device.MidiOutputDevice#sendRPNMessage(int, int, int)} sends
+     *
+     * @param handler the handler
+     * @param functionMsbControl the control number of the parameter number MSB
+     * @param functionLsbControl the control number of the parameter number LSB
+     * @param channel 0-15
+     * @param function 14bits
+     * @param value 7bits or 14bits
+     */
+    private static void replayParameter(@NonNull MessageHandler handler, int functionMsbControl, int functionLsbControl, int channel, int function, int value) {
+        int status = 0xb0 | channel;
+        handler.onMessage(status, functionMsbControl, (function >> 7) & 0x7f, 3);
+        handler.onMessage(status, functionLsbControl, function & 0x7f, 3);
+        if ((value >> 7) > 0) {
+            handler.onMessage(status, 6, (value >> 7) & 0x7f, 3);
+            handler.onMessage(status, 38, value & 0x7f, 3);
+        } else {
+            handler.onMessage(status, 6, value & 0x7f, 3);
+        }
+        handler.onMessage(status, 101, 0x7f, 3);
+        handler.onMessage(status, 100, 0x7f, 3);
+    }
+
+    private static boolean update(@NonNull int[] values, int index, int value) {
+        if (values[index] == value) {
+            return false;
+        }
+        values[index] = value;
+        return true;
+    }
+
+    /**
+     * @param function the control number
+     * @return false for Data Entry, RPN/NRPN selection and the channel mode messages, which are sent always
+     */
+    private static boolean isCachedControl(int function) {
+        switch (function) {
+            case 6:
+            case 38:
+            case 96:
+            case 97:
+            case 98:
+            case 99:
+            case 100:
+            case 101:
+                return false;
+            default:
+                return function < 120;
+        }
+    }
+}
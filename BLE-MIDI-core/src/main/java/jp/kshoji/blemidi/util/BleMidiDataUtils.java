@@ -0,0 +1,45 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Utility for raw BLE MIDI packets
+ *
+ * @author K.Shoji
+ */
+public final class BleMidiDataUtils {
+
+    /**
+     * Updates incoming data. remove all '0x80' bytes(the header and timestamps of the devices which always send zero timestamp)
+     *
+     * @param data BLE MIDI packet
+     * @return the data without '0x80' bytes, null if the packet has no MIDI data
+     */
+    @Nullable
+    public static byte[] removeZeroTimestampBytes(@NonNull byte[] data) {
+        if (data.length > 1) {
+
+            // get actual length
+            int len = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] != -128) {
+                    len++;
+                }
+            }
+
+            // remove '0x80'
+            byte[] midiData = new byte[len];
+            int index = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] != -128) {
+                    midiData[index++] = data[i];
+                }
+            }
+
+            return midiData;
+        } else {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,1608 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import jp.kshoji.blemidi.clock.MidiClockTracker;
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiEventBatchListener;
+import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.listener.OnMidiSystemExclusiveStreamListener;
+import jp.kshoji.blemidi.listener.OnMidiTimestampedMessageListener;
+import jp.kshoji.blemidi.metrics.LatencyProbe;
+import jp.kshoji.blemidi.metrics.MidiDeviceMetrics;
+import jp.kshoji.blemidi.state.ActiveNoteTracker;
+import jp.kshoji.blemidi.state.ControllerStateMirror;
+
+/**
+ * BLE MIDI Parser<br />
+ * The protocol compatible with Apple's `MIDI over Bluetooth LE` specification.<br />
+ * One BleMidiParser instance belongs to one MidiInputDevice instance.<br />
+ * {@link #parse(byte[])} only copies the packet into a {@link PacketRingBuffer}, the parser's thread runs the state machine and dispatches the events.
+ *
+ * @author K.Shoji
+ */
+public final class BleMidiParser {
+    // MIDI event message
+    private int midiEventKind;
+    private int midiEventNote;
+    private int midiEventVelocity;
+
+    // for RPN/NRPN messages
+    private final ParameterNumberState parameterNumberState = new ParameterNumberState();
+
+    // for SysEx messages
+    private static final int SYSTEM_EXCLUSIVE_POOL_CAPACITY = 16;
+    private final SystemExclusiveAssembler systemExclusiveAssembler = new SystemExclusiveAssembler();
+    // the queued SysEx events hold the pooled arrays until dispatched, accessed on the parser's thread only
+    private final ByteArrayPool systemExclusivePool = new ByteArrayPool(SYSTEM_EXCLUSIVE_POOL_CAPACITY);
+    private final SystemExclusiveStreamer systemExclusiveStreamer;
+    // the timestamp byte inside of SysEx, followed by 0xf7, a System Realtime message, or the next message if 0xf7 has been lost. -1 if none
+    private int systemExclusiveTimestamp = -1;
+
+    // states
+    private static final int MIDI_STATE_TIMESTAMP = 0;
+    private static final int MIDI_STATE_WAIT = 1;
+    private static final int MIDI_STATE_RESYNC = 2;
+    private static final int MIDI_STATE_SIGNAL_2BYTES_2 = 21;
+    private static final int MIDI_STATE_SIGNAL_3BYTES_2 = 31;
+    private static final int MIDI_STATE_SIGNAL_3BYTES_3 = 32;
+    private static final int MIDI_STATE_SIGNAL_SYSEX = 41;
+    private int midiState;
+    // the state and the timestamp of the message interrupted by a timestamp byte, resumed after a System Realtime message. MIDI_STATE_TIMESTAMP if none
+    private int interruptedState = MIDI_STATE_TIMESTAMP;
+    private int interruptedTimestamp;
+
+    // for Timestamp
+    private static final int MAX_TIMESTAMP = 8192;
+    private static final int BUFFER_LENGTH_MILLIS = 30;
+    private int timestamp = 0;
+    private int lastTimestamp;
+    private long lastTimestampRecorded = 0;
+    private int zeroTimestampCount = 0;
+    private Boolean isTimestampAlwaysZero = null;
+    // for OnMidiTimestampedMessageListener, accessed on the parser's thread only
+    private final TimestampReconstructor timestampReconstructor = new TimestampReconstructor();
+    private final byte[] timestampedMessage = new byte[3];
+    // the last reconstructed time, the reconstructor advances its state once for each message
+    private int reconstructedTimestamp = -1;
+    private long reconstructedArrivalNanos;
+    private long reconstructedEventTimeNanos;
+
+    private volatile OnMidiInputEventListener midiInputEventListener = null;
+    private volatile OnMidiEventBatchListener midiEventBatchListener = null;
+    private volatile OnMidiSystemExclusiveStreamListener systemExclusiveStreamListener = null;
+    private volatile OnMidiTimestampedMessageListener timestampedMessageListener = null;
+    private volatile LatencyProbe latencyProbe = null;
+    private volatile MidiClockTracker midiClockTracker = null;
+    private volatile int dropMask = 0;
+    private volatile boolean isRealtimeFastLaneEnabled = false;
+    private long packetArrivalNanos;
+    // set when a packet has been dropped, the SysEx in progress is broken
+    private volatile boolean isPacketDropped = false;
+    // set by releaseActiveNotes(), the release is done on the parser's thread
+    private volatile boolean isNoteReleaseRequested = false;
+    private final MidiInputDevice sender;
+    private final MidiDeviceMetrics metrics;
+    private final ControllerStateMirror controllerState;
+    private final ActiveNoteTracker activeNotes;
+
+    // received packets, waiting for parse
+    private static final int PACKET_BUFFER_CAPACITY = 64;
+    private final PacketRingBuffer packetBuffer = new PacketRingBuffer(PACKET_BUFFER_CAPACITY);
+    private final PacketRingBuffer.PacketHandler packetHandler = new PacketRingBuffer.PacketHandler() {
+        @Override
+        public void onPacket(@NonNull byte[] buffer, int offset, int length, long arrivalNanos) {
+            parsePacket(buffer, offset, length, arrivalNanos);
+        }
+    };
+
+    private final EventDequeueRunnable eventDequeueRunnable;
+    private final Thread eventDequeueThread;
+
+    /**
+     * Constructor
+     *
+     * @param sender the sender
+     * @param controllerState the state mirror updated with the parsed messages, usually {@link MidiInputDevice#getControllerState()} of the sender
+     * @param activeNotes the tracker updated with the parsed messages, usually {@link MidiInputDevice#getActiveNotes()} of the sender
+     */
+    public BleMidiParser(@NonNull final MidiInputDevice sender, @NonNull ControllerStateMirror controllerState, @NonNull ActiveNoteTracker activeNotes) {
+        this.sender = sender;
+        this.metrics = sender.getMetrics();
+        this.controllerState = controllerState;
+        this.activeNotes = activeNotes;
+        systemExclusiveStreamer = new SystemExclusiveStreamer(sender);
+
+        midiState = MIDI_STATE_TIMESTAMP;
+        midiEventKind = 0;
+        midiEventNote = 0;
+        midiEventVelocity = 0;
+
+        eventDequeueRunnable = new EventDequeueRunnable();
+        eventDequeueThread = new Thread(eventDequeueRunnable, "EventDequeueThread");
+        eventDequeueThread.start();
+    }
+
+    /**
+     * Sets {@link jp.kshoji.blemidi.listener.OnMidiInputEventListener}
+     *
+     * @param midiInputEventListener the listener for MIDI events
+     */
+    public void setMidiInputEventListener(@Nullable OnMidiInputEventListener midiInputEventListener) {
+        this.midiInputEventListener = midiInputEventListener;
+    }
+
+    /**
+     * Sets {@link jp.kshoji.blemidi.listener.OnMidiEventBatchListener}, called in addition to {@link OnMidiInputEventListener}
+     *
+     * @param midiEventBatchListener the listener for the batched MIDI events
+     */
+    public void setMidiEventBatchListener(@Nullable OnMidiEventBatchListener midiEventBatchListener) {
+        this.midiEventBatchListener = midiEventBatchListener;
+    }
+
+    /**
+     * Sets {@link jp.kshoji.blemidi.listener.OnMidiSystemExclusiveStreamListener}, called in addition to {@link OnMidiInputEventListener}.<br />
+     * Applied from the next SysEx.
+     *
+     * @param systemExclusiveStreamListener the listener for the SysEx chunks
+     */
+    public void setSystemExclusiveStreamListener(@Nullable OnMidiSystemExclusiveStreamListener systemExclusiveStreamListener) {
+        this.systemExclusiveStreamListener = systemExclusiveStreamListener;
+    }
+
+    /**
+     * Sets {@link jp.kshoji.blemidi.listener.OnMidiTimestampedMessageListener}, called in addition to {@link OnMidiInputEventListener}
+     *
+     * @param timestampedMessageListener the listener for the raw messages with their performance time
+     */
+    public void setTimestampedMessageListener(@Nullable OnMidiTimestampedMessageListener timestampedMessageListener) {
+        this.timestampedMessageListener = timestampedMessageListener;
+    }
+
+    /**
+     * Sets the kinds of the messages to discard while parsing.<br />
+     * The discarded messages are not allocated, timestamp-resolved nor queued, and counted by {@link MidiDeviceMetrics#onEventFiltered(int)}.
+     * RPN/NRPN are still tracked from the control changes even if the control changes are discarded.
+     *
+     * @param dropMask combination of {@link MidiMessageType}, 0 to parse everything
+     */
+    public void setDropMask(int dropMask) {
+        this.dropMask = dropMask;
+    }
+
+    /**
+     * Sets the maximum length of SysEx, applied from the next SysEx
+     *
+     * @param maxLength the maximum length including 0xf0 and 0xf7, 3 or more
+     * @param overflowPolicy {@link SystemExclusiveAssembler#OVERFLOW_TRUNCATE}, {@link SystemExclusiveAssembler#OVERFLOW_DROP} or {@link SystemExclusiveAssembler#OVERFLOW_STREAM_THROUGH}
+     * @throws IllegalArgumentException if the arguments are out of range
+     */
+    public void setSystemExclusiveLimit(int maxLength, int overflowPolicy) throws IllegalArgumentException {
+        systemExclusiveAssembler.setLimit(maxLength, overflowPolicy);
+    }
+
+    /**
+     * Enables the fast lane for the System Realtime messages(0xf8-0xff).<br />
+     * When enabled, they are dispatched as soon as their packet is parsed, without the timestamp buffering and the sort against the other events.
+     * Clock following gets about 30 ms less latency, but the realtime messages are no longer aligned with the notes in the same timeline.
+     *
+     * @param enabled true to enable, false by default
+     */
+    public void setRealtimeFastLaneEnabled(boolean enabled) {
+        isRealtimeFastLaneEnabled = enabled;
+    }
+
+    /**
+     * Sets {@link jp.kshoji.blemidi.metrics.LatencyProbe}
+     *
+     * @param latencyProbe the probe to receive echoed probe messages
+     */
+    public void setLatencyProbe(@Nullable LatencyProbe latencyProbe) {
+        this.latencyProbe = latencyProbe;
+    }
+
+    /**
+     * Sets {@link MidiClockTracker}, fed with the clock messages and their reconstructed timestamps as soon as parsed, regardless of the drop mask and the listeners
+     *
+     * @param midiClockTracker the tracker, null to detach
+     */
+    public void setMidiClockTracker(@Nullable MidiClockTracker midiClockTracker) {
+        this.midiClockTracker = midiClockTracker;
+    }
+
+    /**
+     * Stops the internal Thread.<br />
+     * On the parser's thread, the packets received are parsed and the events waiting for their timing are dispatched at once,
+     * then the notes held down are released(as {@link #releaseActiveNotes()}) before the thread exits.
+     */
+    public void stop() {
+        if (eventDequeueRunnable != null) {
+            eventDequeueRunnable.isRunning = false;
+            LockSupport.unpark(eventDequeueThread);
+        }
+    }
+
+    /**
+     * {@link Runnable} with MIDI event data, and firing timing
+     */
+    private abstract class MidiEventWithTiming implements Runnable {
+        private final long timing;
+        private final int status;
+        private final int data1;
+        private final int data2;
+        private final byte[] array;
+        private final int arrayLength;
+        private final boolean isArrayPooled;
+        private final int bleTimestamp;
+        private final int length;
+
+        /**
+         * Calculate `time to wait` for the event's timestamp
+         *
+         * @param timestamp the event's timestamp
+         * @return time to wait
+         */
+        private long calculateEventFireTime(final int timestamp) {
+            final long currentTimeMillis = System.currentTimeMillis();
+
+            // checks timestamp value is always zero
+            if (isTimestampAlwaysZero != null) {
+                if (isTimestampAlwaysZero) {
+                    return currentTimeMillis;
+                }
+            } else {
+                if (timestamp == 0) {
+                    if (zeroTimestampCount >= 3) {
+                        // decides timestamp is always zero: event fires immediately
+                        isTimestampAlwaysZero = true;
+                        return currentTimeMillis;
+                    } else {
+                        zeroTimestampCount++;
+                    }
+                } else {
+                    isTimestampAlwaysZero = false;
+                }
+            }
+
+            if (lastTimestampRecorded == 0) {
+                // first time: event fires immediately
+                lastTimestamp = timestamp;
+                lastTimestampRecorded = currentTimeMillis;
+                return currentTimeMillis;
+            }
+
+            if (currentTimeMillis - lastTimestampRecorded >= MAX_TIMESTAMP) {
+                // the event comes after long pause
+                lastTimestamp = timestamp;
+                lastTimestampRecorded = currentTimeMillis;
+                return currentTimeMillis;
+            }
+
+            int adjustedTimestamp = timestamp;
+            if (timestamp + MAX_TIMESTAMP / 2 < lastTimestamp) {
+                adjustedTimestamp += MAX_TIMESTAMP;
+            }
+
+            final long result = BUFFER_LENGTH_MILLIS + adjustedTimestamp - lastTimestamp + lastTimestampRecorded;
+
+            lastTimestamp = timestamp;
+            lastTimestampRecorded = currentTimeMillis;
+            return result;
+        }
+
+        private MidiEventWithTiming(int status, int data1, int data2, byte[] array, int arrayLength, boolean isArrayPooled, int timestamp, int length) {
+            this.status = status;
+            this.data1 = data1;
+            this.data2 = data2;
+            this.array = array;
+            this.arrayLength = arrayLength;
+            this.isArrayPooled = isArrayPooled;
+            this.bleTimestamp = timestamp;
+            this.length = length;
+            timing = calculateEventFireTime(timestamp);
+        }
+
+        /**
+         * Constructor for 1 byte message
+         *
+         * @param status the status byte
+         * @param timestamp BLE MIDI timestamp
+         */
+        MidiEventWithTiming(int status, int timestamp) {
+            this(status, 0, 0, null, 0, false, timestamp, 1);
+        }
+
+        /**
+         * Constructor for 2 bytes message
+         *
+         * @param status the status byte
+         * @param data1 the first data byte
+         * @param timestamp BLE MIDI timestamp
+         */
+        MidiEventWithTiming(int status, int data1, int timestamp) {
+            this(status, data1, 0, null, 0, false, timestamp, 2);
+        }
+
+        /**
+         * Constructor for 3 bytes message
+         *
+         * @param status the status byte
+         * @param data1 the first data byte
+         * @param data2 the second data byte
+         * @param timestamp BLE MIDI timestamp
+         */
+        MidiEventWithTiming(int status, int data1, int data2, int timestamp) {
+            this(status, data1, data2, null, 0, false, timestamp, 3);
+        }
+
+        /**
+         * Constructor for SysEx
+         *
+         * @param array the array containing SysEx
+         * @param arrayLength the length of SysEx
+         * @param isArrayPooled true if the array is obtained from the pool, released after dispatched
+         * @param timestamp BLE MIDI timestamp
+         */
+        MidiEventWithTiming(@NonNull byte[] array, int arrayLength, boolean isArrayPooled, int timestamp) {
+            this(0xf0, 0, 0, array, arrayLength, isArrayPooled, timestamp, arrayLength);
+        }
+
+        /**
+         * Appends the message to the batch
+         *
+         * @param batch the batch
+         */
+        void appendTo(@NonNull MidiEventBatch batch) {
+            if (isDerived()) {
+                // derived from the control changes, which are in the batch
+                return;
+            }
+            if (array != null) {
+                batch.addSystemExclusive(timing, array, arrayLength);
+            } else {
+                batch.add(timing, status, data1, data2);
+            }
+        }
+
+        /**
+         * @return true if this event is derived from the other events, as RPN/NRPN from the control changes
+         */
+        boolean isDerived() {
+            return false;
+        }
+
+        public long getTiming() {
+            return timing;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public int getData1() {
+            return data1;
+        }
+
+        public int getData2() {
+            return data2;
+        }
+
+        public byte[] getArray() {
+            return array;
+        }
+
+        public int getArrayLength() {
+            return arrayLength;
+        }
+
+        /**
+         * @return true if the array is obtained from the pool, and must be released after dispatched
+         */
+        public boolean isArrayPooled() {
+            return isArrayPooled;
+        }
+
+        /**
+         * @return BLE MIDI timestamp
+         */
+        public int getBleTimestamp() {
+            return bleTimestamp;
+        }
+
+        /**
+         * @return the length of the message, including the status byte
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Parses MIDI events
+     *
+     * @param header the header bits
+     * @param event the event byte
+     */
+    private void parseMidiEvent(final int header, final byte event) {
+        final int midiEvent = event & 0xff;
+
+        if (midiState == MIDI_STATE_RESYNC) {
+            if ((midiEvent & 0x80) == 0) {
+                // skip the data bytes until the next timestamp
+                return;
+            }
+            midiState = MIDI_STATE_TIMESTAMP;
+        } else if ((midiEvent & 0x80) != 0 && (midiState == MIDI_STATE_SIGNAL_2BYTES_2 || midiState == MIDI_STATE_SIGNAL_3BYTES_2 || midiState == MIDI_STATE_SIGNAL_3BYTES_3)) {
+            // timestamp inside of the message: followed by a System Realtime message, or the next message if this one has been truncated
+            interruptedState = midiState;
+            interruptedTimestamp = timestamp;
+            midiState = MIDI_STATE_TIMESTAMP;
+        }
+
+        if (midiState == MIDI_STATE_TIMESTAMP) {
+            if ((midiEvent & 0x80) == 0) {
+                // running status
+                midiState = MIDI_STATE_WAIT;
+            }
+
+            if (midiEvent == 0xf7 && systemExclusiveAssembler.hasRecovery()) {
+                // is this end of SysEx???
+                systemExclusiveStreamer.recover();
+                if (systemExclusiveAssembler.hasRecovery()) {
+                    // previous SysEx has been failed, due to timestamp was 0xF7
+                    // process SysEx again
+                    int removed = systemExclusiveAssembler.recover();
+                    timestamp = ((header & 0x3f) << 7) | (removed & 0x7f);
+                    metrics.onSysExRecovered();
+                    addSystemExclusiveToQueue(systemExclusiveAssembler.getBuffer(), systemExclusiveAssembler.getLength());
+                }
+
+                // process next byte with state: MIDI_STATE_TIMESTAMP
+                midiState = MIDI_STATE_TIMESTAMP;
+                return;
+            } else {
+                // there is no error. forget the SysEx for recovery
+                systemExclusiveAssembler.clearRecovery();
+                systemExclusiveStreamer.finish();
+            }
+        }
+
+        if (midiState == MIDI_STATE_TIMESTAMP) {
+            timestamp = ((header & 0x3f) << 7) | (midiEvent & 0x7f);
+            midiState = MIDI_STATE_WAIT;
+        } else if (midiState == MIDI_STATE_WAIT) {
+            if (interruptedState != MIDI_STATE_TIMESTAMP) {
+                int resumeState = interruptedState;
+                interruptedState = MIDI_STATE_TIMESTAMP;
+                if (midiEvent >= 0xf8) {
+                    // System Realtime message inside of the message
+                    parseInterleavedRealtime(header, event, resumeState, interruptedTimestamp);
+                    return;
+                }
+                if ((midiEvent & 0x80) == 0) {
+                    // the timestamp was a corrupted data byte
+                    metrics.onParseError();
+                    discardMessage(MIDI_STATE_RESYNC);
+                    return;
+                }
+                // the status of the next message
+                metrics.onTruncatedMessage();
+            }
+
+            switch (midiEvent & 0xf0) {
+                case 0xf0: {
+                    applyClock(midiEvent, 0, 0);
+                    if (isRealtimeFastLaneEnabled && (MidiMessageType.fromStatus(midiEvent) & MidiMessageType.SYSTEM_REALTIME) != 0) {
+                        // 0xf8-0xff System Realtime : 1byte, bypasses the queue
+                        if (!isDropped(MidiMessageType.fromStatus(midiEvent))) {
+                            addRealtimeEvent(midiEvent);
+                        }
+                        midiState = MIDI_STATE_TIMESTAMP;
+                        break;
+                    }
+
+                    switch (midiEvent) {
+                        case 0xf0:
+                            systemExclusiveAssembler.start();
+                            systemExclusiveStreamer.begin((dropMask & MidiMessageType.SYSTEM_EXCLUSIVE) == 0 ? systemExclusiveStreamListener : null);
+                            midiState = MIDI_STATE_SIGNAL_SYSEX;
+                            break;
+
+                        case 0xf1:
+                        case 0xf3:
+                            // 0xf1 MIDI Time Code Quarter Frame. : 2bytes
+                            // 0xf3 Song Select. : 2bytes
+                            midiEventKind = midiEvent;
+                            midiState = MIDI_STATE_SIGNAL_2BYTES_2;
+                            break;
+
+                        case 0xf2:
+                            // 0xf2 Song Position Pointer. : 3bytes
+                            midiEventKind = midiEvent;
+                            midiState = MIDI_STATE_SIGNAL_3BYTES_2;
+                            break;
+
+                        case 0xf6:
+                            // 0xf6 Tune Request : 1byte
+                            if (!isDropped(MidiMessageType.fromStatus(midiEvent))) {
+                                addEventToQueue(new MidiEventWithTiming(midiEvent, timestamp) {
+                                    @Override
+                                    public void run() {
+                                        if (midiInputEventListener != null) {
+                                            midiInputEventListener.onMidiTuneRequest(sender);
+                                        }
+                                    }
+                                });
+                            }
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        case 0xf8:
+                            // 0xf8 Timing Clock : 1byte
+                            if (!isDropped(MidiMessageType.fromStatus(midiEvent))) {
+                                addEventToQueue(new MidiEventWithTiming(midiEvent, timestamp) {
+                                    @Override
+                                    public void run() {
+                                        if (midiInputEventListener != null) {
+                                            midiInputEventListener.onMidiTimingClock(sender);
+                                        }
+                                    }
+                                });
+                            }
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        case 0xfa:
+                            // 0xfa Start : 1byte
+                            if (!isDropped(MidiMessageType.fromStatus(midiEvent))) {
+                                addEventToQueue(new MidiEventWithTiming(midiEvent, timestamp) {
+                                    @Override
+                                    public void run() {
+                                        if (midiInputEventListener != null) {
+                                            midiInputEventListener.onMidiStart(sender);
+                                        }
+                                    }
+                                });
+                            }
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        case 0xfb:
+                            // 0xfb Continue : 1byte
+                            if (!isDropped(MidiMessageType.fromStatus(midiEvent))) {
+                                addEventToQueue(new MidiEventWithTiming(midiEvent, timestamp) {
+                                    @Override
+                                    public void run() {
+                                        if (midiInputEventListener != null) {
+                                            midiInputEventListener.onMidiContinue(sender);
+                                        }
+                                    }
+                                });
+                            }
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        case 0xfc:
+                            // 0xfc Stop : 1byte
+                            if (!isDropped(MidiMessageType.fromStatus(midiEvent))) {
+                                addEventToQueue(new MidiEventWithTiming(midiEvent, timestamp) {
+                                    @Override
+                                    public void run() {
+                                        if (midiInputEventListener != null) {
+                                            midiInputEventListener.onMidiStop(sender);
+                                        }
+                                    }
+                                });
+                            }
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        case 0xfe:
+                            // 0xfe Active Sensing : 1byte
+                            if (!isDropped(MidiMessageType.fromStatus(midiEvent))) {
+                                addEventToQueue(new MidiEventWithTiming(midiEvent, timestamp) {
+                                    @Override
+                                    public void run() {
+                                        if (midiInputEventListener != null) {
+                                            midiInputEventListener.onMidiActiveSensing(sender);
+                                        }
+                                    }
+                                });
+                            }
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        case 0xff:
+                            // 0xff Reset : 1byte
+                            if (!isDropped(MidiMessageType.fromStatus(midiEvent))) {
+                                addEventToQueue(new MidiEventWithTiming(midiEvent, timestamp) {
+                                    @Override
+                                    public void run() {
+                                        if (midiInputEventListener != null) {
+                                            midiInputEventListener.onMidiReset(sender);
+                                        }
+                                    }
+                                });
+                            }
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+
+                        default:
+                            // undefined, or 0xf7 without SysEx
+                            metrics.onParseError();
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                    }
+                }
+                break;
+                case 0x80:
+                case 0x90:
+                case 0xa0:
+                case 0xb0:
+                case 0xe0:
+                    // 3bytes pattern
+                    midiEventKind = midiEvent;
+                    midiState = MIDI_STATE_SIGNAL_3BYTES_2;
+                    break;
+                case 0xc0: // program change
+                case 0xd0: // channel after-touch
+                    // 2bytes pattern
+                    midiEventKind = midiEvent;
+                    midiState = MIDI_STATE_SIGNAL_2BYTES_2;
+                    break;
+                default:
+                    // 0x00 - 0x70: running status
+                    if (midiEventKind >= 0x80 && midiEventKind < 0xf0) {
+                        // previous event kind is channel message
+                        midiState = (midiEventKind & 0xe0) == 0xc0 ? MIDI_STATE_SIGNAL_2BYTES_2 : MIDI_STATE_SIGNAL_3BYTES_2;
+                        parseMidiEvent(header, event);
+                    } else {
+                        // data byte without status
+                        metrics.onParseError();
+                        discardMessage(MIDI_STATE_RESYNC);
+                    }
+                    break;
+            }
+        } else if (midiState == MIDI_STATE_SIGNAL_2BYTES_2) {
+            if (midiEventKind < 0xf0) {
+                applyState(midiEventKind, midiEvent, 0);
+            }
+            switch (midiEventKind & 0xf0) {
+                // 2bytes pattern
+                case 0xc0: // program change
+                    midiEventNote = midiEvent;
+                    if (!isDropped(MidiMessageType.fromStatus(midiEventKind))) {
+                        addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, timestamp) {
+                            @Override
+                            public void run() {
+                                if (midiInputEventListener != null) {
+                                    midiInputEventListener.onMidiProgramChange(sender, getStatus() & 0xf, getData1());
+                                }
+                            }
+                        });
+                    }
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                case 0xd0: // channel after-touch
+                    midiEventNote = midiEvent;
+                    if (!isDropped(MidiMessageType.fromStatus(midiEventKind))) {
+                        addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, timestamp) {
+                            @Override
+                            public void run() {
+                                if (midiInputEventListener != null) {
+                                    midiInputEventListener.onMidiChannelAftertouch(sender, getStatus() & 0xf, getData1());
+                                }
+                            }
+                        });
+                    }
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                case 0xf0: {
+                    switch (midiEventKind) {
+                        case 0xf1:
+                            // 0xf1 MIDI Time Code Quarter Frame. : 2bytes
+                            midiEventNote = midiEvent;
+                            if (!isDropped(MidiMessageType.fromStatus(midiEventKind))) {
+                                addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, timestamp) {
+                                    @Override
+                                    public void run() {
+                                        if (midiInputEventListener != null) {
+                                            midiInputEventListener.onMidiTimeCodeQuarterFrame(sender, getData1());
+                                        }
+                                    }
+                                });
+                            }
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        case 0xf3:
+                            // 0xf3 Song Select. : 2bytes
+                            midiEventNote = midiEvent;
+                            if (!isDropped(MidiMessageType.fromStatus(midiEventKind))) {
+                                addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, timestamp) {
+                                    @Override
+                                    public void run() {
+                                        if (midiInputEventListener != null) {
+                                            midiInputEventListener.onMidiSongSelect(sender, getData1());
+                                        }
+                                    }
+                                });
+                            }
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        default:
+                            // illegal state
+                            metrics.onParseError();
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                    }
+                }
+                    break;
+                default:
+                    // illegal state
+                    metrics.onParseError();
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+            }
+        } else if (midiState == MIDI_STATE_SIGNAL_3BYTES_2) {
+            switch (midiEventKind & 0xf0) {
+                case 0x80:
+                case 0x90:
+                case 0xa0:
+                case 0xb0:
+                case 0xe0:
+                case 0xf0:
+                    // 3bytes pattern
+                    midiEventNote = midiEvent;
+                    midiState = MIDI_STATE_SIGNAL_3BYTES_3;
+                    break;
+                default:
+                    // illegal state
+                    metrics.onParseError();
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+            }
+        } else if (midiState == MIDI_STATE_SIGNAL_3BYTES_3) {
+            if (midiEventKind < 0xf0) {
+                applyState(midiEventKind, midiEventNote, midiEvent);
+            } else {
+                applyClock(midiEventKind, midiEventNote, midiEvent);
+            }
+            switch (midiEventKind & 0xf0) {
+                // 3bytes pattern
+                case 0x80: // note off
+                    midiEventVelocity = midiEvent;
+                    if (!isDropped(MidiMessageType.fromStatus(midiEventKind))) {
+                        addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
+                            @Override
+                            public void run() {
+                                if (midiInputEventListener != null) {
+                                    midiInputEventListener.onMidiNoteOff(sender, getStatus() & 0xf, getData1(), getData2());
+                                }
+                            }
+                        });
+                    }
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                case 0x90: // note on
+                    midiEventVelocity = midiEvent;
+                    if (!isDropped(midiEventVelocity == 0 ? MidiMessageType.NOTE_OFF : MidiMessageType.NOTE_ON)) {
+                        addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
+                            @Override
+                            public void run() {
+                                if (midiInputEventListener != null) {
+                                    if (getData2() == 0) {
+                                        midiInputEventListener.onMidiNoteOff(sender, getStatus() & 0xf, getData1(), getData2());
+                                    } else {
+                                        midiInputEventListener.onMidiNoteOn(sender, getStatus() & 0xf, getData1(), getData2());
+                                    }
+                                }
+                            }
+                        });
+                    }
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                case 0xa0: // control polyphonic key pressure
+                    midiEventVelocity = midiEvent;
+                    if (!isDropped(MidiMessageType.fromStatus(midiEventKind))) {
+                        addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
+                            @Override
+                            public void run() {
+                                if (midiInputEventListener != null) {
+                                    midiInputEventListener.onMidiPolyphonicAftertouch(sender, getStatus() & 0xf, getData1(), getData2());
+                                }
+                            }
+                        });
+                    }
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                case 0xb0: // control change
+                    midiEventVelocity = midiEvent;
+
+                    // process RPN/NRPN messages
+                    switch (parameterNumberState.process(midiEventKind & 0xf, midiEventNote, midiEventVelocity)) {
+                        case ParameterNumberState.KIND_RPN:
+                            if (!isDropped(MidiMessageType.RPN)) {
+                                addEventToQueue(new MidiEventWithTiming(midiEventKind, parameterNumberState.getFunction(), parameterNumberState.getValue(), timestamp) {
+                                    @Override
+                                    public void run() {
+                                        if (midiInputEventListener != null) {
+                                            midiInputEventListener.onRPNMessage(sender, getStatus() & 0xf, getData1() & 0x3fff, getData2() & 0x3fff);
+                                        }
+                                    }
+
+                                    @Override
+                                    boolean isDerived() {
+                                        return true;
+                                    }
+                                });
+                            }
+                            break;
+                        case ParameterNumberState.KIND_NRPN:
+                            if (!isDropped(MidiMessageType.NRPN)) {
+                                addEventToQueue(new MidiEventWithTiming(midiEventKind, parameterNumberState.getFunction(), parameterNumberState.getValue(), timestamp) {
+                                    @Override
+                                    public void run() {
+                                        if (midiInputEventListener != null) {
+                                            midiInputEventListener.onNRPNMessage(sender, getStatus() & 0xf, getData1() & 0x3fff, getData2() & 0x3fff);
+                                        }
+                                    }
+
+                                    @Override
+                                    boolean isDerived() {
+                                        return true;
+                                    }
+                                });
+                            }
+                            break;
+                        default:
+                            // not a parameter change
+                            break;
+                    }
+
+                    if (!isDropped(MidiMessageType.fromStatus(midiEventKind))) {
+                        addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
+                            @Override
+                            public void run() {
+                                if (midiInputEventListener != null) {
+                                    midiInputEventListener.onMidiControlChange(sender, getStatus() & 0xf, getData1(), getData2());
+                                }
+                            }
+                        });
+                    }
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                case 0xe0: // pitch bend
+                    midiEventVelocity = midiEvent;
+                    if (!isDropped(MidiMessageType.fromStatus(midiEventKind))) {
+                        addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
+                            @Override
+                            public void run() {
+                                if (midiInputEventListener != null) {
+                                    midiInputEventListener.onMidiPitchWheel(sender, getStatus() & 0xf, (getData1() & 0x7f) | ((getData2() & 0x7f) << 7));
+                                }
+                            }
+                        });
+                    }
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                case 0xf0: // Song Position Pointer.
+                    midiEventVelocity = midiEvent;
+                    if (!isDropped(MidiMessageType.fromStatus(midiEventKind))) {
+                        addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
+                            @Override
+                            public void run() {
+                                if (midiInputEventListener != null) {
+                                    midiInputEventListener.onMidiSongPositionPointer(sender, (getData1() & 0x7f) | ((getData2() & 0x7f) << 7));
+                                }
+                            }
+                        });
+                    }
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                default:
+                    // illegal state
+                    metrics.onParseError();
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+            }
+        } else if (midiState == MIDI_STATE_SIGNAL_SYSEX) {
+            if (midiEvent != 0xf7 && systemExclusiveTimestamp >= 0) {
+                int timestampByte = systemExclusiveTimestamp;
+                systemExclusiveTimestamp = -1;
+                if (midiEvent >= 0xf8) {
+                    // System Realtime message inside of SysEx
+                    timestamp = ((header & 0x3f) << 7) | (timestampByte & 0x7f);
+                    parseInterleavedRealtime(header, event, MIDI_STATE_SIGNAL_SYSEX, timestamp);
+                } else if ((midiEvent & 0x80) != 0) {
+                    // the status of the next message: 0xf7 has been lost
+                    metrics.onTruncatedMessage();
+                    systemExclusiveStreamer.abort();
+                    timestamp = ((header & 0x3f) << 7) | (timestampByte & 0x7f);
+                    midiState = MIDI_STATE_WAIT;
+                    parseMidiEvent(header, event);
+                } else {
+                    // the timestamp was a corrupted data byte
+                    metrics.onParseError();
+                    discardMessage(MIDI_STATE_RESYNC);
+                }
+                return;
+            }
+
+            if (midiEvent == 0xf7) {
+                boolean isTimestamped = systemExclusiveTimestamp >= 0;
+                if (isTimestamped) {
+                    writeSystemExclusive(systemExclusiveTimestamp);
+                    systemExclusiveTimestamp = -1;
+                }
+
+                // the end of message
+                // last written byte is for timestamp
+                int replacedEvent = systemExclusiveAssembler.end();
+                systemExclusiveStreamer.end();
+                if (isTimestamped) {
+                    // 0xf7 after the timestamp is certainly the end, not a timestamp byte
+                    systemExclusiveAssembler.clearRecovery();
+                    systemExclusiveStreamer.finish();
+                }
+                if (replacedEvent >= 0) {
+                    timestamp = ((header & 0x3f) << 7) | (replacedEvent & 0x7f);
+                }
+                if (systemExclusiveAssembler.isDiscarded()) {
+                    metrics.onSysExOverflow();
+                } else {
+                    if (systemExclusiveAssembler.isOverflowed()) {
+                        metrics.onSysExOverflow();
+                    }
+                    addSystemExclusiveToQueue(systemExclusiveAssembler.getBuffer(), systemExclusiveAssembler.getLength());
+                }
+                midiState = MIDI_STATE_TIMESTAMP;
+            } else if ((midiEvent & 0x80) != 0) {
+                // timestamp: hold it until the next byte
+                systemExclusiveTimestamp = midiEvent;
+            } else {
+                writeSystemExclusive(midiEvent);
+            }
+        }
+    }
+
+    /**
+     * Writes a byte of SysEx to the assembler and the streamer, called on the parser's thread
+     *
+     * @param oneByte the byte
+     */
+    private void writeSystemExclusive(int oneByte) {
+        systemExclusiveStreamer.write(oneByte);
+        if (systemExclusiveAssembler.write(oneByte) == SystemExclusiveAssembler.WRITE_SEGMENT_FULL) {
+            // stream through: the segment except the last byte, which may be the timestamp of 0xf7
+            if (!systemExclusiveAssembler.isSegmented()) {
+                metrics.onSysExOverflow();
+            }
+            addSystemExclusiveToQueue(systemExclusiveAssembler.getBuffer(), systemExclusiveAssembler.getLength() - 1);
+            systemExclusiveAssembler.consumeSegment();
+        }
+    }
+
+    /**
+     * Parses a System Realtime message received inside of another message, and resumes the message
+     *
+     * @param header the header byte of the packet
+     * @param event the System Realtime status byte
+     * @param resumeState the state of the interrupted message
+     * @param resumeTimestamp the timestamp of the interrupted message
+     */
+    private void parseInterleavedRealtime(final int header, final byte event, int resumeState, int resumeTimestamp) {
+        midiState = MIDI_STATE_WAIT;
+        parseMidiEvent(header, event);
+        midiState = resumeState;
+        timestamp = resumeTimestamp;
+    }
+
+    /**
+     * Discards the message in progress and the running status, when the following bytes can't be trusted
+     *
+     * @param nextState {@link #MIDI_STATE_TIMESTAMP} if the next byte is a timestamp, {@link #MIDI_STATE_RESYNC} to skip the data bytes until the next timestamp
+     */
+    private void discardMessage(int nextState) {
+        if (midiState == MIDI_STATE_SIGNAL_SYSEX) {
+            // the assembled SysEx is not delivered, the next 0xf0 starts over
+            systemExclusiveStreamer.abort();
+        }
+        systemExclusiveTimestamp = -1;
+        systemExclusiveAssembler.clearRecovery();
+        interruptedState = MIDI_STATE_TIMESTAMP;
+        midiEventKind = 0;
+        midiState = nextState;
+    }
+
+    /**
+     * Resynchronises the state at the start of a packet, called on the parser's thread
+     *
+     * @param firstEvent the first byte after the header
+     */
+    private void resyncAtPacketStart(int firstEvent) {
+        if (midiState == MIDI_STATE_SIGNAL_SYSEX) {
+            // SysEx continues without timestamp
+            return;
+        }
+
+        // the SysEx of the previous packet has been finished by the streamer, recover within the packet only
+        systemExclusiveAssembler.clearRecovery();
+        if (midiState != MIDI_STATE_TIMESTAMP && midiState != MIDI_STATE_RESYNC) {
+            // the message has been cut by the end of the previous packet
+            metrics.onTruncatedMessage();
+        }
+        interruptedState = MIDI_STATE_TIMESTAMP;
+        midiState = MIDI_STATE_TIMESTAMP;
+
+        if ((firstEvent & 0x80) == 0) {
+            // a packet must start with a timestamp, except the continuation of SysEx
+            metrics.onInvalidTimestamp();
+            discardMessage(MIDI_STATE_RESYNC);
+        }
+    }
+
+    /**
+     * Discards the message in progress after the packets have been lost, called on the parser's thread
+     */
+    private void onPacketLost() {
+        if (midiState != MIDI_STATE_TIMESTAMP && midiState != MIDI_STATE_RESYNC) {
+            metrics.onTruncatedMessage();
+        }
+        discardMessage(MIDI_STATE_TIMESTAMP);
+
+        if (activeNotes.isReleasedOnPacketLoss()) {
+            // the note-offs may have been lost
+            fireNoteRelease(expiredNotes, activeNotes.claimAll(expiredNotes), expiredNoteBatch);
+        }
+    }
+
+    /**
+     * Updates the controller state and the active notes with a channel message as soon as parsed, called on the parser's thread.<br />
+     * Applied before the drop mask and regardless of the listeners, so the state follows the device even if the message is not dispatched.
+     *
+     * @param status the status byte, 0x80-0xef
+     * @param data1 the first data byte
+     * @param data2 the second data byte, 0 for 2 bytes message
+     */
+    private void applyState(int status, int data1, int data2) {
+        controllerState.apply(status, data1, data2);
+        activeNotes.apply(status, data1, data2, System.currentTimeMillis());
+    }
+
+    /**
+     * Feeds {@link MidiClockTracker} with a clock message(Timing Clock, Start, Continue, Stop or Song Position Pointer) as soon as parsed, called on the parser's thread.<br />
+     * Applied before the drop mask and the fast lane, with the time reconstructed from the BLE timestamp instead of the time of the dispatch.
+     *
+     * @param status the status byte
+     * @param data1 the first data byte
+     * @param data2 the second data byte
+     */
+    private void applyClock(int status, int data1, int data2) {
+        MidiClockTracker tracker = midiClockTracker;
+        if (tracker == null) {
+            return;
+        }
+        switch (status) {
+            case 0xf8:
+                tracker.onTimingClock(toCurrentTimeMillis(getEventTimeNanos(timestamp)));
+                break;
+            case 0xfa:
+                tracker.onStart();
+                break;
+            case 0xfb:
+                tracker.onContinue();
+                break;
+            case 0xfc:
+                tracker.onStop();
+                break;
+            case 0xf2:
+                tracker.onSongPositionPointer((data1 & 0x7f) | ((data2 & 0x7f) << 7));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Updates incoming data.<br />
+     * Copies the data into the ring buffer and returns at once, the data will be parsed on the parser's thread.
+     * Must be called from one thread at a time(the Bluetooth callback thread of the device).
+     * The data is dropped(and counted in {@link MidiDeviceMetrics}) if the ring buffer is full, or if it is longer than {@link PacketRingBuffer#MAX_PACKET_LENGTH}.
+     *
+     * @param data incoming data
+     */
+    public void parse(@NonNull byte[] data) {
+        if (!packetBuffer.offer(data, System.nanoTime())) {
+            metrics.onPacketDropped();
+            isPacketDropped = true;
+            return;
+        }
+
+        if (eventDequeueRunnable.isWaiting) {
+            LockSupport.unpark(eventDequeueThread);
+        }
+    }
+
+    /**
+     * Waits until {@link #parse(byte[])} can accept a packet without dropping.<br />
+     * For the replay or the simulation feeding packets faster than real time, never call this on the Bluetooth callback thread.
+     */
+    public void awaitBufferSpace() {
+        while (packetBuffer.isFull() && eventDequeueRunnable.isRunning) {
+            LockSupport.parkNanos(this, 100000L);
+        }
+    }
+
+    /**
+     * Parses the packet, called on the parser's thread
+     *
+     * @param buffer the buffer containing the packet
+     * @param offset the packet offset in the buffer
+     * @param length the packet length
+     * @param arrivalNanos {@link System#nanoTime()} of the packet arrival
+     */
+    private void parsePacket(@NonNull byte[] buffer, int offset, int length, long arrivalNanos) {
+        packetArrivalNanos = arrivalNanos;
+        if (length > 1) {
+            int header = buffer[offset] & 0xff;
+            if ((header & 0xc0) != 0x80) {
+                // the header must be 10xxxxxx: the packet is corrupted, or not BLE MIDI
+                metrics.onInvalidHeader();
+                onPacketLost();
+            } else {
+                resyncAtPacketStart(buffer[offset + 1] & 0xff);
+                for (int i = offset + 1, end = offset + length; i < end; i++) {
+                    parseMidiEvent(header, buffer[i]);
+                }
+            }
+        }
+        systemExclusiveStreamer.flush();
+    }
+
+    /**
+     * Checks the drop mask, and counts the discarded message
+     *
+     * @param type the kind of the message, one of {@link MidiMessageType}
+     * @return true if the message should be discarded
+     */
+    private boolean isDropped(int type) {
+        if ((dropMask & type) == 0) {
+            return false;
+        }
+        metrics.onEventFiltered(type);
+        return true;
+    }
+
+    /**
+     * Passes the assembled SysEx to the {@link LatencyProbe}, without playback buffering
+     *
+     * @param buffer the buffer containing the SysEx
+     * @param length the length of the SysEx
+     * @return true if the probe consumed the message
+     */
+    private boolean offerToLatencyProbe(@NonNull byte[] buffer, int length) {
+        LatencyProbe probe = latencyProbe;
+        return probe != null && probe.onSystemExclusive(buffer, length, timestamp, packetArrivalNanos);
+    }
+
+    /**
+     * Copies the SysEx, into a pooled array if only the batch listener needs it, and adds it to event queue, called on the parser's thread
+     *
+     * @param buffer the buffer containing the SysEx
+     * @param length the length of the SysEx
+     */
+    private void addSystemExclusiveToQueue(@NonNull byte[] buffer, int length) {
+        if (offerToLatencyProbe(buffer, length) || isDropped(MidiMessageType.SYSTEM_EXCLUSIVE)) {
+            return;
+        }
+
+        // the event listener keeps the array: copy once for it, the pooled array serves the batch listener only
+        boolean isPooled = midiInputEventListener == null && midiEventBatchListener != null;
+        byte[] systemExclusive;
+        if (isPooled) {
+            systemExclusive = systemExclusivePool.obtain(length);
+            System.arraycopy(buffer, 0, systemExclusive, 0, length);
+        } else {
+            systemExclusive = Arrays.copyOf(buffer, length);
+        }
+        addEventToQueue(new MidiEventWithTiming(systemExclusive, length, isPooled, timestamp) {
+            @Override
+            public void run() {
+                if (midiInputEventListener != null) {
+                    // attached after the SysEx was parsed: the pooled array is reused, pass a copy
+                    midiInputEventListener.onMidiSystemExclusive(sender, isArrayPooled() ? Arrays.copyOf(getArray(), getArrayLength()) : getArray());
+                }
+            }
+        });
+    }
+
+    // accessed on the parser's thread only
+    private final List<MidiEventWithTiming> queuedEventList = new ArrayList<>();
+
+    // the notes released by the timeout, the packet loss or the request, accessed on the parser's thread only
+    private final int[] expiredNotes = new int[ActiveNoteTracker.MAX_ACTIVE_NOTES];
+    private final MidiEventBatch expiredNoteBatch = new MidiEventBatch();
+
+    /**
+     * Synthesises the release of the notes held down, to the listeners on the parser's thread.<br />
+     * Returns at once: the events waiting for their timing are dispatched first, so the note-ons already received are never fired after their release.
+     */
+    public void releaseActiveNotes() {
+        isNoteReleaseRequested = true;
+        LockSupport.unpark(eventDequeueThread);
+    }
+
+    /**
+     * Releases all the notes held down, called on the parser's thread after the events waiting have been dispatched
+     */
+    private void releaseAllNotes() {
+        fireNoteRelease(expiredNotes, activeNotes.claimAll(expiredNotes), expiredNoteBatch);
+    }
+
+    /**
+     * Releases the notes held longer than the timeout of {@link ActiveNoteTracker}, called on the parser's thread
+     */
+    private void releaseExpiredNotes() {
+        long now = System.currentTimeMillis();
+        if (activeNotes.getNextExpiryMillis() <= now) {
+            fireNoteRelease(expiredNotes, activeNotes.claimExpired(now, expiredNotes), expiredNoteBatch);
+        }
+    }
+
+    /**
+     * Fires note-offs or All Notes Off for the claimed notes, with {@link ActiveNoteTracker#getReleaseMode()}
+     *
+     * @param notes the claimed notes, as (channel << 7 | note)
+     * @param count the number of the claimed notes
+     * @param batch the batch for {@link OnMidiEventBatchListener}
+     */
+    private void fireNoteRelease(@NonNull int[] notes, int count, @NonNull MidiEventBatch batch) {
+        if (count == 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        batch.clear();
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (activeNotes.getReleaseMode() == ActiveNoteTracker.RELEASE_ALL_NOTES_OFF) {
+            int channels = 0;
+            for (int i = 0; i < count; i++) {
+                channels |= 1 << (notes[i] >>> 7);
+            }
+            for (int channel = 0; channel < 16; channel++) {
+                if ((channels & (1 << channel)) != 0) {
+                    if (listener != null) {
+                        listener.onMidiControlChange(sender, channel, 123, 0);
+                    }
+                    batch.add(now, 0xb0 | channel, 123, 0);
+                }
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                int channel = notes[i] >>> 7;
+                int note = notes[i] & 0x7f;
+                if (listener != null) {
+                    listener.onMidiNoteOff(sender, channel, note, 0);
+                }
+                batch.add(now, 0x80 | channel, note, 0);
+            }
+        }
+
+        OnMidiEventBatchListener batchListener = midiEventBatchListener;
+        if (batchListener != null) {
+            batchListener.onMidiEventBatch(sender, batch);
+        }
+    }
+
+    // System Realtime status bytes of the fast lane, parsed but not dispatched yet, accessed on the parser's thread only
+    private int[] realtimeEvents = new int[16];
+    // the performance times of the realtimeEvents, in the same time domain as System.currentTimeMillis()
+    private long[] realtimeEventTimings = new long[16];
+    private int realtimeEventCount = 0;
+    private final MidiEventBatch realtimeEventBatch = new MidiEventBatch();
+
+    /**
+     * Add a System Realtime message to the fast lane, called on the parser's thread
+     *
+     * @param status the status byte
+     */
+    private void addRealtimeEvent(int status) {
+        long eventTimeNanos = getEventTimeNanos(timestamp);
+        fireTimestampedMessage(status, 0, 0, null, 1, timestamp, eventTimeNanos);
+        if (realtimeEventCount == realtimeEvents.length) {
+            realtimeEvents = Arrays.copyOf(realtimeEvents, realtimeEvents.length * 2);
+            realtimeEventTimings = Arrays.copyOf(realtimeEventTimings, realtimeEventTimings.length * 2);
+        }
+        realtimeEvents[realtimeEventCount] = status;
+        realtimeEventTimings[realtimeEventCount] = toCurrentTimeMillis(eventTimeNanos);
+        realtimeEventCount++;
+    }
+
+    /**
+     * Dispatches the System Realtime messages of the fast lane, called on the parser's thread
+     */
+    private void fireRealtimeEvents() {
+        if (realtimeEventCount == 0) {
+            return;
+        }
+
+        OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener != null) {
+            for (int i = 0; i < realtimeEventCount; i++) {
+                switch (realtimeEvents[i]) {
+                    case 0xf8:
+                        listener.onMidiTimingClock(sender);
+                        break;
+                    case 0xfa:
+                        listener.onMidiStart(sender);
+                        break;
+                    case 0xfb:
+                        listener.onMidiContinue(sender);
+                        break;
+                    case 0xfc:
+                        listener.onMidiStop(sender);
+                        break;
+                    case 0xfe:
+                        listener.onMidiActiveSensing(sender);
+                        break;
+                    case 0xff:
+                        listener.onMidiReset(sender);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        OnMidiEventBatchListener batchListener = midiEventBatchListener;
+        if (batchListener != null) {
+            realtimeEventBatch.clear();
+            for (int i = 0; i < realtimeEventCount; i++) {
+                realtimeEventBatch.add(realtimeEventTimings[i], realtimeEvents[i], 0, 0);
+            }
+            batchListener.onMidiEventBatch(sender, realtimeEventBatch);
+        }
+
+        realtimeEventCount = 0;
+    }
+
+    /**
+     * Add a event to event queue, called on the parser's thread
+     * @param event the MIDI Event
+     */
+    private void addEventToQueue(MidiEventWithTiming event) {
+        if (!event.isDerived()) {
+            fireTimestampedMessage(event.getStatus(), event.getData1(), event.getData2(), event.getArray(), event.getLength(), event.getBleTimestamp());
+        }
+        queuedEventList.add(event);
+    }
+
+    /**
+     * Passes the message to the {@link OnMidiTimestampedMessageListener} at once, with the reconstructed performance time, called on the parser's thread
+     *
+     * @param status the status byte
+     * @param data1 the first data byte
+     * @param data2 the second data byte
+     * @param array the array containing SysEx, null if not SysEx
+     * @param length the length of the message
+     * @param timestamp BLE MIDI timestamp
+     */
+    private void fireTimestampedMessage(int status, int data1, int data2, @Nullable byte[] array, int length, int timestamp) {
+        if (timestampedMessageListener == null) {
+            return;
+        }
+        fireTimestampedMessage(status, data1, data2, array, length, timestamp, getEventTimeNanos(timestamp));
+    }
+
+    /**
+     * Passes the message to the {@link OnMidiTimestampedMessageListener} at once, with the performance time already reconstructed, called on the parser's thread
+     *
+     * @param status the status byte
+     * @param data1 the first data byte
+     * @param data2 the second data byte
+     * @param array the array containing SysEx, null if not SysEx
+     * @param length the length of the message
+     * @param timestamp BLE MIDI timestamp
+     * @param eventTimeNanos the performance time, in the time domain of {@link System#nanoTime()}
+     */
+    private void fireTimestampedMessage(int status, int data1, int data2, @Nullable byte[] array, int length, int timestamp, long eventTimeNanos) {
+        OnMidiTimestampedMessageListener listener = timestampedMessageListener;
+        if (listener == null) {
+            return;
+        }
+
+        if (array != null) {
+            listener.onMidiMessage(sender, array, 0, length, timestamp, eventTimeNanos);
+        } else {
+            timestampedMessage[0] = (byte) status;
+            timestampedMessage[1] = (byte) data1;
+            timestampedMessage[2] = (byte) data2;
+            listener.onMidiMessage(sender, timestampedMessage, 0, length, timestamp, eventTimeNanos);
+        }
+    }
+
+    /**
+     * Obtains the performance time of the message in the current packet, called on the parser's thread
+     *
+     * @param timestamp BLE MIDI timestamp
+     * @return the performance time, in the time domain of {@link System#nanoTime()}
+     */
+    private long getEventTimeNanos(int timestamp) {
+        if (Boolean.TRUE.equals(isTimestampAlwaysZero)) {
+            // no timing from the sender
+            return packetArrivalNanos;
+        }
+        if (timestamp != reconstructedTimestamp || packetArrivalNanos != reconstructedArrivalNanos) {
+            // the same message may be asked twice: by the clock tracker and by the listeners
+            reconstructedTimestamp = timestamp;
+            reconstructedArrivalNanos = packetArrivalNanos;
+            reconstructedEventTimeNanos = timestampReconstructor.reconstruct(timestamp, packetArrivalNanos);
+        }
+        return reconstructedEventTimeNanos;
+    }
+
+    /**
+     * Converts the time of {@link System#nanoTime()} into the time domain of {@link System#currentTimeMillis()}
+     *
+     * @param nanos the time, in {@link System#nanoTime()}
+     * @return the time, in {@link System#currentTimeMillis()}
+     */
+    private static long toCurrentTimeMillis(long nanos) {
+        return System.currentTimeMillis() - (System.nanoTime() - nanos) / 1000000L;
+    }
+
+    /**
+     * Runnable for parsing the received packets, and MIDI event queueing
+     */
+    private class EventDequeueRunnable implements Runnable {
+        private volatile boolean isRunning = true;
+        private volatile boolean isWaiting = false;
+        private final List<MidiEventWithTiming> dequeuedEvents = new ArrayList<>();
+        private final MidiEventBatch eventBatch = new MidiEventBatch();
+
+        private final Comparator<MidiEventWithTiming> midiTimerTaskComparator = new Comparator<MidiEventWithTiming>() {
+            @Override
+            public int compare(final MidiEventWithTiming lhs, final MidiEventWithTiming rhs) {
+                // sort by tick
+                int tickDifference = (int) (lhs.getTiming() - rhs.getTiming());
+                if (tickDifference != 0) {
+                    return tickDifference * 256;
+                }
+
+                int lhsMessage = lhs.getStatus();
+                int rhsMessage = rhs.getStatus();
+
+                // same timing
+                // sort by the MIDI data priority order, as:
+                // system message > control messages > note on > note off
+                // swap the priority of note on, and note off
+                int lhsInt = lhsMessage & 0xf0;
+                int rhsInt = rhsMessage & 0xf0;
+
+                if ((lhsInt & 0x90) == 0x80) {
+                    lhsInt |= 0x10;
+                } else {
+                    lhsInt &= ~0x10;
+                }
+                if ((rhsInt & 0x90) == 0x80) {
+                    rhsInt |= 0x10;
+                } else {
+                    rhsInt &= ~0x10;
+                }
+
+                return -(lhsInt - rhsInt);
+            }
+        };
+
+        /**
+         * Dispatches the events whose timing has come, sorted, then fires the batch
+         *
+         * @param untilMillis the time in {@link System#currentTimeMillis()}, {@link Long#MAX_VALUE} to dispatch all the events waiting
+         * @return the timing of the next event waiting, {@link Long#MAX_VALUE} if none
+         */
+        private long dispatchEvents(long untilMillis) {
+            // deque events
+            dequeuedEvents.clear();
+            long nextTiming = Long.MAX_VALUE;
+            int remaining = 0;
+            for (int i = 0, size = queuedEventList.size(); i < size; i++) {
+                MidiEventWithTiming event = queuedEventList.get(i);
+                if (event.getTiming() <= untilMillis) {
+                    // collect past events
+                    dequeuedEvents.add(event);
+                } else {
+                    queuedEventList.set(remaining++, event);
+                    nextTiming = Math.min(nextTiming, event.getTiming());
+                }
+            }
+            for (int i = queuedEventList.size() - 1; i >= remaining; i--) {
+                queuedEventList.remove(i);
+            }
+            metrics.setQueueDepth(remaining);
+
+            if (dequeuedEvents.isEmpty()) {
+                return nextTiming;
+            }
+
+            // sort event order
+            Collections.sort(dequeuedEvents, midiTimerTaskComparator);
+
+            // fire events, the ones dispatched before their timing are counted with no delay
+            for (int i = 0, size = dequeuedEvents.size(); i < size; i++) {
+                MidiEventWithTiming event = dequeuedEvents.get(i);
+                metrics.onEventDispatched(Math.max(0, System.currentTimeMillis() - event.getTiming()) * 1000);
+                event.run();
+            }
+
+            // fire the batch, one call for all the events
+            OnMidiEventBatchListener batchListener = midiEventBatchListener;
+            if (batchListener != null) {
+                eventBatch.clear();
+                for (int i = 0, size = dequeuedEvents.size(); i < size; i++) {
+                    dequeuedEvents.get(i).appendTo(eventBatch);
+                }
+                if (eventBatch.size() > 0) {
+                    batchListener.onMidiEventBatch(sender, eventBatch);
+                }
+            }
+
+            // return the SysEx arrays to the pool
+            for (int i = 0, size = dequeuedEvents.size(); i < size; i++) {
+                MidiEventWithTiming event = dequeuedEvents.get(i);
+                if (event.isArrayPooled()) {
+                    systemExclusivePool.release(event.getArray());
+                }
+            }
+            return nextTiming;
+        }
+
+        @Override
+        public void run() {
+            while (isRunning) {
+                // parse received packets
+                packetBuffer.drain(packetHandler);
+                if (isPacketDropped) {
+                    isPacketDropped = false;
+                    onPacketLost();
+                }
+                fireRealtimeEvents();
+                releaseExpiredNotes();
+
+                long nextTiming;
+                if (isNoteReleaseRequested) {
+                    isNoteReleaseRequested = false;
+                    nextTiming = dispatchEvents(Long.MAX_VALUE);
+                    releaseAllNotes();
+                } else {
+                    nextTiming = dispatchEvents(System.currentTimeMillis());
+                }
+
+                // sleep until the next packet arrives, the next event's timing, or the next stuck note timeout
+                nextTiming = Math.min(nextTiming, activeNotes.getNextExpiryMillis());
+                isWaiting = true;
+                if (isRunning && packetBuffer.isEmpty() && !isNoteReleaseRequested) {
+                    if (nextTiming == Long.MAX_VALUE) {
+                        LockSupport.parkNanos(this, 1000L * 1000000L);
+                    } else {
+                        long waitMillis = Math.max(1, nextTiming - System.currentTimeMillis());
+                        LockSupport.parkNanos(this, waitMillis * 1000000L);
+                    }
+                }
+                isWaiting = false;
+            }
+
+            // the final drain: the notes are released after all the events received
+            packetBuffer.drain(packetHandler);
+            fireRealtimeEvents();
+            dispatchEvents(Long.MAX_VALUE);
+            releaseAllNotes();
+
+            // the SysEx in progress will never complete
+            systemExclusiveStreamer.finish();
+            systemExclusiveStreamer.abort();
+        }
+    }
+}
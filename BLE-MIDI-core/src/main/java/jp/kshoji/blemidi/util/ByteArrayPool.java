@@ -0,0 +1,71 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Pool of byte arrays with power of 2 lengths. Not thread safe: obtain and release on the same thread.
+ *
+ * @author K.Shoji
+ */
+public final class ByteArrayPool {
+    private static final int MIN_LENGTH = 64;
+
+    private final byte[][] freeArrays;
+    private int freeCount;
+
+    /**
+     * Constructor
+     *
+     * @param capacity the maximum number of the arrays kept for reuse
+     */
+    public ByteArrayPool(int capacity) {
+        freeArrays = new byte[capacity][];
+    }
+
+    /**
+     * Obtains an array, reuses a released one if long enough
+     *
+     * @param minLength the minimum length
+     * @return the array, its contents are undefined
+     */
+    @NonNull
+    public byte[] obtain(int minLength) {
+        for (int i = freeCount - 1; i >= 0; i--) {
+            byte[] array = freeArrays[i];
+            if (array.length >= minLength) {
+                freeCount--;
+                freeArrays[i] = freeArrays[freeCount];
+                freeArrays[freeCount] = null;
+                return array;
+            }
+        }
+
+        int length = MIN_LENGTH;
+        while (length < minLength && length > 0) {
+            length <<= 1;
+        }
+        return new byte[length > 0 ? length : minLength];
+    }
+
+    /**
+     * Returns the array to the pool, the array must not be used after this call
+     *
+     * @param array the array obtained by {@link #obtain(int)}
+     */
+    public void release(@NonNull byte[] array) {
+        if (freeCount < freeArrays.length) {
+            freeArrays[freeCount++] = array;
+        } else {
+            // replaces the shortest one, to keep the long arrays for the large messages
+            int shortest = 0;
+            for (int i = 1; i < freeCount; i++) {
+                if (freeArrays[i].length < freeArrays[shortest].length) {
+                    shortest = i;
+                }
+            }
+            if (freeCount > 0 && freeArrays[shortest].length < array.length) {
+                freeArrays[shortest] = array;
+            }
+        }
+    }
+}
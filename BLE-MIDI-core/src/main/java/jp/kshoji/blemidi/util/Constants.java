@@ -5,7 +5,7 @@ package jp.kshoji.blemidi.util;
  */
 public interface Constants {
     /**
-     * Tag for {@link android.util.Log}
+     * Tag for android.util.Log
      */
     String TAG = "blemidi";
 }
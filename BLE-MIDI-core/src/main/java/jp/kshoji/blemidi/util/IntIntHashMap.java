@@ -0,0 +1,153 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map with non-negative int keys and int values.<br />
+ * Replaces android.util.SparseIntArray: O(1) lookup without binary search, no boxing, and runs on a plain JVM.
+ *
+ * @author K.Shoji
+ */
+public final class IntIntHashMap {
+
+    /**
+     * Visitor for {@link #forEach(Visitor)}
+     */
+    public interface Visitor {
+
+        /**
+         * Called for each entry
+         *
+         * @param key the key
+         * @param value the value
+         */
+        void visit(int key, int value);
+    }
+    private static final int EMPTY = -1;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] keys;
+    private int[] values;
+    private int size = 0;
+
+    /**
+     * Construct default instance
+     */
+    public IntIntHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct instance
+     *
+     * @param expectedSize the expected number of entries
+     */
+    public IntIntHashMap(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Obtains the value
+     *
+     * @param key the key, 0 or positive
+     * @param valueIfKeyNotFound the value returned if not found
+     * @return the value
+     */
+    public int get(int key, int valueIfKeyNotFound) {
+        int mask = keys.length - 1;
+        for (int index = hash(key) & mask; ; index = (index + 1) & mask) {
+            int current = keys[index];
+            if (current == key) {
+                return values[index];
+            }
+            if (current == EMPTY) {
+                return valueIfKeyNotFound;
+            }
+        }
+    }
+
+    /**
+     * Puts the value
+     *
+     * @param key the key, 0 or positive
+     * @param value the value
+     */
+    public void put(int key, int value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("key must be 0 or positive: " + key);
+        }
+
+        int mask = keys.length - 1;
+        for (int index = hash(key) & mask; ; index = (index + 1) & mask) {
+            int current = keys[index];
+            if (current == key) {
+                values[index] = value;
+                return;
+            }
+            if (current == EMPTY) {
+                keys[index] = key;
+                values[index] = value;
+                size++;
+                if (size * 2 > keys.length) {
+                    rehash(keys.length << 1);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Visits all the entries, in no particular order. The map must not be modified while visiting.
+     *
+     * @param visitor the visitor
+     */
+    public void forEach(@NonNull Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * Removes all the entries, keeps the capacity
+     */
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash(int newCapacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[newCapacity];
+        values = new int[newCapacity];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Read-only view of the MIDI events fired together, stored in parallel primitive arrays.<br />
+ * Each event is a MIDI message: the status byte, and up to 2 data bytes. SysEx data is stored in one shared buffer, and the event points to its slice.
+ * Note-on with velocity 0 is kept as is, RPN/NRPN are not decoded: the control changes are in the batch.
+ *
+ * @author K.Shoji
+ */
+public final class MidiEventBatch {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int INITIAL_SYSEX_CAPACITY = 256;
+
+    private int size;
+    private long[] timings;
+    private int[] statuses;
+    private int[] data1s;
+    private int[] data2s;
+    private int[] sysExOffsets;
+    private int[] sysExLengths;
+    private byte[] sysExBuffer;
+    private int sysExBufferSize;
+
+    /**
+     * Constructor
+     */
+    public MidiEventBatch() {
+        this(INITIAL_CAPACITY, INITIAL_SYSEX_CAPACITY);
+    }
+
+    private MidiEventBatch(int capacity, int sysExCapacity) {
+        timings = new long[capacity];
+        statuses = new int[capacity];
+        data1s = new int[capacity];
+        data2s = new int[capacity];
+        sysExOffsets = new int[capacity];
+        sysExLengths = new int[capacity];
+        sysExBuffer = new byte[sysExCapacity];
+    }
+
+    /**
+     * @return the number of events
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index the event index
+     * @return the firing time of the event, in {@link System#currentTimeMillis()}
+     */
+    public long getTiming(int index) {
+        checkIndex(index);
+        return timings[index];
+    }
+
+    /**
+     * @param index the event index
+     * @return the status byte: 0x80-0xff, 0xf0 for SysEx
+     */
+    public int getStatus(int index) {
+        checkIndex(index);
+        return statuses[index];
+    }
+
+    /**
+     * @param index the event index
+     * @return the channel 0-15, meaningful only for the channel messages
+     */
+    public int getChannel(int index) {
+        checkIndex(index);
+        return statuses[index] & 0xf;
+    }
+
+    /**
+     * @param index the event index
+     * @return the first data byte, 0 if the message doesn't have
+     */
+    public int getData1(int index) {
+        checkIndex(index);
+        return data1s[index];
+    }
+
+    /**
+     * @param index the event index
+     * @return the second data byte, 0 if the message doesn't have
+     */
+    public int getData2(int index) {
+        checkIndex(index);
+        return data2s[index];
+    }
+
+    /**
+     * @param index the event index
+     * @return true if the event is SysEx
+     */
+    public boolean isSystemExclusive(int index) {
+        checkIndex(index);
+        return sysExLengths[index] > 0;
+    }
+
+    /**
+     * Obtains the buffer containing the SysEx slices, don't modify
+     *
+     * @return the buffer
+     */
+    @NonNull
+    public byte[] getSystemExclusiveBuffer() {
+        return sysExBuffer;
+    }
+
+    /**
+     * @param index the event index
+     * @return the offset of the SysEx(includes 0xf0) in {@link #getSystemExclusiveBuffer()}
+     */
+    public int getSystemExclusiveOffset(int index) {
+        checkIndex(index);
+        return sysExOffsets[index];
+    }
+
+    /**
+     * @param index the event index
+     * @return the length of the SysEx(includes 0xf0 and 0xf7), 0 if the event is not SysEx
+     */
+    public int getSystemExclusiveLength(int index) {
+        checkIndex(index);
+        return sysExLengths[index];
+    }
+
+    /**
+     * Copies the SysEx into a new array
+     *
+     * @param index the event index
+     * @return the SysEx, empty if the event is not SysEx
+     */
+    @NonNull
+    public byte[] copySystemExclusive(int index) {
+        checkIndex(index);
+        return Arrays.copyOfRange(sysExBuffer, sysExOffsets[index], sysExOffsets[index] + sysExLengths[index]);
+    }
+
+    /**
+     * Copies the batch, to keep the events after the listener returns
+     *
+     * @return the copy
+     */
+    @NonNull
+    public MidiEventBatch copy() {
+        MidiEventBatch result = new MidiEventBatch(Math.max(size, 1), Math.max(sysExBufferSize, 1));
+        result.size = size;
+        System.arraycopy(timings, 0, result.timings, 0, size);
+        System.arraycopy(statuses, 0, result.statuses, 0, size);
+        System.arraycopy(data1s, 0, result.data1s, 0, size);
+        System.arraycopy(data2s, 0, result.data2s, 0, size);
+        System.arraycopy(sysExOffsets, 0, result.sysExOffsets, 0, size);
+        System.arraycopy(sysExLengths, 0, result.sysExLengths, 0, size);
+        System.arraycopy(sysExBuffer, 0, result.sysExBuffer, 0, sysExBufferSize);
+        result.sysExBufferSize = sysExBufferSize;
+        return result;
+    }
+
+    /**
+     * Removes all the events
+     */
+    void clear() {
+        size = 0;
+        sysExBufferSize = 0;
+    }
+
+    /**
+     * Appends the message
+     *
+     * @param timing the firing time
+     * @param status the status byte
+     * @param data1 the first data byte
+     * @param data2 the second data byte
+     */
+    void add(long timing, int status, int data1, int data2) {
+        ensureCapacity();
+        timings[size] = timing;
+        statuses[size] = status;
+        data1s[size] = data1;
+        data2s[size] = data2;
+        sysExOffsets[size] = 0;
+        sysExLengths[size] = 0;
+        size++;
+    }
+
+    /**
+     * Appends the SysEx
+     *
+     * @param timing the firing time
+     * @param systemExclusive the array containing the SysEx, copied
+     * @param length the length of the SysEx
+     */
+    void addSystemExclusive(long timing, @NonNull byte[] systemExclusive, int length) {
+        if (sysExBufferSize + length > sysExBuffer.length) {
+            sysExBuffer = Arrays.copyOf(sysExBuffer, Math.max(sysExBuffer.length * 2, sysExBufferSize + length));
+        }
+        System.arraycopy(systemExclusive, 0, sysExBuffer, sysExBufferSize, length);
+
+        add(timing, 0xf0, 0, 0);
+        sysExOffsets[size - 1] = sysExBufferSize;
+        sysExLengths[size - 1] = length;
+        sysExBufferSize += length;
+    }
+
+    private void ensureCapacity() {
+        if (size < timings.length) {
+            return;
+        }
+        int capacity = timings.length * 2;
+        timings = Arrays.copyOf(timings, capacity);
+        statuses = Arrays.copyOf(statuses, capacity);
+        data1s = Arrays.copyOf(data1s, capacity);
+        data2s = Arrays.copyOf(data2s, capacity);
+        sysExOffsets = Arrays.copyOf(sysExOffsets, capacity);
+        sysExLengths = Arrays.copyOf(sysExLengths, capacity);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+    }
+}
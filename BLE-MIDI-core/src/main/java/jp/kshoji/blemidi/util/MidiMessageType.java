@@ -0,0 +1,106 @@
+package jp.kshoji.blemidi.util;
+
+/**
+ * Bit masks for the kinds of the MIDI messages, one bit for each {@link jp.kshoji.blemidi.listener.OnMidiInputEventListener} method.<br />
+ * Combine with OR to make the type mask of the filters.
+ *
+ * @author K.Shoji
+ */
+public final class MidiMessageType {
+    public static final int SYSTEM_EXCLUSIVE = 1;
+    public static final int NOTE_OFF = 1 << 1;
+    public static final int NOTE_ON = 1 << 2;
+    public static final int POLYPHONIC_AFTERTOUCH = 1 << 3;
+    public static final int CONTROL_CHANGE = 1 << 4;
+    public static final int PROGRAM_CHANGE = 1 << 5;
+    public static final int CHANNEL_AFTERTOUCH = 1 << 6;
+    public static final int PITCH_WHEEL = 1 << 7;
+    public static final int TIME_CODE_QUARTER_FRAME = 1 << 8;
+    public static final int SONG_SELECT = 1 << 9;
+    public static final int SONG_POSITION_POINTER = 1 << 10;
+    public static final int TUNE_REQUEST = 1 << 11;
+    public static final int TIMING_CLOCK = 1 << 12;
+    public static final int START = 1 << 13;
+    public static final int CONTINUE = 1 << 14;
+    public static final int STOP = 1 << 15;
+    public static final int ACTIVE_SENSING = 1 << 16;
+    public static final int RESET = 1 << 17;
+    public static final int RPN = 1 << 18;
+    public static final int NRPN = 1 << 19;
+
+    /**
+     * The number of the message kinds
+     */
+    public static final int COUNT = 20;
+
+    /**
+     * Note-off, note-on, aftertouches, control change, program change, pitch wheel, RPN and NRPN
+     */
+    public static final int CHANNEL_MESSAGES = NOTE_OFF | NOTE_ON | POLYPHONIC_AFTERTOUCH | CONTROL_CHANGE | PROGRAM_CHANGE | CHANNEL_AFTERTOUCH | PITCH_WHEEL | RPN | NRPN;
+
+    /**
+     * 0xf8-0xff messages
+     */
+    public static final int SYSTEM_REALTIME = TIMING_CLOCK | START | CONTINUE | STOP | ACTIVE_SENSING | RESET;
+
+    /**
+     * All the kinds
+     */
+    public static final int ALL = (1 << COUNT) - 1;
+
+    /**
+     * Obtains the kind of the message from its status byte
+     *
+     * @param status the status byte, 0x80-0xff
+     * @return the mask of the kind, 0 for undefined status(0xf4, 0xf5, 0xf7, 0xf9, 0xfd) or the data byte
+     */
+    public static int fromStatus(int status) {
+        switch (status & 0xf0) {
+            case 0x80:
+                return NOTE_OFF;
+            case 0x90:
+                return NOTE_ON;
+            case 0xa0:
+                return POLYPHONIC_AFTERTOUCH;
+            case 0xb0:
+                return CONTROL_CHANGE;
+            case 0xc0:
+                return PROGRAM_CHANGE;
+            case 0xd0:
+                return CHANNEL_AFTERTOUCH;
+            case 0xe0:
+                return PITCH_WHEEL;
+            case 0xf0:
+                break;
+            default:
+                return 0;
+        }
+
+        switch (status & 0xff) {
+            case 0xf0:
+                return SYSTEM_EXCLUSIVE;
+            case 0xf1:
+                return TIME_CODE_QUARTER_FRAME;
+            case 0xf2:
+                return SONG_POSITION_POINTER;
+            case 0xf3:
+                return SONG_SELECT;
+            case 0xf6:
+                return TUNE_REQUEST;
+            case 0xf8:
+                return TIMING_CLOCK;
+            case 0xfa:
+                return START;
+            case 0xfb:
+                return CONTINUE;
+            case 0xfc:
+                return STOP;
+            case 0xfe:
+                return ACTIVE_SENSING;
+            case 0xff:
+                return RESET;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer / single-consumer ring buffer of BLE packets.<br />
+ * All the slots are preallocated: {@link #offer(byte[], long)} copies the packet, and {@link #drain(PacketHandler)} passes the slot without copying.
+ *
+ * @author K.Shoji
+ */
+public final class PacketRingBuffer {
+
+    /**
+     * Receives the packets drained from the ring buffer
+     */
+    public interface PacketHandler {
+
+        /**
+         * Called for each packet, the buffer is valid only while this method
+         *
+         * @param buffer the buffer containing the packet
+         * @param offset the packet offset in the buffer
+         * @param length the packet length
+         * @param arrivalNanos {@link System#nanoTime()} of the packet arrival
+         */
+        void onPacket(@NonNull byte[] buffer, int offset, int length, long arrivalNanos);
+    }
+
+    /**
+     * The longest notification: the maximum ATT MTU(517) minus the ATT header(3)
+     */
+    public static final int MAX_PACKET_LENGTH = 514;
+
+    private final int mask;
+    private final byte[] slotData;
+    private final int[] slotLength;
+    private final long[] slotNanos;
+
+    // the next sequence to write, written by the producer only
+    private final AtomicLong head = new AtomicLong();
+    // the next sequence to read, written by the consumer only
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param capacity the number of packets, rounded up to a power of 2
+     */
+    public PacketRingBuffer(int capacity) {
+        int ringCapacity = 2;
+        while (ringCapacity < capacity) {
+            ringCapacity <<= 1;
+        }
+        mask = ringCapacity - 1;
+        slotData = new byte[ringCapacity * MAX_PACKET_LENGTH];
+        slotLength = new int[ringCapacity];
+        slotNanos = new long[ringCapacity];
+    }
+
+    /**
+     * Copies the packet into the ring buffer. Must be called from one producer thread at a time.
+     *
+     * @param data the packet
+     * @param arrivalNanos {@link System#nanoTime()} of the packet arrival
+     * @return false if the ring buffer is full or the packet is longer than {@link #MAX_PACKET_LENGTH}, and the packet has been dropped
+     */
+    public boolean offer(@NonNull byte[] data, long arrivalNanos) {
+        if (data.length > MAX_PACKET_LENGTH) {
+            // never truncate: the tail of a SysEx would be lost silently
+            return false;
+        }
+
+        long sequence = head.get();
+        if (sequence - tail.get() > mask) {
+            return false;
+        }
+
+        int slot = (int) (sequence & mask);
+        System.arraycopy(data, 0, slotData, slot * MAX_PACKET_LENGTH, data.length);
+        slotLength[slot] = data.length;
+        slotNanos[slot] = arrivalNanos;
+
+        // volatile write: publishes the slot, and orders before the consumer's wake up check
+        head.set(sequence + 1);
+        return true;
+    }
+
+    /**
+     * Passes all the published packets to the handler. Must be called from one consumer thread at a time.
+     *
+     * @param handler the handler
+     * @return the number of packets drained
+     */
+    public int drain(@NonNull PacketHandler handler) {
+        long sequence = tail.get();
+        long available = head.get();
+        int drained = 0;
+        while (sequence < available) {
+            int slot = (int) (sequence & mask);
+            handler.onPacket(slotData, slot * MAX_PACKET_LENGTH, slotLength[slot], slotNanos[slot]);
+            sequence++;
+            drained++;
+            // releases the slot to the producer
+            tail.lazySet(sequence);
+        }
+        return drained;
+    }
+
+    /**
+     * @return true if no packets are published
+     */
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * @return true if {@link #offer(byte[], long)} would drop the packet for the lack of space
+     */
+    public boolean isFull() {
+        return head.get() - tail.get() > mask;
+    }
+
+    /**
+     * @return the number of published packets
+     */
+    public int size() {
+        return (int) (head.get() - tail.get());
+    }
+}
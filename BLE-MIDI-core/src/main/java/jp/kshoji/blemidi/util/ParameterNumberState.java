@@ -0,0 +1,179 @@
+package jp.kshoji.blemidi.util;
+
+/**
+ * Tracks RPN/NRPN from the control changes, separately for each of the 16 channels.<br />
+ * The selected parameter numbers are kept in flat per-channel arrays, and the 14-bit values in {@link IntIntHashMap}s keyed by channel and parameter number.
+ * Handles Data Entry MSB/LSB(CC 6/38), Data Increment/Decrement(CC 96/97), NRPN(CC 98/99) and RPN(CC 100/101) parameter numbers.
+ * Not thread safe: used on the parser's thread.
+ *
+ * @author K.Shoji
+ */
+public final class ParameterNumberState {
+    /**
+     * Kind: no parameter selected, or the result is not a parameter change
+     */
+    public static final int KIND_NONE = 0;
+
+    /**
+     * Kind: Registered Parameter Number
+     */
+    public static final int KIND_RPN = 1;
+
+    /**
+     * Kind: Non-Registered Parameter Number
+     */
+    public static final int KIND_NRPN = 2;
+
+    private static final int CHANNELS = 16;
+    private static final int NULL_FUNCTION = 0x3fff;
+    private static final int MAX_VALUE = 0x3fff;
+
+    private final int[] selectedKinds = new int[CHANNELS];
+    private final int[] rpnFunctions = new int[CHANNELS];
+    private final int[] nrpnFunctions = new int[CHANNELS];
+    private final IntIntHashMap rpnValues = new IntIntHashMap();
+    private final IntIntHashMap nrpnValues = new IntIntHashMap();
+
+    // the result of the last process()
+    private int kind;
+    private int function;
+    private int value;
+
+    /**
+     * Construct instance, no parameter is selected on all channels
+     */
+    public ParameterNumberState() {
+        reset();
+    }
+
+    /**
+     * Processes a control change
+     *
+     * @param channel the channel 0-15
+     * @param control the control number 0-127
+     * @param controlValue the control value 0-127
+     * @return the kind of the changed parameter: {@link #KIND_RPN} or {@link #KIND_NRPN}, {@link #KIND_NONE} if no parameter value has been changed
+     */
+    public int process(int channel, int control, int controlValue) {
+        channel &= 0xf;
+        controlValue &= 0x7f;
+        kind = KIND_NONE;
+
+        switch (control) {
+            case 6:
+                // Data Entry MSB
+                return update(channel, controlValue << 7, 0x7f);
+            case 38:
+                // Data Entry LSB
+                return update(channel, controlValue, 0x3f80);
+            case 96:
+                // Data Increment
+                return step(channel, 1);
+            case 97:
+                // Data Decrement
+                return step(channel, -1);
+            case 98:
+                // NRPN parameter number LSB
+                nrpnFunctions[channel] = (nrpnFunctions[channel] & 0x3f80) | controlValue;
+                selectedKinds[channel] = KIND_NRPN;
+                return KIND_NONE;
+            case 99:
+                // NRPN parameter number MSB
+                nrpnFunctions[channel] = (controlValue << 7) | (nrpnFunctions[channel] & 0x7f);
+                selectedKinds[channel] = KIND_NRPN;
+                return KIND_NONE;
+            case 100:
+                // RPN parameter number LSB
+                rpnFunctions[channel] = (rpnFunctions[channel] & 0x3f80) | controlValue;
+                selectedKinds[channel] = rpnFunctions[channel] == NULL_FUNCTION ? KIND_NONE : KIND_RPN;
+                return KIND_NONE;
+            case 101:
+                // RPN parameter number MSB
+                rpnFunctions[channel] = (controlValue << 7) | (rpnFunctions[channel] & 0x7f);
+                selectedKinds[channel] = rpnFunctions[channel] == NULL_FUNCTION ? KIND_NONE : KIND_RPN;
+                return KIND_NONE;
+            default:
+                return KIND_NONE;
+        }
+    }
+
+    /**
+     * @return the kind of the parameter changed by the last {@link #process(int, int, int)}
+     */
+    public int getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the 14-bit parameter number changed by the last {@link #process(int, int, int)}
+     */
+    public int getFunction() {
+        return function;
+    }
+
+    /**
+     * @return the 14-bit value set by the last {@link #process(int, int, int)}
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * Deselects the parameters, and forgets the values on all channels
+     */
+    public void reset() {
+        for (int i = 0; i < CHANNELS; i++) {
+            selectedKinds[i] = KIND_NONE;
+            rpnFunctions[i] = NULL_FUNCTION;
+            nrpnFunctions[i] = NULL_FUNCTION;
+        }
+        rpnValues.clear();
+        nrpnValues.clear();
+        kind = KIND_NONE;
+    }
+
+    /**
+     * Replaces a part of the selected parameter's value
+     *
+     * @param channel the channel
+     * @param bits the new bits
+     * @param keepMask the bits kept from the current value
+     * @return the kind of the changed parameter
+     */
+    private int update(int channel, int bits, int keepMask) {
+        int selectedKind = selectedKinds[channel];
+        if (selectedKind == KIND_NONE) {
+            return KIND_NONE;
+        }
+        IntIntHashMap values = selectedKind == KIND_RPN ? rpnValues : nrpnValues;
+        int selectedFunction = selectedKind == KIND_RPN ? rpnFunctions[channel] : nrpnFunctions[channel];
+        int key = (channel << 14) | selectedFunction;
+        return store(selectedKind, values, key, selectedFunction, (values.get(key, 0) & keepMask) | bits);
+    }
+
+    /**
+     * Increments or decrements the selected parameter's value, stays within 0 - 0x3fff
+     *
+     * @param channel the channel
+     * @param amount the amount
+     * @return the kind of the changed parameter
+     */
+    private int step(int channel, int amount) {
+        int selectedKind = selectedKinds[channel];
+        if (selectedKind == KIND_NONE) {
+            return KIND_NONE;
+        }
+        IntIntHashMap values = selectedKind == KIND_RPN ? rpnValues : nrpnValues;
+        int selectedFunction = selectedKind == KIND_RPN ? rpnFunctions[channel] : nrpnFunctions[channel];
+        int key = (channel << 14) | selectedFunction;
+        return store(selectedKind, values, key, selectedFunction, Math.max(0, Math.min(MAX_VALUE, values.get(key, 0) + amount)));
+    }
+
+    private int store(int selectedKind, IntIntHashMap values, int key, int selectedFunction, int newValue) {
+        values.put(key, newValue);
+        kind = selectedKind;
+        function = selectedFunction;
+        value = newValue;
+        return selectedKind;
+    }
+}
@@ -0,0 +1,229 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Assembles a SysEx from the BLE MIDI packets, into a growable buffer reused for all the messages.<br />
+ * The buffer grows up to the maximum length, and is never shrunk: repeated large dumps don't resize it again.
+ * The last written byte is always kept, because it may be the timestamp of the terminating 0xf7.<br />
+ * Also keeps the last completed message for the recovery of 0xf7 which was the timestamp byte, without copying it.
+ * Not thread safe except {@link #setLimit(int, int)}: used on the parser's thread.
+ *
+ * @author K.Shoji
+ */
+public final class SystemExclusiveAssembler {
+    /**
+     * Overflow policy: the bytes over the maximum length are discarded, and the message is terminated with 0xf7
+     */
+    public static final int OVERFLOW_TRUNCATE = 0;
+
+    /**
+     * Overflow policy: the message over the maximum length is discarded
+     */
+    public static final int OVERFLOW_DROP = 1;
+
+    /**
+     * Overflow policy: the message is delivered in segments shorter than the maximum length, only the last segment ends with 0xf7
+     */
+    public static final int OVERFLOW_STREAM_THROUGH = 2;
+
+    /**
+     * {@link #write(int)} result: the byte has been accepted
+     */
+    public static final int WRITE_OK = 0;
+
+    /**
+     * {@link #write(int)} result: the segment is full, take it with {@link #getBuffer()} and {@link #getLength()}, then call {@link #consumeSegment()}
+     */
+    public static final int WRITE_SEGMENT_FULL = 1;
+
+    private static final int INITIAL_LENGTH = 1024;
+    private static final int MIN_MAX_LENGTH = 3;
+
+    private byte[] buffer = new byte[INITIAL_LENGTH];
+    private int length;
+    private int maxLength = Integer.MAX_VALUE;
+    private int overflowPolicy = OVERFLOW_TRUNCATE;
+    // set from any thread, applied at start()
+    private volatile long pendingLimit = ((long) OVERFLOW_TRUNCATE << 32) | Integer.MAX_VALUE;
+    private boolean isOverflowed;
+    private boolean isSegmented;
+
+    // the completed message for the recovery, 0 if not recoverable
+    private int recoveryLength;
+    private int recoveryByte;
+
+    /**
+     * Sets the limit, applied from the next message
+     *
+     * @param maxLength the maximum length including 0xf0 and 0xf7, 3 or more
+     * @param overflowPolicy {@link #OVERFLOW_TRUNCATE}, {@link #OVERFLOW_DROP} or {@link #OVERFLOW_STREAM_THROUGH}
+     * @throws IllegalArgumentException if the arguments are out of range
+     */
+    public void setLimit(int maxLength, int overflowPolicy) throws IllegalArgumentException {
+        checkLimit(maxLength, overflowPolicy);
+        pendingLimit = ((long) overflowPolicy << 32) | maxLength;
+    }
+
+    /**
+     * Checks the arguments of {@link #setLimit(int, int)}
+     *
+     * @param maxLength the maximum length
+     * @param overflowPolicy the overflow policy
+     * @throws IllegalArgumentException if the arguments are out of range
+     */
+    public static void checkLimit(int maxLength, int overflowPolicy) throws IllegalArgumentException {
+        if (maxLength < MIN_MAX_LENGTH) {
+            throw new IllegalArgumentException("maxLength must be " + MIN_MAX_LENGTH + " or more: " + maxLength);
+        }
+        if (overflowPolicy < OVERFLOW_TRUNCATE || overflowPolicy > OVERFLOW_STREAM_THROUGH) {
+            throw new IllegalArgumentException("Unknown overflow policy: " + overflowPolicy);
+        }
+    }
+
+    /**
+     * Starts a new message with 0xf0
+     */
+    public void start() {
+        long limit = pendingLimit;
+        maxLength = (int) limit;
+        overflowPolicy = (int) (limit >>> 32);
+        length = 0;
+        isOverflowed = false;
+        isSegmented = false;
+        recoveryLength = 0;
+        append(0xf0);
+    }
+
+    /**
+     * Writes a byte of the message
+     *
+     * @param oneByte the byte
+     * @return {@link #WRITE_OK} or {@link #WRITE_SEGMENT_FULL}
+     */
+    public int write(int oneByte) {
+        if (length < maxLength) {
+            append(oneByte);
+            if (length == maxLength && overflowPolicy == OVERFLOW_STREAM_THROUGH) {
+                return WRITE_SEGMENT_FULL;
+            }
+            return WRITE_OK;
+        }
+
+        // full: keep only the last byte
+        isOverflowed = true;
+        buffer[length - 1] = (byte) oneByte;
+        return WRITE_OK;
+    }
+
+    /**
+     * Removes the segment taken after {@link #WRITE_SEGMENT_FULL}, keeps the last byte for the next segment
+     */
+    public void consumeSegment() {
+        if (length > 0) {
+            buffer[0] = buffer[length - 1];
+            length = 1;
+        }
+        isSegmented = true;
+    }
+
+    /**
+     * Terminates the message: the last byte(the timestamp of 0xf7) is replaced with 0xf7
+     *
+     * @return the replaced byte, -1 if the message is empty
+     */
+    public int end() {
+        if (length == 0) {
+            append(0xf7);
+            return -1;
+        }
+
+        int replaced = buffer[length - 1] & 0xff;
+        buffer[length - 1] = (byte) 0xf7;
+
+        if (isOverflowed || isSegmented) {
+            recoveryLength = 0;
+        } else {
+            recoveryLength = length;
+            recoveryByte = replaced;
+        }
+        return replaced;
+    }
+
+    /**
+     * @return true if the message should be discarded by {@link #OVERFLOW_DROP}
+     */
+    public boolean isDiscarded() {
+        return isOverflowed && overflowPolicy == OVERFLOW_DROP;
+    }
+
+    /**
+     * @return true if the current message has exceeded the maximum length
+     */
+    public boolean isOverflowed() {
+        return isOverflowed;
+    }
+
+    /**
+     * @return true if the current message is being delivered in segments
+     */
+    public boolean isSegmented() {
+        return isSegmented;
+    }
+
+    /**
+     * @return true if the last completed message can be recovered
+     */
+    public boolean hasRecovery() {
+        return recoveryLength > 0;
+    }
+
+    /**
+     * Forgets the last completed message
+     */
+    public void clearRecovery() {
+        recoveryLength = 0;
+    }
+
+    /**
+     * Recovers the last completed message, whose 0xf7 was actually a timestamp byte, and terminates it with the new 0xf7.
+     *
+     * @return the timestamp byte of the new 0xf7, -1 if not recoverable
+     */
+    public int recover() {
+        if (recoveryLength == 0) {
+            return -1;
+        }
+
+        length = recoveryLength;
+        buffer[length - 1] = (byte) recoveryByte;
+        append(0xf7);
+        recoveryLength = 0;
+        return 0xf7;
+    }
+
+    /**
+     * @return the buffer, valid until the next write
+     */
+    @NonNull
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the length of the message in the buffer
+     */
+    public int getLength() {
+        return length;
+    }
+
+    private void append(int oneByte) {
+        if (length == buffer.length) {
+            int newLength = (int) Math.min((long) buffer.length * 2, Math.max((long) maxLength, length + 1L));
+            buffer = Arrays.copyOf(buffer, Math.max(newLength, length + 1));
+        }
+        buffer[length++] = (byte) oneByte;
+    }
+}
@@ -0,0 +1,153 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiSystemExclusiveStreamListener;
+
+/**
+ * Delivers a SysEx to {@link OnMidiSystemExclusiveStreamListener} in chunks, while the packets are parsed.<br />
+ * Only one chunk buffer is used regardless of the message length.
+ * The last written byte is held until the next byte, because it may be the timestamp of the terminating 0xf7.
+ * The end is held until the next byte too, for the recovery of 0xf7 which was the timestamp byte.
+ * Not thread safe: used on the parser's thread.
+ *
+ * @author K.Shoji
+ */
+public final class SystemExclusiveStreamer {
+    private static final int CHUNK_LENGTH = 256;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_STREAMING = 1;
+    private static final int STATE_ENDING = 2;
+
+    private final MidiInputDevice sender;
+    private final byte[] chunk = new byte[CHUNK_LENGTH];
+    private int chunkLength;
+    private int heldByte = -1;
+    private int state = STATE_IDLE;
+
+    // the listener of the current message
+    private OnMidiSystemExclusiveStreamListener listener;
+
+    /**
+     * Constructor
+     *
+     * @param sender the device to be passed to the listener
+     */
+    public SystemExclusiveStreamer(@NonNull MidiInputDevice sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Starts a new message, after 0xf0
+     *
+     * @param listener the listener for this message, null not to stream it
+     */
+    public void begin(@Nullable OnMidiSystemExclusiveStreamListener listener) {
+        finish();
+        abort();
+
+        if (listener == null) {
+            return;
+        }
+        this.listener = listener;
+        chunkLength = 0;
+        heldByte = -1;
+        state = STATE_STREAMING;
+        listener.onMidiSystemExclusiveBegin(sender);
+    }
+
+    /**
+     * Writes a byte of the message
+     *
+     * @param oneByte the byte
+     */
+    public void write(int oneByte) {
+        if (state != STATE_STREAMING) {
+            return;
+        }
+        if (heldByte >= 0) {
+            append(heldByte);
+        }
+        heldByte = oneByte;
+    }
+
+    /**
+     * Terminates the message at 0xf7: the held byte is the timestamp, the end is delivered with {@link #finish()}
+     */
+    public void end() {
+        if (state != STATE_STREAMING) {
+            return;
+        }
+        state = STATE_ENDING;
+    }
+
+    /**
+     * Recovers the terminated message, whose 0xf7 was actually a timestamp byte, and ends it.
+     */
+    public void recover() {
+        if (state != STATE_ENDING) {
+            return;
+        }
+        if (heldByte >= 0) {
+            append(heldByte);
+            heldByte = -1;
+        }
+        finish();
+    }
+
+    /**
+     * Delivers the end of the terminated message, if exists
+     */
+    public void finish() {
+        if (state != STATE_ENDING) {
+            return;
+        }
+        flushChunk();
+        state = STATE_IDLE;
+        OnMidiSystemExclusiveStreamListener endedListener = listener;
+        listener = null;
+        endedListener.onMidiSystemExclusiveEnd(sender);
+    }
+
+    /**
+     * Delivers the data received so far, except the held byte. Called at the end of each packet.
+     */
+    public void flush() {
+        if (state == STATE_STREAMING) {
+            flushChunk();
+        } else {
+            finish();
+        }
+    }
+
+    /**
+     * Aborts the message in progress, if exists
+     */
+    public void abort() {
+        if (state != STATE_STREAMING) {
+            return;
+        }
+        state = STATE_IDLE;
+        OnMidiSystemExclusiveStreamListener abortedListener = listener;
+        listener = null;
+        abortedListener.onMidiSystemExclusiveAbort(sender);
+    }
+
+    private void append(int oneByte) {
+        chunk[chunkLength++] = (byte) oneByte;
+        if (chunkLength == CHUNK_LENGTH) {
+            flushChunk();
+        }
+    }
+
+    private void flushChunk() {
+        if (chunkLength > 0) {
+            int length = chunkLength;
+            chunkLength = 0;
+            listener.onMidiSystemExclusiveChunk(sender, chunk, 0, length);
+        }
+    }
+}
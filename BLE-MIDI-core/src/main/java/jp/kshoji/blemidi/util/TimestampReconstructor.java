@@ -0,0 +1,70 @@
+package jp.kshoji.blemidi.util;
+
+/**
+ * Reconstructs the sender's performance time of the messages on the {@link System#nanoTime()} timeline.<br />
+ * The 13-bit BLE MIDI timestamps are unwrapped into a continuous sender clock: the timestamp rolls over every 8192 ms, so the difference taken is the one nearest to the time elapsed between the arrivals,
+ * which keeps the clock across the pauses of any length. The sender clock is mapped with the smallest transmission delay observed:
+ * the message received with the least delay is taken as sent at its arrival. The delay estimate relaxes slowly to follow the drift of the sender's clock.
+ * The reconstructed times never go backwards, and never come after the arrival of the packet.
+ * Not thread safe: used on the parser's thread.
+ *
+ * @author K.Shoji
+ */
+public final class TimestampReconstructor {
+    private static final int MAX_TIMESTAMP = 8192;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    // the drift allowed between the sender's and the receiver's clocks, 100 ppm
+    private static final long DRIFT_DIVISOR = 10000L;
+
+    private boolean isStarted;
+    private int lastTimestamp;
+    private long senderMillis;
+    private long offsetNanos;
+    private long lastArrivalNanos;
+    private long lastEventTimeNanos;
+
+    /**
+     * Forgets the sender's clock, called when the connection is reset
+     */
+    public void reset() {
+        isStarted = false;
+    }
+
+    /**
+     * Reconstructs the time of a message
+     *
+     * @param timestamp the 13-bit BLE MIDI timestamp of the message
+     * @param arrivalNanos {@link System#nanoTime()} of the packet arrival
+     * @return the time the sender played the message, on the {@link System#nanoTime()} timeline
+     */
+    public long reconstruct(int timestamp, long arrivalNanos) {
+        timestamp &= MAX_TIMESTAMP - 1;
+        if (!isStarted) {
+            isStarted = true;
+            lastTimestamp = timestamp;
+            senderMillis = 0;
+            offsetNanos = arrivalNanos;
+            lastArrivalNanos = arrivalNanos;
+            lastEventTimeNanos = arrivalNanos;
+            return arrivalNanos;
+        }
+
+        // the difference rolled over at 8192, nearest to the elapsed time: -4096..4095 ms around it
+        long elapsedMillis = (arrivalNanos - lastArrivalNanos) / NANOS_PER_MILLI;
+        long difference = elapsedMillis + (((timestamp - lastTimestamp - elapsedMillis + MAX_TIMESTAMP / 2) & (MAX_TIMESTAMP - 1)) - MAX_TIMESTAMP / 2);
+        lastTimestamp = timestamp;
+        senderMillis += difference;
+
+        long senderNanos = senderMillis * NANOS_PER_MILLI;
+        offsetNanos += (arrivalNanos - lastArrivalNanos) / DRIFT_DIVISOR;
+        lastArrivalNanos = arrivalNanos;
+        if (arrivalNanos - senderNanos < offsetNanos) {
+            // less delay than ever
+            offsetNanos = arrivalNanos - senderNanos;
+        }
+
+        long eventTimeNanos = Math.min(Math.max(senderNanos + offsetNanos, lastEventTimeNanos), arrivalNanos);
+        lastEventTimeNanos = eventTimeNanos;
+        return eventTimeNanos;
+    }
+}
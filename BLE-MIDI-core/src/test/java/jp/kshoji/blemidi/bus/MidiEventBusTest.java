@@ -0,0 +1,96 @@
+package jp.kshoji.blemidi.bus;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.kshoji.blemidi.device.LoopbackMidiDevice;
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiDataListener;
+import jp.kshoji.blemidi.util.MidiMessageType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class MidiEventBusTest {
+
+    private static final class DataCollector implements OnMidiDataListener {
+        final List<MidiInputDevice> senders = new ArrayList<>();
+
+        @Override
+        public void onMidiData(MidiInputDevice device, byte[] data) {
+            senders.add(device);
+        }
+    }
+
+    @Test
+    public void subscribeData_receivesPacketsOfAttachedDevices() {
+        LoopbackMidiDevice first = new LoopbackMidiDevice("first", "00:00:00:00:00:01");
+        LoopbackMidiDevice second = new LoopbackMidiDevice("second", "00:00:00:00:00:02");
+        MidiEventBus bus = new MidiEventBus();
+        first.getMidiInputDevice().setOnMidiDataListener(bus);
+        second.getMidiInputDevice().setOnMidiDataListener(bus);
+
+        DataCollector all = new DataCollector();
+        DataCollector secondOnly = new DataCollector();
+        bus.subscribeData(all, MidiEventFilter.all());
+        bus.subscribeData(secondOnly, MidiEventFilter.all().withDevices("00:00:00:00:00:02"));
+
+        // echoed synchronously
+        first.getMidiOutputDevice().sendMidiNoteOn(0, 60, 100);
+        second.getMidiOutputDevice().sendMidiNoteOn(0, 60, 100);
+
+        assertEquals(2, all.senders.size());
+        assertSame(first.getMidiInputDevice(), all.senders.get(0));
+        assertSame(second.getMidiInputDevice(), all.senders.get(1));
+        assertEquals(1, secondOnly.senders.size());
+        assertSame(second.getMidiInputDevice(), secondOnly.senders.get(0));
+
+        bus.unsubscribeData(all);
+        first.getMidiOutputDevice().sendMidiNoteOn(0, 62, 100);
+        assertEquals(2, all.senders.size());
+
+        first.terminate();
+        second.terminate();
+    }
+
+    @Test
+    public void subscribe_notifiesUnionOfTypeMasks() {
+        MidiEventBus bus = new MidiEventBus();
+        final List<Integer> notified = new ArrayList<>();
+        bus.addOnTypeMaskChangedListener(new MidiEventBus.OnTypeMaskChangedListener() {
+            @Override
+            public void onTypeMaskChanged(MidiEventBus bus, int typeMask) {
+                notified.add(typeMask);
+            }
+        });
+
+        // another bus serves as a plain event listener
+        MidiEventBus notes = new MidiEventBus();
+        MidiEventBus controls = new MidiEventBus();
+        MidiEventBus moreNotes = new MidiEventBus();
+        assertEquals(0, bus.getTypeMask());
+
+        bus.subscribe(notes, MidiEventFilter.types(MidiMessageType.NOTE_ON | MidiMessageType.NOTE_OFF));
+        bus.subscribe(controls, MidiEventFilter.types(MidiMessageType.CONTROL_CHANGE));
+        int union = MidiMessageType.NOTE_ON | MidiMessageType.NOTE_OFF | MidiMessageType.CONTROL_CHANGE;
+        assertEquals(union, bus.getTypeMask());
+
+        // unchanged union, no notification
+        bus.subscribe(moreNotes, MidiEventFilter.types(MidiMessageType.NOTE_ON));
+        bus.subscribeData(new DataCollector(), MidiEventFilter.all());
+        bus.unsubscribe(moreNotes);
+        assertEquals(2, notified.size());
+
+        bus.unsubscribe(controls);
+        assertEquals(MidiMessageType.NOTE_ON | MidiMessageType.NOTE_OFF, bus.getTypeMask());
+        bus.unsubscribe(notes);
+        assertEquals(0, bus.getTypeMask());
+
+        assertEquals(4, notified.size());
+        assertEquals(MidiMessageType.NOTE_ON | MidiMessageType.NOTE_OFF, (int) notified.get(0));
+        assertEquals(union, (int) notified.get(1));
+        assertEquals(0, (int) notified.get(3));
+    }
+}
@@ -0,0 +1,145 @@
+package jp.kshoji.blemidi.capture;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiDataListener;
+import jp.kshoji.blemidi.listener.OnMidiEventBatchListener;
+import jp.kshoji.blemidi.util.MidiEventBatch;
+import jp.kshoji.blemidi.util.MidiMessageType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PacketRecorderTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void close_keepsEveryAcceptedRecord() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            File logFile = temporaryFolder.newFile();
+            final PacketRecorder recorder = new PacketRecorder(logFile, 64);
+            final AtomicLong accepted = new AtomicLong();
+            final CountDownLatch started = new CountDownLatch(4);
+
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final String address = "00:00:00:00:00:0" + i;
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        byte[] packet = {(byte) 0x80, (byte) 0x80, (byte) 0x90, 60, 100};
+                        for (int j = 0; j < 100000; j++) {
+                            if (recorder.record(PacketRecorder.DIRECTION_RECEIVED, address, packet, System.nanoTime())) {
+                                accepted.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+
+            started.await();
+            recorder.close();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertEquals(accepted.get(), recorder.getRecordedPackets());
+            assertEquals(accepted.get(), countRecords(logFile));
+        }
+    }
+
+    @Test
+    public void record_afterClose_isRejected() throws Exception {
+        File logFile = temporaryFolder.newFile();
+        PacketRecorder recorder = new PacketRecorder(logFile);
+        recorder.close();
+
+        assertFalse(recorder.record(PacketRecorder.DIRECTION_RECEIVED, "00:00:00:00:00:00", new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0xf8}, 0));
+        assertEquals(0, countRecords(logFile));
+    }
+
+    @Test
+    public void replayer_forwardsSettingsToEveryDevice() throws Exception {
+        File logFile = temporaryFolder.newFile();
+        PacketRecorder recorder = new PacketRecorder(logFile);
+        recorder.record(PacketRecorder.DIRECTION_RECEIVED, "00:00:00:00:00:01", new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x90, 60, 100}, 0);
+        recorder.record(PacketRecorder.DIRECTION_RECEIVED, "00:00:00:00:00:02", new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0xb0, 7, 100}, 0);
+        recorder.close();
+
+        final List<String> dataSenders = new ArrayList<>();
+        final List<String> events = new ArrayList<>();
+        final CountDownLatch batches = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        PacketReplayer replayer = new PacketReplayer(logFile);
+        replayer.setSpeed(0);
+        // control changes discarded, the note is received on the batch listener
+        replayer.setMessageDropMask(MidiMessageType.CONTROL_CHANGE);
+        replayer.setOnMidiEventBatchListener(new OnMidiEventBatchListener() {
+            @Override
+            public void onMidiEventBatch(@NonNull MidiInputDevice sender, @NonNull MidiEventBatch batch) {
+                synchronized (events) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        events.add(sender.getDeviceAddress() + " " + Integer.toHexString(batch.getStatus(i)));
+                        if (batch.getStatus(i) == 0x80) {
+                            released.countDown();
+                        }
+                    }
+                }
+                batches.countDown();
+            }
+        });
+        replayer.setOnMidiDataListener(new OnMidiDataListener() {
+            @Override
+            public void onMidiData(MidiInputDevice sender, byte[] data) {
+                dataSenders.add(sender.getDeviceAddress());
+            }
+        });
+
+        assertEquals(2, replayer.replay());
+        batches.await();
+        // the control change would have been dispatched together with the note
+        Thread.sleep(100);
+        replayer.terminate();
+        assertTrue(released.await(5, TimeUnit.SECONDS));
+
+        assertEquals(2, dataSenders.size());
+        assertEquals("00:00:00:00:00:01", dataSenders.get(0));
+        assertEquals("00:00:00:00:00:02", dataSenders.get(1));
+        synchronized (events) {
+            // the note held is released by terminate()
+            assertEquals(2, events.size());
+            assertEquals("00:00:00:00:00:01 90", events.get(0));
+            assertEquals("00:00:00:00:00:01 80", events.get(1));
+        }
+    }
+
+    private static long countRecords(@NonNull File logFile) throws Exception {
+        PacketLogReader reader = new PacketLogReader(logFile);
+        try {
+            long count = 0;
+            while (reader.next()) {
+                count++;
+            }
+            return count;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package jp.kshoji.blemidi.clock;
+
+import org.junit.Test;
+
+import jp.kshoji.blemidi.device.TestMidiInputDevice;
+import jp.kshoji.blemidi.util.MidiMessageType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MidiClockTrackerTest {
+
+    private static byte[] packet(int timestamp, int status) {
+        return new byte[] {(byte) (0x80 | ((timestamp >> 7) & 0x3f)), (byte) (0x80 | (timestamp & 0x7f)), (byte) status};
+    }
+
+    @Test
+    public void onTimingClock_locksToSteadyTicks() {
+        MidiClockTracker tracker = new MidiClockTracker();
+        tracker.onStart();
+        // 125 bpm: 20 ms per tick
+        for (int i = 0; i < 48; i++) {
+            tracker.onTimingClock(1000L + i * 20);
+        }
+
+        assertTrue(tracker.isLocked());
+        assertEquals(125.0, tracker.getBpm(), 0.5);
+        assertEquals(47, tracker.getTickPosition());
+    }
+
+    @Test
+    public void device_feedsTrackerFromParser() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        // the tracker is fed even if the clock is not dispatched to the listeners
+        device.setMessageDropMask(MidiMessageType.SYSTEM_REALTIME);
+        MidiClockTracker tracker = new MidiClockTracker();
+        device.setMidiClockTracker(tracker);
+
+        device.receive(packet(0, 0xfa));
+        for (int i = 0; i < 30; i++) {
+            device.receive(packet(i * 20, 0xf8));
+            Thread.sleep(20);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (tracker.getTickPosition() < 29 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        device.stop();
+
+        assertTrue(tracker.isRunning());
+        assertEquals(29, tracker.getTickPosition());
+        assertTrue(tracker.isLocked());
+        assertEquals(125.0, tracker.getBpm(), 10.0);
+    }
+}
@@ -0,0 +1,220 @@
+package jp.kshoji.blemidi.device;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jp.kshoji.blemidi.listener.OnMidiDataListener;
+import jp.kshoji.blemidi.listener.OnMidiEventBatchListener;
+import jp.kshoji.blemidi.state.ActiveNoteTracker;
+import jp.kshoji.blemidi.state.ControllerStateMirror;
+import jp.kshoji.blemidi.util.MidiEventBatch;
+import jp.kshoji.blemidi.util.MidiMessageType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParserBackedMidiInputDeviceTest {
+
+    /**
+     * Collects the events as "status data1 data2", counts down on each note-on
+     */
+    private static final class Collector implements OnMidiEventBatchListener {
+        final List<String> events = new ArrayList<>();
+        final CountDownLatch noteOns;
+
+        Collector(int noteOns) {
+            this.noteOns = new CountDownLatch(noteOns);
+        }
+
+        @Override
+        public void onMidiEventBatch(@NonNull MidiInputDevice sender, @NonNull MidiEventBatch batch) {
+            synchronized (events) {
+                for (int i = 0; i < batch.size(); i++) {
+                    events.add(Integer.toHexString(batch.getStatus(i)) + " " + batch.getData1(i) + " " + batch.getData2(i));
+                    if ((batch.getStatus(i) & 0xf0) == 0x90) {
+                        noteOns.countDown();
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void stop_releasesHeldNotes() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        Collector collector = new Collector(2);
+        device.setOnMidiEventBatchListener(collector);
+
+        // note on 60 and 64 on channel 1, note on 67 and off 1 ms later on channel 2
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x90, 60, 100, 64, 100});
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x91, 67, 100, (byte) 0x81, (byte) 0x81, 67, 0});
+        assertTrue(collector.noteOns.await(5, TimeUnit.SECONDS));
+        waitForEvents(collector, 4);
+
+        device.stop();
+        waitForEvents(collector, 6);
+
+        synchronized (collector.events) {
+            List<String> released = collector.events.subList(4, collector.events.size());
+            assertEquals(2, released.size());
+            assertTrue(released.contains("80 60 0"));
+            assertTrue(released.contains("80 64 0"));
+        }
+        assertEquals(0, device.getActiveNotes().getActiveNoteCount());
+    }
+
+    @Test
+    public void stop_releasesWithAllNotesOff() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        device.getActiveNotes().setReleaseMode(ActiveNoteTracker.RELEASE_ALL_NOTES_OFF);
+        Collector collector = new Collector(1);
+        device.setOnMidiEventBatchListener(collector);
+
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x93, 60, 100, 62, 100});
+        assertTrue(collector.noteOns.await(5, TimeUnit.SECONDS));
+        waitForEvents(collector, 2);
+
+        device.stop();
+        waitForEvents(collector, 3);
+
+        synchronized (collector.events) {
+            assertEquals(3, collector.events.size());
+            assertEquals("b3 123 0", collector.events.get(2));
+        }
+    }
+
+    @Test
+    public void stop_releasesAfterNoteOnsWaiting() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        Collector collector = new Collector(2);
+        device.setOnMidiEventBatchListener(collector);
+
+        // stopped while the note-ons wait for parsing or for their timing
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x90, 60, 100, (byte) 0x8a, (byte) 0x90, 62, 100});
+        device.stop();
+        waitForEvents(collector, 4);
+
+        synchronized (collector.events) {
+            assertEquals(4, collector.events.size());
+            assertEquals("90 60 100", collector.events.get(0));
+            assertEquals("90 62 100", collector.events.get(1));
+            assertTrue(collector.events.subList(2, 4).contains("80 60 0"));
+            assertTrue(collector.events.subList(2, 4).contains("80 62 0"));
+        }
+    }
+
+    @Test
+    public void releaseActiveNotes_onParserThread() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        final List<Thread> threads = new ArrayList<>();
+        final CountDownLatch released = new CountDownLatch(1);
+        device.setOnMidiEventBatchListener(new OnMidiEventBatchListener() {
+            @Override
+            public void onMidiEventBatch(@NonNull MidiInputDevice sender, @NonNull MidiEventBatch batch) {
+                synchronized (threads) {
+                    threads.add(Thread.currentThread());
+                }
+                if (batch.getStatus(0) == 0x80) {
+                    released.countDown();
+                }
+            }
+        });
+
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x90, 60, 100});
+        device.releaseActiveNotes();
+        assertTrue(released.await(5, TimeUnit.SECONDS));
+
+        synchronized (threads) {
+            // the note-on, then the release on the same thread
+            assertEquals(2, threads.size());
+            assertEquals(threads.get(0), threads.get(1));
+            assertTrue(threads.get(0) != Thread.currentThread());
+        }
+        assertEquals(0, device.getActiveNotes().getActiveNoteCount());
+        device.stop();
+    }
+
+    @Test
+    public void stop_withoutParser_doesNothing() {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x90, 60, 100});
+        device.stop();
+
+        // parsing is not started once stopped
+        device.setOnMidiEventBatchListener(new Collector(0));
+        assertEquals(0, device.getActiveNotes().getActiveNoteCount());
+    }
+
+    @Test
+    public void state_trackedForDroppedMessages() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        device.setMessageDropMask(MidiMessageType.CONTROL_CHANGE | MidiMessageType.NOTE_OFF);
+        Collector collector = new Collector(1);
+        device.setOnMidiEventBatchListener(collector);
+
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0xb0, 7, 90, (byte) 0x80, (byte) 0x90, 60, 100});
+        assertTrue(collector.noteOns.await(5, TimeUnit.SECONDS));
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x81, (byte) 0x80, 60, 0});
+        assertTrue(waitUntilReleased(device, 0, 60));
+
+        assertEquals(90, device.getControllerState().snapshot().getControlChange(0, 7));
+        synchronized (collector.events) {
+            assertEquals(1, collector.events.size());
+        }
+        device.stop();
+    }
+
+    @Test
+    public void state_trackedWithDataListenerOnly() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        final CountDownLatch received = new CountDownLatch(1);
+        device.setOnMidiDataListener(new OnMidiDataListener() {
+            @Override
+            public void onMidiData(MidiInputDevice sender, byte[] data) {
+                received.countDown();
+            }
+        });
+        // as connected
+        device.startStateTracking();
+
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0xb3, 1, 64});
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        // read by a consumer attaching later
+        ControllerStateMirror state = device.getControllerState();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (state.snapshot().getControlChange(3, 1) != 64 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(64, state.snapshot().getControlChange(3, 1));
+        device.stop();
+    }
+
+    private static boolean waitUntilReleased(@NonNull MidiInputDevice device, int channel, int note) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (!device.getActiveNotes().isNoteOn(channel, note)) {
+                return true;
+            }
+            Thread.sleep(5);
+        }
+        return false;
+    }
+
+    private static void waitForEvents(@NonNull Collector collector, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (collector.events) {
+                if (collector.events.size() >= count) {
+                    return;
+                }
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package jp.kshoji.blemidi.device;
+
+import android.support.annotation.NonNull;
+
+/**
+ * {@link ParserBackedMidiInputDevice} fed directly by the tests
+ *
+ * @author K.Shoji
+ */
+public final class TestMidiInputDevice extends ParserBackedMidiInputDevice {
+
+    /**
+     * Feeds a packet as received, waits for the space of the parser's buffer
+     *
+     * @param data BLE MIDI packet
+     */
+    public void receive(@NonNull byte[] data) {
+        incomingData(data, System.nanoTime(), true);
+    }
+
+    @NonNull
+    @Override
+    public String getDeviceName() {
+        return "Test";
+    }
+
+    @NonNull
+    @Override
+    public String getDeviceAddress() {
+        return "00:00:00:00:00:00";
+    }
+}
@@ -0,0 +1,102 @@
+package jp.kshoji.blemidi.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.kshoji.blemidi.device.LoopbackMidiDevice;
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiTimestampedMessageListener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyProbeTest {
+
+    /**
+     * Creates the echoed probe message
+     */
+    private static byte[] probeMessage(long sentMicros) {
+        byte[] message = new byte[12];
+        message[0] = (byte) 0xf0;
+        message[1] = 0x7d;
+        message[2] = 0x4c;
+        message[3] = 0x50;
+        for (int i = 0; i < 5; i++) {
+            message[6 + i] = (byte) ((sentMicros >> (7 * (4 - i))) & 0x7f);
+        }
+        message[11] = (byte) 0xf7;
+        return message;
+    }
+
+    @Test
+    public void onSystemExclusive_clockOffsetFromArrivalTime() {
+        LoopbackMidiDevice device = new LoopbackMidiDevice("probe", "00:00:00:00:00:00");
+        LatencyProbe probe = new LatencyProbe(device.getMidiOutputDevice());
+
+        // arrived 1000 s after the boot, parsed much later: sent 20 ms before the arrival
+        long arrivalNanos = 1000000L * 1000000L;
+        long sentMicros = arrivalNanos / 1000 - 20000;
+        // the peripheral's clock is 100 ms ahead of the midpoint
+        int senderTimestamp = (int) ((arrivalNanos / 1000000 - 10 + 100) % 8192);
+        assertTrue(probe.onSystemExclusive(probeMessage(sentMicros), senderTimestamp, arrivalNanos));
+
+        LatencyProbe.Result result = probe.getResult();
+        assertEquals(1, result.getProbesReceived());
+        assertEquals(20000, result.getRoundTripTime().getValueAtPercentile(50), 20000 / 50);
+        assertEquals(100, result.getClockOffsetMillis());
+        device.terminate();
+    }
+
+    @Test
+    public void onSystemExclusive_ignoresOtherSysEx() {
+        LoopbackMidiDevice device = new LoopbackMidiDevice("probe", "00:00:00:00:00:00");
+        LatencyProbe probe = new LatencyProbe(device.getMidiOutputDevice());
+
+        assertFalse(probe.onSystemExclusive(new byte[] {(byte) 0xf0, 0x7e, 0x7f, 0x06, 0x01, (byte) 0xf7}, 0, System.nanoTime()));
+        assertEquals(0, probe.getResult().getProbesReceived());
+        device.terminate();
+    }
+
+    @Test
+    public void sendProbe_roundTripThroughParser() throws Exception {
+        LoopbackMidiDevice device = new LoopbackMidiDevice("probe", "00:00:00:00:00:00");
+        device.setEchoDelayMillis(20);
+        LatencyProbe probe = new LatencyProbe(device.getMidiOutputDevice());
+        device.getMidiInputDevice().setLatencyProbe(probe);
+        final AtomicInteger delivered = new AtomicInteger();
+        device.getMidiInputDevice().setOnMidiTimestampedMessageListener(new OnMidiTimestampedMessageListener() {
+            @Override
+            public void onMidiMessage(MidiInputDevice sender, byte[] message, int offset, int length, int bleTimestamp, long eventTimeNanos) {
+                delivered.incrementAndGet();
+            }
+        });
+
+        int probes = 20;
+        for (int i = 0; i < probes; i++) {
+            probe.sendProbe();
+            Thread.sleep(5);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (probe.getResult().getProbesReceived() < probes && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        LatencyProbe.Result result = probe.getResult();
+        assertEquals(probes, result.getProbesSent());
+        assertEquals(probes, result.getProbesReceived());
+        assertEquals(0, result.getProbesMissing());
+        LatencyHistogram.Snapshot roundTripTime = result.getRoundTripTime();
+        assertEquals(probes, roundTripTime.getCount());
+        // never faster than the echo delay, and not held by the playback buffering
+        long median = roundTripTime.getValueAtPercentile(50);
+        long tail = roundTripTime.getValueAtPercentile(99);
+        assertTrue("p50=" + median, median >= 20000 && median < 200000);
+        assertTrue("p99=" + tail, tail >= median && tail <= roundTripTime.getMax());
+        assertEquals(median / 2, result.getOneWayLatencyEstimateMicros());
+        // the probes are consumed by the probe
+        assertEquals(0, delivered.get());
+        device.terminate();
+    }
+}
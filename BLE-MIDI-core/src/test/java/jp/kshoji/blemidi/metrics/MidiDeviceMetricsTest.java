@@ -0,0 +1,56 @@
+package jp.kshoji.blemidi.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MidiDeviceMetricsTest {
+
+    @Test
+    public void onDisconnected_countedOnceForEachConnection() {
+        MidiDeviceMetrics metrics = new MidiDeviceMetrics();
+        // not connected yet
+        metrics.onDisconnected();
+        assertEquals(0, metrics.snapshot().getDisconnections());
+
+        metrics.onConnected();
+        // the provider's disconnect, then the connection state callback
+        metrics.onDisconnected();
+        metrics.onDisconnected();
+        assertEquals(1, metrics.snapshot().getDisconnections());
+
+        metrics.onConnected();
+        metrics.onDisconnected();
+        assertEquals(2, metrics.snapshot().getDisconnections());
+        assertEquals(1, metrics.snapshot().getReconnects());
+    }
+
+    @Test
+    public void setQueueDepth_keepsMaximumFromThreads() throws Exception {
+        final MidiDeviceMetrics metrics = new MidiDeviceMetrics();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int depth = 0; depth < 100000; depth++) {
+                        metrics.setQueueDepth(depth * threads.length + offset);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(99999 * threads.length + threads.length - 1, metrics.snapshot().getMaxQueueDepth());
+
+        metrics.setQueueDepth(3);
+        metrics.resetHistograms();
+        assertEquals(3, metrics.snapshot().getMaxQueueDepth());
+    }
+}
@@ -0,0 +1,69 @@
+package jp.kshoji.blemidi.simulator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiDataListener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SimulatedBlePeripheralTest {
+
+    @Test
+    public void notifications_coalescedAndDeliveredToCentral() {
+        SimulatedBlePeripheral peripheral = new SimulatedBlePeripheral("Simulated", "00:00:00:00:00:01", 1);
+        final List<byte[]> received = new ArrayList<>();
+        peripheral.getMidiInputDevice().setOnMidiDataListener(new OnMidiDataListener() {
+            @Override
+            public void onMidiData(MidiInputDevice sender, byte[] data) {
+                received.add(data);
+            }
+        });
+
+        peripheral.getPeripheralMidiOutputDevice().sendMidiNoteOn(0, 60, 100);
+        peripheral.getPeripheralMidiOutputDevice().sendMidiNoteOn(0, 64, 100);
+        peripheral.runConnectionEvents(1);
+        peripheral.terminate();
+
+        long notifications = peripheral.getMidiInputDevice().getMetrics().snapshot().getPacketsReceived();
+        assertEquals(received.size(), notifications);
+        int messageBytes = 0;
+        for (byte[] packet : received) {
+            messageBytes += packet.length;
+        }
+        // both note-ons arrived, in one notification if they share the timestamp header
+        assertTrue(messageBytes >= 1 + 2 * 4 - 1);
+        assertEquals(0, peripheral.getDroppedNotifications());
+    }
+
+    @Test
+    public void writes_rejectedWhileDisconnected() {
+        SimulatedBlePeripheral peripheral = new SimulatedBlePeripheral("Simulated", "00:00:00:00:00:01", 1);
+        final List<byte[]> received = new ArrayList<>();
+        peripheral.getPeripheralMidiInputDevice().setOnMidiDataListener(new OnMidiDataListener() {
+            @Override
+            public void onMidiData(MidiInputDevice sender, byte[] data) {
+                received.add(data);
+            }
+        });
+        peripheral.setReconnectDelayEvents(-1);
+
+        peripheral.getMidiOutputDevice().sendMidiControlChange(0, 7, 100);
+        peripheral.runConnectionEvents(1);
+        assertEquals(1, received.size());
+
+        peripheral.disconnect();
+        assertFalse(peripheral.isConnected());
+        peripheral.getMidiOutputDevice().sendMidiControlChange(0, 7, 101);
+        peripheral.runConnectionEvents(1);
+        peripheral.terminate();
+
+        assertEquals(1, received.size());
+        assertEquals(1, peripheral.getRejectedWrites());
+    }
+}
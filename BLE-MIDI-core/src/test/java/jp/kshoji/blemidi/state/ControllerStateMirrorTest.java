@@ -0,0 +1,89 @@
+package jp.kshoji.blemidi.state;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ControllerStateMirrorTest {
+
+    @Test
+    public void apply_mirrorsChannelValues() {
+        ControllerStateMirror mirror = new ControllerStateMirror();
+        mirror.apply(0xb2, 7, 100);
+        mirror.apply(0xc2, 5, 0);
+        mirror.apply(0xd2, 64, 0);
+        mirror.apply(0xe2, 0x00, 0x50);
+
+        ControllerState state = mirror.snapshot();
+        assertEquals(100, state.getControlChange(2, 7));
+        assertEquals(5, state.getProgram(2));
+        assertEquals(64, state.getChannelPressure(2));
+        assertEquals(0x50 << 7, state.getPitchBend(2));
+        assertEquals(ControllerStateMirror.UNKNOWN, state.getControlChange(3, 7));
+        assertEquals(4, state.getVersion());
+    }
+
+    @Test
+    public void apply_resetAllControllers() {
+        ControllerStateMirror mirror = new ControllerStateMirror();
+        mirror.apply(0xb0, 1, 90);
+        mirror.apply(0xb0, 64, 127);
+        mirror.apply(0xb0, 7, 80);
+        mirror.apply(0xe0, 0, 0);
+        mirror.apply(0xb0, 121, 0);
+
+        ControllerState state = mirror.snapshot();
+        assertEquals(0, state.getControlChange(0, 1));
+        assertEquals(0, state.getControlChange(0, 64));
+        assertEquals(127, state.getControlChange(0, 11));
+        assertEquals(8192, state.getPitchBend(0));
+        // volume is not reset
+        assertEquals(80, state.getControlChange(0, 7));
+    }
+
+    @Test
+    public void reset_forgetsValues() {
+        ControllerStateMirror mirror = new ControllerStateMirror();
+        mirror.apply(0xb0, 7, 100);
+        mirror.reset();
+        assertEquals(ControllerStateMirror.UNKNOWN, mirror.snapshot().getControlChange(0, 7));
+    }
+
+    @Test
+    public void snapshot_neverSeesMessageHalfApplied() throws Exception {
+        final ControllerStateMirror mirror = new ControllerStateMirror();
+        final AtomicBoolean isRunning = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (isRunning.get()) {
+                    mirror.apply(0xb0, 1, 127);
+                    mirror.apply(0xb0, 11, 0);
+                    // sets modulation 0 and expression 127 at once
+                    mirror.apply(0xb0, 121, 0);
+                }
+            }
+        });
+        writer.start();
+
+        boolean isTorn = false;
+        int lastVersion = 0;
+        try {
+            for (int i = 0; i < 100000 && !isTorn; i++) {
+                ControllerState state = mirror.snapshot();
+                // modulation 0 with expression 0: Reset All Controllers only half applied
+                isTorn = state.getControlChange(0, 1) == 0 && state.getControlChange(0, 11) == 0;
+                assertTrue(state.getVersion() >= lastVersion);
+                lastVersion = state.getVersion();
+            }
+        } finally {
+            isRunning.set(false);
+            writer.join();
+        }
+        assertFalse(isTorn);
+    }
+}
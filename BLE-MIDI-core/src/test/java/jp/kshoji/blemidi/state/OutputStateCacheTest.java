@@ -0,0 +1,116 @@
+package jp.kshoji.blemidi.state;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutputStateCacheTest {
+
+    @Test
+    public void updateControlChange_skipsUnchangedValue() {
+        OutputStateCache cache = new OutputStateCache();
+        assertTrue(cache.updateControlChange(0, 7, 100));
+        assertFalse(cache.updateControlChange(0, 7, 100));
+        assertTrue(cache.updateControlChange(0, 7, 101));
+        // other channel
+        assertTrue(cache.updateControlChange(1, 7, 100));
+    }
+
+    @Test
+    public void updateControlChange_alwaysSendsDataEntryAndChannelMode() {
+        OutputStateCache cache = new OutputStateCache();
+        assertTrue(cache.updateControlChange(0, 6, 1));
+        assertTrue(cache.updateControlChange(0, 6, 1));
+        assertTrue(cache.updateControlChange(0, 101, 0));
+        assertTrue(cache.updateControlChange(0, 101, 0));
+        assertTrue(cache.updateControlChange(0, 123, 0));
+        assertTrue(cache.updateControlChange(0, 123, 0));
+    }
+
+    @Test
+    public void updateControlChange_resetAllControllersForgetsChannel() {
+        OutputStateCache cache = new OutputStateCache();
+        cache.updateControlChange(0, 1, 64);
+        cache.updatePitchWheel(0, 8192);
+        cache.updateControlChange(1, 1, 64);
+
+        assertTrue(cache.updateControlChange(0, 121, 0));
+        assertTrue(cache.updateControlChange(0, 1, 64));
+        assertTrue(cache.updatePitchWheel(0, 8192));
+        assertFalse(cache.updateControlChange(1, 1, 64));
+    }
+
+    @Test
+    public void updateProgramChange_resentAfterBankSelect() {
+        OutputStateCache cache = new OutputStateCache();
+        assertTrue(cache.updateControlChange(0, 0, 1));
+        assertTrue(cache.updateProgramChange(0, 5));
+        assertFalse(cache.updateProgramChange(0, 5));
+
+        // same program on another bank, MSB then LSB
+        assertTrue(cache.updateControlChange(0, 0, 2));
+        assertTrue(cache.updateProgramChange(0, 5));
+        assertTrue(cache.updateControlChange(0, 32, 3));
+        assertTrue(cache.updateProgramChange(0, 5));
+
+        // the bank unchanged: the program is still selected
+        assertFalse(cache.updateControlChange(0, 0, 2));
+        assertFalse(cache.updateProgramChange(0, 5));
+
+        // other channels are not affected
+        assertTrue(cache.updateProgramChange(1, 5));
+        assertTrue(cache.updateControlChange(0, 0, 4));
+        assertFalse(cache.updateProgramChange(1, 5));
+    }
+
+    @Test
+    public void updateParameter_keyedByKindChannelAndFunction() {
+        OutputStateCache cache = new OutputStateCache();
+        assertTrue(cache.updateParameter(OutputStateCache.KIND_RPN, 0, 0, 2));
+        assertFalse(cache.updateParameter(OutputStateCache.KIND_RPN, 0, 0, 2));
+        assertTrue(cache.updateParameter(OutputStateCache.KIND_NRPN, 0, 0, 2));
+        assertTrue(cache.updateParameter(OutputStateCache.KIND_RPN, 1, 0, 2));
+        assertTrue(cache.updateParameter(OutputStateCache.KIND_RPN, 0, 1, 2));
+    }
+
+    @Test
+    public void replay_restoresBankBeforeProgram() {
+        OutputStateCache cache = new OutputStateCache();
+        cache.updateControlChange(2, 7, 90);
+        cache.updateProgramChange(2, 10);
+        cache.updateControlChange(2, 32, 1);
+        cache.updateControlChange(2, 0, 3);
+        cache.updateProgramChange(2, 10);
+        cache.updatePitchWheel(2, 0x2001);
+
+        final List<String> messages = new ArrayList<>();
+        cache.replay(new OutputStateCache.MessageHandler() {
+            @Override
+            public void onMessage(int status, int data1, int data2, int length) {
+                messages.add(length == 2 ? Integer.toHexString(status) + " " + data1 : Integer.toHexString(status) + " " + data1 + " " + data2);
+            }
+        });
+
+        assertEquals(5, messages.size());
+        assertEquals("b2 0 3", messages.get(0));
+        assertEquals("b2 32 1", messages.get(1));
+        assertEquals("c2 10", messages.get(2));
+        assertEquals("b2 7 90", messages.get(3));
+        assertEquals("e2 1 64", messages.get(4));
+    }
+
+    @Test
+    public void clear_forgetsEverything() {
+        OutputStateCache cache = new OutputStateCache();
+        cache.updateControlChange(0, 7, 100);
+        cache.updateProgramChange(0, 1);
+        cache.clear();
+        assertTrue(cache.updateControlChange(0, 7, 100));
+        assertTrue(cache.updateProgramChange(0, 1));
+    }
+}
@@ -0,0 +1,270 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.device.TestMidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiEventBatchListener;
+import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BleMidiParserTest {
+
+    /**
+     * Collects the events of the batches, counts down on each event
+     */
+    private static class BatchCollector implements OnMidiEventBatchListener {
+        final List<Integer> statuses = new ArrayList<>();
+        final List<Long> timings = new ArrayList<>();
+        final CountDownLatch events;
+
+        BatchCollector(int events) {
+            this.events = new CountDownLatch(events);
+        }
+
+        @Override
+        public void onMidiEventBatch(@NonNull MidiInputDevice sender, @NonNull MidiEventBatch batch) {
+            synchronized (statuses) {
+                for (int i = 0; i < batch.size(); i++) {
+                    statuses.add(batch.getStatus(i));
+                    timings.add(batch.getTiming(i));
+                    events.countDown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the event listener collecting the SysEx arrays, ignoring the other events
+     */
+    private static OnMidiInputEventListener systemExclusiveCollector(final List<byte[]> systemExclusives, final CountDownLatch received) {
+        return (OnMidiInputEventListener) Proxy.newProxyInstance(OnMidiInputEventListener.class.getClassLoader(), new Class<?>[] {OnMidiInputEventListener.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("onMidiSystemExclusive".equals(method.getName())) {
+                    synchronized (systemExclusives) {
+                        systemExclusives.add((byte[]) args[1]);
+                    }
+                    received.countDown();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Feeds the packets timestamped before 64 ms, and collects the events until the marker note-on(0x9f 127) which follows them is dispatched
+     */
+    private static List<String> parse(TestMidiInputDevice device, byte[]... packets) throws Exception {
+        final List<String> events = new ArrayList<>();
+        final CountDownLatch marker = new CountDownLatch(1);
+        device.setOnMidiEventBatchListener(new OnMidiEventBatchListener() {
+            @Override
+            public void onMidiEventBatch(@NonNull MidiInputDevice sender, @NonNull MidiEventBatch batch) {
+                synchronized (events) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (batch.getStatus(i) == 0x9f && batch.getData1(i) == 127) {
+                            marker.countDown();
+                        } else {
+                            events.add(Integer.toHexString(batch.getStatus(i)) + " " + batch.getData1(i) + " " + batch.getData2(i));
+                        }
+                    }
+                }
+            }
+        });
+        for (byte[] packet : packets) {
+            device.receive(packet);
+        }
+        // timestamped after the messages of the packets
+        device.receive(new byte[] {(byte) 0x80, (byte) 0xc0, (byte) 0x9f, 127, 1});
+        assertTrue(marker.await(5, TimeUnit.SECONDS));
+        synchronized (events) {
+            return new ArrayList<>(events);
+        }
+    }
+
+    @Test
+    public void resync_packetStartingWithDataByte() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        // the data bytes before the first timestamp are skipped
+        List<String> events = parse(device, new byte[] {(byte) 0x80, 0x3c, 0x40, (byte) 0x80, (byte) 0x90, 60, 100});
+        device.stop();
+
+        assertEquals(Arrays.asList("90 60 100"), events);
+        assertEquals(1, device.getMetrics().snapshot().getInvalidTimestamps());
+    }
+
+    @Test
+    public void resync_invalidHeaderDiscardsPacket() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        List<String> events = parse(device,
+                new byte[] {0x00, (byte) 0x80, (byte) 0x90, 61, 100},
+                new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x90, 62, 100});
+        device.stop();
+
+        assertEquals(Arrays.asList("90 62 100"), events);
+        assertEquals(1, device.getMetrics().snapshot().getInvalidHeaders());
+    }
+
+    @Test
+    public void resync_messageCutByPacketEnd() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        List<String> events = parse(device,
+                new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x90, 60},
+                new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x90, 62, 100});
+        device.stop();
+
+        assertEquals(Arrays.asList("90 62 100"), events);
+        assertEquals(1, device.getMetrics().snapshot().getTruncatedMessages());
+    }
+
+    @Test
+    public void resync_corruptedTimestampInsideMessage() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        // a timestamp inside of the note-on, followed by a data byte: the data bytes are skipped until the next timestamp
+        List<String> events = parse(device,
+                new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x90, 60, (byte) 0x81, 0x10, 0x45, (byte) 0x82, (byte) 0x90, 63, 100});
+        device.stop();
+
+        assertEquals(Arrays.asList("90 63 100"), events);
+        assertEquals(1, device.getMetrics().snapshot().getParseErrors());
+    }
+
+    @Test
+    public void resync_dataByteWithoutStatus() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        List<String> events = parse(device,
+                new byte[] {(byte) 0x80, (byte) 0x80, 60, 100, (byte) 0x81, (byte) 0x90, 64, 100, 65, 100});
+        device.stop();
+
+        // the running status after the resync
+        assertEquals(Arrays.asList("90 64 100", "90 65 100"), events);
+        assertEquals(1, device.getMetrics().snapshot().getParseErrors());
+    }
+
+    @Test
+    public void systemExclusiveLimit_dropsLongMessage() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        device.setSystemExclusiveLimit(6, SystemExclusiveAssembler.OVERFLOW_DROP);
+        List<byte[]> systemExclusives = new ArrayList<>();
+        CountDownLatch received = new CountDownLatch(1);
+        device.setOnMidiInputEventListener(systemExclusiveCollector(systemExclusives, received));
+
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0xf0, 0x7d, 1, 2, 3, 4, 5, (byte) 0x80, (byte) 0xf7});
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0xf0, 0x7d, 6, (byte) 0x80, (byte) 0xf7});
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        device.stop();
+
+        synchronized (systemExclusives) {
+            assertEquals(1, systemExclusives.size());
+            assertArrayEquals(new byte[] {(byte) 0xf0, 0x7d, 6, (byte) 0xf7}, systemExclusives.get(0));
+        }
+        assertEquals(1, device.getMetrics().snapshot().getSysExOverflows());
+    }
+
+    @Test
+    public void systemExclusiveLimit_truncatesLongMessage() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        device.setSystemExclusiveLimit(6, SystemExclusiveAssembler.OVERFLOW_TRUNCATE);
+        List<byte[]> systemExclusives = new ArrayList<>();
+        CountDownLatch received = new CountDownLatch(1);
+        device.setOnMidiInputEventListener(systemExclusiveCollector(systemExclusives, received));
+
+        // continued in the next packet
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0xf0, 0x7d, 1, 2});
+        device.receive(new byte[] {(byte) 0x80, 3, 4, 5, (byte) 0x80, (byte) 0xf7});
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        device.stop();
+
+        synchronized (systemExclusives) {
+            assertArrayEquals(new byte[] {(byte) 0xf0, 0x7d, 1, 2, 3, (byte) 0xf7}, systemExclusives.get(0));
+        }
+        assertEquals(1, device.getMetrics().snapshot().getSysExOverflows());
+    }
+
+    @Test
+    public void systemExclusive_deliveredToEventAndBatchListeners() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        List<byte[]> systemExclusives = new ArrayList<>();
+        CountDownLatch received = new CountDownLatch(2);
+        device.setOnMidiInputEventListener(systemExclusiveCollector(systemExclusives, received));
+        final List<byte[]> batched = new ArrayList<>();
+        final CountDownLatch batchedReceived = new CountDownLatch(2);
+        device.setOnMidiEventBatchListener(new OnMidiEventBatchListener() {
+            @Override
+            public void onMidiEventBatch(@NonNull MidiInputDevice sender, @NonNull MidiEventBatch batch) {
+                synchronized (batched) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        int offset = batch.getSystemExclusiveOffset(i);
+                        batched.add(Arrays.copyOfRange(batch.getSystemExclusiveBuffer(), offset, offset + batch.getSystemExclusiveLength(i)));
+                        batchedReceived.countDown();
+                    }
+                }
+            }
+        });
+
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0xf0, 0x7d, 1, 2, (byte) 0x80, (byte) 0xf7});
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0xf0, 0x7d, 3, (byte) 0x80, (byte) 0xf7});
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertTrue(batchedReceived.await(5, TimeUnit.SECONDS));
+        device.stop();
+
+        synchronized (systemExclusives) {
+            assertArrayEquals(new byte[] {(byte) 0xf0, 0x7d, 1, 2, (byte) 0xf7}, systemExclusives.get(0));
+            assertArrayEquals(new byte[] {(byte) 0xf0, 0x7d, 3, (byte) 0xf7}, systemExclusives.get(1));
+        }
+        synchronized (batched) {
+            assertArrayEquals(new byte[] {(byte) 0xf0, 0x7d, 1, 2, (byte) 0xf7}, batched.get(0));
+            assertArrayEquals(new byte[] {(byte) 0xf0, 0x7d, 3, (byte) 0xf7}, batched.get(1));
+        }
+    }
+
+    @Test
+    public void realtimeFastLane_batchTimingIsPacketTime() throws Exception {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        device.setRealtimeFastLaneEnabled(true);
+        final CountDownLatch firstBatch = new CountDownLatch(1);
+        BatchCollector collector = new BatchCollector(2) {
+            @Override
+            public void onMidiEventBatch(@NonNull MidiInputDevice sender, @NonNull MidiEventBatch batch) {
+                super.onMidiEventBatch(sender, batch);
+                if (firstBatch.getCount() > 0) {
+                    firstBatch.countDown();
+                    // keeps the parser busy, the next clock is dispatched late
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        };
+        device.setOnMidiEventBatchListener(collector);
+
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0xf8});
+        assertTrue(firstBatch.await(5, TimeUnit.SECONDS));
+        long received = System.currentTimeMillis();
+        device.receive(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0xf8});
+        assertTrue(collector.events.await(5, TimeUnit.SECONDS));
+        device.stop();
+
+        synchronized (collector.statuses) {
+            assertEquals(0xf8, (int) collector.statuses.get(1));
+            // the time of the packet, not the time of the dispatch
+            assertTrue(collector.timings.get(1) - received < 150);
+        }
+    }
+}
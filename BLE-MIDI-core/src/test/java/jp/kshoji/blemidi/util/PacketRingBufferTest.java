@@ -0,0 +1,66 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PacketRingBufferTest {
+
+    private static final class Collector implements PacketRingBuffer.PacketHandler {
+        final List<byte[]> packets = new ArrayList<>();
+        final List<Long> arrivals = new ArrayList<>();
+
+        @Override
+        public void onPacket(@NonNull byte[] buffer, int offset, int length, long arrivalNanos) {
+            packets.add(Arrays.copyOfRange(buffer, offset, offset + length));
+            arrivals.add(arrivalNanos);
+        }
+    }
+
+    @Test
+    public void offer_acceptsLargestNotification() {
+        // MTU 517: 514 bytes of notification
+        byte[] packet = new byte[514];
+        for (int i = 0; i < packet.length; i++) {
+            packet[i] = (byte) i;
+        }
+
+        PacketRingBuffer buffer = new PacketRingBuffer(4);
+        assertTrue(buffer.offer(packet, 123L));
+
+        Collector collector = new Collector();
+        assertEquals(1, buffer.drain(collector));
+        assertArrayEquals(packet, collector.packets.get(0));
+        assertEquals(Long.valueOf(123L), collector.arrivals.get(0));
+    }
+
+    @Test
+    public void offer_rejectsOversizedPacket() {
+        PacketRingBuffer buffer = new PacketRingBuffer(4);
+        assertFalse(buffer.offer(new byte[PacketRingBuffer.MAX_PACKET_LENGTH + 1], 0L));
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void offer_dropsWhenFull() {
+        PacketRingBuffer buffer = new PacketRingBuffer(2);
+        assertTrue(buffer.offer(new byte[] {1}, 0L));
+        assertTrue(buffer.offer(new byte[] {2}, 0L));
+        assertTrue(buffer.isFull());
+        assertFalse(buffer.offer(new byte[] {3}, 0L));
+
+        Collector collector = new Collector();
+        assertEquals(2, buffer.drain(collector));
+        assertEquals(2, collector.packets.get(1)[0]);
+        assertTrue(buffer.offer(new byte[] {3}, 0L));
+    }
+}
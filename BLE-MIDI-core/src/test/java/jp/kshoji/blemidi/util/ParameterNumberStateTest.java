@@ -0,0 +1,123 @@
+package jp.kshoji.blemidi.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ParameterNumberStateTest {
+
+    /**
+     * Selects the RPN with CC 101/100
+     */
+    private static void selectRpn(ParameterNumberState state, int channel, int msb, int lsb) {
+        assertEquals(ParameterNumberState.KIND_NONE, state.process(channel, 101, msb));
+        assertEquals(ParameterNumberState.KIND_NONE, state.process(channel, 100, lsb));
+    }
+
+    /**
+     * Selects the NRPN with CC 99/98
+     */
+    private static void selectNrpn(ParameterNumberState state, int channel, int msb, int lsb) {
+        assertEquals(ParameterNumberState.KIND_NONE, state.process(channel, 99, msb));
+        assertEquals(ParameterNumberState.KIND_NONE, state.process(channel, 98, lsb));
+    }
+
+    @Test
+    public void process_dataEntryMsbAndLsb() {
+        ParameterNumberState state = new ParameterNumberState();
+        selectRpn(state, 0, 0, 0);
+
+        assertEquals(ParameterNumberState.KIND_RPN, state.process(0, 6, 2));
+        assertEquals(0, state.getFunction());
+        assertEquals(2 << 7, state.getValue());
+
+        assertEquals(ParameterNumberState.KIND_RPN, state.process(0, 38, 5));
+        assertEquals(ParameterNumberState.KIND_RPN, state.getKind());
+        assertEquals((2 << 7) | 5, state.getValue());
+
+        // a new MSB keeps the LSB
+        state.process(0, 6, 3);
+        assertEquals((3 << 7) | 5, state.getValue());
+    }
+
+    @Test
+    public void process_channelsAreIsolated() {
+        ParameterNumberState state = new ParameterNumberState();
+        selectRpn(state, 0, 0, 1);
+        selectNrpn(state, 1, 0x12, 0x34);
+
+        // no parameter selected on channel 2
+        assertEquals(ParameterNumberState.KIND_NONE, state.process(2, 6, 64));
+
+        assertEquals(ParameterNumberState.KIND_NRPN, state.process(1, 6, 10));
+        assertEquals((0x12 << 7) | 0x34, state.getFunction());
+        assertEquals(10 << 7, state.getValue());
+
+        // channel 0 keeps its own selection, and doesn't see channel 1's value
+        assertEquals(ParameterNumberState.KIND_RPN, state.process(0, 38, 7));
+        assertEquals(1, state.getFunction());
+        assertEquals(7, state.getValue());
+
+        // the same RPN on another channel starts from 0
+        selectRpn(state, 3, 0, 1);
+        assertEquals(ParameterNumberState.KIND_RPN, state.process(3, 38, 1));
+        assertEquals(1, state.getValue());
+    }
+
+    @Test
+    public void process_incrementAndDecrementClamped() {
+        ParameterNumberState state = new ParameterNumberState();
+        selectRpn(state, 4, 0, 2);
+
+        // at 0, decrement stays at 0
+        assertEquals(ParameterNumberState.KIND_RPN, state.process(4, 97, 0));
+        assertEquals(0, state.getValue());
+        assertEquals(ParameterNumberState.KIND_RPN, state.process(4, 96, 0));
+        assertEquals(1, state.getValue());
+
+        // at the maximum, increment stays at 0x3fff
+        state.process(4, 6, 0x7f);
+        state.process(4, 38, 0x7f);
+        assertEquals(0x3fff, state.getValue());
+        assertEquals(ParameterNumberState.KIND_RPN, state.process(4, 96, 0));
+        assertEquals(0x3fff, state.getValue());
+        state.process(4, 97, 0);
+        assertEquals(0x3ffe, state.getValue());
+
+        // no parameter selected
+        assertEquals(ParameterNumberState.KIND_NONE, state.process(5, 96, 0));
+        assertEquals(ParameterNumberState.KIND_NONE, state.getKind());
+    }
+
+    @Test
+    public void process_nullRpnDeselects() {
+        ParameterNumberState state = new ParameterNumberState();
+        selectRpn(state, 0, 0, 0);
+        assertEquals(ParameterNumberState.KIND_RPN, state.process(0, 6, 12));
+
+        // RPN 127/127: the following data entries are ignored
+        selectRpn(state, 0, 0x7f, 0x7f);
+        assertEquals(ParameterNumberState.KIND_NONE, state.process(0, 6, 1));
+        assertEquals(ParameterNumberState.KIND_NONE, state.process(0, 96, 0));
+
+        // selecting again restores the value kept for the parameter
+        selectRpn(state, 0, 0, 0);
+        assertEquals(ParameterNumberState.KIND_RPN, state.process(0, 38, 3));
+        assertEquals((12 << 7) | 3, state.getValue());
+    }
+
+    @Test
+    public void reset_deselectsAndForgetsValues() {
+        ParameterNumberState state = new ParameterNumberState();
+        selectNrpn(state, 9, 1, 1);
+        state.process(9, 6, 100);
+
+        state.reset();
+        assertEquals(ParameterNumberState.KIND_NONE, state.getKind());
+        assertEquals(ParameterNumberState.KIND_NONE, state.process(9, 6, 1));
+
+        selectNrpn(state, 9, 1, 1);
+        assertEquals(ParameterNumberState.KIND_NRPN, state.process(9, 38, 1));
+        assertEquals(1, state.getValue());
+    }
+}
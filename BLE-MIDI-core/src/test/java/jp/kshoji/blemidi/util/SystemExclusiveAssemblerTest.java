@@ -0,0 +1,124 @@
+package jp.kshoji.blemidi.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SystemExclusiveAssemblerTest {
+
+    private static byte[] message(SystemExclusiveAssembler assembler) {
+        return Arrays.copyOf(assembler.getBuffer(), assembler.getLength());
+    }
+
+    /**
+     * Writes the data bytes, then the timestamp byte of 0xf7, and terminates
+     */
+    private static int writeMessage(SystemExclusiveAssembler assembler, int... data) {
+        assembler.start();
+        for (int oneByte : data) {
+            assertEquals(SystemExclusiveAssembler.WRITE_OK, assembler.write(oneByte));
+        }
+        assembler.write(0x85);
+        return assembler.end();
+    }
+
+    @Test
+    public void end_replacesTimestampWithEnd() {
+        SystemExclusiveAssembler assembler = new SystemExclusiveAssembler();
+        assertEquals(0x85, writeMessage(assembler, 0x7d, 1, 2));
+
+        assertArrayEquals(new byte[] {(byte) 0xf0, 0x7d, 1, 2, (byte) 0xf7}, message(assembler));
+        assertFalse(assembler.isOverflowed());
+        assertTrue(assembler.hasRecovery());
+    }
+
+    @Test
+    public void setLimit_truncatesOverflow() {
+        SystemExclusiveAssembler assembler = new SystemExclusiveAssembler();
+        assembler.setLimit(6, SystemExclusiveAssembler.OVERFLOW_TRUNCATE);
+        writeMessage(assembler, 0x7d, 1, 2, 3, 4, 5, 6);
+
+        assertArrayEquals(new byte[] {(byte) 0xf0, 0x7d, 1, 2, 3, (byte) 0xf7}, message(assembler));
+        assertTrue(assembler.isOverflowed());
+        assertFalse(assembler.isDiscarded());
+        assertFalse(assembler.hasRecovery());
+    }
+
+    @Test
+    public void setLimit_dropsOverflow() {
+        SystemExclusiveAssembler assembler = new SystemExclusiveAssembler();
+        assembler.setLimit(6, SystemExclusiveAssembler.OVERFLOW_DROP);
+        writeMessage(assembler, 0x7d, 1, 2, 3, 4, 5, 6);
+        assertTrue(assembler.isDiscarded());
+
+        // the limit fits
+        writeMessage(assembler, 0x7d, 1, 2, 3);
+        assertFalse(assembler.isDiscarded());
+        assertArrayEquals(new byte[] {(byte) 0xf0, 0x7d, 1, 2, 3, (byte) 0xf7}, message(assembler));
+    }
+
+    @Test
+    public void setLimit_streamsThroughInSegments() {
+        SystemExclusiveAssembler assembler = new SystemExclusiveAssembler();
+        assembler.setLimit(4, SystemExclusiveAssembler.OVERFLOW_STREAM_THROUGH);
+        assembler.start();
+        assertEquals(SystemExclusiveAssembler.WRITE_OK, assembler.write(0x7d));
+        assertEquals(SystemExclusiveAssembler.WRITE_OK, assembler.write(1));
+        assertEquals(SystemExclusiveAssembler.WRITE_SEGMENT_FULL, assembler.write(2));
+        // the last byte may be the timestamp of 0xf7, kept for the next segment
+        assertArrayEquals(new byte[] {(byte) 0xf0, 0x7d, 1}, Arrays.copyOf(assembler.getBuffer(), assembler.getLength() - 1));
+        assembler.consumeSegment();
+        assertTrue(assembler.isSegmented());
+
+        assembler.write(3);
+        assembler.write(0x85);
+        assembler.end();
+        assertArrayEquals(new byte[] {2, 3, (byte) 0xf7}, message(assembler));
+    }
+
+    @Test
+    public void setLimit_appliedFromNextMessage() {
+        SystemExclusiveAssembler assembler = new SystemExclusiveAssembler();
+        assembler.start();
+        assembler.setLimit(4, SystemExclusiveAssembler.OVERFLOW_DROP);
+        for (int i = 0; i < 8; i++) {
+            assembler.write(i);
+        }
+        assembler.end();
+        assertFalse(assembler.isOverflowed());
+    }
+
+    @Test
+    public void setLimit_rejectsInvalidArguments() {
+        SystemExclusiveAssembler assembler = new SystemExclusiveAssembler();
+        try {
+            assembler.setLimit(2, SystemExclusiveAssembler.OVERFLOW_TRUNCATE);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // too short for 0xf0 and 0xf7
+        }
+        try {
+            assembler.setLimit(16, 3);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // unknown policy
+        }
+    }
+
+    @Test
+    public void recover_restoresTimestampAsData() {
+        SystemExclusiveAssembler assembler = new SystemExclusiveAssembler();
+        writeMessage(assembler, 0x7d, 1);
+
+        // the 0xf7 was a data byte's timestamp, the real 0xf7 follows
+        assertEquals(0xf7, assembler.recover());
+        assertArrayEquals(new byte[] {(byte) 0xf0, 0x7d, 1, (byte) 0x85, (byte) 0xf7}, message(assembler));
+        assertEquals(-1, assembler.recover());
+    }
+}
@@ -0,0 +1,233 @@
+package jp.kshoji.blemidi.util;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.device.TestMidiInputDevice;
+import jp.kshoji.blemidi.listener.OnMidiSystemExclusiveStreamListener;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SystemExclusiveStreamerTest {
+
+    /**
+     * Records the calls, with a copy of each chunk
+     */
+    private static final class Recorder implements OnMidiSystemExclusiveStreamListener {
+        final List<String> calls = new ArrayList<>();
+        final List<byte[]> chunks = new ArrayList<>();
+        MidiInputDevice sender;
+
+        @Override
+        public void onMidiSystemExclusiveBegin(@NonNull MidiInputDevice sender) {
+            this.sender = sender;
+            calls.add("begin");
+        }
+
+        @Override
+        public void onMidiSystemExclusiveChunk(@NonNull MidiInputDevice sender, @NonNull byte[] buffer, int offset, int length) {
+            calls.add("chunk");
+            chunks.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+
+        @Override
+        public void onMidiSystemExclusiveEnd(@NonNull MidiInputDevice sender) {
+            calls.add("end");
+        }
+
+        @Override
+        public void onMidiSystemExclusiveAbort(@NonNull MidiInputDevice sender) {
+            calls.add("abort");
+        }
+    }
+
+    private static byte[] bytes(int from, int count) {
+        byte[] result = new byte[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = (byte) ((from + i) & 0x7f);
+        }
+        return result;
+    }
+
+    private static void write(SystemExclusiveStreamer streamer, byte[] data) {
+        for (byte b : data) {
+            streamer.write(b & 0xff);
+        }
+    }
+
+    @Test
+    public void end_dropsTimestampAndDeliversEndOnFinish() {
+        TestMidiInputDevice device = new TestMidiInputDevice();
+        SystemExclusiveStreamer streamer = new SystemExclusiveStreamer(device);
+        Recorder recorder = new Recorder();
+
+        streamer.begin(recorder);
+        write(streamer, new byte[] {1, 2, 3});
+        // the timestamp of 0xf7
+        streamer.write(0x85);
+        streamer.end();
+        // held until the next byte, for the recovery
+        assertEquals(Arrays.asList("begin"), recorder.calls);
+
+        streamer.finish();
+        assertEquals(Arrays.asList("begin", "chunk", "end"), recorder.calls);
+        assertArrayEquals(new byte[] {1, 2, 3}, recorder.chunks.get(0));
+        assertSame(device, recorder.sender);
+
+        // idle: ignored
+        streamer.write(4);
+        streamer.finish();
+        streamer.abort();
+        assertEquals(3, recorder.calls.size());
+    }
+
+    @Test
+    public void flush_deliversAllButHeldByte() {
+        SystemExclusiveStreamer streamer = new SystemExclusiveStreamer(new TestMidiInputDevice());
+        Recorder recorder = new Recorder();
+
+        streamer.begin(recorder);
+        write(streamer, new byte[] {1, 2, 3});
+        streamer.flush();
+        // an empty chunk is never delivered
+        streamer.flush();
+        write(streamer, new byte[] {4, (byte) 0x81});
+        streamer.end();
+        // the end of packet delivers the end
+        streamer.flush();
+
+        assertEquals(Arrays.asList("begin", "chunk", "chunk", "end"), recorder.calls);
+        assertArrayEquals(new byte[] {1, 2}, recorder.chunks.get(0));
+        assertArrayEquals(new byte[] {3, 4}, recorder.chunks.get(1));
+    }
+
+    @Test
+    public void abort_discardsMessageInProgress() {
+        SystemExclusiveStreamer streamer = new SystemExclusiveStreamer(new TestMidiInputDevice());
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+
+        streamer.begin(first);
+        write(streamer, new byte[] {1, 2});
+        streamer.flush();
+        streamer.abort();
+        streamer.write(3);
+        streamer.end();
+        streamer.finish();
+        assertEquals(Arrays.asList("begin", "chunk", "abort"), first.calls);
+
+        // a new message aborts the one streaming, and ends the one terminated
+        streamer.begin(first);
+        streamer.write(5);
+        streamer.begin(second);
+        assertEquals(Arrays.asList("begin", "chunk", "abort", "begin", "abort"), first.calls);
+        streamer.write(6);
+        streamer.write(0x80);
+        streamer.end();
+        streamer.begin(first);
+        assertEquals(Arrays.asList("begin", "chunk", "end"), second.calls);
+        assertEquals("begin", first.calls.get(first.calls.size() - 1));
+
+        // null listener: the message in progress is aborted, the new one is not streamed
+        streamer.begin(null);
+        streamer.write(7);
+        streamer.end();
+        streamer.finish();
+        assertEquals("abort", first.calls.get(first.calls.size() - 1));
+        assertEquals(3, second.calls.size());
+    }
+
+    @Test
+    public void write_chunkBoundary() {
+        SystemExclusiveStreamer streamer = new SystemExclusiveStreamer(new TestMidiInputDevice());
+        Recorder recorder = new Recorder();
+        byte[] data = bytes(0, 257);
+
+        streamer.begin(recorder);
+        write(streamer, Arrays.copyOf(data, 256));
+        // 255 bytes buffered, 1 held
+        assertEquals(Arrays.asList("begin"), recorder.calls);
+        streamer.write(data[256]);
+        assertEquals(Arrays.asList("begin", "chunk"), recorder.calls);
+        assertArrayEquals(Arrays.copyOf(data, 256), recorder.chunks.get(0));
+
+        streamer.write(0x80);
+        streamer.end();
+        streamer.finish();
+        assertEquals(Arrays.asList("begin", "chunk", "chunk", "end"), recorder.calls);
+        assertArrayEquals(new byte[] {data[256]}, recorder.chunks.get(1));
+    }
+
+    @Test
+    public void write_exactlyOneChunk() {
+        SystemExclusiveStreamer streamer = new SystemExclusiveStreamer(new TestMidiInputDevice());
+        Recorder recorder = new Recorder();
+        byte[] data = bytes(10, 256);
+
+        streamer.begin(recorder);
+        write(streamer, data);
+        streamer.write(0x80);
+        streamer.end();
+        streamer.finish();
+        assertEquals(Arrays.asList("begin", "chunk", "end"), recorder.calls);
+        assertArrayEquals(data, recorder.chunks.get(0));
+    }
+
+    @Test
+    public void recover_restoresHeldByteWhenTimestampWasF7() {
+        SystemExclusiveStreamer streamer = new SystemExclusiveStreamer(new TestMidiInputDevice());
+        Recorder recorder = new Recorder();
+
+        // 1 2 3, timestamp 0xf7, 0xf7: the first 0xf7 was taken for the end, and 3 for its timestamp
+        streamer.begin(recorder);
+        write(streamer, new byte[] {1, 2, 3});
+        streamer.end();
+        streamer.recover();
+
+        assertEquals(Arrays.asList("begin", "chunk", "end"), recorder.calls);
+        assertArrayEquals(new byte[] {1, 2, 3}, recorder.chunks.get(0));
+
+        // already ended: nothing to recover
+        streamer.recover();
+        assertEquals(3, recorder.calls.size());
+    }
+
+    @Test
+    public void recover_heldByteCompletesChunk() {
+        SystemExclusiveStreamer streamer = new SystemExclusiveStreamer(new TestMidiInputDevice());
+        Recorder recorder = new Recorder();
+        byte[] data = bytes(0, 256);
+
+        streamer.begin(recorder);
+        write(streamer, data);
+        streamer.end();
+        streamer.recover();
+
+        assertEquals(Arrays.asList("begin", "chunk", "end"), recorder.calls);
+        assertArrayEquals(data, recorder.chunks.get(0));
+    }
+
+    @Test
+    public void recover_ignoredWhileStreaming() {
+        SystemExclusiveStreamer streamer = new SystemExclusiveStreamer(new TestMidiInputDevice());
+        Recorder recorder = new Recorder();
+
+        streamer.begin(recorder);
+        write(streamer, new byte[] {1, 2});
+        streamer.recover();
+        streamer.write(0x80);
+        streamer.end();
+        streamer.finish();
+
+        assertEquals(Arrays.asList("begin", "chunk", "end"), recorder.calls);
+        assertArrayEquals(new byte[] {1, 2}, recorder.chunks.get(0));
+    }
+}
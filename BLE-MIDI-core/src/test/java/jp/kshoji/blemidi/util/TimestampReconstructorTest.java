@@ -0,0 +1,88 @@
+package jp.kshoji.blemidi.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimestampReconstructorTest {
+    private static final long MILLIS = 1000000L;
+    private static final long START = 1000 * MILLIS;
+
+    @Test
+    public void reconstruct_firstMessageAtArrival() {
+        TimestampReconstructor reconstructor = new TimestampReconstructor();
+        assertEquals(START, reconstructor.reconstruct(100, START));
+    }
+
+    @Test
+    public void reconstruct_keepsSenderSpacingInsideOnePacket() {
+        TimestampReconstructor reconstructor = new TimestampReconstructor();
+        // the messages at 100, 105 and 110 arrive together, 15 ms after the last one was played
+        long arrival = START + 35 * MILLIS;
+        reconstructor.reconstruct(90, START);
+        long first = reconstructor.reconstruct(100, arrival);
+        long second = reconstructor.reconstruct(105, arrival);
+        long third = reconstructor.reconstruct(110, arrival);
+
+        assertEquals(5 * MILLIS, second - first);
+        assertEquals(5 * MILLIS, third - second);
+        assertTrue(third <= arrival);
+    }
+
+    @Test
+    public void reconstruct_unwrapsTimestampRollover() {
+        TimestampReconstructor reconstructor = new TimestampReconstructor();
+        long first = reconstructor.reconstruct(8190, START);
+        // 4 ms later, the 13-bit timestamp has rolled over
+        long second = reconstructor.reconstruct(2, START + 4 * MILLIS);
+
+        assertEquals(4 * MILLIS, second - first);
+    }
+
+    @Test
+    public void reconstruct_neverAfterArrivalNorBackwards() {
+        TimestampReconstructor reconstructor = new TimestampReconstructor();
+        reconstructor.reconstruct(0, START);
+        // the sender's clock runs faster than the arrivals
+        long arrival = START + 10 * MILLIS;
+        long ahead = reconstructor.reconstruct(50, arrival);
+        assertEquals(arrival, ahead);
+
+        // the timestamp goes back: the time stays
+        long back = reconstructor.reconstruct(40, arrival + MILLIS);
+        assertEquals(ahead, back);
+    }
+
+    @Test
+    public void reconstruct_keepsSenderClockAfterPause() {
+        // longer than the half of the timestamp range
+        assertKeepsSenderClockAfterPause(5000);
+        // longer than the timestamp range
+        assertKeepsSenderClockAfterPause(10000);
+        assertKeepsSenderClockAfterPause(60000);
+    }
+
+    private static void assertKeepsSenderClockAfterPause(int pauseMillis) {
+        TimestampReconstructor reconstructor = new TimestampReconstructor();
+        for (int i = 0; i < 100; i += 5) {
+            assertEquals(START + i * MILLIS, reconstructor.reconstruct(i, START + i * MILLIS));
+        }
+
+        // arriving 5 ms late after the pause
+        for (int i = pauseMillis; i < pauseMillis + 100; i += 5) {
+            long eventTime = reconstructor.reconstruct(i % 8192, START + (i + 5) * MILLIS);
+            // within the drift relaxed during the pause
+            assertTrue(pauseMillis + " ms pause: " + (eventTime - START) + "ns at " + i + " ms", Math.abs(eventTime - (START + i * MILLIS)) <= pauseMillis * MILLIS / 10000 + MILLIS);
+        }
+    }
+
+    @Test
+    public void reset_forgetsSenderClock() {
+        TimestampReconstructor reconstructor = new TimestampReconstructor();
+        reconstructor.reconstruct(0, START);
+        reconstructor.reset();
+        long arrival = START + 30 * MILLIS;
+        assertEquals(arrival, reconstructor.reconstruct(10, arrival));
+    }
+}
@@ -7,6 +7,9 @@ import java.util.Set;
 
 import jp.kshoji.blemidi.device.MidiInputDevice;
 import jp.kshoji.blemidi.device.MidiOutputDevice;
+import jp.kshoji.blemidi.dispatch.DispatchPolicy;
+import jp.kshoji.blemidi.dispatch.DispatchingMidiDataListener;
+import jp.kshoji.blemidi.dispatch.DispatchingStatusListeners;
 import jp.kshoji.blemidi.listener.OnMidiDataListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceAttachedListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceDetachedListener;
@@ -19,6 +22,29 @@ import jp.kshoji.blemidi.listener.OnMidiScanStatusListener;
  */
 
 public abstract class BaseMidiOverBleManager {
+    /**
+     * Listener type flag for {@link #setDispatchPolicy(int, DispatchPolicy)}: {@link jp.kshoji.blemidi.listener.OnMidiInputEventListener}
+     */
+    public static final int LISTENER_MIDI_INPUT_EVENT = 1;
+
+    /**
+     * Listener type flag for {@link #setDispatchPolicy(int, DispatchPolicy)}: {@link OnMidiDataListener}
+     */
+    public static final int LISTENER_MIDI_DATA = 1 << 1;
+
+    /**
+     * Listener type flag for {@link #setDispatchPolicy(int, DispatchPolicy)}: scan status, device found, device status, attached and detached listeners
+     */
+    public static final int LISTENER_STATUS = 1 << 2;
+
+    private static final int LISTENER_ALL = LISTENER_MIDI_INPUT_EVENT | LISTENER_MIDI_DATA | LISTENER_STATUS;
+
+    protected DispatchPolicy midiInputEventDispatchPolicy = DispatchPolicy.inline();
+
+    protected DispatchPolicy midiDataDispatchPolicy = DispatchPolicy.inline();
+
+    protected DispatchPolicy statusDispatchPolicy = DispatchPolicy.inline();
+
     protected OnMidiScanStatusListener midiScanStatusListener;
 
     protected OnMidiDeviceStatusListener midiDeviceStatusListener;
@@ -37,7 +63,7 @@ public abstract class BaseMidiOverBleManager {
      * @param listener the listener
      */
     public void setOnMidiDeviceAttachedListener(OnMidiDeviceAttachedListener listener) {
-        this.midiDeviceAttachedListener = listener;
+        this.midiDeviceAttachedListener = DispatchingStatusListeners.wrap(listener, statusDispatchPolicy);
     }
 
     /**
@@ -46,11 +72,11 @@ public abstract class BaseMidiOverBleManager {
      * @param listener the listener
      */
     public void setOnMidiDeviceDetachedListener(OnMidiDeviceDetachedListener listener) {
-        this.midiDeviceDetachedListener = listener;
+        this.midiDeviceDetachedListener = DispatchingStatusListeners.wrap(listener, statusDispatchPolicy);
     }
 
     public void setOnMidiDataListener(OnMidiDataListener listener) {
-        this.midiDataListener = listener;
+        this.midiDataListener = DispatchingMidiDataListener.wrap(listener, midiDataDispatchPolicy);
     }
 
     /**
@@ -59,7 +85,7 @@ public abstract class BaseMidiOverBleManager {
      * @param listener
      */
     public void setOnBluetoothDeviceFoundListener(OnMidiDeviceFoundListener listener) {
-        this.deviceFoundListener = listener;
+        this.deviceFoundListener = DispatchingStatusListeners.wrap(listener, statusDispatchPolicy);
     }
 
     /**
@@ -68,7 +94,7 @@ public abstract class BaseMidiOverBleManager {
      * @param listener the listener
      */
     public void setOnMidiScanStatusListener(OnMidiScanStatusListener listener) {
-        this.midiScanStatusListener = listener;
+        this.midiScanStatusListener = DispatchingStatusListeners.wrap(listener, statusDispatchPolicy);
     }
 
     /**
@@ -77,7 +103,37 @@ public abstract class BaseMidiOverBleManager {
      * @param listener
      */
     public void setOnMidiDeviceStatusListener(OnMidiDeviceStatusListener listener) {
-        this.midiDeviceStatusListener = listener;
+        this.midiDeviceStatusListener = DispatchingStatusListeners.wrap(listener, statusDispatchPolicy);
+    }
+
+    /**
+     * Sets the thread which calls the listeners of the types.<br />
+     * Applied to the listeners set after this call, so set the policy before the listeners.
+     *
+     * @param listenerTypes {@link #LISTENER_MIDI_INPUT_EVENT}, {@link #LISTENER_MIDI_DATA}, {@link #LISTENER_STATUS}, or a combination of them with '|'
+     * @param policy the policy, {@link DispatchPolicy#inline()} by default
+     * @throws IllegalArgumentException if no type, or an unknown type is specified
+     */
+    public void setDispatchPolicy(int listenerTypes, @NonNull DispatchPolicy policy) throws IllegalArgumentException {
+        if (listenerTypes == 0 || (listenerTypes & ~LISTENER_ALL) != 0) {
+            throw new IllegalArgumentException("Unknown listener types: " + listenerTypes);
+        }
+
+        for (int remaining = listenerTypes; remaining != 0; remaining &= remaining - 1) {
+            switch (Integer.lowestOneBit(remaining)) {
+                case LISTENER_MIDI_INPUT_EVENT:
+                    midiInputEventDispatchPolicy = policy;
+                    break;
+                case LISTENER_MIDI_DATA:
+                    midiDataDispatchPolicy = policy;
+                    break;
+                case LISTENER_STATUS:
+                    statusDispatchPolicy = policy;
+                    break;
+                default:
+                    break;
+            }
+        }
     }
 
     public abstract void startScanDevice(int timeoutInMilliSeconds);
@@ -20,24 +20,34 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
+import jp.kshoji.blemidi.bus.MidiEventBus;
+import jp.kshoji.blemidi.capture.PacketRecorder;
 import jp.kshoji.blemidi.device.MidiInputDevice;
 import jp.kshoji.blemidi.device.MidiOutputDevice;
+import jp.kshoji.blemidi.device.ParserBackedMidiInputDevice;
+import jp.kshoji.blemidi.dispatch.DispatchPolicy;
+import jp.kshoji.blemidi.dispatch.DispatchingMidiInputEventListener;
 import jp.kshoji.blemidi.listener.OnMidiDataListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceAttachedListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceDetachedListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener;
+import jp.kshoji.blemidi.listener.OnMidiEventBatchListener;
 import jp.kshoji.blemidi.listener.OnMidiInputEventListener;
+import jp.kshoji.blemidi.listener.OnMidiTimestampedMessageListener;
+import jp.kshoji.blemidi.metrics.MidiDeviceMetrics;
+import jp.kshoji.blemidi.state.OutputStateCache;
 import jp.kshoji.blemidi.util.BleMidiDeviceUtils;
 import jp.kshoji.blemidi.util.BleUuidUtils;
+import jp.kshoji.blemidi.util.MidiMessageType;
 
 import static jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener.DEVICE_CHAR_ENABLE_WRITE;
 import static jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener.DEVICE_CHAR_RECV_DATA;
@@ -53,9 +63,14 @@ import static jp.kshoji.blemidi.util.Constants.TAG;
  * @author K.Shoji
  */
 public final class BleMidiCallback extends BluetoothGattCallback {
-    private final Map<String, Set<MidiInputDevice>> midiInputDevicesMap = new HashMap<>();
-    private final Map<String, Set<MidiOutputDevice>> midiOutputDevicesMap = new HashMap<>();
-    private final Map<String, BluetoothGatt> deviceAddressGattMap = new HashMap<>();
+    private final DeviceRegistry<MidiInputDevice> midiInputDevices = new DeviceRegistry<>();
+    private final DeviceRegistry<MidiOutputDevice> midiOutputDevices = new DeviceRegistry<>();
+    private final Map<String, BluetoothGatt> deviceAddressGattMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, MidiDeviceMetrics> deviceAddressMetricsMap = new ConcurrentHashMap<>();
+    // kept after disconnection, to be attached to the reconnected device
+    private final ConcurrentHashMap<String, OutputStateCache> deviceAddressOutputStateMap = new ConcurrentHashMap<>();
+    private final AtomicReference<PacketRecorder> packetRecorder = new AtomicReference<>();
+    private final AtomicReference<DispatchPolicy> midiInputEventDispatchPolicy = new AtomicReference<>(DispatchPolicy.inline());
     private final Context context;
 
     private OnMidiDeviceAttachedListener midiDeviceAttachedListener;
@@ -65,6 +80,19 @@ public final class BleMidiCallback extends BluetoothGattCallback {
 
     private OnMidiDataListener midiDataListener;
 
+    private volatile MidiEventBus midiEventBus;
+    private final MidiEventBus.OnTypeMaskChangedListener midiEventBusTypeMaskListener = new MidiEventBus.OnTypeMaskChangedListener() {
+        @Override
+        public void onTypeMaskChanged(@NonNull MidiEventBus bus, int typeMask) {
+            for (MidiInputDevice midiInputDevice : midiInputDevices.snapshot()) {
+                ((InternalMidiInputDevice) midiInputDevice).applyMessageDropMask();
+            }
+        }
+    };
+
+    private volatile boolean isOutputStateCacheEnabled = false;
+    private volatile boolean isStateTrackingEnabled = true;
+
     private boolean needsBonding = false;
 
     /**
@@ -84,9 +112,7 @@ public final class BleMidiCallback extends BluetoothGattCallback {
      * @return true if already connected
      */
     boolean isConnected(@NonNull BluetoothDevice device) {
-        synchronized (deviceAddressGattMap) {
-            return deviceAddressGattMap.containsKey(device.getAddress());
-        }
+        return deviceAddressGattMap.containsKey(device.getAddress());
     }
 
     @Override
@@ -101,6 +127,7 @@ public final class BleMidiCallback extends BluetoothGattCallback {
             Log.w(TAG, "onConnectionStateChange!!!![" + newState + "][" + gatt.getDevice().getAddress() + "] 1");
 
             notifyMidiDeviceStatusChanged(gatt.getDevice(), DEVICE_SERVICE_DISCOVERING);
+            getMetrics(gatt.getDevice().getAddress()).onConnected();
 
             if (!deviceAddressGattMap.containsKey(gatt.getDevice().getAddress())) {
                 Log.w(TAG, "onConnectionStateChange!!!![" + newState + "] 2");
@@ -142,37 +169,40 @@ public final class BleMidiCallback extends BluetoothGattCallback {
         final String gattDeviceAddress = gatt.getDevice().getAddress();
 
         // find MIDI Input device
-        if (midiInputDevicesMap.containsKey(gattDeviceAddress)) {
-            synchronized (midiInputDevicesMap) {
-                Set<MidiInputDevice> midiInputDevices = midiInputDevicesMap.get(gattDeviceAddress);
-                for (MidiInputDevice midiInputDevice : midiInputDevices) {
-                    ((InternalMidiInputDevice) midiInputDevice).stop();
-                    midiInputDevice.setOnMidiInputEventListener(null);
-                    midiInputDevice.setOnMidiDataListener(null);
-                }
-                midiInputDevicesMap.remove(gattDeviceAddress);
-            }
+        for (MidiInputDevice midiInputDevice : midiInputDevices.remove(gattDeviceAddress)) {
+            // the parser releases the notes held down to the listeners attached, the listeners cleared below are no longer applied to it
+            ((InternalMidiInputDevice) midiInputDevice).stop();
+            midiInputDevice.setOnMidiInputEventListener(null);
+            midiInputDevice.setOnMidiEventBatchListener(null);
+            midiInputDevice.setOnMidiSystemExclusiveStreamListener(null);
+            midiInputDevice.setOnMidiTimestampedMessageListener(null);
+            midiInputDevice.setOnMidiDataListener(null);
         }
 
-        MidiInputDevice midiInputDevice = null;
+        InternalMidiInputDevice midiInputDevice = null;
         try {
-            midiInputDevice = new InternalMidiInputDevice(context, gatt);
+            midiInputDevice = new InternalMidiInputDevice(context, gatt, getMetrics(gattDeviceAddress), midiInputEventDispatchPolicy);
         } catch (IllegalArgumentException iae) {
             Log.d(TAG, iae.getMessage());
         }
         if (midiInputDevice != null) {
-            synchronized (midiInputDevicesMap) {
-                if (midiDataListener != null) {
-                    midiInputDevice.setOnMidiDataListener(midiDataListener);
-                }
+            // restored when the bus is detached
+            midiInputDevice.setOnMidiDataListener(midiDataListener);
+            MidiEventBus bus = midiEventBus;
+            if (bus != null) {
+                // before the attached listener, which may replace it
+                midiInputDevice.attachMidiEventBus(bus);
+            }
 
-                Set<MidiInputDevice> midiInputDevices = midiInputDevicesMap.get(gattDeviceAddress);
-                if (midiInputDevices == null) {
-                    midiInputDevices = new HashSet<>();
-                    midiInputDevicesMap.put(gattDeviceAddress, midiInputDevices);
-                }
+            if (isStateTrackingEnabled) {
+                // the state covers the whole connection, for the consumers attaching later
+                midiInputDevice.startStateTracking();
+            }
 
-                midiInputDevices.add(midiInputDevice);
+            midiInputDevices.add(gattDeviceAddress, midiInputDevice);
+            if (bus != null) {
+                // the subscriptions may have changed before the device was added
+                midiInputDevice.applyMessageDropMask();
             }
 
             // don't notify if the same device already connected
@@ -184,28 +214,27 @@ public final class BleMidiCallback extends BluetoothGattCallback {
         }
 
         // find MIDI Output device
-        if (midiOutputDevicesMap.containsKey(gattDeviceAddress)) {
-            synchronized (midiOutputDevicesMap) {
-                midiOutputDevicesMap.remove(gattDeviceAddress);
-            }
-        }
+        midiOutputDevices.remove(gattDeviceAddress);
 
         MidiOutputDevice midiOutputDevice = null;
         try {
-            midiOutputDevice = new InternalMidiOutputDevice(context, gatt);
+            midiOutputDevice = new InternalMidiOutputDevice(context, gatt, getMetrics(gattDeviceAddress), packetRecorder);
         } catch (IllegalArgumentException iae) {
             Log.d(TAG, iae.getMessage());
         }
         if (midiOutputDevice != null) {
-            synchronized (midiOutputDevicesMap) {
-                Set<MidiOutputDevice> midiOutputDevices = midiOutputDevicesMap.get(gattDeviceAddress);
-                if (midiOutputDevices == null) {
-                    midiOutputDevices = new HashSet<>();
-                    midiOutputDevicesMap.put(gattDeviceAddress, midiOutputDevices);
+            if (isOutputStateCacheEnabled) {
+                OutputStateCache stateCache = deviceAddressOutputStateMap.get(gattDeviceAddress);
+                if (stateCache == null) {
+                    OutputStateCache newStateCache = new OutputStateCache();
+                    stateCache = deviceAddressOutputStateMap.putIfAbsent(gattDeviceAddress, newStateCache);
+                    if (stateCache == null) {
+                        stateCache = newStateCache;
+                    }
                 }
-
-                midiOutputDevices.add(midiOutputDevice);
+                midiOutputDevice.setStateCache(stateCache);
             }
+            midiOutputDevices.add(gattDeviceAddress, midiOutputDevice);
 
             // don't notify if the same device already connected
             if (!deviceAddressGattMap.containsKey(gattDeviceAddress)) {
@@ -216,9 +245,7 @@ public final class BleMidiCallback extends BluetoothGattCallback {
         }
 
         if (midiInputDevice != null || midiOutputDevice != null) {
-            synchronized (deviceAddressGattMap) {
-                deviceAddressGattMap.put(gattDeviceAddress, gatt);
-            }
+            deviceAddressGattMap.put(gattDeviceAddress, gatt);
 
             if (needsBonding && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
                 // Create bond and configure Gatt, if this is BLE MIDI device
@@ -258,13 +285,32 @@ public final class BleMidiCallback extends BluetoothGattCallback {
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
         super.onCharacteristicChanged(gatt, characteristic);
 
-        Log.w(TAG, "onCharacteristicChanged!!!!");
+        String deviceAddress = gatt.getDevice().getAddress();
+        byte[] data = characteristic.getValue();
+        PacketRecorder recorder = packetRecorder.get();
+        if (recorder != null) {
+            recorder.record(PacketRecorder.DIRECTION_RECEIVED, deviceAddress, data, System.nanoTime());
+        }
+
+        // lock-free lookup, iterate by index to avoid allocating an Iterator per notification
+        boolean isFirstData = false;
+        List<MidiInputDevice> devices = midiInputDevices.get(deviceAddress);
+        for (int i = 0, size = devices.size(); i < size; i++) {
+            isFirstData |= ((InternalMidiInputDevice) devices.get(i)).incomingData(data);
+        }
+
+        if (isFirstData) {
+            // the state has changed once per connection, not per packet
+            notifyMidiDeviceStatusChanged(gatt.getDevice(), DEVICE_CHAR_RECV_DATA);
+        }
+    }
 
-        notifyMidiDeviceStatusChanged(gatt.getDevice(), DEVICE_CHAR_RECV_DATA);
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        super.onMtuChanged(gatt, mtu, status);
 
-        Set<MidiInputDevice> midiInputDevices = midiInputDevicesMap.get(gatt.getDevice().getAddress());
-        for (MidiInputDevice midiInputDevice : midiInputDevices) {
-            ((InternalMidiInputDevice)midiInputDevice).incomingData(characteristic.getValue());
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            getMetrics(gatt.getDevice().getAddress()).setMtu(mtu);
         }
     }
 
@@ -332,58 +378,46 @@ public final class BleMidiCallback extends BluetoothGattCallback {
      * @param deviceAddress the device address from {@link android.bluetooth.BluetoothGatt}
      */
     private void disconnectByDeviceAddress(@NonNull String deviceAddress) {
-        synchronized (deviceAddressGattMap) {
-            BluetoothGatt bluetoothGatt = deviceAddressGattMap.get(deviceAddress);
-
-            if (bluetoothGatt != null) {
+        // the closed gatt won't call onConnectionStateChange: count here, once for each connection
+        getMetrics(deviceAddress).onDisconnected();
 
-                // notify disconnect
-                notifyMidiDeviceStatusChanged(bluetoothGatt.getDevice(), DEVICE_DISCONNECTED);
+        // only the caller which removed the gatt closes it
+        BluetoothGatt bluetoothGatt = deviceAddressGattMap.remove(deviceAddress);
+        if (bluetoothGatt != null) {
 
-                Log.w(TAG, "B disconnectByDeviceAddress[" + deviceAddress + "]bluetoothGatt.close()!!!!!!!");
+            // notify disconnect
+            notifyMidiDeviceStatusChanged(bluetoothGatt.getDevice(), DEVICE_DISCONNECTED);
 
-                bluetoothGatt.disconnect();
-                Log.w(TAG, "M disconnectByDeviceAddress[" + deviceAddress + "]bluetoothGatt.close()!!!!!!!");
-                bluetoothGatt.close();
+            Log.w(TAG, "B disconnectByDeviceAddress[" + deviceAddress + "]bluetoothGatt.close()!!!!!!!");
 
-                Log.w(TAG, "disconnectByDeviceAddress[" + deviceAddress + "]bluetoothGatt.close()!!!!!!!");
+            bluetoothGatt.disconnect();
+            Log.w(TAG, "M disconnectByDeviceAddress[" + deviceAddress + "]bluetoothGatt.close()!!!!!!!");
+            bluetoothGatt.close();
 
-                deviceAddressGattMap.remove(deviceAddress);
-            }
+            Log.w(TAG, "disconnectByDeviceAddress[" + deviceAddress + "]bluetoothGatt.close()!!!!!!!");
         }
 
-        synchronized (midiInputDevicesMap) {
-            Set<MidiInputDevice> midiInputDevices = midiInputDevicesMap.get(deviceAddress);
-            if (midiInputDevices != null) {
-                midiInputDevicesMap.remove(deviceAddress);
+        List<MidiInputDevice> removedInputDevices = midiInputDevices.remove(deviceAddress);
+        for (MidiInputDevice midiInputDevice : removedInputDevices) {
+            // the parser releases the notes held down to the listeners attached, the listeners cleared below are no longer applied to it
+            ((InternalMidiInputDevice) midiInputDevice).stop();
+            midiInputDevice.setOnMidiInputEventListener(null);
+            midiInputDevice.setOnMidiEventBatchListener(null);
+            midiInputDevice.setOnMidiSystemExclusiveStreamListener(null);
+            midiInputDevice.setOnMidiTimestampedMessageListener(null);
+            midiInputDevice.setOnMidiDataListener(null);
 
-                for (MidiInputDevice midiInputDevice : midiInputDevices) {
-                    ((InternalMidiInputDevice) midiInputDevice).stop();
-                    midiInputDevice.setOnMidiInputEventListener(null);
-                    midiInputDevice.setOnMidiDataListener(null);
-
-                    if (midiDeviceDetachedListener != null) {
-                        Log.w(TAG, "disconnectByDeviceAddress: midiInputDevice[" + midiInputDevice + "][" + midiInputDevices.size() + "]onMidiInputDeviceDetached!");
-                        midiDeviceDetachedListener.onMidiInputDeviceDetached(midiInputDevice);
-                    }
-
-                }
-                midiInputDevices.clear();
+            if (midiDeviceDetachedListener != null) {
+                Log.w(TAG, "disconnectByDeviceAddress: midiInputDevice[" + midiInputDevice + "][" + removedInputDevices.size() + "]onMidiInputDeviceDetached!");
+                midiDeviceDetachedListener.onMidiInputDeviceDetached(midiInputDevice);
             }
         }
 
-        synchronized (midiOutputDevicesMap) {
-            Set<MidiOutputDevice> midiOutputDevices = midiOutputDevicesMap.get(deviceAddress);
-            if (midiOutputDevices != null) {
-                midiOutputDevicesMap.remove(deviceAddress);
-
-                for (MidiOutputDevice midiOutputDevice : midiOutputDevices) {
-                    if (midiDeviceDetachedListener != null) {
-                        Log.w(TAG, "disconnectByDeviceAddress: midiOutputDevice[" + midiOutputDevice + "][" + midiOutputDevices.size() + "]onMidiOutputDeviceDetached!");
-                        midiDeviceDetachedListener.onMidiOutputDeviceDetached(midiOutputDevice);
-                    }
-                }
-                midiOutputDevices.clear();
+        List<MidiOutputDevice> removedOutputDevices = midiOutputDevices.remove(deviceAddress);
+        for (MidiOutputDevice midiOutputDevice : removedOutputDevices) {
+            if (midiDeviceDetachedListener != null) {
+                Log.w(TAG, "disconnectByDeviceAddress: midiOutputDevice[" + midiOutputDevice + "][" + removedOutputDevices.size() + "]onMidiOutputDeviceDetached!");
+                midiDeviceDetachedListener.onMidiOutputDeviceDetached(midiOutputDevice);
             }
         }
     }
@@ -392,31 +426,31 @@ public final class BleMidiCallback extends BluetoothGattCallback {
      * Terminates callback
      */
     public void terminate() {
-        synchronized (deviceAddressGattMap) {
-            for (BluetoothGatt bluetoothGatt : deviceAddressGattMap.values()) {
+        for (String deviceAddress : deviceAddressGattMap.keySet()) {
+            BluetoothGatt bluetoothGatt = deviceAddressGattMap.remove(deviceAddress);
+            if (bluetoothGatt != null) {
                 bluetoothGatt.disconnect();
                 bluetoothGatt.close();
             }
-            deviceAddressGattMap.clear();
         }
 
-        synchronized (midiInputDevicesMap) {
-            for (Set<MidiInputDevice> midiInputDevices : midiInputDevicesMap.values()) {
-                for (MidiInputDevice midiInputDevice : midiInputDevices) {
-                    ((InternalMidiInputDevice) midiInputDevice).stop();
-                    midiInputDevice.setOnMidiInputEventListener(null);
-                    midiInputDevice.setOnMidiDataListener(null);
-                }
-
-                midiInputDevices.clear();
-            }
-            midiInputDevicesMap.clear();
+        // including the devices still discovering the services
+        for (MidiDeviceMetrics metrics : deviceAddressMetricsMap.values()) {
+            metrics.onDisconnected();
         }
 
-        synchronized (midiOutputDevicesMap) {
-            midiOutputDevicesMap.clear();
+        for (MidiInputDevice midiInputDevice : midiInputDevices.clear()) {
+            // the parser releases the notes held down to the listeners attached, the listeners cleared below are no longer applied to it
+            ((InternalMidiInputDevice) midiInputDevice).stop();
+            midiInputDevice.setOnMidiInputEventListener(null);
+            midiInputDevice.setOnMidiEventBatchListener(null);
+            midiInputDevice.setOnMidiSystemExclusiveStreamListener(null);
+            midiInputDevice.setOnMidiTimestampedMessageListener(null);
+            midiInputDevice.setOnMidiDataListener(null);
         }
 
+        midiOutputDevices.clear();
+
         if (bondingBroadcastReceiver != null) {
             context.unregisterReceiver(bondingBroadcastReceiver);
             bondingBroadcastReceiver = null;
@@ -485,40 +519,119 @@ public final class BleMidiCallback extends BluetoothGattCallback {
     /**
      * Obtains connected input devices
      *
-     * @return Set of {@link jp.kshoji.blemidi.device.MidiInputDevice}
+     * @return cached unmodifiable Set of {@link jp.kshoji.blemidi.device.MidiInputDevice}
      */
     @NonNull
     public Set<MidiInputDevice> getMidiInputDevices() {
+        return midiInputDevices.snapshot();
+    }
 
-        Log.w(TAG, "getMidiInputDevices!!!!");
-        Collection<Set<MidiInputDevice>> values = midiInputDevicesMap.values();
+    /**
+     * Obtains connected output devices
+     *
+     * @return cached unmodifiable Set of {@link jp.kshoji.blemidi.device.MidiOutputDevice}
+     */
+    @NonNull
+    public Set<MidiOutputDevice> getMidiOutputDevices() {
+        return midiOutputDevices.snapshot();
+    }
 
-        Set<MidiInputDevice> result = new HashSet<>();
-        for (Set<MidiInputDevice> value: values) {
-            result.addAll(value);
+    /**
+     * Obtains the metrics of the device, the instance is kept while this callback alive
+     *
+     * @param deviceAddress the device address
+     * @return the metrics
+     */
+    @NonNull
+    public MidiDeviceMetrics getMetrics(@NonNull String deviceAddress) {
+        MidiDeviceMetrics metrics = deviceAddressMetricsMap.get(deviceAddress);
+        if (metrics == null) {
+            metrics = new MidiDeviceMetrics();
+            MidiDeviceMetrics previous = deviceAddressMetricsMap.putIfAbsent(deviceAddress, metrics);
+            if (previous != null) {
+                metrics = previous;
+            }
         }
-
-        return Collections.unmodifiableSet(result);
+        return metrics;
     }
 
     /**
-     * Obtains connected output devices
+     * Takes snapshots of the metrics of all the devices which have been connected
      *
-     * @return Set of {@link jp.kshoji.blemidi.device.MidiOutputDevice}
+     * @return unmodifiable map, key: device address
      */
     @NonNull
-    public Set<MidiOutputDevice> getMidiOutputDevices() {
+    public Map<String, MidiDeviceMetrics.Snapshot> getMetricsSnapshot() {
+        Map<String, MidiDeviceMetrics.Snapshot> result = new HashMap<>();
+        for (Map.Entry<String, MidiDeviceMetrics> entry : deviceAddressMetricsMap.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return Collections.unmodifiableMap(result);
+    }
 
-        Log.w(TAG, "getMidiOutputDevices!!!!");
+    /**
+     * Sets the thread which calls {@link OnMidiInputEventListener}s, applied to the listeners set after this call
+     *
+     * @param policy the policy
+     */
+    public void setMidiInputEventDispatchPolicy(@NonNull DispatchPolicy policy) {
+        midiInputEventDispatchPolicy.set(policy);
+    }
 
-        Collection<Set<MidiOutputDevice>> values = midiOutputDevicesMap.values();
+    /**
+     * Sets the bus as the {@link OnMidiInputEventListener} and the {@link OnMidiDataListener} of all the input devices, current and attached later.<br />
+     * While the bus is set, it replaces the listener of {@link #setOnMidiDataListener(OnMidiDataListener)}: subscribe it to the bus with {@link MidiEventBus#subscribeData(OnMidiDataListener, jp.kshoji.blemidi.bus.MidiEventFilter)}.
+     * A listener set on a device afterwards replaces the bus on that device. When the bus is detached, the listeners set on the devices before are restored.<br />
+     * The kinds of the messages no subscriber wants are discarded while parsing(in addition to {@link MidiInputDevice#setMessageDropMask(int)}),
+     * unless the device also has {@link jp.kshoji.blemidi.listener.OnMidiEventBatchListener} or {@link jp.kshoji.blemidi.listener.OnMidiTimestampedMessageListener}.
+     *
+     * @param bus the bus, null to detach the bus from the devices
+     */
+    public void setMidiEventBus(@Nullable MidiEventBus bus) {
+        MidiEventBus previous = midiEventBus;
+        if (previous == bus) {
+            return;
+        }
+        if (previous != null) {
+            previous.removeOnTypeMaskChangedListener(midiEventBusTypeMaskListener);
+        }
+        midiEventBus = bus;
+        if (bus != null) {
+            bus.addOnTypeMaskChangedListener(midiEventBusTypeMaskListener);
+        }
+        for (MidiInputDevice midiInputDevice : midiInputDevices.snapshot()) {
+            ((InternalMidiInputDevice) midiInputDevice).attachMidiEventBus(bus);
+        }
+    }
 
-        Set<MidiOutputDevice> result = new HashSet<>();
-        for (Set<MidiOutputDevice> value: values) {
-            result.addAll(value);
+    /**
+     * Enables {@link OutputStateCache} of the output devices attached later. The cache of each device address is kept over the reconnections.
+     *
+     * @param enabled true to enable, false by default
+     */
+    public void setOutputStateCacheEnabled(boolean enabled) {
+        isOutputStateCacheEnabled = enabled;
+        if (!enabled) {
+            deviceAddressOutputStateMap.clear();
         }
+    }
 
-        return Collections.unmodifiableSet(result);
+    /**
+     * Starts tracking the controller state and the active notes of the input devices attached later, from the connection
+     *
+     * @param enabled true to enable, true by default. false to run the parser only when a listener needs it
+     */
+    public void setStateTrackingEnabled(boolean enabled) {
+        isStateTrackingEnabled = enabled;
+    }
+
+    /**
+     * Sets the recorder for the raw packets received from / written to all the devices
+     *
+     * @param recorder the recorder, null to stop recording. The recorder is not closed by this callback.
+     */
+    public void setPacketRecorder(@Nullable PacketRecorder recorder) {
+        packetRecorder.set(recorder);
     }
 
     /**
@@ -557,24 +670,37 @@ public final class BleMidiCallback extends BluetoothGattCallback {
      *
      * @author K.Shoji
      */
-    private static final class InternalMidiInputDevice extends MidiInputDevice {
+    private static final class InternalMidiInputDevice extends ParserBackedMidiInputDevice {
         private final BluetoothGatt bluetoothGatt;
         private final BluetoothGattCharacteristic midiInputCharacteristic;
-
-        private OnMidiDataListener midiDataListener;
-
-//        private final BleMidiParser midiParser = new BleMidiParser(this);
+        private final AtomicReference<DispatchPolicy> midiInputEventDispatchPolicy;
+        // accessed on the Bluetooth callback thread only
+        private boolean isDataReceived = false;
+
+        // the listeners and the drop mask set on the device, restored when the bus is detached, guarded by this
+        private OnMidiInputEventListener midiInputEventListener = null;
+        private OnMidiDataListener midiDataListener = null;
+        private OnMidiEventBatchListener midiEventBatchListener = null;
+        private OnMidiTimestampedMessageListener timestampedMessageListener = null;
+        private int messageDropMask = 0;
+        // the bus, and whether it still holds the listener slots, guarded by this
+        private MidiEventBus midiEventBus = null;
+        private boolean isBusInputEventListener = false;
+        private boolean isBusDataListener = false;
 
         /**
          * Constructor for Central
          *
          * @param context the context
          * @param bluetoothGatt the gatt of device
+         * @param metrics the metrics of device
+         * @param midiInputEventDispatchPolicy the dispatch policy of the callback
          * @throws IllegalArgumentException if specified gatt doesn't contain BLE MIDI service
          */
-        public InternalMidiInputDevice(@NonNull final Context context, @NonNull final BluetoothGatt bluetoothGatt) throws IllegalArgumentException {
-            super();
+        public InternalMidiInputDevice(@NonNull final Context context, @NonNull final BluetoothGatt bluetoothGatt, @NonNull MidiDeviceMetrics metrics, @NonNull AtomicReference<DispatchPolicy> midiInputEventDispatchPolicy) throws IllegalArgumentException {
+            super(metrics);
             this.bluetoothGatt = bluetoothGatt;
+            this.midiInputEventDispatchPolicy = midiInputEventDispatchPolicy;
 
             BluetoothGattService midiService = BleMidiDeviceUtils.getMidiService(context, bluetoothGatt);
             if (midiService == null) {
@@ -591,13 +717,6 @@ public final class BleMidiCallback extends BluetoothGattCallback {
             }
         }
 
-        /**
-         * Stops parser's thread
-         */
-        void stop() {
-            //midiParser.stop();
-        }
-
         /**
          * Configure the device as BLE Central
          */
@@ -618,15 +737,75 @@ public final class BleMidiCallback extends BluetoothGattCallback {
         }
 
         @Override
-        public void setOnMidiInputEventListener(OnMidiInputEventListener midiInputEventListener) {
-            //midiParser.setMidiInputEventListener(midiInputEventListener);
+        public synchronized void setOnMidiInputEventListener(OnMidiInputEventListener midiInputEventListener) {
+            this.midiInputEventListener = DispatchingMidiInputEventListener.wrap(midiInputEventListener, midiInputEventDispatchPolicy.get());
+            isBusInputEventListener = false;
+            super.setOnMidiInputEventListener(this.midiInputEventListener);
+            applyMessageDropMask();
         }
 
         @Override
-        public void setOnMidiDataListener(OnMidiDataListener listener) {
-            this.midiDataListener = listener;
+        public synchronized void setOnMidiDataListener(OnMidiDataListener midiDataListener) {
+            this.midiDataListener = midiDataListener;
+            isBusDataListener = false;
+            super.setOnMidiDataListener(midiDataListener);
         }
 
+        @Override
+        public synchronized void setOnMidiEventBatchListener(OnMidiEventBatchListener midiEventBatchListener) {
+            this.midiEventBatchListener = midiEventBatchListener;
+            super.setOnMidiEventBatchListener(midiEventBatchListener);
+            applyMessageDropMask();
+        }
+
+        @Override
+        public synchronized void setOnMidiTimestampedMessageListener(OnMidiTimestampedMessageListener timestampedMessageListener) {
+            this.timestampedMessageListener = timestampedMessageListener;
+            super.setOnMidiTimestampedMessageListener(timestampedMessageListener);
+            applyMessageDropMask();
+        }
+
+        @Override
+        public synchronized void setMessageDropMask(int dropMask) {
+            messageDropMask = dropMask;
+            applyMessageDropMask();
+        }
+
+        /**
+         * Puts the bus into the listener slots, or restores the listeners set on the device
+         *
+         * @param bus the bus, null to detach
+         */
+        synchronized void attachMidiEventBus(@Nullable MidiEventBus bus) {
+            if (bus != null) {
+                super.setOnMidiInputEventListener(DispatchingMidiInputEventListener.wrap(bus, midiInputEventDispatchPolicy.get()));
+                super.setOnMidiDataListener(bus);
+                isBusInputEventListener = true;
+                isBusDataListener = true;
+            } else {
+                if (isBusInputEventListener) {
+                    super.setOnMidiInputEventListener(midiInputEventListener);
+                }
+                if (isBusDataListener) {
+                    super.setOnMidiDataListener(midiDataListener);
+                }
+                isBusInputEventListener = false;
+                isBusDataListener = false;
+            }
+            midiEventBus = bus;
+            applyMessageDropMask();
+        }
+
+        /**
+         * Applies the drop mask set on the device, and the kinds of the messages the bus doesn't want while it's the only listener of the events
+         */
+        synchronized void applyMessageDropMask() {
+            int dropMask = messageDropMask;
+            if (midiEventBus != null && isBusInputEventListener && midiEventBatchListener == null && timestampedMessageListener == null) {
+                dropMask |= ~midiEventBus.getTypeMask() & MidiMessageType.ALL;
+            }
+            super.setMessageDropMask(dropMask);
+        }
 
         @NonNull
         @Override
@@ -648,46 +827,15 @@ public final class BleMidiCallback extends BluetoothGattCallback {
          * Parse the MIDI data
          *
          * @param data the MIDI data
+         * @return true if the first data received by the device
          */
-        private void incomingData(@NonNull byte[] data) {
-            Log.w(TAG, "incomingData!!!!!!");
-            if (midiDataListener != null) {
-
-                midiDataListener.onMidiData(this, parse(data));
-            }
-            //midiParser.parse(data);
-        }
-
-        /**
-         * Updates incoming data. remove all '0x80' bytes
-         *
-         * @param data parsed data
-         * @return
-         */
-        private byte[] parse(@NonNull byte[] data) {
-            if (data.length > 1) {
-
-                // get actual length
-                int len = 0;
-                for (int i = 0; i < data.length; i++) {
-                    if (data[i] != -128) {
-                        len++;
-                    }
-                }
-
-                // remove '0x80'
-                byte[] midiData = new byte[len];
-                int index = 0;
-                for (int i = 0; i < data.length; i++) {
-                    if (data[i] != -128) {
-                        midiData[index++] = data[i];
-                    }
-                }
-
-                return midiData;
-            } else {
-                return null;
+        private boolean incomingData(@NonNull byte[] data) {
+            incomingData(data, System.nanoTime(), false);
+            if (isDataReceived) {
+                return false;
             }
+            isDataReceived = true;
+            return true;
         }
     }
 
@@ -699,17 +847,21 @@ public final class BleMidiCallback extends BluetoothGattCallback {
     private static final class InternalMidiOutputDevice extends MidiOutputDevice {
         private final BluetoothGatt bluetoothGatt;
         private final BluetoothGattCharacteristic midiOutputCharacteristic;
+        private final AtomicReference<PacketRecorder> packetRecorder;
 
         /**
          * Constructor for Central
          *
          * @param context the context
          * @param bluetoothGatt the gatt of device
+         * @param metrics the metrics of device
+         * @param packetRecorder the recorder of the callback
          * @throws IllegalArgumentException if specified gatt doesn't contain BLE MIDI service
          */
-        public InternalMidiOutputDevice(@NonNull final Context context, @NonNull final BluetoothGatt bluetoothGatt) throws IllegalArgumentException {
-            super();
+        public InternalMidiOutputDevice(@NonNull final Context context, @NonNull final BluetoothGatt bluetoothGatt, @NonNull MidiDeviceMetrics metrics, @NonNull AtomicReference<PacketRecorder> packetRecorder) throws IllegalArgumentException {
+            super(metrics);
             this.bluetoothGatt = bluetoothGatt;
+            this.packetRecorder = packetRecorder;
 
             BluetoothGattService midiService = BleMidiDeviceUtils.getMidiService(context, bluetoothGatt);
             if (midiService == null) {
@@ -741,11 +893,22 @@ public final class BleMidiCallback extends BluetoothGattCallback {
 
             try {
                 boolean result = bluetoothGatt.writeCharacteristic(midiOutputCharacteristic);
+                if (result) {
+                    getMetrics().onPacketSent(writeBuffer.length);
+
+                    PacketRecorder recorder = packetRecorder.get();
+                    if (recorder != null) {
+                        recorder.record(PacketRecorder.DIRECTION_SENT, bluetoothGatt.getDevice().getAddress(), writeBuffer, System.nanoTime());
+                    }
+                } else {
+                    getMetrics().onWriteFailed();
+                }
 
                 Log.w(TAG, "sendMidiData[" + result + "]");
             } catch (Throwable ignored) {
                 // android.os.DeadObjectException will be thrown
                 // ignore it
+                getMetrics().onWriteFailed();
                 Log.w(TAG, "sendMidiData failed[" + ignored + "]");
             }
 
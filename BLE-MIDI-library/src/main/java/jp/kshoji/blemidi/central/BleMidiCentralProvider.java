@@ -20,11 +20,15 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import jp.kshoji.blemidi.base.BaseMidiOverBleManager;
+import jp.kshoji.blemidi.bus.MidiEventBus;
+import jp.kshoji.blemidi.capture.PacketRecorder;
 import jp.kshoji.blemidi.device.MidiInputDevice;
 import jp.kshoji.blemidi.device.MidiOutputDevice;
+import jp.kshoji.blemidi.dispatch.DispatchPolicy;
 import jp.kshoji.blemidi.exception.BleAdapterException;
 import jp.kshoji.blemidi.exception.BlueToothNotEnableException;
 import jp.kshoji.blemidi.listener.OnMidiDataListener;
@@ -33,6 +37,7 @@ import jp.kshoji.blemidi.listener.OnMidiDeviceDetachedListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceFoundListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener;
 import jp.kshoji.blemidi.listener.OnMidiScanStatusListener;
+import jp.kshoji.blemidi.metrics.MidiDeviceMetrics;
 import jp.kshoji.blemidi.util.BleMidiDeviceUtils;
 import jp.kshoji.blemidi.util.BleUtils;
 
@@ -184,7 +189,8 @@ public final class BleMidiCentralProvider extends BaseMidiOverBleManager {
      */
     @Override
     public void setOnMidiDeviceAttachedListener(@Nullable OnMidiDeviceAttachedListener midiDeviceAttachedListener) {
-        this.midiCallback.setOnMidiDeviceAttachedListener(midiDeviceAttachedListener);
+        super.setOnMidiDeviceAttachedListener(midiDeviceAttachedListener);
+        this.midiCallback.setOnMidiDeviceAttachedListener(this.midiDeviceAttachedListener);
     }
 
     /**
@@ -194,7 +200,8 @@ public final class BleMidiCentralProvider extends BaseMidiOverBleManager {
      */
     @Override
     public void setOnMidiDeviceDetachedListener(@Nullable OnMidiDeviceDetachedListener midiDeviceDetachedListener) {
-        this.midiCallback.setOnMidiDeviceDetachedListener(midiDeviceDetachedListener);
+        super.setOnMidiDeviceDetachedListener(midiDeviceDetachedListener);
+        this.midiCallback.setOnMidiDeviceDetachedListener(this.midiDeviceDetachedListener);
     }
 
     /**
@@ -207,7 +214,7 @@ public final class BleMidiCentralProvider extends BaseMidiOverBleManager {
         super.setOnMidiDeviceStatusListener(listener);
 
         if (midiCallback != null) {
-            midiCallback.setOnMidiDeviceStatusListener(listener);
+            midiCallback.setOnMidiDeviceStatusListener(midiDeviceStatusListener);
         }
     }
 
@@ -216,7 +223,16 @@ public final class BleMidiCentralProvider extends BaseMidiOverBleManager {
         super.setOnMidiDataListener(listener);
 
         if (midiCallback != null) {
-            midiCallback.setOnMidiDataListener(listener);
+            midiCallback.setOnMidiDataListener(midiDataListener);
+        }
+    }
+
+    @Override
+    public void setDispatchPolicy(int listenerTypes, @NonNull DispatchPolicy policy) throws IllegalArgumentException {
+        super.setDispatchPolicy(listenerTypes, policy);
+
+        if ((listenerTypes & LISTENER_MIDI_INPUT_EVENT) != 0 && midiCallback != null) {
+            midiCallback.setMidiInputEventDispatchPolicy(policy);
         }
     }
 
@@ -242,6 +258,69 @@ public final class BleMidiCentralProvider extends BaseMidiOverBleManager {
         return midiCallback.getMidiOutputDevices();
     }
 
+    /**
+     * Obtains the metrics of the specified device, the instance is kept across reconnections
+     *
+     * @param deviceAddress the device address
+     * @return the metrics
+     */
+    @NonNull
+    public MidiDeviceMetrics getMetrics(@NonNull String deviceAddress) {
+        return midiCallback.getMetrics(deviceAddress);
+    }
+
+    /**
+     * Takes snapshots of the metrics of all the devices which have been connected.<br />
+     * Cheap enough to poll once a second.
+     *
+     * @return unmodifiable map, key: device address
+     */
+    @NonNull
+    public Map<String, MidiDeviceMetrics.Snapshot> getMetricsSnapshot() {
+        return midiCallback.getMetricsSnapshot();
+    }
+
+    /**
+     * Sets the recorder for the raw packets received from / written to all the devices
+     *
+     * @param recorder the recorder, null to stop recording. Close it after detaching.
+     */
+    public void setPacketRecorder(@Nullable PacketRecorder recorder) {
+        midiCallback.setPacketRecorder(recorder);
+    }
+
+    /**
+     * Sets the bus as the {@link jp.kshoji.blemidi.listener.OnMidiInputEventListener} and the {@link OnMidiDataListener} of all the input devices, current and attached later.<br />
+     * The bus is attached before {@link OnMidiDeviceAttachedListener} is called. The events are dispatched with the policy of {@link #LISTENER_MIDI_INPUT_EVENT}, then with the policy of each subscription.
+     * The raw packets reach the bus on the Bluetooth thread, then are dispatched with the policy of each data subscription; the listener of {@link #setOnMidiDataListener(OnMidiDataListener)} is replaced while the bus is set.
+     * The listeners set on the devices are restored when the bus is detached. The kinds of the messages no subscriber wants are discarded while parsing.
+     *
+     * @param bus the bus, null to detach
+     */
+    public void setMidiEventBus(@Nullable MidiEventBus bus) {
+        midiCallback.setMidiEventBus(bus);
+    }
+
+    /**
+     * Attaches a {@link jp.kshoji.blemidi.state.OutputStateCache} to each output device attached later, kept for the device address over the reconnections.<br />
+     * The unchanged controller sends are skipped, call {@link MidiOutputDevice#resync()} after a reconnection to restore the device's state.
+     *
+     * @param enabled true to enable, false by default
+     */
+    public void setOutputStateCacheEnabled(boolean enabled) {
+        midiCallback.setOutputStateCacheEnabled(enabled);
+    }
+
+    /**
+     * Tracks {@link MidiInputDevice#getControllerState()} and {@link MidiInputDevice#getActiveNotes()} of each input device attached later, from its connection.<br />
+     * When disabled, the parser of a device starts with the first listener needing it, and the state is tracked from that time only: disable for the applications using the raw data of {@link OnMidiDataListener} only.
+     *
+     * @param enabled true to enable, true by default
+     */
+    public void setStateTrackingEnabled(boolean enabled) {
+        midiCallback.setStateTrackingEnabled(enabled);
+    }
+
     /**
      * Terminates provider
      */
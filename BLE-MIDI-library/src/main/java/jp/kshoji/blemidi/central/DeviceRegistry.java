@@ -0,0 +1,123 @@
+package jp.kshoji.blemidi.central;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copy-on-write registry of MIDI devices, indexed by device address.<br />
+ * Readers never lock: {@link #get(String)} is a single {@link ConcurrentHashMap} lookup,
+ * and {@link #snapshot()} returns a cached unmodifiable view which is rebuilt only when devices are attached or detached.
+ *
+ * @param <T> the device type
+ * @author K.Shoji
+ */
+final class DeviceRegistry<T> {
+    private final Object writeLock = new Object();
+    private final Map<String, List<T>> devicesByAddress = new ConcurrentHashMap<>();
+    private volatile Set<T> snapshot = Collections.emptySet();
+
+    /**
+     * Obtains the devices attached with the specified address
+     *
+     * @param deviceAddress the device address
+     * @return unmodifiable list, empty if no device found. Iterate it by index to avoid allocating an Iterator.
+     */
+    @NonNull
+    List<T> get(@NonNull String deviceAddress) {
+        List<T> devices = devicesByAddress.get(deviceAddress);
+        if (devices == null) {
+            return Collections.emptyList();
+        }
+        return devices;
+    }
+
+    /**
+     * Checks if any device is attached with the specified address
+     *
+     * @param deviceAddress the device address
+     * @return true if found
+     */
+    boolean contains(@NonNull String deviceAddress) {
+        return devicesByAddress.containsKey(deviceAddress);
+    }
+
+    /**
+     * Adds the device
+     *
+     * @param deviceAddress the device address
+     * @param device the device
+     */
+    void add(@NonNull String deviceAddress, @NonNull T device) {
+        synchronized (writeLock) {
+            List<T> current = devicesByAddress.get(deviceAddress);
+            List<T> devices = current == null ? new ArrayList<T>(1) : new ArrayList<T>(current);
+            if (!devices.contains(device)) {
+                devices.add(device);
+            }
+            devicesByAddress.put(deviceAddress, Collections.unmodifiableList(devices));
+            rebuildSnapshot();
+        }
+    }
+
+    /**
+     * Removes all the devices attached with the specified address
+     *
+     * @param deviceAddress the device address
+     * @return removed devices, empty if no device found
+     */
+    @NonNull
+    List<T> remove(@NonNull String deviceAddress) {
+        synchronized (writeLock) {
+            List<T> removed = devicesByAddress.remove(deviceAddress);
+            if (removed == null) {
+                return Collections.emptyList();
+            }
+            rebuildSnapshot();
+            return removed;
+        }
+    }
+
+    /**
+     * Removes all the devices
+     *
+     * @return removed devices
+     */
+    @NonNull
+    Collection<T> clear() {
+        synchronized (writeLock) {
+            Set<T> removed = snapshot;
+            devicesByAddress.clear();
+            snapshot = Collections.emptySet();
+            return removed;
+        }
+    }
+
+    /**
+     * Obtains all the attached devices
+     *
+     * @return cached unmodifiable set
+     */
+    @NonNull
+    Set<T> snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Rebuilds the cached snapshot, must be called with {@link #writeLock}
+     */
+    private void rebuildSnapshot() {
+        Set<T> result = new LinkedHashSet<>();
+        for (List<T> devices : devicesByAddress.values()) {
+            result.addAll(devices);
+        }
+        snapshot = Collections.unmodifiableSet(result);
+    }
+}
@@ -0,0 +1,176 @@
+package jp.kshoji.blemidi.dispatch;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import jp.kshoji.blemidi.device.MidiInputDevice;
+import jp.kshoji.blemidi.device.MidiOutputDevice;
+import jp.kshoji.blemidi.listener.OnMidiDeviceAttachedListener;
+import jp.kshoji.blemidi.listener.OnMidiDeviceDetachedListener;
+import jp.kshoji.blemidi.listener.OnMidiDeviceFoundListener;
+import jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener;
+import jp.kshoji.blemidi.listener.OnMidiScanStatusListener;
+
+/**
+ * Wraps the device status listeners, to call them with the {@link DispatchPolicy}
+ *
+ * @author K.Shoji
+ */
+public final class DispatchingStatusListeners {
+    private static final int INPUT_DEVICE = 0;
+    private static final int OUTPUT_DEVICE = 1;
+
+    /**
+     * Wraps the listener
+     *
+     * @param listener the listener
+     * @param policy the dispatch policy
+     * @return the listener itself for {@link DispatchPolicy#inline()} or null, otherwise the wrapped listener
+     */
+    @Nullable
+    public static OnMidiDeviceStatusListener wrap(@Nullable final OnMidiDeviceStatusListener listener, @NonNull DispatchPolicy policy) {
+        if (listener == null || policy.isInline()) {
+            return listener;
+        }
+
+        final DispatchQueue queue = new DispatchQueue(policy, new DispatchQueue.Handler() {
+            @Override
+            public void onDispatch(int kind, @Nullable Object object, @Nullable byte[] array, int arg1, int arg2, int arg3) {
+                listener.onDeviceStatusChanged((BluetoothDevice) object, arg1);
+            }
+        });
+        return new OnMidiDeviceStatusListener() {
+            @Override
+            public void onDeviceStatusChanged(@NonNull BluetoothDevice device, int status) {
+                queue.post(0, device, null, status, 0, 0);
+            }
+        };
+    }
+
+    /**
+     * Wraps the listener
+     *
+     * @param listener the listener
+     * @param policy the dispatch policy
+     * @return the listener itself for {@link DispatchPolicy#inline()} or null, otherwise the wrapped listener
+     */
+    @Nullable
+    public static OnMidiScanStatusListener wrap(@Nullable final OnMidiScanStatusListener listener, @NonNull DispatchPolicy policy) {
+        if (listener == null || policy.isInline()) {
+            return listener;
+        }
+
+        final DispatchQueue queue = new DispatchQueue(policy, new DispatchQueue.Handler() {
+            @Override
+            public void onDispatch(int kind, @Nullable Object object, @Nullable byte[] array, int arg1, int arg2, int arg3) {
+                listener.onMidiScanStatusChanged(arg1 != 0);
+            }
+        });
+        return new OnMidiScanStatusListener() {
+            @Override
+            public void onMidiScanStatusChanged(boolean isScanning) {
+                queue.post(0, null, null, isScanning ? 1 : 0, 0, 0);
+            }
+        };
+    }
+
+    /**
+     * Wraps the listener
+     *
+     * @param listener the listener
+     * @param policy the dispatch policy
+     * @return the listener itself for {@link DispatchPolicy#inline()} or null, otherwise the wrapped listener
+     */
+    @Nullable
+    public static OnMidiDeviceFoundListener wrap(@Nullable final OnMidiDeviceFoundListener listener, @NonNull DispatchPolicy policy) {
+        if (listener == null || policy.isInline()) {
+            return listener;
+        }
+
+        final DispatchQueue queue = new DispatchQueue(policy, new DispatchQueue.Handler() {
+            @Override
+            public void onDispatch(int kind, @Nullable Object object, @Nullable byte[] array, int arg1, int arg2, int arg3) {
+                listener.onDeviceFound((BluetoothDevice) object);
+            }
+        });
+        return new OnMidiDeviceFoundListener() {
+            @Override
+            public void onDeviceFound(@NonNull BluetoothDevice device) {
+                queue.post(0, device, null, 0, 0, 0);
+            }
+        };
+    }
+
+    /**
+     * Wraps the listener
+     *
+     * @param listener the listener
+     * @param policy the dispatch policy
+     * @return the listener itself for {@link DispatchPolicy#inline()} or null, otherwise the wrapped listener
+     */
+    @Nullable
+    public static OnMidiDeviceAttachedListener wrap(@Nullable final OnMidiDeviceAttachedListener listener, @NonNull DispatchPolicy policy) {
+        if (listener == null || policy.isInline()) {
+            return listener;
+        }
+
+        final DispatchQueue queue = new DispatchQueue(policy, new DispatchQueue.Handler() {
+            @Override
+            public void onDispatch(int kind, @Nullable Object object, @Nullable byte[] array, int arg1, int arg2, int arg3) {
+                if (kind == INPUT_DEVICE) {
+                    listener.onMidiInputDeviceAttached((MidiInputDevice) object);
+                } else {
+                    listener.onMidiOutputDeviceAttached((MidiOutputDevice) object);
+                }
+            }
+        });
+        return new OnMidiDeviceAttachedListener() {
+            @Override
+            public void onMidiInputDeviceAttached(@NonNull MidiInputDevice midiInputDevice) {
+                queue.post(INPUT_DEVICE, midiInputDevice, null, 0, 0, 0);
+            }
+
+            @Override
+            public void onMidiOutputDeviceAttached(@NonNull MidiOutputDevice midiOutputDevice) {
+                queue.post(OUTPUT_DEVICE, midiOutputDevice, null, 0, 0, 0);
+            }
+        };
+    }
+
+    /**
+     * Wraps the listener
+     *
+     * @param listener the listener
+     * @param policy the dispatch policy
+     * @return the listener itself for {@link DispatchPolicy#inline()} or null, otherwise the wrapped listener
+     */
+    @Nullable
+    public static OnMidiDeviceDetachedListener wrap(@Nullable final OnMidiDeviceDetachedListener listener, @NonNull DispatchPolicy policy) {
+        if (listener == null || policy.isInline()) {
+            return listener;
+        }
+
+        final DispatchQueue queue = new DispatchQueue(policy, new DispatchQueue.Handler() {
+            @Override
+            public void onDispatch(int kind, @Nullable Object object, @Nullable byte[] array, int arg1, int arg2, int arg3) {
+                if (kind == INPUT_DEVICE) {
+                    listener.onMidiInputDeviceDetached((MidiInputDevice) object);
+                } else {
+                    listener.onMidiOutputDeviceDetached((MidiOutputDevice) object);
+                }
+            }
+        });
+        return new OnMidiDeviceDetachedListener() {
+            @Override
+            public void onMidiInputDeviceDetached(@NonNull MidiInputDevice midiInputDevice) {
+                queue.post(INPUT_DEVICE, midiInputDevice, null, 0, 0, 0);
+            }
+
+            @Override
+            public void onMidiOutputDeviceDetached(@NonNull MidiOutputDevice midiOutputDevice) {
+                queue.post(OUTPUT_DEVICE, midiOutputDevice, null, 0, 0, 0);
+            }
+        };
+    }
+}
@@ -0,0 +1,39 @@
+package jp.kshoji.blemidi.dispatch;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+/**
+ * {@link DispatchPolicy} which calls the listeners on a {@link Looper}'s thread.<br />
+ * The events queued until the posted drain runs are delivered together, so a burst costs one {@link Handler#post(Runnable)}.
+ *
+ * @author K.Shoji
+ */
+public final class LooperDispatchPolicy extends DispatchPolicy {
+    private final Handler handler;
+
+    /**
+     * Constructor
+     *
+     * @param looper the looper
+     */
+    public LooperDispatchPolicy(@NonNull Looper looper) {
+        handler = new Handler(looper);
+    }
+
+    /**
+     * Calls the listeners on the main(UI) thread, coalescing the events of a burst into one post
+     *
+     * @return the policy
+     */
+    @NonNull
+    public static LooperDispatchPolicy mainThread() {
+        return new LooperDispatchPolicy(Looper.getMainLooper());
+    }
+
+    @Override
+    protected void submit(@NonNull Runnable drainTask) {
+        handler.post(drainTask);
+    }
+}
@@ -17,6 +17,7 @@ public interface OnMidiDeviceStatusListener {
     public static final int DEVICE_CHAR_DISCOVERING = 4;
     public static final int DEVICE_CHAR_DISCOVERED_OK = 5;
     public static final int DEVICE_CHAR_DISCOVERED_FAILED = 6;
+    // notified with the first data received on each connection
     public static final int DEVICE_CHAR_RECV_DATA = 7;
     public static final int DEVICE_CHAR_ENABLE_WRITE = 8;
 
@@ -22,6 +22,7 @@ import com.theonepiano.blemidi.bluetooth.base.BaseView;
 import com.theonepiano.blemidi.bluetooth.bean.MyBluetoothDevice;
 import com.theonepiano.blemidi.bluetooth.event.BluetoothClickedEvent;
 import com.theonepiano.blemidi.bluetooth.model.BluetoothModel;
+import com.theonepiano.blemidi.bluetooth.model.DeviceListModel;
 
 
 import org.greenrobot.eventbus.EventBus;
@@ -64,6 +65,9 @@ public class BluetoothSettingsActivity extends BaseSwipeBackActivity<BluetoothMo
 
     BluetoothDevicesAdapter mBluetoothDevicesAdapter;
 
+    // the devices shown, changed on the UI thread only
+    private final List<MyBluetoothDevice> mShownDevices = new ArrayList<>(DeviceListModel.INITIAL_CAPACITY);
+
     @Override
     protected int getLayoutId() {
         return R.layout.activity_mine_bluetooth_settings;
@@ -71,9 +75,23 @@ public class BluetoothSettingsActivity extends BaseSwipeBackActivity<BluetoothMo
 
     @Override
     protected void initViews(Bundle bundle) {
+        initDeviceList();
+
         checkPermissions();
     }
 
+    private void initDeviceList() {
+        RecyclerView.RecycledViewPool viewPool = new RecyclerView.RecycledViewPool();
+        mContentView.setRecycledViewPool(viewPool);
+        viewPool.setMaxRecycledViews(0, 10);
+
+        VirtualLayoutManager manager = new VirtualLayoutManager(this);
+        mContentView.setLayoutManager(manager);
+
+        mBluetoothDevicesAdapter = new BluetoothDevicesAdapter(this, manager, mShownDevices);
+        mContentView.setAdapter(mBluetoothDevicesAdapter);
+    }
+
     private void checkPermissions() {
         String[] permissions = {Manifest.permission.ACCESS_FINE_LOCATION};
         List<String> permissionDeniedList = new ArrayList<>();
@@ -162,69 +180,42 @@ public class BluetoothSettingsActivity extends BaseSwipeBackActivity<BluetoothMo
     }
 
     @Override
-    public void onDeviceUpdated(final List<MyBluetoothDevice> devices) {
-        Log.w(TAG, "onDeviceUpdated![" + devices + "]!!!!");
+    public void onDeviceListChanged() {
+        if (isDestroyed()) {
+            return;
+        }
 
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                if (mBluetoothDevicesAdapter == null && !BluetoothSettingsActivity.this.isDestroyed()) {
-                    RecyclerView.RecycledViewPool viewPool = new RecyclerView.RecycledViewPool();
-                    mContentView.setRecycledViewPool(viewPool);
-                    viewPool.setMaxRecycledViews(0, 10);
+        mPresenter.getDeviceListModel().dispatchChanges(mShownDevices, mBluetoothDevicesAdapter);
 
-                    VirtualLayoutManager manager = new VirtualLayoutManager(BluetoothSettingsActivity.this);
-                    mContentView.setLayoutManager(manager);
+        updateSendMidiBtnStatus();
+    }
 
-                    mBluetoothDevicesAdapter = new BluetoothDevicesAdapter(BluetoothSettingsActivity.this, manager);
-                }
+    @Override
+    public void onDeviceScanStatusChanged(boolean isScanning) {
+        if (mStartScanBtn != null && mStopScanBtn != null) {
+            mStartScanBtn.setEnabled(!isScanning);
+            mStopScanBtn.setEnabled(isScanning);
 
-                if (mContentView != null && mBluetoothDevicesAdapter != null) {
-                    mBluetoothDevicesAdapter.update(devices);
-                    mContentView.setAdapter(mBluetoothDevicesAdapter);
-                }
+            if (isScanning) {
+                mScanningProgressBar.setVisibility(View.VISIBLE);
+            } else {
+                mScanningProgressBar.setVisibility(View.GONE);
 
                 updateSendMidiBtnStatus();
             }
-        });
+        }
     }
 
     @Override
-    public void onDeviceScanStatusChanged(final boolean isScanning) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                if (mStartScanBtn != null && mStopScanBtn != null) {
-                    mStartScanBtn.setEnabled(!isScanning);
-                    mStopScanBtn.setEnabled(isScanning);
-
-                    if (isScanning) {
-                        mScanningProgressBar.setVisibility(View.VISIBLE);
-                    } else {
-                        mScanningProgressBar.setVisibility(View.GONE);
-
-                        updateSendMidiBtnStatus();
-                    }
-                }
-            }
-        });
-    }
+    public void onMidiDataReceived(byte[] data) {
+        mReceivedMidiEventTextView.setVisibility(View.VISIBLE);
 
-    @Override
-    public void onMidiDataReceived(final byte[] data) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                mReceivedMidiEventTextView.setVisibility(View.VISIBLE);
-
-                String s = String.format("收到的MIDI数据长度为 %d(", data.length);
-                for (int i = 0; i < data.length; ++i) {
-                    s += String.format("0x%x ", data[i]);
-                }
-                s += ")";
-                mReceivedMidiEventTextView.setText(s);
-            }
-        });
+        String s = String.format("收到的MIDI数据长度为 %d(", data.length);
+        for (int i = 0; i < data.length; ++i) {
+            s += String.format("0x%x ", data[i]);
+        }
+        s += ")";
+        mReceivedMidiEventTextView.setText(s);
     }
 
     @Subscribe(threadMode = ThreadMode.MAIN)
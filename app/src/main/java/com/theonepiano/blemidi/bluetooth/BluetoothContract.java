@@ -5,9 +5,7 @@ import android.content.Context;
 import com.theonepiano.blemidi.bluetooth.base.BaseModel;
 import com.theonepiano.blemidi.bluetooth.base.BasePresenter;
 import com.theonepiano.blemidi.bluetooth.base.BaseView;
-import com.theonepiano.blemidi.bluetooth.bean.MyBluetoothDevice;
-
-import java.util.List;
+import com.theonepiano.blemidi.bluetooth.model.DeviceListModel;
 
 /**
  * Created by jim on 2017/7/18.
@@ -17,10 +15,19 @@ public interface BluetoothContract {
     interface View extends BaseView {
         Context getMyContext();
 
-        void onDeviceUpdated(List<MyBluetoothDevice> devices);
+        /**
+         * Called on the UI thread when the device list has changed, the changes are applied with {@link DeviceListModel#dispatchChanges}
+         */
+        void onDeviceListChanged();
 
+        /**
+         * Called on the UI thread, at most once per frame with the latest status
+         */
         void onDeviceScanStatusChanged(boolean isScanning);
 
+        /**
+         * Called on the UI thread, at most once per frame with the latest data: the data received in between are not shown
+         */
         void onMidiDataReceived(byte[] data);
     }
 
@@ -35,6 +42,8 @@ public interface BluetoothContract {
 
         public abstract void stopScan();
 
+        public abstract DeviceListModel getDeviceListModel();
+
         public abstract boolean isBluetoothDeviceConnected();
 
         public abstract void connect(String devId, String name);
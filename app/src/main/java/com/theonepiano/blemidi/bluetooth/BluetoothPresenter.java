@@ -1,37 +1,120 @@
 package com.theonepiano.blemidi.bluetooth;
 
 import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
 import android.support.annotation.NonNull;
-import android.util.Log;
+import android.view.Choreographer;
 
-import com.theonepiano.blemidi.bluetooth.bean.MyBluetoothDevice;
+import com.theonepiano.blemidi.bluetooth.model.DeviceListModel;
 import com.wanaka.midicore.ble.BleMidiManager;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import jp.kshoji.blemidi.device.MidiInputDevice;
 import jp.kshoji.blemidi.listener.OnMidiDataListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceFoundListener;
 import jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener;
 import jp.kshoji.blemidi.listener.OnMidiScanStatusListener;
+import jp.kshoji.blemidi.util.BleMidiDataUtils;
 
-import static jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener.DEVICE_DISCONNECTED;
 import static jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener.DEVICE_IDLE;
-import static jp.kshoji.blemidi.util.Constants.TAG;
 
 /**
  * Created by jim on 2017/7/18.
+ *
+ * The Bluetooth callbacks are handled on a worker thread while scanning, and only the latest state is kept:
+ * the view is updated at most once per frame, on the UI thread, with what is visible at that frame.
  */
 
 public class BluetoothPresenter extends BluetoothContract.Presenter {
+    private static final int MSG_DEVICE_STATUS = 1;
+    private static final int MSG_SCAN_STATUS = 2;
+    private static final int MSG_MIDI_DATA = 3;
+
+    private static final int SCAN_STATUS_NONE = 0;
+    private static final int SCAN_STATUS_STOPPED = 1;
+    private static final int SCAN_STATUS_SCANNING = 2;
+
     BleMidiManager mBleMidiManager;
 
-    private List<MyBluetoothDevice> mBluetoothDeviceList = new ArrayList<>();
+    private final DeviceListModel mDeviceListModel = new DeviceListModel();
+
+    // the presenter is created on the UI thread, so this is the UI thread's choreographer
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+
+    private HandlerThread mWorkerThread;
+
+    private volatile Handler mWorkerHandler;
+
+    // the state not shown yet, taken by the next frame
+    private final AtomicBoolean mIsDeviceListChanged = new AtomicBoolean();
+    private final AtomicInteger mPendingScanStatus = new AtomicInteger(SCAN_STATUS_NONE);
+    private final AtomicReference<byte[]> mPendingMidiData = new AtomicReference<>();
+
+    // the last status sent to the worker by device address: a status repeated(on every advertisement) is not sent again
+    private final ConcurrentHashMap<String, Integer> mSentDeviceStatuses = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean mIsFrameScheduled = new AtomicBoolean();
+
+    private final Handler.Callback mWorkerCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_DEVICE_STATUS:
+                    if (mDeviceListModel.update((BluetoothDevice) msg.obj, msg.arg1)) {
+                        mIsDeviceListChanged.set(true);
+                        scheduleFrame();
+                    }
+                    return true;
+                case MSG_SCAN_STATUS:
+                    mPendingScanStatus.set(msg.arg1);
+                    scheduleFrame();
+                    return true;
+                case MSG_MIDI_DATA:
+                    scheduleFrame();
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    };
 
-    private HashMap<String, BluetoothDevice> mBluetoothDevicesHashMap = new HashMap<>();
+    // runs on the UI thread
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mIsFrameScheduled.set(false);
+
+            BluetoothContract.View view = mView;
+            if (view == null) {
+                return;
+            }
+
+            if (mIsDeviceListChanged.getAndSet(false)) {
+                view.onDeviceListChanged();
+            }
+
+            int scanStatus = mPendingScanStatus.getAndSet(SCAN_STATUS_NONE);
+            if (scanStatus != SCAN_STATUS_NONE) {
+                view.onDeviceScanStatusChanged(scanStatus == SCAN_STATUS_SCANNING);
+            }
+
+            byte[] data = mPendingMidiData.getAndSet(null);
+            if (data != null) {
+                // the packet as received: shown without the header and the timestamps
+                byte[] midiData = BleMidiDataUtils.removeZeroTimestampBytes(data);
+                if (midiData != null) {
+                    view.onMidiDataReceived(midiData);
+                }
+            }
+        }
+    };
 
     @Override
     public void init() {
@@ -42,6 +125,7 @@ public class BluetoothPresenter extends BluetoothContract.Presenter {
     public void startScan() {
         reset();
 
+        startWorker();
         initEventListeners();
 
         mBleMidiManager.getInstance().open();
@@ -53,6 +137,12 @@ public class BluetoothPresenter extends BluetoothContract.Presenter {
 
         // after close
         reset();
+        stopWorker();
+    }
+
+    @Override
+    public DeviceListModel getDeviceListModel() {
+        return mDeviceListModel;
     }
 
     @Override
@@ -62,7 +152,7 @@ public class BluetoothPresenter extends BluetoothContract.Presenter {
 
     @Override
     public void connect(String devId, String name) {
-        BluetoothDevice d = mBluetoothDevicesHashMap.get(devId.toLowerCase());
+        BluetoothDevice d = mDeviceListModel.getBluetoothDevice(devId);
         if (d != null) {
             mBleMidiManager.getInstance().connect(d);
         }
@@ -78,37 +168,59 @@ public class BluetoothPresenter extends BluetoothContract.Presenter {
         mBleMidiManager.getInstance().sendMsg(data);
     }
 
-    private MyBluetoothDevice createMyBluetoothDevice(@NonNull BluetoothDevice device, int status) {
-        MyBluetoothDevice d = new MyBluetoothDevice();
-        d.id = device.getAddress();
-        d.name = device.getName();
-        d.info = device.getAddress() + "(" + device.getType() + ")";
-        d.status = status;
+    private void startWorker() {
+        if (mWorkerThread != null) {
+            return;
+        }
 
-        return d;
+        mWorkerThread = new HandlerThread("BluetoothPresenter", Process.THREAD_PRIORITY_BACKGROUND);
+        mWorkerThread.start();
+        mWorkerHandler = new Handler(mWorkerThread.getLooper(), mWorkerCallback);
     }
 
-    private List<MyBluetoothDevice> updateDevices(@NonNull BluetoothDevice device, int status) {
-        Log.w(TAG, "updateDevices![" + mBluetoothDeviceList.size() + "]");
+    private void stopWorker() {
+        if (mWorkerThread == null) {
+            return;
+        }
 
-        synchronized (mBluetoothDeviceList) {
-            BluetoothDevice d = mBluetoothDevicesHashMap.get(device.getAddress().toLowerCase());
-            if (d == null) {
-                MyBluetoothDevice m = createMyBluetoothDevice(device, status);
-                mBluetoothDevicesHashMap.put(m.id.toLowerCase(), device);
+        mWorkerHandler = null;
+        // the messages already sent are still handled
+        mWorkerThread.quitSafely();
+        mWorkerThread = null;
+    }
 
-                mBluetoothDeviceList.add(m);
-            } else {
-                for (MyBluetoothDevice m : mBluetoothDeviceList) {
-                    if (m.id.equalsIgnoreCase(device.getAddress())) {
-                        m.status = status;
-                        Log.w(TAG, "device: " + device + "]status[ " + m.status + "]");
-                    }
-                }
-            }
+    /**
+     * hand a callback over to the worker thread, or handle it on the calling thread when not scanning
+     * (the connected device still sends MIDI data)
+     */
+    private void sendToWorker(int what, int arg1, Object obj) {
+        Handler handler = mWorkerHandler;
+        if (handler != null) {
+            handler.obtainMessage(what, arg1, 0, obj).sendToTarget();
+        } else {
+            Message msg = Message.obtain(null, what, arg1, 0, obj);
+            mWorkerCallback.handleMessage(msg);
+            msg.recycle();
+        }
+    }
+
+    /**
+     * hand a device status over to the worker thread, unless the same status has already been sent for the device
+     */
+    private void sendDeviceStatus(@NonNull BluetoothDevice device, int status) {
+        Integer sentStatus = mSentDeviceStatuses.put(device.getAddress(), status);
+        if (sentStatus == null || sentStatus != status) {
+            sendToWorker(MSG_DEVICE_STATUS, status, device);
         }
+    }
 
-        return mBluetoothDeviceList;
+    /**
+     * request the next frame to show the pending state, at most once per frame
+     */
+    private void scheduleFrame() {
+        if (mIsFrameScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(mFrameCallback);
+        }
     }
 
     /**
@@ -129,31 +241,31 @@ public class BluetoothPresenter extends BluetoothContract.Presenter {
         mBleMidiManager.getInstance().setOnBluetoothDeviceFoundListener(new OnMidiDeviceFoundListener() {
             @Override
             public void onDeviceFound(@NonNull BluetoothDevice device) {
-                Log.w(TAG, "onDeviceFound[" + device + "]");
-                mView.onDeviceUpdated(updateDevices(device, DEVICE_IDLE));
+                sendDeviceStatus(device, DEVICE_IDLE);
             }
         });
 
         mBleMidiManager.getInstance().setOnMidiScanStatusListener(new OnMidiScanStatusListener() {
             @Override
             public void onMidiScanStatusChanged(boolean isScanning) {
-                mView.onDeviceScanStatusChanged(isScanning);
+                sendToWorker(MSG_SCAN_STATUS, isScanning ? SCAN_STATUS_SCANNING : SCAN_STATUS_STOPPED, null);
             }
         });
 
         mBleMidiManager.getInstance().setOnMidiDeviceStatusListener(new OnMidiDeviceStatusListener() {
             @Override
             public void onDeviceStatusChanged(@NonNull BluetoothDevice device, int status) {
-                Log.w(TAG, "device:" + device + " status[" + status + "]");
-                mView.onDeviceUpdated(updateDevices(device, status));
+                sendDeviceStatus(device, status);
             }
         });
 
         mBleMidiManager.getInstance().setOnMidiDataListener(new OnMidiDataListener() {
             @Override
             public void onMidiData(MidiInputDevice device, byte[] data) {
-                Log.w(TAG, "onMidiData!!!!");
-                mView.onMidiDataReceived(data);
+                // only the latest data is shown, the worker is woken up once until the next frame takes it
+                if (mPendingMidiData.getAndSet(data) == null) {
+                    sendToWorker(MSG_MIDI_DATA, 0, null);
+                }
             }
         });
     }
@@ -162,15 +274,9 @@ public class BluetoothPresenter extends BluetoothContract.Presenter {
      * remove all non-connected ble devices
      */
     private void removeUselessDevices() {
-        synchronized (mBluetoothDeviceList) {
-            Iterator<MyBluetoothDevice> it = mBluetoothDeviceList.iterator();
-            while (it.hasNext()) {
-                MyBluetoothDevice d = it.next();
-                if (d.status == DEVICE_IDLE || d.status == DEVICE_DISCONNECTED) {
-                    mBluetoothDevicesHashMap.remove(d.id.toLowerCase());
-                    it.remove();
-                }
-            }
+        if (mDeviceListModel.removeDisconnected()) {
+            mIsDeviceListChanged.set(true);
+            scheduleFrame();
         }
     }
 }
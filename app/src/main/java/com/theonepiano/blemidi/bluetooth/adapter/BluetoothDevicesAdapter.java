@@ -1,6 +1,7 @@
 package com.theonepiano.blemidi.bluetooth.adapter;
 
 import android.content.Context;
+import android.support.v7.util.ListUpdateCallback;
 
 import com.alibaba.android.vlayout.DelegateAdapter;
 import com.alibaba.android.vlayout.VirtualLayoutManager;
@@ -15,22 +16,24 @@ import java.util.List;
  * Created by jim on 2017/6/25.
  */
 
-public class BluetoothDevicesAdapter extends DelegateAdapter {
+public class BluetoothDevicesAdapter extends DelegateAdapter implements ListUpdateCallback {
     List<Adapter> mAdapters;
     private Context mContext;
+    private BluetoothItemLinearLayoutAdapter mDeviceAdapter;
 
-    public BluetoothDevicesAdapter(Context context, VirtualLayoutManager layoutManager) {
+    /**
+     * @param context the context
+     * @param layoutManager the layout manager
+     * @param devices the devices shown, changed on the UI thread and notified through {@link ListUpdateCallback}
+     */
+    public BluetoothDevicesAdapter(Context context, VirtualLayoutManager layoutManager, List<MyBluetoothDevice> devices) {
         super(layoutManager, true);
 
         mContext = context;
 
         mAdapters = new LinkedList<>();
-    }
-
-    public void update(List<MyBluetoothDevice> items) {
-        mAdapters.clear();
 
-        initBluetoothDevices(items);
+        initBluetoothDevices(devices);
 
         this.setAdapters(mAdapters);
     }
@@ -38,8 +41,30 @@ public class BluetoothDevicesAdapter extends DelegateAdapter {
     private void initBluetoothDevices(List<MyBluetoothDevice> items) {
         LinearLayoutHelper deviceHelper = new LinearLayoutHelper();
         deviceHelper.setItemCount(items.size());
-        BluetoothItemLinearLayoutAdapter deviceAdapter = new BluetoothItemLinearLayoutAdapter(mContext, deviceHelper, items);
+        mDeviceAdapter = new BluetoothItemLinearLayoutAdapter(mContext, deviceHelper, items);
+
+        mAdapters.add(mDeviceAdapter);
+    }
+
+    // the item count of the layout helper follows the notifications of the device adapter
+
+    @Override
+    public void onInserted(int position, int count) {
+        mDeviceAdapter.notifyItemRangeInserted(position, count);
+    }
+
+    @Override
+    public void onRemoved(int position, int count) {
+        mDeviceAdapter.notifyItemRangeRemoved(position, count);
+    }
+
+    @Override
+    public void onMoved(int fromPosition, int toPosition) {
+        mDeviceAdapter.notifyItemMoved(fromPosition, toPosition);
+    }
 
-        mAdapters.add(deviceAdapter);
+    @Override
+    public void onChanged(int position, int count, Object payload) {
+        mDeviceAdapter.notifyItemRangeChanged(position, count, payload);
     }
 }
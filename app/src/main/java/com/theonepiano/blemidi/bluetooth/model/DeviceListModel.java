@@ -0,0 +1,210 @@
+package com.theonepiano.blemidi.bluetooth.model;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v7.util.ListUpdateCallback;
+
+import com.theonepiano.blemidi.bluetooth.bean.MyBluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import static jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener.DEVICE_DISCONNECTED;
+import static jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener.DEVICE_IDLE;
+
+/**
+ * The found devices, indexed by address.
+ * Updated from the Bluetooth callbacks, it records the inserted / changed / removed items,
+ * and replays them to the list shown on the UI thread with {@link #dispatchChanges(List, ListUpdateCallback)}.
+ * The changes of an item between two dispatches are merged into one.
+ */
+public class DeviceListModel {
+    public static final int INITIAL_CAPACITY = 32;
+
+    private final List<Entry> mEntries = new ArrayList<>(INITIAL_CAPACITY);
+
+    private final HashMap<String, Entry> mEntryMap = new HashMap<>(INITIAL_CAPACITY * 2);
+
+    private final List<Change> mChanges = new ArrayList<>(INITIAL_CAPACITY);
+
+    private static class Entry {
+        final BluetoothDevice device;
+        final MyBluetoothDevice item;
+        final String key;
+        int position;
+        // the change not dispatched yet, merged with the next update of this entry
+        Change pendingChange;
+
+        Entry(BluetoothDevice device, MyBluetoothDevice item, String key, int position) {
+            this.device = device;
+            this.item = item;
+            this.key = key;
+            this.position = position;
+        }
+    }
+
+    private static class Change {
+        static final int INSERTED = 0;
+        static final int CHANGED = 1;
+        static final int REMOVED = 2;
+
+        final int type;
+        final int position;
+        // a copy handed over to the shown list, null if removed
+        final MyBluetoothDevice item;
+        final Entry entry;
+
+        Change(int type, int position, MyBluetoothDevice item, Entry entry) {
+            this.type = type;
+            this.position = position;
+            this.item = item;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Adds the device, or updates its status
+     *
+     * @param device the device
+     * @param status the status
+     * @return true if the list has been changed
+     */
+    public synchronized boolean update(@NonNull BluetoothDevice device, int status) {
+        return update(device.getAddress(), device.getName(), device.getType(), device, status);
+    }
+
+    /**
+     * Adds the device, or updates its status
+     *
+     * @param address the address
+     * @param name the name
+     * @param type the type of {@link BluetoothDevice}
+     * @param device the device, null in the unit tests
+     * @param status the status
+     * @return true if the list has been changed
+     */
+    synchronized boolean update(@NonNull String address, @Nullable String name, int type, @Nullable BluetoothDevice device, int status) {
+        String key = toKey(address);
+        Entry entry = mEntryMap.get(key);
+        if (entry == null) {
+            entry = new Entry(device, createMyBluetoothDevice(address, name, type, status), key, mEntries.size());
+            mEntries.add(entry);
+            mEntryMap.put(key, entry);
+            addChange(Change.INSERTED, entry);
+            return true;
+        }
+
+        if (entry.item.status == status) {
+            return false;
+        }
+        entry.item.status = status;
+        if (entry.pendingChange != null) {
+            entry.pendingChange.item.status = status;
+        } else {
+            addChange(Change.CHANGED, entry);
+        }
+        return true;
+    }
+
+    /**
+     * Removes all non-connected devices
+     *
+     * @return true if the list has been changed
+     */
+    public synchronized boolean removeDisconnected() {
+        int firstRemoved = -1;
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            Entry entry = mEntries.get(i);
+            if (entry.item.status == DEVICE_IDLE || entry.item.status == DEVICE_DISCONNECTED) {
+                mEntries.remove(i);
+                mEntryMap.remove(entry.key);
+                mChanges.add(new Change(Change.REMOVED, i, null, entry));
+                firstRemoved = i;
+            }
+        }
+
+        if (firstRemoved < 0) {
+            return false;
+        }
+        for (int i = firstRemoved; i < mEntries.size(); i++) {
+            mEntries.get(i).position = i;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the device by address
+     *
+     * @param address the address, case insensitive
+     * @return the device, null if not found
+     */
+    @Nullable
+    public synchronized BluetoothDevice getBluetoothDevice(@NonNull String address) {
+        Entry entry = mEntryMap.get(toKey(address));
+        return entry == null ? null : entry.device;
+    }
+
+    /**
+     * Applies the changes since the last dispatch to the shown list, called on the UI thread
+     *
+     * @param shownDevices the list shown, updated with the changes
+     * @param callback notified of each change, after applied to the shown list
+     */
+    public synchronized void dispatchChanges(@NonNull List<MyBluetoothDevice> shownDevices, @NonNull ListUpdateCallback callback) {
+        for (int i = 0, size = mChanges.size(); i < size; i++) {
+            Change change = mChanges.get(i);
+            switch (change.type) {
+                case Change.INSERTED:
+                    shownDevices.add(change.position, change.item);
+                    callback.onInserted(change.position, 1);
+                    break;
+                case Change.CHANGED:
+                    shownDevices.set(change.position, change.item);
+                    callback.onChanged(change.position, 1, null);
+                    break;
+                default:
+                    shownDevices.remove(change.position);
+                    callback.onRemoved(change.position, 1);
+                    break;
+            }
+
+            if (change.entry.pendingChange == change) {
+                change.entry.pendingChange = null;
+            }
+        }
+        mChanges.clear();
+    }
+
+    private void addChange(int type, @NonNull Entry entry) {
+        Change change = new Change(type, entry.position, copyOf(entry.item), entry);
+        entry.pendingChange = change;
+        mChanges.add(change);
+    }
+
+    private static String toKey(@NonNull String address) {
+        return address.toUpperCase(Locale.US);
+    }
+
+    private static MyBluetoothDevice createMyBluetoothDevice(@NonNull String address, @Nullable String name, int type, int status) {
+        MyBluetoothDevice d = new MyBluetoothDevice();
+        d.id = address;
+        d.name = name;
+        d.info = address + "(" + type + ")";
+        d.status = status;
+
+        return d;
+    }
+
+    private static MyBluetoothDevice copyOf(@NonNull MyBluetoothDevice device) {
+        MyBluetoothDevice d = new MyBluetoothDevice();
+        d.id = device.id;
+        d.name = device.name;
+        d.info = device.info;
+        d.status = device.status;
+
+        return d;
+    }
+}
@@ -0,0 +1,155 @@
+package com.theonepiano.blemidi.bluetooth.model;
+
+import android.support.v7.util.ListUpdateCallback;
+
+import com.theonepiano.blemidi.bluetooth.bean.MyBluetoothDevice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener.DEVICE_CONNECTING;
+import static jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener.DEVICE_DISCONNECTED;
+import static jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener.DEVICE_IDLE;
+import static jp.kshoji.blemidi.listener.OnMidiDeviceStatusListener.DEVICE_SERVICE_DISCOVERED_OK;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceListModelTest {
+
+    /**
+     * Records the notified changes as "inserted 0"
+     */
+    private static final class RecordingCallback implements ListUpdateCallback {
+        final List<String> changes = new ArrayList<>();
+
+        @Override
+        public void onInserted(int position, int count) {
+            changes.add("inserted " + position);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            changes.add("removed " + position);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            changes.add("moved " + fromPosition + " " + toPosition);
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            changes.add("changed " + position);
+        }
+    }
+
+    private static boolean update(DeviceListModel model, String address, int status) {
+        return model.update(address, "Device " + address, 2, null, status);
+    }
+
+    private static List<String> ids(List<MyBluetoothDevice> devices) {
+        List<String> result = new ArrayList<>();
+        for (MyBluetoothDevice device : devices) {
+            result.add(device.id);
+        }
+        return result;
+    }
+
+    @Test
+    public void update_insertsAtTheEnd() {
+        DeviceListModel model = new DeviceListModel();
+        List<MyBluetoothDevice> shown = new ArrayList<>();
+        RecordingCallback callback = new RecordingCallback();
+
+        assertTrue(update(model, "A", DEVICE_IDLE));
+        assertTrue(update(model, "B", DEVICE_IDLE));
+        assertTrue(update(model, "C", DEVICE_IDLE));
+        model.dispatchChanges(shown, callback);
+
+        assertEquals(Arrays.asList("A", "B", "C"), ids(shown));
+        assertEquals(Arrays.asList("inserted 0", "inserted 1", "inserted 2"), callback.changes);
+    }
+
+    @Test
+    public void update_sameAddressIgnoresCaseAndUnchangedStatus() {
+        DeviceListModel model = new DeviceListModel();
+        assertTrue(update(model, "aa:bb", DEVICE_IDLE));
+        assertFalse(update(model, "AA:BB", DEVICE_IDLE));
+
+        List<MyBluetoothDevice> shown = new ArrayList<>();
+        RecordingCallback callback = new RecordingCallback();
+        model.dispatchChanges(shown, callback);
+        assertEquals(1, shown.size());
+        assertEquals(Arrays.asList("inserted 0"), callback.changes);
+    }
+
+    @Test
+    public void update_mergedIntoPendingChange() {
+        DeviceListModel model = new DeviceListModel();
+        List<MyBluetoothDevice> shown = new ArrayList<>();
+        RecordingCallback callback = new RecordingCallback();
+
+        update(model, "A", DEVICE_IDLE);
+        update(model, "A", DEVICE_CONNECTING);
+        update(model, "A", DEVICE_SERVICE_DISCOVERED_OK);
+        model.dispatchChanges(shown, callback);
+
+        assertEquals(Arrays.asList("inserted 0"), callback.changes);
+        assertEquals(DEVICE_SERVICE_DISCOVERED_OK, shown.get(0).status);
+
+        // after dispatched, a new change
+        callback.changes.clear();
+        update(model, "A", DEVICE_DISCONNECTED);
+        model.dispatchChanges(shown, callback);
+        assertEquals(Arrays.asList("changed 0"), callback.changes);
+        assertEquals(DEVICE_DISCONNECTED, shown.get(0).status);
+    }
+
+    @Test
+    public void removeDisconnected_updatesPositions() {
+        DeviceListModel model = new DeviceListModel();
+        List<MyBluetoothDevice> shown = new ArrayList<>();
+        RecordingCallback callback = new RecordingCallback();
+        update(model, "A", DEVICE_IDLE);
+        update(model, "B", DEVICE_SERVICE_DISCOVERED_OK);
+        update(model, "C", DEVICE_DISCONNECTED);
+        update(model, "D", DEVICE_CONNECTING);
+        model.dispatchChanges(shown, callback);
+        callback.changes.clear();
+
+        assertTrue(model.removeDisconnected());
+        assertFalse(model.removeDisconnected());
+        // the remaining devices have moved: B 1 -> 0, D 3 -> 1
+        update(model, "D", DEVICE_SERVICE_DISCOVERED_OK);
+        update(model, "E", DEVICE_IDLE);
+        model.dispatchChanges(shown, callback);
+
+        assertEquals(Arrays.asList("removed 2", "removed 0", "changed 1", "inserted 2"), callback.changes);
+        assertEquals(Arrays.asList("B", "D", "E"), ids(shown));
+        assertEquals(DEVICE_SERVICE_DISCOVERED_OK, shown.get(1).status);
+    }
+
+    @Test
+    public void dispatchChanges_changeBeforeRemovalReplayedInOrder() {
+        DeviceListModel model = new DeviceListModel();
+        List<MyBluetoothDevice> shown = new ArrayList<>();
+        RecordingCallback callback = new RecordingCallback();
+        update(model, "A", DEVICE_IDLE);
+        update(model, "B", DEVICE_CONNECTING);
+        model.dispatchChanges(shown, callback);
+        callback.changes.clear();
+
+        // B changes at 1, then A is removed: B is shown at 0
+        update(model, "B", DEVICE_SERVICE_DISCOVERED_OK);
+        model.removeDisconnected();
+        model.dispatchChanges(shown, callback);
+
+        assertEquals(Arrays.asList("changed 1", "removed 0"), callback.changes);
+        assertEquals(Arrays.asList("B"), ids(shown));
+        assertEquals(DEVICE_SERVICE_DISCOVERED_OK, shown.get(0).status);
+    }
+}